@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.mime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Handler which writes attachments to files and keeps the body texts of the
+ * message. Text longer than the limit is truncated, so the memory is bounded
+ * regardless of the message size.
+ */
+public class AttachmentExtractor implements MimeStreamHandler {
+	public static final int DEFAULT_MAX_TEXT_LENGTH = 1024 * 1024;
+
+	private final File directory;
+	private final int maxTextLength;
+
+	private MimeHeader header;
+	private String textContent;
+	private String htmlContent;
+	private final List<Attachment> attachments = new ArrayList<Attachment>();
+	private boolean ended;
+
+	private OutputStream out;
+	private File file;
+	private ByteArrayOutputStream text;
+
+	public AttachmentExtractor() {
+		this(null, DEFAULT_MAX_TEXT_LENGTH);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of attachment files, or null for the default
+	 *            temporary directory
+	 */
+	public AttachmentExtractor(File directory, int maxTextLength) {
+		this.directory = directory;
+		this.maxTextLength = maxTextLength;
+	}
+
+	@Override
+	public void onPartStart(MimePart part) throws IOException {
+		if (part.getDepth() == 0)
+			header = part.getHeader();
+
+		if (part.isMultipart())
+			return;
+
+		if (part.isAttachment()) {
+			file = File.createTempFile("kraken", ".mime", directory);
+			out = new BufferedOutputStream(new FileOutputStream(file));
+		} else {
+			text = new ByteArrayOutputStream();
+		}
+	}
+
+	@Override
+	public void onPartData(MimePart part, byte[] b, int offset, int length) throws IOException {
+		if (out != null) {
+			out.write(b, offset, length);
+		} else if (text != null) {
+			int remaining = maxTextLength - text.size();
+			text.write(b, offset, Math.min(length, Math.max(remaining, 0)));
+		}
+	}
+
+	@Override
+	public void onPartEnd(MimePart part) throws IOException {
+		if (part.isMultipart())
+			return;
+
+		if (out != null) {
+			out.close();
+			attachments.add(new Attachment(part, file));
+			out = null;
+			file = null;
+		} else if (text != null) {
+			String s = new String(text.toByteArray(), charsetOf(part));
+			if (part.getContentType().equals("text/html")) {
+				if (htmlContent == null)
+					htmlContent = s;
+			} else if (textContent == null) {
+				textContent = s;
+			}
+			text = null;
+		}
+	}
+
+	@Override
+	public void onEnd() throws IOException {
+		ended = true;
+	}
+
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Returns the header of the message.
+	 */
+	public MimeHeader getHeader() {
+		return header;
+	}
+
+	public String getTextContent() {
+		return textContent;
+	}
+
+	public String getHtmlContent() {
+		return htmlContent;
+	}
+
+	public List<Attachment> getAttachments() {
+		return Collections.unmodifiableList(attachments);
+	}
+
+	/**
+	 * Deletes all attachment files, including the one in progress.
+	 */
+	public void dispose() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+			out = null;
+		}
+
+		for (Attachment attachment : attachments)
+			attachment.getFile().delete();
+	}
+
+	private static Charset charsetOf(MimePart part) {
+		String charset = part.getCharset();
+		if (charset != null) {
+			try {
+				return Charset.forName(charset.trim());
+			} catch (Exception e) {
+			}
+		}
+		return Charset.forName("utf-8");
+	}
+
+	public static class Attachment {
+		private final MimePart part;
+		private final File file;
+
+		public Attachment(MimePart part, File file) {
+			this.part = part;
+			this.file = file;
+		}
+
+		public MimePart getPart() {
+			return part;
+		}
+
+		public String getFileName() {
+			return part.getFileName();
+		}
+
+		public String getContentType() {
+			return part.getContentType();
+		}
+
+		public long getSize() {
+			return part.getSize();
+		}
+
+		public String getMd5() {
+			return part.getMd5();
+		}
+
+		public String getSha256() {
+			return part.getSha256();
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return new FileInputStream(file);
+		}
+	}
+}
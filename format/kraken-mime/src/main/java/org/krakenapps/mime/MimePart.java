@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.mime;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A part of a mime message reported by {@link MimeStreamParser}. The message
+ * itself is the part of depth 0.
+ */
+public class MimePart {
+	private final MimePart parent;
+	private final int depth;
+	private final MimeHeader header;
+
+	private final String contentType;
+	private final Map<String, String> contentTypeParams;
+	private final String disposition;
+	private final String fileName;
+	private final String transferEncoding;
+
+	private long size;
+	private String md5;
+	private String sha256;
+
+	public MimePart(MimePart parent, MimeHeader header) {
+		this.parent = parent;
+		this.depth = parent == null ? 0 : parent.depth + 1;
+		this.header = header;
+
+		contentTypeParams = new HashMap<String, String>();
+		String type = parseValue(getHeaderValue(header, "Content-Type"), contentTypeParams);
+		if (type == null)
+			type = parent != null && parent.getContentType().equals("multipart/digest") ? "message/rfc822" : "text/plain";
+		contentType = type;
+
+		Map<String, String> dispositionParams = new HashMap<String, String>();
+		disposition = parseValue(getHeaderValue(header, "Content-Disposition"), dispositionParams);
+
+		String name = dispositionParams.get("filename");
+		if (name == null)
+			name = contentTypeParams.get("name");
+		fileName = name;
+
+		String encoding = getHeaderValue(header, "Content-Transfer-Encoding");
+		transferEncoding = encoding == null ? "7bit" : encoding.trim().toLowerCase();
+	}
+
+	public MimePart getParent() {
+		return parent;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public MimeHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * Returns the lower case media type without parameters.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getContentTypeParam(String name) {
+		return contentTypeParams.get(name.toLowerCase());
+	}
+
+	public String getCharset() {
+		return contentTypeParams.get("charset");
+	}
+
+	public String getBoundary() {
+		return contentTypeParams.get("boundary");
+	}
+
+	public String getDisposition() {
+		return disposition;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getTransferEncoding() {
+		return transferEncoding;
+	}
+
+	public boolean isMultipart() {
+		return contentType.startsWith("multipart/") && getBoundary() != null;
+	}
+
+	/**
+	 * Returns true for parts which are not a body text of the message.
+	 */
+	public boolean isAttachment() {
+		return "attachment".equals(disposition) || fileName != null || !contentType.startsWith("text/");
+	}
+
+	/**
+	 * Returns the decoded length of the body.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the hex MD5 of the decoded body, available at the end of part.
+	 */
+	public String getMd5() {
+		return md5;
+	}
+
+	/**
+	 * Returns the hex SHA-256 of the decoded body, available at the end of
+	 * part.
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	void setDigest(long size, String md5, String sha256) {
+		this.size = size;
+		this.md5 = md5;
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * Returns the first value of the header regardless of the case of name.
+	 */
+	public static String getHeaderValue(MimeHeader header, String name) {
+		for (String key : header.keySet()) {
+			if (key == null || !key.equalsIgnoreCase(name))
+				continue;
+
+			String value = header.getHeader(key);
+			if (value != null)
+				return value;
+
+			List<String> values = header.getHeaders(key);
+			if (values != null && !values.isEmpty())
+				return values.get(0);
+		}
+		return null;
+	}
+
+	/* parses "value; key=value; key="value"" and returns lower case value */
+	private static String parseValue(String field, Map<String, String> params) {
+		if (field == null)
+			return null;
+
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == ';' && !quoted) {
+				tokens.add(sb.toString());
+				sb.setLength(0);
+				continue;
+			}
+			sb.append(c);
+		}
+		tokens.add(sb.toString());
+
+		for (int i = 1; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			int p = token.indexOf('=');
+			if (p < 0)
+				continue;
+
+			String key = token.substring(0, p).trim().toLowerCase();
+			String value = token.substring(p + 1).trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+				value = value.substring(1, value.length() - 1);
+
+			/* rfc 2231 extended value, charset'language'encoded */
+			if (key.endsWith("*")) {
+				key = key.substring(0, key.length() - 1);
+				int q = value.indexOf('\'');
+				int r = q < 0 ? -1 : value.indexOf('\'', q + 1);
+				if (r > 0) {
+					try {
+						value = URLDecoder.decode(value.substring(r + 1).replace("+", "%2B"), value.substring(0, q));
+					} catch (UnsupportedEncodingException e) {
+					} catch (IllegalArgumentException e) {
+					}
+				}
+			}
+			params.put(key, value);
+		}
+
+		String value = tokens.get(0).trim().toLowerCase();
+		return value.isEmpty() ? null : value;
+	}
+}
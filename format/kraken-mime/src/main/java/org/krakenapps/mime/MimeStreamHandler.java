@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.mime;
+
+import java.io.IOException;
+
+/**
+ * Receives the events of {@link MimeStreamParser} as the message arrives.
+ */
+public interface MimeStreamHandler {
+	/**
+	 * Called when the header of a part is parsed. The header of the message
+	 * is the part of depth 0.
+	 */
+	void onPartStart(MimePart part) throws IOException;
+
+	/**
+	 * Called with the transfer-decoded body of a leaf part. The bytes are
+	 * valid only during the call.
+	 */
+	void onPartData(MimePart part, byte[] b, int offset, int length) throws IOException;
+
+	/**
+	 * Called at the end of a part. The size and digests of leaf parts are
+	 * available.
+	 */
+	void onPartEnd(MimePart part) throws IOException;
+
+	void onEnd() throws IOException;
+}
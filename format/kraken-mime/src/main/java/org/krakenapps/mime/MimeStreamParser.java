@@ -0,0 +1,503 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.mime;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental mime parser. Bytes are fed in any segmentation, and header,
+ * body and end events of each part are sent to the handler as soon as the
+ * lines are complete. Only the current line and header block are kept in
+ * memory, and the MD5 and SHA-256 of leaf bodies are computed on the fly.
+ */
+public class MimeStreamParser {
+	/* longer lines cannot be boundaries, and are passed without buffering */
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_HEADER_LENGTH = 256 * 1024;
+
+	private static final byte[] CRLF = new byte[] { 0x0d, 0x0a };
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private enum State {
+		HEADER, BODY, SKIP, END
+	}
+
+	private final MimeStreamHandler handler;
+	private final Charset headerCharset;
+	private boolean dotStuffed;
+
+	private State state = State.HEADER;
+
+	private byte[] line = new byte[256];
+	private int lineLength;
+	private boolean lineStart = true;
+	private boolean longLine;
+
+	/* line terminator which is part of body unless a boundary follows */
+	private int heldTerminator;
+
+	private byte[] headerBlock = new byte[1024];
+	private int headerLength;
+
+	/* open multipart parts, innermost last */
+	private final List<MimePart> multiparts = new ArrayList<MimePart>();
+
+	private MimePart leaf;
+	private TransferDecoder decoder;
+	private MessageDigest md5;
+	private MessageDigest sha256;
+	private long leafSize;
+
+	public MimeStreamParser(MimeStreamHandler handler) {
+		this(handler, Charset.forName("utf-8"));
+	}
+
+	public MimeStreamParser(MimeStreamHandler handler, Charset headerCharset) {
+		this.handler = handler;
+		this.headerCharset = headerCharset;
+	}
+
+	public boolean isDotStuffed() {
+		return dotStuffed;
+	}
+
+	/**
+	 * Removes the leading dot of lines, for SMTP DATA and POP3 responses
+	 * which are not unstuffed by the caller.
+	 */
+	public void setDotStuffed(boolean dotStuffed) {
+		this.dotStuffed = dotStuffed;
+	}
+
+	public void update(byte[] b) throws IOException {
+		update(b, 0, b.length);
+	}
+
+	public void update(byte[] b, int offset, int length) throws IOException {
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			if (lineStart) {
+				lineStart = false;
+				if (dotStuffed && b[i] == '.') {
+					i++;
+					continue;
+				}
+			}
+
+			int lf = i;
+			while (lf < end && b[lf] != '\n')
+				lf++;
+
+			if (lf < end) {
+				append(b, i, lf + 1 - i);
+				processLine();
+				lineStart = true;
+				i = lf + 1;
+			} else {
+				append(b, i, end - i);
+				i = end;
+				if (lineLength > MAX_LINE_LENGTH)
+					flushLongLine();
+			}
+		}
+	}
+
+	/**
+	 * Processes the last line without terminator and ends all open parts.
+	 */
+	public void finish() throws IOException {
+		if (lineLength > 0)
+			processLine();
+
+		if (state == State.HEADER)
+			endHeader();
+		if (state == State.BODY)
+			endLeaf();
+
+		for (int i = multiparts.size() - 1; i >= 0; i--)
+			handler.onPartEnd(multiparts.remove(i));
+
+		state = State.END;
+		handler.onEnd();
+	}
+
+	private void append(byte[] b, int offset, int length) {
+		if (lineLength + length > line.length)
+			line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+		System.arraycopy(b, offset, line, lineLength, length);
+		lineLength += length;
+	}
+
+	private void flushLongLine() throws IOException {
+		if (state == State.BODY) {
+			emitHeldTerminator();
+			emit(line, 0, lineLength);
+		} else if (state == State.HEADER) {
+			appendHeader(line, 0, lineLength, false);
+		}
+		lineLength = 0;
+		longLine = true;
+	}
+
+	private void processLine() throws IOException {
+		int terminator = 0;
+		if (lineLength > 0 && line[lineLength - 1] == '\n') {
+			terminator = 1;
+			if (lineLength > 1 && line[lineLength - 2] == '\r')
+				terminator = 2;
+		}
+		int length = lineLength - terminator;
+		lineLength = 0;
+
+		if (longLine) {
+			longLine = false;
+			if (state == State.BODY) {
+				emitHeldTerminator();
+				emit(line, 0, length);
+				heldTerminator = terminator;
+			} else if (state == State.HEADER) {
+				appendHeader(line, 0, length, true);
+			}
+			return;
+		}
+
+		switch (state) {
+		case HEADER:
+			if (length == 0)
+				endHeader();
+			else
+				appendHeader(line, 0, length, true);
+			break;
+		case BODY:
+		case SKIP:
+			if (!findBoundary(length)) {
+				if (state == State.BODY) {
+					emitHeldTerminator();
+					emit(line, 0, length);
+					heldTerminator = terminator;
+				}
+			}
+			break;
+		case END:
+			break;
+		}
+	}
+
+	private void appendHeader(byte[] b, int offset, int length, boolean crlf) {
+		int total = length + (crlf ? 2 : 0);
+		if (headerLength + total > MAX_HEADER_LENGTH)
+			return;
+
+		if (headerLength + total > headerBlock.length)
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerLength + total));
+		System.arraycopy(b, offset, headerBlock, headerLength, length);
+		headerLength += length;
+		if (crlf) {
+			System.arraycopy(CRLF, 0, headerBlock, headerLength, 2);
+			headerLength += 2;
+		}
+	}
+
+	private void endHeader() throws IOException {
+		MimeHeader header = new MimeHeader();
+		if (headerLength > 0) {
+			appendHeader(CRLF, 0, 0, true);
+			header.decodeHeader(headerCharset, Arrays.copyOf(headerBlock, headerLength));
+		}
+		headerLength = 0;
+
+		MimePart parent = multiparts.isEmpty() ? null : multiparts.get(multiparts.size() - 1);
+		MimePart part = new MimePart(parent, header);
+		handler.onPartStart(part);
+
+		if (part.isMultipart()) {
+			multiparts.add(part);
+			state = State.SKIP;
+		} else {
+			startLeaf(part);
+			state = State.BODY;
+		}
+	}
+
+	/* returns true if the line is a delimiter of an open multipart */
+	private boolean findBoundary(int length) throws IOException {
+		if (length < 3 || line[0] != '-' || line[1] != '-' || multiparts.isEmpty())
+			return false;
+
+		/* ignore trailing white spaces */
+		while (length > 2 && (line[length - 1] == ' ' || line[length - 1] == '\t'))
+			length--;
+
+		for (int i = multiparts.size() - 1; i >= 0; i--) {
+			byte[] boundary = multiparts.get(i).getBoundary().getBytes(headerCharset);
+			boolean close;
+			if (length == boundary.length + 2)
+				close = false;
+			else if (length == boundary.length + 4 && line[length - 1] == '-' && line[length - 2] == '-')
+				close = true;
+			else
+				continue;
+
+			boolean matched = true;
+			for (int j = 0; j < boundary.length && matched; j++)
+				matched = line[j + 2] == boundary[j];
+			if (!matched)
+				continue;
+
+			if (state == State.BODY)
+				endLeaf();
+
+			/* close inner multiparts without end delimiter */
+			while (multiparts.size() > i + 1)
+				handler.onPartEnd(multiparts.remove(multiparts.size() - 1));
+
+			if (close) {
+				handler.onPartEnd(multiparts.remove(i));
+				state = multiparts.isEmpty() ? State.END : State.SKIP;
+			} else {
+				state = State.HEADER;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void startLeaf(MimePart part) {
+		leaf = part;
+		leafSize = 0;
+		heldTerminator = 0;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		String encoding = part.getTransferEncoding();
+		if (encoding.equals("base64"))
+			decoder = new Base64Decoder();
+		else if (encoding.equals("quoted-printable"))
+			decoder = new QuotedPrintableDecoder();
+		else
+			decoder = new TransferDecoder();
+	}
+
+	private void endLeaf() throws IOException {
+		decoder.finish();
+		leaf.setDigest(leafSize, toHex(md5.digest()), toHex(sha256.digest()));
+		handler.onPartEnd(leaf);
+
+		leaf = null;
+		decoder = null;
+		heldTerminator = 0;
+	}
+
+	private void emitHeldTerminator() throws IOException {
+		if (heldTerminator > 0) {
+			emit(CRLF, 2 - heldTerminator, heldTerminator);
+			heldTerminator = 0;
+		}
+	}
+
+	private void emit(byte[] b, int offset, int length) throws IOException {
+		if (length > 0)
+			decoder.update(b, offset, length);
+	}
+
+	private void deliver(byte[] b, int offset, int length) throws IOException {
+		if (length == 0)
+			return;
+
+		md5.update(b, offset, length);
+		sha256.update(b, offset, length);
+		leafSize += length;
+		handler.onPartData(leaf, b, offset, length);
+	}
+
+	private static String toHex(byte[] b) {
+		char[] c = new char[b.length * 2];
+		for (int i = 0; i < b.length; i++) {
+			c[i * 2] = HEX[(b[i] >> 4) & 0xf];
+			c[i * 2 + 1] = HEX[b[i] & 0xf];
+		}
+		return new String(c);
+	}
+
+	/* 7bit, 8bit and binary */
+	private class TransferDecoder {
+		public void update(byte[] b, int offset, int length) throws IOException {
+			deliver(b, offset, length);
+		}
+
+		public void finish() throws IOException {
+		}
+	}
+
+	private class Base64Decoder extends TransferDecoder {
+		private final byte[] out = new byte[3 * 1024];
+		private int outLength;
+		private int bits;
+		private int count;
+
+		@Override
+		public void update(byte[] b, int offset, int length) throws IOException {
+			for (int i = offset; i < offset + length; i++) {
+				int c = b[i] & 0xff;
+				int v = decodeChar(c);
+				if (v < 0) {
+					if (c == '=')
+						flushQuantum();
+					continue;
+				}
+
+				bits = (bits << 6) | v;
+				if (++count == 4) {
+					put((byte) (bits >> 16));
+					put((byte) (bits >> 8));
+					put((byte) bits);
+					bits = 0;
+					count = 0;
+				}
+			}
+			flush();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			flushQuantum();
+			flush();
+		}
+
+		/* decodes incomplete quantum at padding */
+		private void flushQuantum() throws IOException {
+			if (count == 2) {
+				put((byte) (bits >> 4));
+			} else if (count == 3) {
+				put((byte) (bits >> 10));
+				put((byte) (bits >> 2));
+			}
+			bits = 0;
+			count = 0;
+		}
+
+		private void put(byte b) throws IOException {
+			if (outLength == out.length)
+				flush();
+			out[outLength++] = b;
+		}
+
+		private void flush() throws IOException {
+			deliver(out, 0, outLength);
+			outLength = 0;
+		}
+
+		private int decodeChar(int c) {
+			if (c >= 'A' && c <= 'Z')
+				return c - 'A';
+			if (c >= 'a' && c <= 'z')
+				return c - 'a' + 26;
+			if (c >= '0' && c <= '9')
+				return c - '0' + 52;
+			if (c == '+')
+				return 62;
+			if (c == '/')
+				return 63;
+			return -1;
+		}
+	}
+
+	private class QuotedPrintableDecoder extends TransferDecoder {
+		private final byte[] out = new byte[4096];
+		private int outLength;
+
+		/* 0: normal, 1: after '=', 2: after '=' and a hex digit, 3: soft line break CR */
+		private int state;
+		private byte first;
+
+		@Override
+		public void update(byte[] b, int offset, int length) throws IOException {
+			for (int i = offset; i < offset + length; i++) {
+				byte c = b[i];
+				switch (state) {
+				case 0:
+					if (c == '=')
+						state = 1;
+					else
+						put(c);
+					break;
+				case 1:
+					if (c == '\r') {
+						state = 3;
+					} else if (c == '\n') {
+						state = 0;
+					} else if (hex(c) >= 0) {
+						first = c;
+						state = 2;
+					} else {
+						put((byte) '=');
+						put(c);
+						state = 0;
+					}
+					break;
+				case 2:
+					if (hex(c) >= 0) {
+						put((byte) (hex(first) << 4 | hex(c)));
+					} else {
+						put((byte) '=');
+						put(first);
+						put(c);
+					}
+					state = 0;
+					break;
+				case 3:
+					state = 0;
+					if (c != '\n')
+						i--;
+					break;
+				}
+			}
+			flush();
+		}
+
+		private int hex(byte c) {
+			if (c >= '0' && c <= '9')
+				return c - '0';
+			if (c >= 'A' && c <= 'F')
+				return c - 'A' + 10;
+			if (c >= 'a' && c <= 'f')
+				return c - 'a' + 10;
+			return -1;
+		}
+
+		private void put(byte b) throws IOException {
+			if (outLength == out.length)
+				flush();
+			out[outLength++] = b;
+		}
+
+		private void flush() throws IOException {
+			deliver(out, 0, outLength);
+			outLength = 0;
+		}
+	}
+}
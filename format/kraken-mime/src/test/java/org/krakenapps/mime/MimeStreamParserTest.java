@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.mime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MimeStreamParserTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMultipart() throws Exception {
+		byte[] binary = new byte[100000];
+		for (int i = 0; i < binary.length; i++)
+			binary[i] = (byte) (i * 31);
+		byte[] mail = multipart(binary);
+
+		for (int segment : new int[] { 1, 7, 1000, mail.length }) {
+			AttachmentExtractor extractor = new AttachmentExtractor(folder.getRoot(), 1024);
+			MimeStreamParser parser = new MimeStreamParser(extractor);
+			for (int i = 0; i < mail.length; i += segment)
+				parser.update(mail, i, Math.min(segment, mail.length - i));
+			parser.finish();
+
+			assertTrue(extractor.isEnded());
+			assertEquals("=?utf-8?B?7YWM7Iqk7Yq4?= test", "테스트 test", extractor.getHeader().getHeader("Subject"));
+			assertEquals("hello\r\nworld", extractor.getTextContent());
+			assertEquals("<p>café = ok</p>", extractor.getHtmlContent());
+
+			List<AttachmentExtractor.Attachment> attachments = extractor.getAttachments();
+			assertEquals(1, attachments.size());
+			AttachmentExtractor.Attachment a = attachments.get(0);
+			assertEquals("data.bin", a.getFileName());
+			assertEquals("application/octet-stream", a.getContentType());
+			assertEquals(binary.length, a.getSize());
+			assertEquals(hex("MD5", binary), a.getMd5());
+			assertEquals(hex("SHA-256", binary), a.getSha256());
+			assertArrayEquals(binary, read(a.getInputStream()));
+
+			extractor.dispose();
+			assertEquals(0, folder.getRoot().list().length);
+		}
+	}
+
+	@Test
+	public void testDotStuffedSinglePart() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3000; i++)
+			sb.append('x');
+		String longLine = sb.toString();
+
+		String mail = "Subject: plain\r\n\r\n..leading dot\r\n" + longLine + longLine + longLine + "\r\nend";
+		AttachmentExtractor extractor = new AttachmentExtractor(folder.getRoot(), 100000);
+		MimeStreamParser parser = new MimeStreamParser(extractor);
+		parser.setDotStuffed(true);
+		parser.update(mail.getBytes(StandardCharsets.US_ASCII));
+		parser.finish();
+
+		assertEquals(".leading dot\r\n" + longLine + longLine + longLine + "\r\nend", extractor.getTextContent());
+		assertTrue(extractor.getAttachments().isEmpty());
+		assertNull(extractor.getHtmlContent());
+	}
+
+	private static byte[] multipart(byte[] binary) throws IOException {
+		String encoded = Base64.getMimeEncoder().encodeToString(binary);
+		StringBuilder sb = new StringBuilder();
+		sb.append("From: a@example.com\r\n");
+		sb.append("Subject: =?utf-8?B?7YWM7Iqk7Yq4?= test\r\n");
+		sb.append("Content-Type: multipart/mixed;\r\n\tboundary=\"outer\"\r\n\r\n");
+		sb.append("preamble\r\n");
+		sb.append("--outer\r\n");
+		sb.append("Content-Type: multipart/alternative; boundary=inner\r\n\r\n");
+		sb.append("--inner\r\n");
+		sb.append("Content-Type: text/plain; charset=us-ascii\r\n\r\n");
+		sb.append("hello\r\nworld\r\n");
+		sb.append("--inner\r\n");
+		sb.append("Content-Type: text/html; charset=iso-8859-1\r\n");
+		sb.append("Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+		sb.append("<p>caf=E9 =3D =\r\nok</p>\r\n");
+		sb.append("--inner--\r\n");
+		sb.append("--outer\r\n");
+		sb.append("Content-Type: application/octet-stream; name=\"ignored\"\r\n");
+		sb.append("Content-Disposition: attachment; filename=\"data.bin\"\r\n");
+		sb.append("Content-Transfer-Encoding: base64\r\n\r\n");
+		sb.append(encoded).append("\r\n");
+		sb.append("--outer--  \r\n");
+		sb.append("epilogue\r\n");
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String hex(String algorithm, byte[] b) throws Exception {
+		byte[] digest = MessageDigest.getInstance(algorithm).digest(b);
+		return String.format("%0" + (digest.length * 2) + "x", new BigInteger(1, digest));
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		try {
+			while (true) {
+				int n = is.read(b);
+				if (n < 0)
+					break;
+				bos.write(b, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented encoding of a batch of maps which share most of their keys.
+ * Each key is written once, and the values of a key are stored contiguously
+ * as a column:
+ * <ul>
+ * <li>short, int and long columns as zigzag varint deltas</li>
+ * <li>date columns as zigzag varint deltas of milliseconds</li>
+ * <li>string columns as a dictionary and varint indexes, or as plain strings
+ * if most values are distinct</li>
+ * <li>boolean columns as a bitmap</li>
+ * <li>other and mixed columns in {@link EncodingRule} format</li>
+ * </ul>
+ * Rows without the key and null values are marked in bitmaps written only
+ * when needed.
+ * 
+ * The reader parses the column directory only. A column is decoded when it
+ * is requested, so scanning a few columns skips the others.
+ */
+public class ColumnarBatch {
+	private static final byte VERSION = 1;
+
+	private static final byte GENERIC_COLUMN = 0;
+	private static final byte NUMBER_COLUMN = 1;
+	private static final byte DATE_COLUMN = 2;
+	private static final byte DICTIONARY_COLUMN = 3;
+	private static final byte STRING_COLUMN = 4;
+	private static final byte BOOLEAN_COLUMN = 5;
+
+	private static final int ABSENT_FLAG = 1;
+	private static final int NULL_FLAG = 2;
+
+	private static final Charset utf8 = Charset.forName("utf-8");
+
+	private final ByteBuffer bb;
+	private final CustomCodec cc;
+	private final int rowCount;
+	private final Map<String, Column> columns;
+
+	public ColumnarBatch(ByteBuffer bb) {
+		this(bb, null);
+	}
+
+	/**
+	 * Reads the column directory of the batch at the current position of the
+	 * buffer, and moves the position after the batch.
+	 */
+	public ColumnarBatch(ByteBuffer bb, CustomCodec cc) {
+		this.bb = bb;
+		this.cc = cc;
+
+		byte version = bb.get();
+		if (version != VERSION)
+			throw new UnsupportedTypeException("columnar batch version: " + version);
+
+		rowCount = (int) EncodingRule.decodeRawNumber(bb);
+		int columnCount = (int) EncodingRule.decodeRawNumber(bb);
+		columns = new LinkedHashMap<String, Column>();
+		for (int i = 0; i < columnCount; i++) {
+			Column c = new Column();
+			byte[] key = new byte[(int) EncodingRule.decodeRawNumber(bb)];
+			bb.get(key);
+			c.name = new String(key, utf8);
+			c.kind = bb.get();
+			c.flags = bb.get();
+			c.length = (int) EncodingRule.decodeRawNumber(bb);
+			c.offset = bb.position();
+			bb.position(c.offset + c.length);
+			columns.put(c.name, c);
+		}
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(columns.keySet()));
+	}
+
+	/**
+	 * Decodes the values of a column. Rows without the key have null.
+	 * 
+	 * @return the values by row, or null if no row has the key
+	 */
+	public Object[] getColumn(String name) {
+		Column c = columns.get(name);
+		if (c == null)
+			return null;
+
+		Object[] values = new Object[rowCount];
+		decodeColumn(c, values, null);
+		return values;
+	}
+
+	/**
+	 * Decodes all rows into maps like {@link EncodingRule#decodeMap}.
+	 */
+	public List<Map<String, Object>> toMaps() {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(rowCount);
+		for (int i = 0; i < rowCount; i++)
+			rows.add(new HashMap<String, Object>());
+
+		Object[] values = new Object[rowCount];
+		boolean[] present = new boolean[rowCount];
+		for (Column c : columns.values()) {
+			decodeColumn(c, values, present);
+			for (int i = 0; i < rowCount; i++)
+				if (present[i])
+					rows.get(i).put(c.name, values[i]);
+		}
+		return rows;
+	}
+
+	private void decodeColumn(Column c, Object[] values, boolean[] present) {
+		ByteBuffer in = bb.duplicate();
+		in.limit(c.offset + c.length);
+		in.position(c.offset);
+
+		byte[] absent = (c.flags & ABSENT_FLAG) != 0 ? readBitmap(in) : null;
+		byte[] nulls = (c.flags & NULL_FLAG) != 0 ? readBitmap(in) : null;
+
+		byte numberType = c.kind == NUMBER_COLUMN ? in.get() : 0;
+		String[] dictionary = null;
+		if (c.kind == DICTIONARY_COLUMN) {
+			dictionary = new String[(int) EncodingRule.decodeRawNumber(in)];
+			for (int i = 0; i < dictionary.length; i++)
+				dictionary[i] = readString(in);
+		}
+
+		byte[] bits = null;
+		if (c.kind == BOOLEAN_COLUMN)
+			bits = readBitmap(in);
+
+		long last = 0;
+		int index = 0;
+		for (int i = 0; i < rowCount; i++) {
+			boolean isAbsent = absent != null && isSet(absent, i);
+			if (present != null)
+				present[i] = !isAbsent;
+			if (isAbsent || (nulls != null && isSet(nulls, i))) {
+				values[i] = null;
+				continue;
+			}
+
+			switch (c.kind) {
+			case NUMBER_COLUMN:
+				last += unzigzag(EncodingRule.decodeRawNumber(in));
+				if (numberType == EncodingRule.ZINT16_TYPE)
+					values[i] = (short) last;
+				else if (numberType == EncodingRule.ZINT32_TYPE)
+					values[i] = (int) last;
+				else
+					values[i] = last;
+				break;
+			case DATE_COLUMN:
+				last += unzigzag(EncodingRule.decodeRawNumber(in));
+				values[i] = new Date(last);
+				break;
+			case DICTIONARY_COLUMN:
+				values[i] = dictionary[(int) EncodingRule.decodeRawNumber(in)];
+				break;
+			case STRING_COLUMN:
+				values[i] = readString(in);
+				break;
+			case BOOLEAN_COLUMN:
+				values[i] = isSet(bits, index++);
+				break;
+			default:
+				values[i] = EncodingRule.decode(in, cc);
+			}
+		}
+	}
+
+	private byte[] readBitmap(ByteBuffer in) {
+		byte[] b = new byte[(int) EncodingRule.decodeRawNumber(in)];
+		in.get(b);
+		return b;
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = (int) EncodingRule.decodeRawNumber(in);
+		String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), length, utf8);
+		} else {
+			byte[] b = new byte[length];
+			in.duplicate().get(b);
+			s = new String(b, utf8);
+		}
+		in.position(in.position() + length);
+		return s;
+	}
+
+	private static boolean isSet(byte[] bitmap, int i) {
+		return (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long z) {
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	private static class Column {
+		private String name;
+		private byte kind;
+		private byte flags;
+		private int offset;
+		private int length;
+	}
+
+	//
+	// encoder
+	//
+
+	public static ByteBuffer encode(List<Map<String, Object>> rows) {
+		return encode(rows, null);
+	}
+
+	/**
+	 * Encodes the rows with columns in the order of first appearance of keys.
+	 * The column type is inferred from the values of each key.
+	 */
+	public static ByteBuffer encode(List<Map<String, Object>> rows, CustomCodec cc) {
+		LinkedHashMap<String, Object[]> columns = new LinkedHashMap<String, Object[]>();
+		LinkedHashMap<String, byte[]> present = new LinkedHashMap<String, byte[]>();
+		int rowCount = rows.size();
+		int bitmapLength = (rowCount + 7) / 8;
+
+		for (int i = 0; i < rowCount; i++) {
+			for (Map.Entry<String, Object> e : rows.get(i).entrySet()) {
+				Object[] values = columns.get(e.getKey());
+				if (values == null) {
+					values = new Object[rowCount];
+					columns.put(e.getKey(), values);
+					present.put(e.getKey(), new byte[bitmapLength]);
+				}
+				values[i] = e.getValue();
+				present.get(e.getKey())[i >> 3] |= 1 << (i & 7);
+			}
+		}
+
+		Output out = new Output(256);
+		out.put(VERSION);
+		out.putRawNumber(rowCount);
+		out.putRawNumber(columns.size());
+
+		Output body = new Output(256);
+		StreamingEncoder enc = new StreamingEncoder(256, cc);
+		for (Map.Entry<String, Object[]> e : columns.entrySet()) {
+			body.reset();
+			byte[] key = EncodedStringCache.getEncodedString(e.getKey()).value();
+			Object[] values = e.getValue();
+			byte[] isPresent = present.get(e.getKey());
+
+			byte[] absent = new byte[bitmapLength];
+			byte[] nulls = new byte[bitmapLength];
+			boolean hasAbsent = false;
+			boolean hasNull = false;
+			int count = 0;
+			for (int i = 0; i < rowCount; i++) {
+				if ((isPresent[i >> 3] & (1 << (i & 7))) == 0) {
+					absent[i >> 3] |= 1 << (i & 7);
+					hasAbsent = true;
+				} else if (values[i] == null) {
+					nulls[i >> 3] |= 1 << (i & 7);
+					hasNull = true;
+				} else {
+					values[count++] = values[i];
+				}
+			}
+
+			if (hasAbsent)
+				body.putBitmap(absent);
+			if (hasNull)
+				body.putBitmap(nulls);
+
+			byte kind = encodeColumn(body, values, count, enc);
+
+			out.putRawNumber(key.length);
+			out.put(key);
+			out.put(kind);
+			out.put((byte) ((hasAbsent ? ABSENT_FLAG : 0) | (hasNull ? NULL_FLAG : 0)));
+			out.putRawNumber(body.count);
+			out.put(body.buf, 0, body.count);
+		}
+
+		return ByteBuffer.wrap(out.buf, 0, out.count);
+	}
+
+	/* encodes the first count values which are not null */
+	private static byte encodeColumn(Output out, Object[] values, int count, StreamingEncoder enc) {
+		Class<?> type = count > 0 ? values[0].getClass() : Object.class;
+		for (int i = 1; i < count && type != null; i++)
+			if (values[i].getClass() != type)
+				type = null;
+
+		if (type == Integer.class || type == Long.class || type == Short.class) {
+			out.put(type == Integer.class ? EncodingRule.ZINT32_TYPE : type == Long.class ? EncodingRule.ZINT64_TYPE
+					: EncodingRule.ZINT16_TYPE);
+			long last = 0;
+			for (int i = 0; i < count; i++) {
+				long v = ((Number) values[i]).longValue();
+				out.putRawNumber(zigzag(v - last));
+				last = v;
+			}
+			return NUMBER_COLUMN;
+		}
+
+		if (type == Date.class) {
+			long last = 0;
+			for (int i = 0; i < count; i++) {
+				long v = ((Date) values[i]).getTime();
+				out.putRawNumber(zigzag(v - last));
+				last = v;
+			}
+			return DATE_COLUMN;
+		}
+
+		if (type == String.class)
+			return encodeStrings(out, values, count);
+
+		if (type == Boolean.class) {
+			byte[] bits = new byte[(count + 7) / 8];
+			for (int i = 0; i < count; i++)
+				if ((Boolean) values[i])
+					bits[i >> 3] |= 1 << (i & 7);
+			out.putBitmap(bits);
+			return BOOLEAN_COLUMN;
+		}
+
+		for (int i = 0; i < count; i++) {
+			enc.encode(values[i]);
+			ByteBuffer encoded = enc.toByteBuffer();
+			out.put(encoded.array(), 0, encoded.limit());
+			enc.reset();
+		}
+		return GENERIC_COLUMN;
+	}
+
+	private static byte encodeStrings(Output out, Object[] values, int count) {
+		Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < count; i++) {
+			String s = (String) values[i];
+			if (!dictionary.containsKey(s))
+				dictionary.put(s, dictionary.size());
+		}
+
+		if (dictionary.size() * 2 > count) {
+			for (int i = 0; i < count; i++)
+				out.putString((String) values[i]);
+			return STRING_COLUMN;
+		}
+
+		out.putRawNumber(dictionary.size());
+		for (String s : dictionary.keySet())
+			out.putString(s);
+		for (int i = 0; i < count; i++)
+			out.putRawNumber(dictionary.get(values[i]));
+		return DICTIONARY_COLUMN;
+	}
+
+	private static class Output {
+		private byte[] buf;
+		private int count;
+
+		public Output(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		public void reset() {
+			count = 0;
+		}
+
+		public void put(byte b) {
+			ensure(1);
+			buf[count++] = b;
+		}
+
+		public void put(byte[] b) {
+			put(b, 0, b.length);
+		}
+
+		public void put(byte[] b, int offset, int length) {
+			ensure(length);
+			System.arraycopy(b, offset, buf, count, length);
+			count += length;
+		}
+
+		public void putBitmap(byte[] b) {
+			putRawNumber(b.length);
+			put(b);
+		}
+
+		public void putString(String s) {
+			byte[] b = EncodedStringCache.getEncodedString(s).value();
+			putRawNumber(b.length);
+			put(b);
+		}
+
+		/* same as EncodingRule.encodeRawNumber() */
+		public void putRawNumber(long value) {
+			int len = EncodingRule.lengthOfRawNumber(long.class, value);
+			ensure(len);
+			for (int i = 0; i < len; ++i) {
+				byte signalBit = (byte) (i != len - 1 ? 0x80 : 0);
+				buf[count++] = (byte) (signalBit | (byte) (value >> (7 * (len - i - 1)) & 0x7F));
+			}
+		}
+
+		private void ensure(int n) {
+			if (count + n > buf.length) {
+				byte[] b = new byte[Math.max(buf.length * 2, count + n)];
+				System.arraycopy(buf, 0, b, 0, count);
+				buf = b;
+			}
+		}
+	}
+}
@@ -15,32 +15,65 @@
  */
 package org.krakenapps.codec;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Utf-8 encoded form of a string, cached for map keys and repeated values.
+ * 
+ * The cache is bounded and shared by all encoders. Lookups are lock-free
+ * reads of a concurrent map which set the reference bit of the entry. Misses
+ * insert the entry into one of the stripes selected by hash, and when the
+ * stripe is full its CLOCK hand evicts the first entry which was not
+ * referenced since the last sweep. Strings longer than the max string length
+ * are encoded on every call without caching.
+ */
 public class EncodedStringCache {
-	private static Map<String, EncodedStringCache> cache = new WeakHashMap<String, EncodedStringCache>();
-	private byte[] value;
-	private int rawNumberLength;
+	public static final int DEFAULT_CAPACITY = 16384;
+	public static final int DEFAULT_MAX_STRING_LENGTH = 1024;
+
+	private static final int STRIPES = 16;
+	private static final Charset utf8 = Charset.forName("utf-8");
+
+	private static volatile Cache cache = new Cache(DEFAULT_CAPACITY);
+	private static volatile int maxStringLength = DEFAULT_MAX_STRING_LENGTH;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	private final String key;
+	private final byte[] value;
+	private final int rawNumberLength;
 
-	public synchronized static EncodedStringCache getEncodedString(String value) {
-		EncodedStringCache es = cache.get(value);
+	/* reference bit of CLOCK */
+	private volatile boolean referenced;
 
-		if (es == null) {
-			es = new EncodedStringCache(value);
-			cache.put(new String(value), es);
+	public static EncodedStringCache getEncodedString(String value) {
+		Cache c = cache;
+		if (c.capacity == 0 || value.length() > maxStringLength) {
+			misses.increment();
+			return new EncodedStringCache(value);
 		}
 
-		return es;
+		EncodedStringCache es = c.map.get(value);
+		if (es != null) {
+			if (!es.referenced)
+				es.referenced = true;
+			hits.increment();
+			return es;
+		}
+
+		misses.increment();
+		return c.add(new EncodedStringCache(value));
 	}
 
 	private EncodedStringCache(String value) {
-		try {
-			this.value = value.getBytes("utf-8");
-			this.rawNumberLength = EncodingRule.lengthOfRawNumber(int.class, this.value.length);
-		} catch (UnsupportedEncodingException e) {
-		}
+		this.key = value;
+		this.value = value.getBytes(utf8);
+		this.rawNumberLength = EncodingRule.lengthOfRawNumber(int.class, this.value.length);
 	}
 
 	public int length() {
@@ -50,4 +83,117 @@ public class EncodedStringCache {
 	public byte[] value() {
 		return value;
 	}
+
+	/**
+	 * Replaces the cache with an empty one of the capacity. 0 disables
+	 * caching.
+	 */
+	public static void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("negative capacity: " + capacity);
+		cache = new Cache(capacity);
+	}
+
+	public static int getCapacity() {
+		return cache.capacity;
+	}
+
+	public static void setMaxStringLength(int length) {
+		maxStringLength = length;
+	}
+
+	public static int getMaxStringLength() {
+		return maxStringLength;
+	}
+
+	public static int size() {
+		return cache.size.get();
+	}
+
+	public static void clear() {
+		setCapacity(cache.capacity);
+	}
+
+	public static long getHitCount() {
+		return hits.sum();
+	}
+
+	public static long getMissCount() {
+		return misses.sum();
+	}
+
+	public static long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public static void resetCounters() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	private static class Cache {
+		private final int capacity;
+		private final ConcurrentHashMap<String, EncodedStringCache> map;
+		private final Stripe[] stripes;
+		private final AtomicInteger size = new AtomicInteger();
+
+		public Cache(int capacity) {
+			this.capacity = capacity;
+			this.map = new ConcurrentHashMap<String, EncodedStringCache>(Math.min(capacity, 1024), 0.75f, STRIPES);
+
+			int stripeCount = Math.min(STRIPES, Math.max(capacity, 1));
+			this.stripes = new Stripe[stripeCount];
+			for (int i = 0; i < stripeCount; i++) {
+				int stripeCapacity = capacity / stripeCount + (i < capacity % stripeCount ? 1 : 0);
+				stripes[i] = new Stripe(stripeCapacity);
+			}
+		}
+
+		public EncodedStringCache add(EncodedStringCache es) {
+			EncodedStringCache old = map.putIfAbsent(es.key, es);
+			if (old != null)
+				return old;
+
+			int h = es.key.hashCode();
+			h ^= h >>> 16;
+			Stripe stripe = stripes[(h & 0x7fffffff) % stripes.length];
+			EncodedStringCache evicted = stripe.add(es);
+			if (evicted != null) {
+				map.remove(evicted.key, evicted);
+				evictions.increment();
+			} else {
+				size.incrementAndGet();
+			}
+			return es;
+		}
+	}
+
+	private static class Stripe {
+		private final EncodedStringCache[] ring;
+		private int count;
+		private int hand;
+
+		public Stripe(int capacity) {
+			ring = new EncodedStringCache[capacity];
+		}
+
+		/* returns the evicted entry, or null if the stripe had a free slot */
+		public synchronized EncodedStringCache add(EncodedStringCache es) {
+			if (count < ring.length) {
+				ring[count++] = es;
+				return null;
+			}
+
+			while (ring[hand].referenced) {
+				ring[hand].referenced = false;
+				hand = (hand + 1) % ring.length;
+			}
+
+			EncodedStringCache victim = ring[hand];
+			ring[hand] = es;
+			hand = (hand + 1) % ring.length;
+			return victim;
+		}
+	}
 }
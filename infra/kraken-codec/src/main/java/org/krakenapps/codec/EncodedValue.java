@@ -0,0 +1,357 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.krakenapps.codec.EncodingRule.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+/**
+ * Read-only view of an object encoded by {@link EncodingRule}. Maps and arrays
+ * are scanned in place, skipping the values which are not accessed by their
+ * object length, so looking up a few keys of a large record neither builds
+ * the whole tree nor decodes the other strings. The view reads the buffer with
+ * absolute gets and never moves its position.
+ */
+public class EncodedValue {
+	private static final Charset utf8 = Charset.forName("utf-8");
+
+	private final ByteBuffer bb;
+	private final int offset;
+	private final CustomCodec cc;
+
+	/**
+	 * Creates a view of the object at the current position of the buffer.
+	 */
+	public EncodedValue(ByteBuffer bb) {
+		this(bb, bb.position(), null);
+	}
+
+	public EncodedValue(ByteBuffer bb, CustomCodec cc) {
+		this(bb, bb.position(), cc);
+	}
+
+	public EncodedValue(ByteBuffer bb, int offset, CustomCodec cc) {
+		this.bb = bb;
+		this.offset = offset;
+		this.cc = cc;
+	}
+
+	/**
+	 * Creates a view of the object at the current position of the buffer, and
+	 * moves the position to the next object.
+	 */
+	public static EncodedValue read(ByteBuffer bb, CustomCodec cc) {
+		EncodedValue value = new EncodedValue(bb, cc);
+		bb.position(bb.position() + value.getLength());
+		return value;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public byte getType() {
+		return bb.get(offset);
+	}
+
+	/**
+	 * @return the object length including the type byte
+	 */
+	public int getLength() {
+		return objectLength(offset);
+	}
+
+	public boolean isNull() {
+		return getType() == NULL_TYPE;
+	}
+
+	public boolean isMap() {
+		return getType() == MAP_TYPE;
+	}
+
+	public boolean isArray() {
+		return getType() == ARRAY_TYPE;
+	}
+
+	/**
+	 * Finds the value of the key in this map without decoding other keys or
+	 * values.
+	 * 
+	 * @return the value view, or null if the key does not exist
+	 * @throws TypeMismatchException
+	 *             if this is not a map
+	 */
+	public EncodedValue get(String key) {
+		byte[] target = key.getBytes(utf8);
+		Cursor cursor = open(MAP_TYPE);
+		while (cursor.next()) {
+			if (cursor.keyEquals(target))
+				return cursor.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the element view, or null if the array is shorter
+	 * @throws TypeMismatchException
+	 *             if this is not an array
+	 */
+	public EncodedValue get(int index) {
+		Cursor cursor = open(ARRAY_TYPE);
+		for (int i = 0; cursor.next(); i++) {
+			if (i == index)
+				return cursor.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Follows the path of map keys (String) and array indexes (Integer).
+	 * 
+	 * @return the value view, or null if the path does not exist in this
+	 *         object
+	 */
+	public EncodedValue find(Object... path) {
+		EncodedValue value = this;
+		for (Object step : path) {
+			byte type = value.getType();
+			if (step instanceof String && type == MAP_TYPE)
+				value = value.get((String) step);
+			else if (step instanceof Integer && type == ARRAY_TYPE)
+				value = value.get((Integer) step);
+			else
+				return null;
+
+			if (value == null)
+				return null;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of map entries or array elements
+	 */
+	public int size() {
+		byte type = getType();
+		Cursor cursor = open(type == MAP_TYPE ? MAP_TYPE : ARRAY_TYPE);
+		int count = 0;
+		while (cursor.next())
+			count++;
+		return count;
+	}
+
+	/**
+	 * Iterates the entries of a map or the elements of an array.
+	 * 
+	 * @throws TypeMismatchException
+	 *             if this is neither a map nor an array
+	 */
+	public Cursor cursor() {
+		byte type = getType();
+		return open(type == MAP_TYPE ? MAP_TYPE : ARRAY_TYPE);
+	}
+
+	/**
+	 * Decodes this object and its children like {@link EncodingRule#decode}.
+	 */
+	public Object decode() {
+		return EncodingRule.decode(duplicate(), cc);
+	}
+
+	public String asString() {
+		return EncodingRule.decodeString(duplicate());
+	}
+
+	/**
+	 * @return the value of zigzag encoded short, int or long
+	 */
+	public long asLong() {
+		byte type = getType();
+		switch (type) {
+		case ZINT16_TYPE:
+			return EncodingRule.decodeShort(duplicate());
+		case ZINT32_TYPE:
+			return EncodingRule.decodeInt(duplicate());
+		case ZINT64_TYPE:
+			return EncodingRule.decodeLong(duplicate());
+		}
+		throw new TypeMismatchException(ZINT64_TYPE, type, offset);
+	}
+
+	/**
+	 * @return the value of float or double
+	 */
+	public double asDouble() {
+		if (getType() == FLOAT_TYPE)
+			return EncodingRule.decodeFloat(duplicate());
+		return EncodingRule.decodeDouble(duplicate());
+	}
+
+	public Date asDate() {
+		return EncodingRule.decodeDate(duplicate());
+	}
+
+	public boolean asBoolean() {
+		return EncodingRule.decodeBoolean(duplicate());
+	}
+
+	private ByteBuffer duplicate() {
+		ByteBuffer dup = bb.duplicate();
+		dup.position(offset);
+		return dup;
+	}
+
+	private Cursor open(byte expected) {
+		byte type = getType();
+		if (type != expected)
+			throw new TypeMismatchException(expected, type, offset);
+
+		int begin = skipRawNumber(offset + 1);
+		int end = begin + (int) readRawNumber(offset + 1);
+		return new Cursor(type == MAP_TYPE, begin, end);
+	}
+
+	/* same as EncodingRule.getObjectLength() with absolute reads */
+	private int objectLength(int pos) {
+		byte type = bb.get(pos);
+		switch (type) {
+		case NULL_TYPE:
+			return 1;
+		case STRING_TYPE:
+		case MAP_TYPE:
+		case ARRAY_TYPE:
+		case BLOB_TYPE:
+			return skipRawNumber(pos + 1) - pos + (int) readRawNumber(pos + 1);
+		case INT16_TYPE:
+		case INT32_TYPE:
+		case INT64_TYPE:
+			throw new UnsupportedTypeException("deprecated number type");
+		case DATE_TYPE:
+			return 1 + 8;
+		case IP4_TYPE:
+			return 1 + 4;
+		case IP6_TYPE:
+			return 1 + 16;
+		case BOOLEAN_TYPE:
+			return 1 + 1;
+		case ZINT16_TYPE:
+		case ZINT32_TYPE:
+		case ZINT64_TYPE:
+			return skipRawNumber(pos + 1) - pos;
+		case FLOAT_TYPE:
+			return 1 + 4;
+		case DOUBLE_TYPE:
+			return 1 + 8;
+		}
+
+		if (cc == null)
+			throw new UnsupportedTypeException("type: " + type);
+
+		ByteBuffer dup = bb.duplicate();
+		dup.position(pos);
+		return EncodingRule.getObjectLength(dup, cc);
+	}
+
+	private long readRawNumber(int pos) {
+		long value = 0L;
+		byte b;
+		do {
+			value = value << 7;
+			b = bb.get(pos++);
+			value |= b & 0x7F;
+		} while ((b & 0x80) == 0x80);
+		return value;
+	}
+
+	private int skipRawNumber(int pos) {
+		while ((bb.get(pos) & 0x80) == 0x80)
+			pos++;
+		return pos + 1;
+	}
+
+	/**
+	 * Forward-only cursor over map entries or array elements. Skipped values
+	 * are never decoded.
+	 */
+	public class Cursor {
+		private final boolean map;
+		private final int end;
+		private int pos;
+		private int keyOffset = -1;
+		private int valueOffset = -1;
+
+		private Cursor(boolean map, int begin, int end) {
+			this.map = map;
+			this.pos = begin;
+			this.end = end;
+		}
+
+		public boolean next() {
+			if (pos >= end)
+				return false;
+
+			if (map) {
+				keyOffset = pos;
+				pos += objectLength(pos);
+			}
+			valueOffset = pos;
+			pos += objectLength(pos);
+			return true;
+		}
+
+		/**
+		 * @return the key of current map entry
+		 */
+		public String getKey() {
+			ByteBuffer dup = bb.duplicate();
+			dup.position(keyOffset);
+			return EncodingRule.decodeString(dup);
+		}
+
+		/**
+		 * Compares the key of current map entry without decoding it.
+		 */
+		public boolean keyEquals(String key) {
+			return keyEquals(key.getBytes(utf8));
+		}
+
+		private boolean keyEquals(byte[] key) {
+			byte type = bb.get(keyOffset);
+			if (type != STRING_TYPE)
+				throw new TypeMismatchException(STRING_TYPE, type, keyOffset);
+
+			int length = (int) readRawNumber(keyOffset + 1);
+			if (length != key.length)
+				return false;
+
+			int begin = skipRawNumber(keyOffset + 1);
+			for (int i = 0; i < length; i++)
+				if (bb.get(begin + i) != key[i])
+					return false;
+			return true;
+		}
+
+		/**
+		 * @return the view of current map value or array element
+		 */
+		public EncodedValue getValue() {
+			return new EncodedValue(bb, valueOffset, cc);
+		}
+	}
+}
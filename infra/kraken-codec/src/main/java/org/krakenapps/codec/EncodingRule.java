@@ -15,7 +15,6 @@
  */
 package org.krakenapps.codec;
 
-import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -412,12 +411,9 @@ public class EncodingRule {
 
 	public static void encodeString(ByteBuffer bb, String value) {
 		bb.put(STRING_TYPE);
-		try {
-			byte[] buffer = value.getBytes("utf-8");
-			encodeRawNumber(bb, int.class, buffer.length);
-			bb.put(buffer);
-		} catch (UnsupportedEncodingException e) {
-		}
+		byte[] buffer = EncodedStringCache.getEncodedString(value).value();
+		encodeRawNumber(bb, int.class, buffer.length);
+		bb.put(buffer);
 	}
 
 	private static final Charset utf8 = Charset.forName("utf-8");
@@ -870,12 +866,7 @@ public class EncodingRule {
 	}
 
 	public static int lengthOfString(String value) {
-		byte[] buffer = null;
-		try {
-			buffer = value.getBytes("utf-8");
-		} catch (UnsupportedEncodingException e) {
-		}
-		return 1 + lengthOfRawNumber(int.class, buffer.length) + buffer.length;
+		return EncodedStringCache.getEncodedString(value).length();
 	}
 
 	public static int lengthOfDate() {
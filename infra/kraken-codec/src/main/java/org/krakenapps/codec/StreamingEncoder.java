@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.krakenapps.codec.EncodingRule.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes objects in the format of {@link EncodingRule} in a single pass into
+ * a reusable growable array, without the length pre-pass of
+ * {@link EncodingRule} or the {@link BinaryForm} tree of
+ * {@link FastEncodingRule}. One byte is reserved for the length of each map
+ * and array, and the length is patched after the children are written,
+ * moving the children if the length needs more bytes. The output is the same
+ * as {@link EncodingRule#encode(ByteBuffer, Object)}.
+ * 
+ * An encoder is not thread-safe. Reuse it with {@link #reset()}, or write
+ * encoded objects out with the writeTo methods which reset it.
+ */
+public class StreamingEncoder {
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	private final CustomCodec cc;
+	private byte[] buf;
+	private int count;
+
+	public StreamingEncoder() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	public StreamingEncoder(int initialCapacity, CustomCodec cc) {
+		this.buf = new byte[Math.max(initialCapacity, 16)];
+		this.cc = cc;
+	}
+
+	/**
+	 * @return the number of encoded bytes
+	 */
+	public int size() {
+		return count;
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return the encoded bytes, which are valid until the next encode or
+	 *         reset
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+	public byte[] toByteArray() {
+		byte[] b = new byte[count];
+		System.arraycopy(buf, 0, b, 0, count);
+		return b;
+	}
+
+	public void writeTo(OutputStream os) throws IOException {
+		os.write(buf, 0, count);
+		count = 0;
+	}
+
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+		while (bb.hasRemaining())
+			channel.write(bb);
+		count = 0;
+	}
+
+	/**
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer has not enough space for the encoded bytes
+	 */
+	public void writeTo(ByteBuffer bb) {
+		bb.put(buf, 0, count);
+		count = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public StreamingEncoder encode(Object value) {
+		if (value == null) {
+			put(NULL_TYPE);
+		} else if (value instanceof String) {
+			encodeString((String) value);
+		} else if (value instanceof Long) {
+			long v = (Long) value;
+			put(ZINT64_TYPE);
+			putRawNumber(long.class, (v << 1) ^ (v >> 63));
+		} else if (value instanceof Integer) {
+			encodeInt((Integer) value);
+		} else if (value instanceof Short) {
+			long v = (Short) value;
+			put(ZINT16_TYPE);
+			putRawNumber(short.class, (v << 1) ^ (v >> 15));
+		} else if (value instanceof Date) {
+			put(DATE_TYPE);
+			putLong(((Date) value).getTime());
+		} else if (value instanceof Inet4Address) {
+			put(IP4_TYPE);
+			put(((Inet4Address) value).getAddress());
+		} else if (value instanceof Inet6Address) {
+			put(IP6_TYPE);
+			put(((Inet6Address) value).getAddress());
+		} else if (value instanceof Map<?, ?>) {
+			encodeMap((Map<String, Object>) value);
+		} else if (value instanceof List<?>) {
+			encodeArray((List<?>) value);
+		} else if (value.getClass().isArray()) {
+			encodeArray(value);
+		} else if (value instanceof Boolean) {
+			put(BOOLEAN_TYPE);
+			put((byte) ((Boolean) value ? 1 : 0));
+		} else if (value instanceof Float) {
+			put(FLOAT_TYPE);
+			putInt(Float.floatToIntBits((Float) value));
+		} else if (value instanceof Double) {
+			put(DOUBLE_TYPE);
+			putLong(Double.doubleToLongBits((Double) value));
+		} else {
+			if (cc == null)
+				throw new UnsupportedTypeException(value.getClass().getName());
+
+			int length = cc.lengthOf(value);
+			ensure(length);
+			ByteBuffer bb = ByteBuffer.wrap(buf, count, length);
+			cc.encode(bb, value);
+			count = bb.position();
+		}
+		return this;
+	}
+
+	private void encodeString(String value) {
+		byte[] b = EncodedStringCache.getEncodedString(value).value();
+		put(STRING_TYPE);
+		putRawNumber(int.class, b.length);
+		put(b);
+	}
+
+	private void encodeInt(int v) {
+		put(ZINT32_TYPE);
+		putRawNumber(int.class, ((long) v << 1) ^ ((long) v >> 31));
+	}
+
+	private void encodeMap(Map<String, Object> map) {
+		int lengthOffset = beginContainer(MAP_TYPE);
+		for (Entry<String, Object> e : map.entrySet()) {
+			encodeString(e.getKey());
+			encode(e.getValue());
+		}
+		endContainer(lengthOffset);
+	}
+
+	private void encodeArray(List<?> array) {
+		int lengthOffset = beginContainer(ARRAY_TYPE);
+		for (Object o : array)
+			encode(o);
+		endContainer(lengthOffset);
+	}
+
+	private void encodeArray(Object array) {
+		Class<?> c = array.getClass().getComponentType();
+		if (c == byte.class) {
+			byte[] b = (byte[]) array;
+			put(BLOB_TYPE);
+			putRawNumber(int.class, b.length);
+			put(b);
+			return;
+		}
+
+		if (c == char.class)
+			throw new UnsupportedTypeException(array.getClass().getName());
+
+		int lengthOffset = beginContainer(ARRAY_TYPE);
+		if (c == int.class) {
+			for (int i : (int[]) array)
+				encodeInt(i);
+		} else if (c == long.class) {
+			for (long l : (long[]) array)
+				encode(l);
+		} else if (c == short.class) {
+			for (short s : (short[]) array)
+				encode(s);
+		} else if (c == boolean.class) {
+			for (boolean b : (boolean[]) array)
+				encode(b);
+		} else if (c == double.class) {
+			for (double d : (double[]) array)
+				encode(d);
+		} else if (c == float.class) {
+			for (float f : (float[]) array)
+				encode(f);
+		} else {
+			for (Object o : (Object[]) array)
+				encode(o);
+		}
+		endContainer(lengthOffset);
+	}
+
+	/* writes the type and reserves one byte for the length */
+	private int beginContainer(byte type) {
+		ensure(2);
+		buf[count++] = type;
+		return count++;
+	}
+
+	private void endContainer(int lengthOffset) {
+		int begin = lengthOffset + 1;
+		int length = count - begin;
+		int n = lengthOfRawNumber(int.class, length);
+		if (n > 1) {
+			ensure(n - 1);
+			System.arraycopy(buf, begin, buf, begin + n - 1, length);
+			count += n - 1;
+		}
+		putRawNumber(lengthOffset, n, length);
+	}
+
+	private void putRawNumber(Class<?> clazz, long value) {
+		int len = lengthOfRawNumber(clazz, value);
+		ensure(len);
+		putRawNumber(count, len, value);
+		count += len;
+	}
+
+	/* same as EncodingRule.encodeRawNumber() */
+	private void putRawNumber(int offset, int len, long value) {
+		for (int i = 0; i < len; ++i) {
+			byte signalBit = (byte) (i != len - 1 ? 0x80 : 0);
+			buf[offset + i] = (byte) (signalBit | (byte) (value >> (7 * (len - i - 1)) & 0x7F));
+		}
+	}
+
+	private void putInt(int v) {
+		ensure(4);
+		for (int i = 3; i >= 0; i--)
+			buf[count++] = (byte) (v >> (i * 8));
+	}
+
+	private void putLong(long v) {
+		ensure(8);
+		for (int i = 7; i >= 0; i--)
+			buf[count++] = (byte) (v >> (i * 8));
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buf[count++] = b;
+	}
+
+	private void put(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, count, b.length);
+		count += b.length;
+	}
+
+	private void ensure(int n) {
+		if (count + n <= buf.length)
+			return;
+
+		long capacity = Math.max((long) buf.length * 2, (long) count + n);
+		if (capacity > Integer.MAX_VALUE - 8)
+			capacity = Integer.MAX_VALUE - 8;
+		if (capacity < (long) count + n)
+			throw new OutOfMemoryError("encoded object is too large");
+
+		byte[] b = new byte[(int) capacity];
+		System.arraycopy(buf, 0, b, 0, count);
+		buf = b;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ColumnarBatchTest {
+	@Test
+	public void testRoundTrip() {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("id", 1000 + i);
+			m.put("bytes", (long) (i % 7) * -100000L);
+			m.put("port", (short) (i % 3));
+			m.put("date", new Date(1300000000000L + i * 17));
+			m.put("proto", i % 2 == 0 ? "tcp" : "udp");
+			m.put("uri", "/index" + i + ".html");
+			m.put("ok", i % 3 == 0);
+			m.put("mixed", i % 2 == 0 ? (Object) "s" : (Object) i);
+			if (i % 10 == 0)
+				m.put("optional", null);
+			else if (i % 10 == 1)
+				m.put("optional", 1.5);
+			rows.add(m);
+		}
+		rows.add(new HashMap<String, Object>());
+
+		ByteBuffer bb = ColumnarBatch.encode(rows);
+		ColumnarBatch batch = new ColumnarBatch(bb);
+		assertFalse(bb.hasRemaining());
+		assertEquals(101, batch.getRowCount());
+		assertEquals(rows, batch.toMaps());
+	}
+
+	@Test
+	public void testColumnScan() {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 3; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("n", Long.MAX_VALUE - i * Long.MAX_VALUE);
+			m.put("list", Arrays.asList((Object) i, "x"));
+			if (i != 1)
+				m.put("s", "v" + i);
+			rows.add(m);
+		}
+
+		ColumnarBatch batch = new ColumnarBatch(ColumnarBatch.encode(rows));
+		assertEquals(3, batch.getColumnNames().size());
+		assertArrayEquals(new Object[] { Long.MAX_VALUE, 0L, -Long.MAX_VALUE }, batch.getColumn("n"));
+		assertArrayEquals(new Object[] { "v0", null, "v2" }, batch.getColumn("s"));
+		assertArrayEquals(new Object[] { 2, "x" }, (Object[]) batch.getColumn("list")[2]);
+		assertNull(batch.getColumn("none"));
+	}
+
+	@Test
+	public void testSmallerThanRows() {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("_id", i);
+			m.put("_time", new Date(1300000000000L + i * 1000));
+			m.put("src_ip", "10.0.0." + (i % 16));
+			m.put("dst_port", 80);
+			rows.add(m);
+		}
+
+		int rowLength = EncodingRule.lengthOf(rows);
+		int columnLength = ColumnarBatch.encode(rows).remaining();
+		assertTrue(columnLength * 3 < rowLength);
+	}
+
+	@Test
+	public void testEmpty() {
+		ColumnarBatch batch = new ColumnarBatch(ColumnarBatch.encode(new ArrayList<Map<String, Object>>()));
+		assertEquals(0, batch.getRowCount());
+		assertTrue(batch.getColumnNames().isEmpty());
+		assertTrue(batch.toMaps().isEmpty());
+	}
+}
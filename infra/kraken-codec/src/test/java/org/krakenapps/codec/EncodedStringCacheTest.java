@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncodedStringCacheTest {
+	@Before
+	public void setUp() {
+		EncodedStringCache.setCapacity(64);
+		EncodedStringCache.resetCounters();
+	}
+
+	@After
+	public void tearDown() {
+		EncodedStringCache.setCapacity(EncodedStringCache.DEFAULT_CAPACITY);
+		EncodedStringCache.setMaxStringLength(EncodedStringCache.DEFAULT_MAX_STRING_LENGTH);
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		EncodedStringCache es = EncodedStringCache.getEncodedString("key");
+		assertSame(es, EncodedStringCache.getEncodedString(new String("key")));
+		assertArrayEquals(new byte[] { 'k', 'e', 'y' }, es.value());
+		assertEquals(5, es.length());
+		assertEquals(1, EncodedStringCache.getHitCount());
+		assertEquals(1, EncodedStringCache.getMissCount());
+		assertEquals(1, EncodedStringCache.size());
+	}
+
+	@Test
+	public void testEviction() {
+		/* keep touching a hot key while streaming cold keys through */
+		EncodedStringCache hot = EncodedStringCache.getEncodedString("hot");
+		for (int i = 0; i < 1000; i++) {
+			EncodedStringCache.getEncodedString("cold" + i);
+			assertSame(hot, EncodedStringCache.getEncodedString("hot"));
+		}
+
+		assertEquals(64, EncodedStringCache.size());
+		assertEquals(1001 - 64, EncodedStringCache.getEvictionCount());
+	}
+
+	@Test
+	public void testBypass() {
+		EncodedStringCache.setMaxStringLength(4);
+		assertNotSame(EncodedStringCache.getEncodedString("long key"), EncodedStringCache.getEncodedString("long key"));
+		assertEquals(0, EncodedStringCache.size());
+
+		EncodedStringCache.setCapacity(0);
+		assertNotSame(EncodedStringCache.getEncodedString("a"), EncodedStringCache.getEncodedString("a"));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws InterruptedException {
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						String s = "k" + (i % 200);
+						if (!s.equals(new String(EncodedStringCache.getEncodedString(s).value())))
+							errors.incrementAndGet();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(0, errors.get());
+		assertTrue(EncodedStringCache.size() <= 64);
+		assertEquals(8 * 20000, EncodedStringCache.getHitCount() + EncodedStringCache.getMissCount());
+	}
+}
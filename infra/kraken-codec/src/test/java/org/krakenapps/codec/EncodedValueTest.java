@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class EncodedValueTest {
+	@Test
+	public void testLookup() {
+		Map<String, Object> m = record();
+		ByteBuffer bb = encode(m);
+		EncodedValue record = new EncodedValue(bb);
+
+		assertTrue(record.isMap());
+		assertEquals(bb.limit(), record.getLength());
+		assertEquals("web01", record.get("host").asString());
+		assertEquals(new Date(1300000000000L), record.get("_time").asDate());
+		assertEquals(404, record.get("status").asLong());
+		assertNull(record.get("missing"));
+		assertTrue(record.get("referer").isNull());
+		assertEquals(0, bb.position());
+
+		assertEquals("GET", record.find("request", "method").asString());
+		assertEquals(3L, record.find("request", "tags", 2).asLong());
+		assertTrue(record.find("request", "headers", "accept").asBoolean());
+		assertNull(record.find("request", "tags", 5));
+		assertNull(record.find("host", "x"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> request = (Map<String, Object>) record.get("request").decode();
+		assertEquals("GET", request.get("method"));
+		assertArrayEquals(new Object[] { 1, 2, 3 }, (Object[]) request.get("tags"));
+	}
+
+	@Test
+	public void testCursor() {
+		Map<String, Object> m = record();
+		EncodedValue record = new EncodedValue(encode(m));
+		assertEquals(m.size(), record.size());
+
+		Set<String> keys = new HashSet<String>();
+		EncodedValue.Cursor cursor = record.cursor();
+		while (cursor.next()) {
+			keys.add(cursor.getKey());
+			if (cursor.keyEquals("status"))
+				assertEquals(404, cursor.getValue().asLong());
+		}
+		assertEquals(m.keySet(), keys);
+
+		EncodedValue tags = record.find("request", "tags");
+		assertEquals(3, tags.size());
+		List<Object> l = new ArrayList<Object>();
+		cursor = tags.cursor();
+		while (cursor.next())
+			l.add(cursor.getValue().asLong());
+		assertEquals(Arrays.<Object> asList(1L, 2L, 3L), l);
+	}
+
+	@Test
+	public void testReadSequence() {
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+		EncodingRule.encode(bb, record());
+		EncodingRule.encode(bb, "next");
+		EncodingRule.encode(bb, 1.5d);
+		bb.flip();
+
+		assertEquals("web01", EncodedValue.read(bb, null).get("host").asString());
+		assertEquals("next", EncodedValue.read(bb, null).asString());
+		assertEquals(1.5d, EncodedValue.read(bb, null).asDouble(), 0);
+		assertFalse(bb.hasRemaining());
+	}
+
+	@Test
+	public void testTypeMismatch() {
+		EncodedValue value = new EncodedValue(encode("text"));
+		try {
+			value.get("key");
+			fail();
+		} catch (TypeMismatchException e) {
+			assertEquals(EncodingRule.MAP_TYPE, e.getExpectedType());
+		}
+
+		try {
+			value.asLong();
+			fail();
+		} catch (TypeMismatchException e) {
+		}
+	}
+
+	private Map<String, Object> record() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("accept", true);
+		headers.put("agent", "mozilla");
+
+		Map<String, Object> request = new HashMap<String, Object>();
+		request.put("method", "GET");
+		request.put("tags", Arrays.asList(1, 2, 3));
+		request.put("headers", headers);
+		request.put("body", new byte[300]);
+
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("_time", new Date(1300000000000L));
+		m.put("host", "web01");
+		m.put("status", 404);
+		m.put("referer", null);
+		m.put("request", request);
+		return m;
+	}
+
+	private ByteBuffer encode(Object value) {
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(value));
+		EncodingRule.encode(bb, value);
+		bb.flip();
+		return bb;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StreamingEncoderTest {
+	@Test
+	public void testSameAsEncodingRule() throws IOException {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("null", null);
+		m.put("string", "가나다 abc");
+		m.put("int", -1234567);
+		m.put("long", Long.MIN_VALUE);
+		m.put("short", (short) -3);
+		m.put("date", new Date(1300000000000L));
+		m.put("ip4", InetAddress.getByName("10.0.0.1"));
+		m.put("ip6", InetAddress.getByName("::1"));
+		m.put("bool", true);
+		m.put("float", 1.5f);
+		m.put("double", -2.25d);
+		m.put("blob", new byte[200]);
+		m.put("ints", new int[] { 1, -2, 300000 });
+		m.put("longs", new long[] { 1L << 40 });
+		m.put("objects", new Object[] { "a", 1, null });
+		m.put("nested", Arrays.asList(new HashMap<String, Object>(), Arrays.asList("x", "y")));
+
+		for (Object value : Arrays.asList(null, "s", 7, m, Arrays.asList(m, m), new short[] { 1, 2 }))
+			assertEncoded(value);
+	}
+
+	@Test
+	public void testLengthPatch() {
+		/* payloads around the one, two and three byte length boundaries */
+		for (int n : new int[] { 0, 62, 63, 64, 8190, 8191, 8192, 100000 }) {
+			List<Object> l = new ArrayList<Object>();
+			for (int i = 0; i < n; i++)
+				l.add(true);
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("l", l);
+			assertEncoded(Arrays.asList(m, "tail"));
+		}
+	}
+
+	@Test
+	public void testWriteTo() throws IOException {
+		StreamingEncoder enc = new StreamingEncoder(16, null);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		enc.encode("first").writeTo(os);
+		assertEquals(0, enc.size());
+		enc.encode(2).writeTo(Channels.newChannel(os));
+
+		ByteBuffer bb = ByteBuffer.wrap(os.toByteArray());
+		assertEquals("first", EncodingRule.decode(bb));
+		assertEquals(2, EncodingRule.decode(bb));
+		assertFalse(bb.hasRemaining());
+	}
+
+	@Test(expected = UnsupportedTypeException.class)
+	public void testUnsupportedType() {
+		new StreamingEncoder().encode(new Object());
+	}
+
+	private void assertEncoded(Object value) {
+		ByteBuffer expected = ByteBuffer.allocate(EncodingRule.lengthOf(value));
+		EncodingRule.encode(expected, value);
+
+		StreamingEncoder enc = new StreamingEncoder(16, null);
+		enc.encode(value);
+		assertArrayEquals(expected.array(), enc.toByteArray());
+	}
+}
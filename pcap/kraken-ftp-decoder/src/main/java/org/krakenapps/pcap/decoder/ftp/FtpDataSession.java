@@ -15,24 +15,34 @@
  */
 package org.krakenapps.pcap.decoder.ftp;
 
+import java.io.IOException;
+
 import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ExtractedFile;
 
 /**
  * @author mindori
  */
 public class FtpDataSession {
-	private Buffer ftpData;
+	private ExtractedFile ftpData;
 
 	public FtpDataSession() { 
-		ftpData = new ChainBuffer();
+		this(new ExtractedFile());
+	}
+
+	public FtpDataSession(ExtractedFile file) {
+		ftpData = file;
 	}
 	
-	public Buffer getData() {
+	public ExtractedFile getData() {
 		return ftpData;
 	}
 
-	public void putData(Buffer data) {
-		ftpData.addLast(data);
+	public void putData(Buffer data) throws IOException {
+		ftpData.write(data);
+	}
+
+	public void dispose() {
+		ftpData.dispose();
 	}
 }
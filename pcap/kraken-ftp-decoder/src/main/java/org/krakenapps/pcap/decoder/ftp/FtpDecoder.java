@@ -15,11 +15,10 @@
  */
 package org.krakenapps.pcap.decoder.ftp;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import org.krakenapps.pcap.Protocol;
@@ -28,8 +27,12 @@ import org.krakenapps.pcap.decoder.tcp.TcpProtocolMapper;
 import org.krakenapps.pcap.decoder.tcp.TcpSession;
 import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.BufferInputStream;
 import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ExtractedFile;
+import org.krakenapps.pcap.util.ExtractionBudget;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
+import org.krakenapps.pcap.util.SpillOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,7 +42,7 @@ import org.slf4j.LoggerFactory;
 public class FtpDecoder implements TcpProcessor {
 	private Logger logger = LoggerFactory.getLogger(FtpDecoder.class.getName());
 	private Set<FtpProcessor> callbacks;
-	private Map<TcpSessionKey, FtpSession> sessionMap;
+	private SessionStateTable<TcpSessionKey, FtpSession> sessionMap;
 	private final TcpProtocolMapper mapper;
 
 	/* multi-session variables */
@@ -52,12 +55,64 @@ public class FtpDecoder implements TcpProcessor {
 	private boolean isViewList = false;
 	private Buffer list;
 
+	/* extraction limits */
+	private long maxFileSize = Long.MAX_VALUE;
+	private ExtractionBudget budget;
+	private int spillThreshold = SpillOutputStream.DEFAULT_THRESHOLD;
+	private File spillDirectory;
+
 	public FtpDecoder(TcpProtocolMapper mapper) {
 		callbacks = new HashSet<FtpProcessor>();
-		sessionMap = new HashMap<TcpSessionKey, FtpSession>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessionMap = new SessionStateTable<TcpSessionKey, FtpSession>(evictor, evictor);
 		this.mapper = mapper;
 	}
 
+	/**
+	 * Returns the ftp session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, FtpSession> getSessionTable() {
+		return sessionMap;
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	/**
+	 * Sets the maximum stored bytes of a transfer. Larger files are hashed
+	 * but reported as truncated.
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	public ExtractionBudget getExtractionBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the byte budget shared with other decoders, or null if
+	 * unlimited.
+	 */
+	public void setExtractionBudget(ExtractionBudget budget) {
+		this.budget = budget;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the in-memory limit of a transfer. Larger files are spilled to
+	 * temporary files in the given directory, or the default temporary
+	 * directory if null.
+	 */
+	public void setSpillThreshold(int spillThreshold, File spillDirectory) {
+		this.spillThreshold = spillThreshold;
+		this.spillDirectory = spillDirectory;
+	}
+
 	public void register(FtpProcessor processor) {
 		callbacks.add(processor);
 	}
@@ -70,8 +125,8 @@ public class FtpDecoder implements TcpProcessor {
 	public void handleTx(TcpSessionKey sessionKey, Buffer data) {
 		FtpSession session = sessionMap.get(sessionKey);
 		if (isDownload && !(sessionKey.equals(key)))
-			dataSession.putData(data);
-		else
+			putData(data);
+		else if (session != null)
 			handleTxBuffer(sessionKey, session, data);
 	}
 
@@ -79,8 +134,8 @@ public class FtpDecoder implements TcpProcessor {
 	public void handleRx(TcpSessionKey sessionKey, Buffer data) {
 		FtpSession session = sessionMap.get(sessionKey);
 		if (isDownload && !(sessionKey.equals(key)))
-			dataSession.putData(data);
-		else
+			putData(data);
+		else if (session != null)
 			handleRxBuffer(sessionKey, session, data);
 	}
 
@@ -96,16 +151,31 @@ public class FtpDecoder implements TcpProcessor {
 	public void onFinish(TcpSessionKey session) {
 		logger.debug("-> ftp Session Closed: \nClient Port: {}\nServer Port: {}", session.getClientPort(), session.getServerPort());
 		sessionMap.remove(session);
+		releaseTransfer(session);
 	}
 
 	@Override
 	public void onReset(TcpSessionKey session) {
-		FtpSession ftpSession = sessionMap.get(session);
+		FtpSession ftpSession = sessionMap.remove(session);
 		if (ftpSession != null) {
 			if (logger.isDebugEnabled())
 				logger.debug("Deallocate tx, rx buffer and remove ftp session.");
 			ftpSession.clear();
-			sessionMap.remove(session);
+		}
+		releaseTransfer(session);
+	}
+
+	/* drops the pending transfer when its control session goes away */
+	private void releaseTransfer(TcpSessionKey session) {
+		if (session.equals(key))
+			initMultiSession();
+	}
+
+	private void putData(Buffer data) {
+		try {
+			dataSession.putData(data);
+		} catch (IOException e) {
+			logger.debug("ftp decoder: cannot store " + fileName, e);
 		}
 	}
 
@@ -157,9 +227,7 @@ public class FtpDecoder implements TcpProcessor {
 				else if (code.equals("226 ") || code.equals("250 ")) {
 					/* get attached file */
 					if (fileName != "") {
-						Buffer data = dataSession.getData();
-						BufferInputStream is = new BufferInputStream(data);
-						dispatchFile(is, fileName);
+						dispatchFile(dataSession.getData(), fileName);
 						initMultiSession();
 					}
 					/* view directory list */
@@ -203,7 +271,9 @@ public class FtpDecoder implements TcpProcessor {
 				}
 
 				else if (code.equalsIgnoreCase("STOR") || code.equalsIgnoreCase("RETR")) {
-					dataSession = new FtpDataSession();
+					if (dataSession != null)
+						dataSession.dispose();
+					dataSession = new FtpDataSession(new ExtractedFile(maxFileSize, budget, spillThreshold, spillDirectory));
 
 					fileName = commandStr.split(" ")[1].replaceAll("\r\n", "");
 					isDownload = true;
@@ -234,6 +304,8 @@ public class FtpDecoder implements TcpProcessor {
 	}
 
 	private void initMultiSession() {
+		if (dataSession != null)
+			dataSession.dispose();
 		dataSession = null;
 		key = null;
 		isDownload = false;
@@ -258,9 +330,32 @@ public class FtpDecoder implements TcpProcessor {
 		}
 	}
 
-	private void dispatchFile(InputStream is, String fileName) {
+	private void dispatchFile(ExtractedFile file, String fileName) {
+		if (file.isTruncated())
+			logger.debug("ftp decoder: {} truncated, {}", fileName, file);
+
 		for (FtpProcessor processor : callbacks) {
-			processor.onExtractFile(is, fileName);
+			try {
+				processor.onExtractFile(file, fileName);
+			} catch (IOException e) {
+				logger.debug("ftp decoder: cannot extract " + fileName, e);
+			}
+		}
+	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<TcpSessionKey, FtpSession>,
+			SessionStateTable.Weigher<FtpSession> {
+		@Override
+		public void onEvict(TcpSessionKey key, FtpSession session, EvictCause cause) {
+			logger.debug("ftp decoder: evict session {}, {}", key, cause);
+			session.clear();
+
+			releaseTransfer(key);
+		}
+
+		@Override
+		public long getBufferedBytes(FtpSession session) {
+			return session.getBufferedBytes();
 		}
 	}
 }
@@ -15,8 +15,11 @@
  */
 package org.krakenapps.pcap.decoder.ftp;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import org.krakenapps.pcap.util.ExtractedFile;
+
 /**
  * @author mindori
  */
@@ -28,4 +31,22 @@ public interface FtpProcessor {
 	void viewList(byte[] list);
 	
 	void onExtractFile(InputStream is, String fileName);
+
+	/**
+	 * Called when a transfer completes, with its size and digests. The file
+	 * is disposed after the call. The default implementation passes the
+	 * stored bytes to {@link #onExtractFile(InputStream, String)} unless the
+	 * file is truncated.
+	 */
+	default void onExtractFile(ExtractedFile file, String fileName) throws IOException {
+		if (file.isTruncated())
+			return;
+
+		InputStream is = file.getInputStream();
+		try {
+			onExtractFile(is, fileName);
+		} finally {
+			is.close();
+		}
+	}
 }
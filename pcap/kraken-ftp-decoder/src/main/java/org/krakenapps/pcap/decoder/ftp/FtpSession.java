@@ -72,6 +72,18 @@ public class FtpSession {
 		return dataSessions.containsKey(serverPort);
 	}
 	
+	/**
+	 * Returns the bytes waiting in the tx and rx buffers.
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		if (txBuffer != null)
+			bytes += txBuffer.readableBytes();
+		if (rxBuffer != null)
+			bytes += rxBuffer.readableBytes();
+		return bytes;
+	}
+
 	public void clear() { 
 		txBuffer = null;
 		rxBuffer = null;	
@@ -29,6 +29,7 @@ import edu.baylor.cs.csi5321.spdy.frames.H2PriorityFrame;
 import org.krakenapps.pcap.Protocol;
 import org.krakenapps.pcap.decoder.http.h2.Http2Stream;
 import org.krakenapps.pcap.decoder.http.impl.Chunked;
+import org.krakenapps.pcap.decoder.http.impl.ContentDecoder;
 import org.krakenapps.pcap.decoder.http.impl.FlagEnum;
 import org.krakenapps.pcap.decoder.http.impl.HttpRequestImpl;
 import org.krakenapps.pcap.decoder.http.impl.HttpRequestState;
@@ -44,6 +45,9 @@ import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
 import org.krakenapps.pcap.util.ChainBuffer;
 import org.krakenapps.pcap.util.HexFormatter;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
+import org.krakenapps.pcap.util.SpillOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,15 +67,12 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 enum HttpDirection {
 	REQUEST, RESPONSE
@@ -86,16 +87,76 @@ public class HttpDecoder implements TcpProcessor {
 	private final Logger logger = LoggerFactory.getLogger(HttpDecoder.class.getName());
 
 	private final Set<HttpProcessor> callbacks;
-	private final Map<TcpSessionKey, HttpSessionImpl> sessionMap;
+	private final SessionStateTable<TcpSessionKey, HttpSessionImpl> sessionMap;
 
 	private final PartialContentManager mpManager;
 
+	private boolean bodyBuffering = true;
+	private int bodySpillThreshold = SpillOutputStream.DEFAULT_THRESHOLD;
+	private long maxDecodedBodyBytes = ContentDecoder.DEFAULT_MAX_DECODED_BYTES;
+	private final AtomicLong truncatedBodies = new AtomicLong();
+
 	public HttpDecoder() {
 		callbacks = new HashSet<>();
-		sessionMap = new HashMap<>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessionMap = new SessionStateTable<>(evictor, evictor);
 		mpManager = new PartialContentManager();
 	}
 
+	/**
+	 * Returns the http session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, HttpSessionImpl> getSessionTable() {
+		return sessionMap;
+	}
+
+	public boolean isBodyBuffering() {
+		return bodyBuffering;
+	}
+
+	/**
+	 * Keeps decoded response bodies for {@link HttpResponse#getInputStream()}
+	 * and {@link HttpResponse#getContent()}. Processors which consume the
+	 * body callbacks only can turn it off.
+	 */
+	public void setBodyBuffering(boolean bodyBuffering) {
+		this.bodyBuffering = bodyBuffering;
+	}
+
+	public int getBodySpillThreshold() {
+		return bodySpillThreshold;
+	}
+
+	/**
+	 * Sets the in-memory limit of a buffered body. Larger bodies are spilled
+	 * to temporary files.
+	 */
+	public void setBodySpillThreshold(int bodySpillThreshold) {
+		this.bodySpillThreshold = bodySpillThreshold;
+	}
+
+	public long getMaxDecodedBodyBytes() {
+		return maxDecodedBodyBytes;
+	}
+
+	/**
+	 * Limits the bytes decoded from a gzip, deflate or brotli body. The rest
+	 * of the body is skipped and counted by {@link #getTruncatedBodyCount()}.
+	 * 
+	 * @param maxDecodedBodyBytes
+	 *            the limit, 0 for no limit
+	 */
+	public void setMaxDecodedBodyBytes(long maxDecodedBodyBytes) {
+		this.maxDecodedBodyBytes = maxDecodedBodyBytes;
+	}
+
+	/**
+	 * @return the number of bodies which exceeded the decoded size limit
+	 */
+	public long getTruncatedBodyCount() {
+		return truncatedBodies.get();
+	}
+
 	private TcpProcessor tcpVisitor;
 
 	public void setTcpVisitor(TcpProcessor tcpVisitor) {
@@ -256,8 +317,9 @@ public class HttpDecoder implements TcpProcessor {
 
 	private void handleNoContentLengthCase(HttpSessionImpl httpSession) throws IOException {
 		if (httpSession != null && httpSession.getResponseState() == HttpResponseState.GOT_HEADER) {
-			decodeContent(httpSession.getResponse());
+			finishBody(httpSession, httpSession.getResponse());
 			dispatchResponse(httpSession);
+			httpSession.removeHttpMessages();
 		}
 	}
 
@@ -820,7 +882,6 @@ public class HttpDecoder implements TcpProcessor {
 
 		HttpResponseImpl response = session.getResponse();
 
-		response.putBinary(data);
 		response.addPutLength(data.readableBytes());
 
 		/* multiple responses in a session. */
@@ -945,25 +1006,18 @@ public class HttpDecoder implements TcpProcessor {
 						log.debug("parseResponse state={}, flag={}, sessionKey={}", new Object[]{session.getResponseState(), flag, session.getKey()});
 					}
 
-					if (flag.contains(FlagEnum.NORMAL)) {
-						if (handleNormal(response, rxBuffer) == DECODE_NOT_READY) {
-							rxBuffer.reset();
+					if (flag.contains(FlagEnum.BYTERANGE)) {
+						String url = session.getRequest().getURL().toString();
+						if (handleByteRange(session, response, url, rxBuffer, data, capacity) == DECODE_NOT_READY) {
 							return;
-						} else {
-							decodeContent(response);
 						}
-					} else {
-						/* step 1. handle MULTIPART or BYTERANGE */
-						if (flag.contains(FlagEnum.MULTIPART)) {
-							handleMultipart(response, rxBuffer);
-						} else if (flag.contains(FlagEnum.BYTERANGE)) {
-							String url = session.getRequest().getURL().toString();
-							if (handleByteRange(session, response, url, rxBuffer, data, capacity) == DECODE_NOT_READY) {
-								return;
-							}
+					} else if (flag.contains(FlagEnum.MULTIPART)) {
+						handleMultipart(response, rxBuffer);
+					} else if (hasBody(session, response)) {
+						if (response.getContentDecoder() == null) {
+							startBody(session, response);
 						}
 
-						/* step 2 */
 						if (flag.contains(FlagEnum.CHUNKED)) {
 							int retVal = handleChunked(response, rxBuffer, session, session.getRequest(), response);
 							if (log.isDebugEnabled()) {
@@ -975,36 +1029,12 @@ public class HttpDecoder implements TcpProcessor {
 								return;
 							} else if (retVal == 0) {
 								return;
-							} else {
-								if (log.isDebugEnabled()) {
-									log.debug("parseResponse state={}, flag={}", session.getResponseState(), flag);
-								}
-								response.setChunked(response.readChunkedBytes());
 							}
+						} else if (handleBody(response, rxBuffer) == DECODE_NOT_READY) {
+							return;
 						}
 
-						/* step 3 */
-						if (flag.contains(FlagEnum.DEFLATE)) {
-							int retVal = handleDeflate(response, rxBuffer);
-							if (retVal == DECODE_NOT_READY) {
-								return;
-							}
-						} else if (flag.contains(FlagEnum.GZIP)) {
-							int retVal;
-							if (flag.contains(FlagEnum.CHUNKED)) {
-								response.putGzip(response.getChunked());
-								retVal = 0;
-							} else {
-								retVal = handleGzip(response, rxBuffer);
-							}
-
-							if (retVal == DECODE_NOT_READY || retVal == 1) {
-								return;
-							} else if (retVal == 0) {
-								byte[] decompressed = decompressGzip(response.getGzip());
-								response.setDecompressedGzip(decompressed);
-							}
-						}
+						finishBody(session, response);
 					}
 
 					dispatchResponse(session);
@@ -1106,11 +1136,6 @@ public class HttpDecoder implements TcpProcessor {
 		if (contentEncoding != null) {
 			if (contentEncoding.matches("^gzip")) {
 				flags.add(FlagEnum.GZIP);
-				response.createGzip();
-
-				String lengthStr = response.getHeader(HttpHeaders.CONTENT_LENGTH);
-				if (lengthStr != null)
-					response.setGzipLength(Integer.parseInt(lengthStr.trim()));
 				return;
 			} else if (contentEncoding.matches("^deflate")) {
 				flags.add(FlagEnum.DEFLATE);
@@ -1120,7 +1145,6 @@ public class HttpDecoder implements TcpProcessor {
 
 		if ((flags.size() <= 1) && (flags.contains(FlagEnum.NONE))) {
 			flags.add(FlagEnum.NORMAL);
-			response.createContent();
 		}
 	}
 
@@ -1300,59 +1324,135 @@ public class HttpDecoder implements TcpProcessor {
 
 	}
 
-	private int handleGzip(HttpResponseImpl response, Buffer rxBuffer) {
+	private boolean hasBody(HttpSessionImpl session, HttpResponseImpl response) {
+		int statusCode = response.getStatusCode();
+		if ((statusCode >= 100 && statusCode < 200) || statusCode == 204 || statusCode == 304) {
+			return false;
+		}
+
+		HttpRequestImpl request = session.getRequest();
+		if (request != null && request.getMethod() == HttpMethod.HEAD) {
+			return false;
+		}
+
+		// without length, receive all bytes until session is finished if status is OK
+		// TODO: other error codes(ex. 304) may have contents body
+		return response.getFlags().contains(FlagEnum.CHUNKED) || getContentLength(response) >= 0 || statusCode == 200;
+	}
+
+	private long getContentLength(HttpResponseImpl response) {
 		String s = response.getHeader(HttpHeaders.CONTENT_LENGTH);
+		if (s == null) {
+			for (String key : response.getHeaderKeys()) {
+				if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(key)) {
+					s = response.getHeader(key);
+					break;
+				}
+			}
+		}
 
-		if (s == null)
-			return response.getStatusCode() == 200 ? DECODE_NOT_READY : 0;
+		if (s == null) {
+			return -1;
+		}
 
-		int length = response.getGzipLength();
-		int offset = response.getGzipOffset();
-		if (length > DECODE_NOT_READY) {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			try {
-				while (offset < length) {
-					baos.write(rxBuffer.get());
-					offset++;
+		try {
+			return Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void startBody(final HttpSessionImpl session, final HttpResponseImpl response) {
+		final HttpRequestImpl request = session.getRequest();
+		final SpillOutputStream body = bodyBuffering ? new SpillOutputStream(bodySpillThreshold) : null;
+		ContentDecoder.Sink sink = new ContentDecoder.Sink() {
+			@Override
+			public void write(byte[] b, int offset, int length) throws IOException {
+				if (body != null) {
+					body.write(b, offset, length);
+				}
+				for (HttpProcessor processor : callbacks) {
+					processor.onResponseBody(session, request, response, b, offset, length);
 				}
-			} catch (BufferUnderflowException e) {
-				response.setGzipOffset(offset);
-				return DECODE_NOT_READY;
-			} finally {
-				Buffer gzip = response.getGzip();
-				gzip.addLast(baos.toByteArray());
 			}
-			return 0;
+		};
+
+		String encoding = response.getHeader(HttpHeaders.CONTENT_ENCODING);
+		long contentLength = response.getFlags().contains(FlagEnum.CHUNKED) ? -1 : getContentLength(response);
+		response.startBody(ContentDecoder.create(encoding, sink, bodySpillThreshold, maxDecodedBodyBytes), body, contentLength);
+
+		for (HttpProcessor processor : callbacks) {
+			processor.onResponseBodyStart(session, request, response);
 		}
-		/* can't handle gzip */
-		else
-			return 1;
 	}
 
-	private int handleDeflate(HttpResponseImpl response, Buffer rxBuffer) throws IOException {
-        /* save response contents until offset is equal to contentLength */
-        String s = response.getHeader(HttpHeaders.CONTENT_LENGTH);
-        // log.debug("handleNormal contentLength=" + s + ", available=" + rxBuffer.readableBytes() + ", headerKeys=" + response.getHeaderKeys());
+	/* feeds available bytes of a body delimited by length or connection close */
+	private int handleBody(HttpResponseImpl response, Buffer rxBuffer) {
+		long remaining = response.getBodyRemaining();
+		int length = rxBuffer.readableBytes();
+		if (remaining >= 0 && remaining < length) {
+			length = (int) remaining;
+		}
 
-        // if status is OK, receive all bytes until session is finished
-        // TODO: other error codes(ex. 304) may have contents body
-        if (s == null) {
-            return response.getStatusCode() == 200 ? DECODE_NOT_READY : 0;
-        }
+		if (length > 0) {
+			byte[] b = new byte[length];
+			rxBuffer.gets(b);
+			feedBody(response, b);
+			if (remaining >= 0) {
+				response.setBodyRemaining(remaining - length);
+			}
+		}
 
-        int contentLength = Integer.parseInt(s.replaceAll("\\n", ""));
+		/* drop consumed segments */
+		rxBuffer.compact();
+		rxBuffer.mark();
+		return response.getBodyRemaining() == 0 ? 0 : DECODE_NOT_READY;
+	}
 
-        /* calculate offset */
-        int available = rxBuffer.readableBytes();
-        if (available < contentLength) {
-            return DECODE_NOT_READY;
-        }
+	private void feedBody(HttpResponseImpl response, byte[] b) {
+		if (response.isBodyFailed()) {
+			return;
+		}
 
-        byte[] content = new byte[contentLength];
-        rxBuffer.gets(content);
-        InputStream in = new InflaterInputStream(new ByteArrayInputStream(content), new Inflater(true));
-        response.setDeflatedBytes(toByteArray(in));
-        return 0;
+		try {
+			response.getContentDecoder().update(b, 0, b.length);
+		} catch (IOException e) {
+			response.setBodyFailed(true);
+			logger.debug("kraken http decoder: cannot decode body", e);
+		}
+	}
+
+	private void finishBody(HttpSessionImpl session, HttpResponseImpl response) {
+		ContentDecoder decoder = response.getContentDecoder();
+		if (decoder == null) {
+			return;
+		}
+
+		try {
+			if (!response.isBodyFailed()) {
+				decoder.finish();
+			}
+		} catch (IOException e) {
+			response.setBodyFailed(true);
+			logger.debug("kraken http decoder: cannot decode body", e);
+		} finally {
+			decoder.dispose();
+		}
+
+		if (decoder.isTruncated()) {
+			truncatedBodies.incrementAndGet();
+			logger.debug("kraken http decoder: body truncated at {} decoded bytes", decoder.getDecodedBytes());
+		}
+
+		try {
+			response.endBody();
+		} catch (IOException e) {
+			logger.debug("kraken http decoder: cannot close body", e);
+		}
+
+		for (HttpProcessor processor : callbacks) {
+			processor.onResponseBodyEnd(session, session.getRequest(), response);
+		}
 	}
 
 	private int handleChunked(Chunked chunked, Buffer buffer, HttpSession session, HttpRequest req, HttpResponse resp) {
@@ -1367,6 +1467,10 @@ public class HttpDecoder implements TcpProcessor {
 				if (buffer.isEOB()) {
 					return 0;
 				}
+				if (resp != null) {
+					/* drop consumed chunks */
+					buffer.compact();
+				}
 				buffer.mark();
 				buffer.discardReadBytes();
 
@@ -1377,6 +1481,12 @@ public class HttpDecoder implements TcpProcessor {
 				}
 				/* arrived EOF */
 				else if (chunked.getChunkedLength() == 0) {
+					/* wait for the last \r\n, parse the last chunk again */
+					if (buffer.readableBytes() < 2) {
+						chunked.setChunkedLength(DECODE_NOT_READY);
+						return DECODE_NOT_READY;
+					}
+
 					/* skip \r\n */
 					buffer.get();
 					buffer.get();
@@ -1399,6 +1509,10 @@ public class HttpDecoder implements TcpProcessor {
 	}
 
 	private boolean processChunked(Chunked chunked, Buffer buffer, HttpSession session, HttpRequest req, HttpResponse resp) {
+		if (resp != null) {
+			return streamChunked(chunked, buffer, session, req, (HttpResponseImpl) resp);
+		}
+
 		int offset = chunked.getChunkedOffset();
 		int length = chunked.getChunkedLength();
 		int retVal = putChunked(buffer, chunked, chunked.getChunkedOffset(), chunked.getChunkedLength());
@@ -1408,82 +1522,44 @@ public class HttpDecoder implements TcpProcessor {
 		if (retVal == DECODE_NOT_READY) {
 			return true;
 		} else if (retVal == 0) {
-			if (resp == null) {
-				for (HttpProcessor processor : callbacks) {
-					processor.onChunkedRequest(session, req, chunked.getChunked());
-				}
-			} else {
-				for (HttpProcessor processor : callbacks) {
-					processor.onChunkedResponse(session, req, resp, chunked.getChunked());
-				}
+			for (HttpProcessor processor : callbacks) {
+				processor.onChunkedRequest(session, req, chunked.getChunked());
 			}
 		}
 		return false;
 	}
 
-	private int handleNormal(HttpResponseImpl response, Buffer rxBuffer) {
-		/* save response contents until offset is equal to contentLength */
-		String s = response.getHeader(HttpHeaders.CONTENT_LENGTH);
-		// log.debug("handleNormal contentLength=" + s + ", available=" + rxBuffer.readableBytes() + ", headerKeys=" + response.getHeaderKeys());
-		if (s == null) {
-			for (String key : response.getHeaderKeys()) {
-				if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(key)) {
-					s = response.getHeader(key);
-					break;
-				}
+	/* feeds the available part of the current response chunk, chunk offset counts the bytes already fed */
+	private boolean streamChunked(Chunked chunked, Buffer buffer, HttpSession session, HttpRequest req, HttpResponseImpl resp) {
+		int offset = chunked.getChunkedOffset();
+		int length = chunked.getChunkedLength();
+		int available = Math.min(buffer.readableBytes(), length - offset);
+		if (available > 0) {
+			byte[] b = new byte[available];
+			buffer.gets(b);
+			chunked.setChunkedOffset(offset + available);
+
+			Buffer chunk = new ChainBuffer(b);
+			for (HttpProcessor processor : callbacks) {
+				processor.onChunkedResponse(session, req, resp, chunk);
 			}
+			feedBody(resp, b);
 		}
 
-		// if status is OK, receive all bytes until session is finished
-		// TODO: other error codes(ex. 304) may have contents body
-		if (s == null) {
-			return response.getStatusCode() == 200 ? DECODE_NOT_READY : 0;
-		}
-
-		int contentLength = Integer.parseInt(s.replaceAll("\\n", ""));
+		/* drop consumed segments */
+		buffer.compact();
+		buffer.mark();
 
-		/* calculate offset */
-		int available = rxBuffer.readableBytes();
-		if (available < contentLength) {
-			return DECODE_NOT_READY;
+		/* wait for the rest of the chunk and its trailing \r\n */
+		if (chunked.getChunkedOffset() < length || buffer.readableBytes() < 2) {
+			return true;
 		}
 
-		byte[] content = new byte[contentLength];
-		rxBuffer.gets(content);
-		response.getContentBuffer().addLast(content);
-		return 0;
-	}
-
-	private void decodeContent(HttpResponseImpl response) {
-        /*try {
-			Buffer binary = response.getBinary();
-			int length = response.getPutLength();
-			byte[] b = new byte[length];
-			binary.gets(b, 0, length);
-
-			Session session = Session.getDefaultInstance(new Properties());
-			InputStream is = new ByteArrayInputStream(b, 0, b.length);
-			MimeMessage msg = new MimeMessage(session, is);
-			response.setMessage(msg);
-
-			if (msg.getContent() instanceof String) {
-				Buffer contentBuffer = response.getContentBuffer();
-				if(contentBuffer == null) {
-					return;
-				}
-				
-				int readable = contentBuffer.readableBytes();
-				if (readable <= 0)
-					return;
-
-				byte[] content = new byte[readable];
-				contentBuffer.gets(content);
-				response.setContent(content);
-			}
-		} catch (Exception e) {
-			if (logger.isDebugEnabled())
-				logger.debug("kraken http decoder: cannot decode content", e);
-		}*/
+		buffer.get();
+		buffer.get();
+		chunked.setChunkedOffset(0);
+		chunked.setChunkedLength(DECODE_NOT_READY);
+		return false;
 	}
 
     public static byte[] toByteArray(InputStream inputStream) throws IOException {
@@ -1562,24 +1638,15 @@ public class HttpDecoder implements TcpProcessor {
             return DECODE_NOT_READY;
         }
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(length - offset);
-		try {
-			while (offset < length) {
-				baos.write(buffer.get());
-				offset++;
-			}
-			buffer.get();
-			buffer.get();
-			/* when read chunked complete, initialize chunked variables */
-			chunked.setChunkedOffset(0);
-			chunked.setChunkedLength(DECODE_NOT_READY);
-		} catch (BufferUnderflowException e) {
-			log.warn("putChunked", e);
-			chunked.setChunkedOffset(offset);
-			return DECODE_NOT_READY;
-		} finally {
-			chunked.getChunked().addLast(baos.toByteArray());
-		}
+		byte[] b = new byte[length - offset];
+		buffer.gets(b);
+		buffer.get();
+		buffer.get();
+		chunked.getChunked().addLast(b);
+
+		/* when read chunked complete, initialize chunked variables */
+		chunked.setChunkedOffset(0);
+		chunked.setChunkedLength(DECODE_NOT_READY);
 		return 0;
 	}
 
@@ -1610,4 +1677,25 @@ public class HttpDecoder implements TcpProcessor {
 			processor.onMultipartData(session, bb);
 		}
 	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<TcpSessionKey, HttpSessionImpl>,
+			SessionStateTable.Weigher<HttpSessionImpl> {
+		@Override
+		public void onEvict(TcpSessionKey key, HttpSessionImpl session, EvictCause cause) {
+			logger.debug("kraken http decoder: evict session {}, {}", key, cause);
+
+			TcpProcessor fallbackTcpProcessor = session.getFallbackTcpProcessor();
+			if (fallbackTcpProcessor != null) {
+				fallbackTcpProcessor.onReset(key);
+				return;
+			}
+
+			session.deallocate();
+		}
+
+		@Override
+		public long getBufferedBytes(HttpSessionImpl session) {
+			return session.getBufferedBytes();
+		}
+	}
 }
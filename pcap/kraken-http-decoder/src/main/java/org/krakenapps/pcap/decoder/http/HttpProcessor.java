@@ -34,4 +34,20 @@ public interface HttpProcessor extends WebSocketProcessor {
 	void onChunkedRequest(HttpSession session, HttpRequest request, Buffer chunked);
 	void onChunkedResponse(HttpSession session, HttpRequest request, HttpResponse response, Buffer chunked);
 
+	/**
+	 * Called when the response headers are parsed and a body follows.
+	 */
+	default void onResponseBodyStart(HttpSession session, HttpRequest request, HttpResponse response) {}
+
+	/**
+	 * Called with each segment of the body after content decoding. The bytes
+	 * are valid only during the call.
+	 */
+	default void onResponseBody(HttpSession session, HttpRequest request, HttpResponse response, byte[] b, int offset, int length) {}
+
+	/**
+	 * Called at the end of the body, before {@link #onResponse}.
+	 */
+	default void onResponseBodyEnd(HttpSession session, HttpRequest request, HttpResponse response) {}
+
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.http.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.brotli.dec.BrotliInputStream;
+import org.krakenapps.pcap.util.SpillOutputStream;
+
+/**
+ * Incremental decoder of http content coding. Body segments are fed as they
+ * arrive and the decoded bytes are pushed to the sink. Compressed bodies stop
+ * decoding at the decoded size limit, so that a gzip or brotli bomb cannot
+ * fill the memory or the disk.
+ */
+public abstract class ContentDecoder {
+	public interface Sink {
+		void write(byte[] b, int offset, int length) throws IOException;
+	}
+
+	public static final long DEFAULT_MAX_DECODED_BYTES = 64L * 1024 * 1024;
+
+	protected final Sink sink;
+	private final long maxDecodedBytes;
+	private long decodedBytes;
+	private boolean truncated;
+
+	protected ContentDecoder(Sink sink) {
+		this(sink, 0);
+	}
+
+	/**
+	 * @param maxDecodedBytes
+	 *            the limit of decoded bytes, 0 for no limit
+	 */
+	protected ContentDecoder(Sink sink, long maxDecodedBytes) {
+		this.sink = sink;
+		this.maxDecodedBytes = maxDecodedBytes;
+	}
+
+	/**
+	 * @param contentEncoding
+	 *            the Content-Encoding header, or null for identity
+	 * @param spillThreshold
+	 *            the in-memory limit of bytes kept by decoders which cannot
+	 *            decode incrementally
+	 */
+	public static ContentDecoder create(String contentEncoding, Sink sink, int spillThreshold) {
+		return create(contentEncoding, sink, spillThreshold, DEFAULT_MAX_DECODED_BYTES);
+	}
+
+	/**
+	 * @param maxDecodedBytes
+	 *            the limit of bytes decoded from a compressed body, 0 for no
+	 *            limit
+	 */
+	public static ContentDecoder create(String contentEncoding, Sink sink, int spillThreshold, long maxDecodedBytes) {
+		String encoding = contentEncoding == null ? "" : contentEncoding.trim().toLowerCase();
+		if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+			return new InflateDecoder(sink, true, maxDecodedBytes);
+		else if (encoding.equals("deflate"))
+			return new InflateDecoder(sink, false, maxDecodedBytes);
+		else if (encoding.equals("br"))
+			return new BrotliDecoder(sink, spillThreshold, maxDecodedBytes);
+		return new IdentityDecoder(sink);
+	}
+
+	public long getDecodedBytes() {
+		return decodedBytes;
+	}
+
+	/**
+	 * @return true if decoding stopped at the decoded size limit
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public abstract void update(byte[] b, int offset, int length) throws IOException;
+
+	/**
+	 * Called at the end of the body. Flushes remaining decoded bytes.
+	 */
+	public void finish() throws IOException {
+	}
+
+	/**
+	 * Releases native or temporary resources.
+	 */
+	public void dispose() {
+	}
+
+	/* writes decoded bytes up to the limit, returns false once it is reached */
+	protected boolean emit(byte[] b, int offset, int length) throws IOException {
+		if (truncated)
+			return false;
+
+		if (maxDecodedBytes > 0 && decodedBytes + length > maxDecodedBytes) {
+			int n = (int) (maxDecodedBytes - decodedBytes);
+			if (n > 0)
+				sink.write(b, offset, n);
+			decodedBytes += n;
+			truncated = true;
+			return false;
+		}
+
+		sink.write(b, offset, length);
+		decodedBytes += length;
+		return true;
+	}
+
+	private static class IdentityDecoder extends ContentDecoder {
+		public IdentityDecoder(Sink sink) {
+			super(sink);
+		}
+
+		@Override
+		public void update(byte[] b, int offset, int length) throws IOException {
+			if (length > 0)
+				emit(b, offset, length);
+		}
+	}
+
+	/**
+	 * Decodes gzip, zlib and raw deflate streams. The gzip header is skipped
+	 * and the trailer is ignored.
+	 */
+	private static class InflateDecoder extends ContentDecoder {
+		private static final int MAX_HEADER_LENGTH = 65536;
+
+		private final boolean gzip;
+		private final byte[] out = new byte[8192];
+		private byte[] header = new byte[0];
+		private Inflater inflater;
+
+		public InflateDecoder(Sink sink, boolean gzip, long maxDecodedBytes) {
+			super(sink, maxDecodedBytes);
+			this.gzip = gzip;
+		}
+
+		@Override
+		public void update(byte[] b, int offset, int length) throws IOException {
+			if (isTruncated())
+				return;
+
+			if (inflater != null) {
+				inflate(b, offset, length);
+				return;
+			}
+
+			/* collect bytes until the header is complete */
+			int pending = header.length;
+			header = Arrays.copyOf(header, pending + length);
+			System.arraycopy(b, offset, header, pending, length);
+
+			int skip = gzip ? gzipHeaderLength(header) : (header.length < 2 ? -1 : 0);
+			if (skip < 0) {
+				if (header.length > MAX_HEADER_LENGTH)
+					throw new IOException("kraken http decoder: too long gzip header");
+				return;
+			}
+
+			/* "deflate" is zlib by the spec, but raw deflate is also common */
+			inflater = new Inflater(gzip || !isZlib(header));
+			byte[] rest = header;
+			header = null;
+			inflate(rest, skip, rest.length - skip);
+		}
+
+		private void inflate(byte[] b, int offset, int length) throws IOException {
+			if (length == 0 || inflater.finished())
+				return;
+
+			inflater.setInput(b, offset, length);
+			try {
+				while (!inflater.finished()) {
+					int n = inflater.inflate(out);
+					if (n == 0 || !emit(out, 0, n))
+						break;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("kraken http decoder: inflate failed", e);
+			}
+		}
+
+		@Override
+		public void dispose() {
+			if (inflater != null)
+				inflater.end();
+		}
+
+		private static boolean isZlib(byte[] b) {
+			return (b[0] & 0x0f) == 8 && (((b[0] & 0xff) << 8) | (b[1] & 0xff)) % 31 == 0;
+		}
+
+		/* returns -1 if the header is not complete */
+		private static int gzipHeaderLength(byte[] h) throws IOException {
+			if (h.length < 10)
+				return -1;
+			if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8)
+				throw new IOException("kraken http decoder: not in gzip format");
+
+			int flags = h[3];
+			int pos = 10;
+			if ((flags & 4) != 0) {
+				/* FEXTRA */
+				if (h.length < pos + 2)
+					return -1;
+				pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+			}
+			if ((flags & 8) != 0)
+				pos = skipZeroTerminated(h, pos); /* FNAME */
+			if (pos >= 0 && (flags & 16) != 0)
+				pos = skipZeroTerminated(h, pos); /* FCOMMENT */
+			if (pos >= 0 && (flags & 2) != 0)
+				pos += 2; /* FHCRC */
+
+			return pos < 0 || pos > h.length ? -1 : pos;
+		}
+
+		private static int skipZeroTerminated(byte[] h, int pos) {
+			for (int i = pos; i < h.length; i++)
+				if (h[i] == 0)
+					return i + 1;
+			return -1;
+		}
+	}
+
+	/**
+	 * The brotli decoder is pull based, so the compressed body is kept in a
+	 * spill buffer and decoded at the end.
+	 */
+	private static class BrotliDecoder extends ContentDecoder {
+		private final SpillOutputStream compressed;
+
+		public BrotliDecoder(Sink sink, int spillThreshold, long maxDecodedBytes) {
+			super(sink, maxDecodedBytes);
+			compressed = new SpillOutputStream(spillThreshold);
+		}
+
+		@Override
+		public void update(byte[] b, int offset, int length) throws IOException {
+			compressed.write(b, offset, length);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			compressed.close();
+			if (compressed.size() == 0)
+				return;
+
+			InputStream is = new BrotliInputStream(compressed.getInputStream());
+			try {
+				byte[] out = new byte[8192];
+				while (true) {
+					int n = is.read(out);
+					if (n < 0 || !emit(out, 0, n))
+						break;
+				}
+			} finally {
+				is.close();
+			}
+		}
+
+		@Override
+		public void dispose() {
+			compressed.dispose();
+		}
+	}
+}
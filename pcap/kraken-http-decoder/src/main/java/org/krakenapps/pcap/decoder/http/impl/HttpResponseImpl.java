@@ -28,8 +28,7 @@ import java.util.Set;
 import org.krakenapps.pcap.decoder.http.HttpHeaders;
 import org.krakenapps.pcap.decoder.http.HttpResponse;
 import org.krakenapps.pcap.decoder.http.HttpVersion;
-import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.SpillOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,8 +38,6 @@ import org.slf4j.LoggerFactory;
 public class HttpResponseImpl extends Chunked implements HttpResponse {
 	private final Logger logger = LoggerFactory.getLogger(HttpResponseImpl.class.getName());
 
-	private final Buffer binary;
-
 	private HttpVersion httpVersion;
 	private int statusCode;
 	private String reasonPhrase;
@@ -56,35 +53,22 @@ public class HttpResponseImpl extends Chunked implements HttpResponse {
 	private String boundary;
 	private int partLength = -1;
 
-	/* GZIP variable */
-	private int gzipOffset = 0;
-	private int gzipLength = -1;
-
-	private Buffer contentBuffer;
-	private Buffer gzipContent;
-
-	// private String contentStr;
+	/* BYTERANGE content */
 	private byte[] content;
-	private byte[] decompressedGzip;
-	private byte[] chunkedBytes;
-	private byte[] deflatedBytes;
 
-	public void setDeflatedBytes(byte[] deflatedBytes) {
-		this.deflatedBytes = deflatedBytes;
-	}
+	/* streamed body, decoded bytes are kept in body if buffering */
+	private ContentDecoder contentDecoder;
+	private SpillOutputStream body;
+	private long bodyRemaining = -1;
+	private boolean bodyFailed;
 
 	private String textContent;
 	private InputStream inputStream;
 
 	HttpResponseImpl() {
-		binary = new ChainBuffer();
 		headers = new LinkedHashMap<String, String>();
 	}
 
-	public void putBinary(Buffer data) {
-		binary.addLast(data);
-	}
-
 	@Override
 	public HttpVersion getHttpVersion() {
 		return httpVersion;
@@ -162,54 +146,71 @@ public class HttpResponseImpl extends Chunked implements HttpResponse {
 		this.partLength = partLength;
 	}
 
-	public int getGzipOffset() {
-		return gzipOffset;
-	}
-
-	public void setGzipOffset(int gzipOffset) {
-		this.gzipOffset = gzipOffset;
-	}
-
-	public int getGzipLength() {
-		return gzipLength;
-	}
-
-	public void setGzipLength(int gzipLength) {
-		this.gzipLength = gzipLength;
+	public void setContent(byte[] content) {
+		this.content = content;
 	}
 
-	public void createContent() {
-		contentBuffer = new ChainBuffer();
+	/**
+	 * @param body
+	 *            the buffer of decoded bytes, or null if not buffering
+	 * @param contentLength
+	 *            the length of encoded body, or -1 if delimited by chunks or
+	 *            connection close
+	 */
+	public void startBody(ContentDecoder contentDecoder, SpillOutputStream body, long contentLength) {
+		this.contentDecoder = contentDecoder;
+		this.body = body;
+		this.bodyRemaining = contentLength;
 	}
 
-	public Buffer getContentBuffer() {
-		return contentBuffer;
+	/**
+	 * Returns the decoder of the body in progress, or null.
+	 */
+	public ContentDecoder getContentDecoder() {
+		return contentDecoder;
 	}
 
-	public void createGzip() {
-		gzipContent = new ChainBuffer();
+	public long getBodyRemaining() {
+		return bodyRemaining;
 	}
 
-	public Buffer getGzip() {
-		return gzipContent;
+	public void setBodyRemaining(long bodyRemaining) {
+		this.bodyRemaining = bodyRemaining;
 	}
 
-	public void putGzip(Buffer buffer) {
-		gzipContent.addLast(buffer);
+	public boolean isBodyFailed() {
+		return bodyFailed;
 	}
 
-	public void setContent(byte[] content) {
-		this.content = content;
+	public void setBodyFailed(boolean bodyFailed) {
+		this.bodyFailed = bodyFailed;
 	}
 
-	public void setDecompressedGzip(byte[] decompressedGzip) {
-		this.decompressedGzip = decompressedGzip;
+	public void endBody() throws IOException {
+		contentDecoder = null;
+		if (body != null)
+			body.close();
 	}
 
-	public void setChunked(byte[] chunkedBytes) {
-		this.chunkedBytes = chunkedBytes;
+	/**
+	 * Deletes the spilled body. The input stream is not valid after this.
+	 */
+	public void disposeBody() {
+		if (contentDecoder != null) {
+			contentDecoder.dispose();
+			contentDecoder = null;
+		}
+		if (body != null) {
+			body.dispose();
+			body = null;
+		}
 	}
 
+	/**
+	 * Returns the decoded body if buffered by the decoder. Bodies larger
+	 * than the spill threshold are read from a temporary file, and the text
+	 * content is not decoded for them.
+	 */
 	public InputStream getInputStream() {
 		return inputStream;
 	}
@@ -238,52 +239,23 @@ public class HttpResponseImpl extends Chunked implements HttpResponse {
 	}
 
 	private void mappingContents(String type, String charset) throws IOException {
-		logger.debug("mappingContents type=" + type + ", charset=" + charset + ", chunkedBytes=" + (chunkedBytes == null ? null : chunkedBytes.length));
-		if(flags.contains(FlagEnum.GZIP)) {
-			if (decompressedGzip == null) {
-				/* decompress failed */
-				throw new IOException("kraken http decoder: gzip decoding failed");
-			}
-			
-			inputStream = new ByteArrayInputStream(decompressedGzip);
-		} else if(flags.contains(FlagEnum.CHUNKED)) {
-			inputStream = new ByteArrayInputStream(chunkedBytes == null ? new byte[0] : chunkedBytes);
-		} else if(flags.contains(FlagEnum.DEFLATE)) {
-			inputStream = new ByteArrayInputStream(deflatedBytes);
-		} else if(flags.contains(FlagEnum.BYTERANGE) || flags.contains(FlagEnum.NORMAL)) {
-			if(content != null) {
+		logger.debug("mappingContents type=" + type + ", charset=" + charset + ", body=" + (body == null ? null : body.size()));
+		if (flags.contains(FlagEnum.BYTERANGE)) {
+			if (content != null) {
 				inputStream = new ByteArrayInputStream(content);
-			} else if(contentBuffer != null) {
-				byte[] buffer = new byte[contentBuffer.readableBytes()];
-				contentBuffer.gets(buffer);
-				inputStream = new ByteArrayInputStream(buffer);
+				if (compareContentType(type))
+					textContent = new String(content);
 			}
+			return;
 		}
-		
-		if (compareContentType(type)) {
+
+		if (body == null)
+			return;
+
+		inputStream = body.getInputStream();
+		if (compareContentType(type) && !body.isSpilled()) {
 			try {
-				if (flags.contains(FlagEnum.GZIP)) {
-					if (decompressedGzip == null) {
-						/* decompress failed */
-						throw new IOException("kraken http decoder: gzip decoding failed");
-					} else {
-						decodeNormalContent(charset, decompressedGzip);
-
-					}
-				} else if (flags.contains(FlagEnum.CHUNKED)) {
-					decodeNormalContent(charset, chunkedBytes);
-				} else if (flags.contains(FlagEnum.DEFLATE)) {
-					decodeNormalContent(charset, deflatedBytes);
-				} else if (flags.contains(FlagEnum.BYTERANGE)) {
-					if (content != null)
-						textContent = new String(content);
-				} else if (flags.contains(FlagEnum.NORMAL)) {
-					if (content == null) {
-						return;
-					}
-
-					decodeNormalContent(charset, content);
-				}
+				decodeNormalContent(charset, body.toByteArray());
 			} catch (UnsupportedEncodingException e) {
 				if (logger.isDebugEnabled()) {
 					logger.debug("kraken http decoder: unsupported encoding=" + charset, e);
@@ -109,6 +109,8 @@ public class HttpSessionImpl implements HttpSession {
 	}
 
 	public void removeHttpMessages() {
+		if (response != null)
+			response.disposeBody();
 		request = null;
 		response = null;
 	}
@@ -149,7 +151,21 @@ public class HttpSessionImpl implements HttpSession {
 		this.responseState = responseState;
 	}
 
+	/**
+	 * Returns the bytes waiting in the tx and rx buffers.
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		if (txBuffer != null)
+			bytes += txBuffer.readableBytes();
+		if (rxBuffer != null)
+			bytes += rxBuffer.readableBytes();
+		return bytes;
+	}
+
 	public void deallocate() {
+		if (response != null)
+			response.disposeBody();
 		txBuffer = null;
 		rxBuffer = null;
 	}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.decoder.http.impl.HttpSession;
+import org.krakenapps.pcap.decoder.tcp.TcpPortProtocolMapper;
+import org.krakenapps.pcap.decoder.tcp.TcpSessionImpl;
+import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
+import org.krakenapps.pcap.decoder.tcp.TcpSessionKeyImpl;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class HttpDecoderTest {
+	private HttpDecoder decoder;
+	private TcpSessionKey key;
+	private Recorder recorder;
+	private byte[] text;
+
+	@Before
+	public void setUp() throws IOException {
+		decoder = new HttpDecoder();
+		recorder = new Recorder();
+		decoder.register(recorder);
+
+		key = new TcpSessionKeyImpl(InetAddress.getByName("10.0.0.1"), InetAddress.getByName("10.0.0.2"), 40000, 80);
+		TcpSessionImpl session = new TcpSessionImpl(new TcpPortProtocolMapper());
+		session.setKey(key);
+		decoder.onEstablish(session);
+		decoder.handleTx(key, new ChainBuffer("GET /index.html HTTP/1.1\r\nHost: test\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			sb.append("line ").append(i).append('\n');
+		text = sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void testGzipSegments() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(text);
+		gos.close();
+		byte[] gzip = bos.toByteArray();
+
+		String header = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Encoding: gzip\r\nContent-Length: " + gzip.length + "\r\n\r\n";
+		decoder.handleRx(key, new ChainBuffer(header.getBytes(StandardCharsets.US_ASCII)));
+		send(gzip, 7);
+
+		assertEquals(1, recorder.starts);
+		assertEquals(1, recorder.ends);
+		assertArrayEquals(text, recorder.body.toByteArray());
+		assertArrayEquals(text, recorder.buffered);
+		assertEquals(new String(text, StandardCharsets.US_ASCII), recorder.content);
+		assertEquals(0, decoder.getTruncatedBodyCount());
+	}
+
+	@Test
+	public void testGzipBomb() throws IOException {
+		decoder.setMaxDecodedBodyBytes(10000);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(new byte[1024 * 1024]);
+		gos.close();
+		byte[] gzip = bos.toByteArray();
+
+		String header = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Encoding: gzip\r\nContent-Length: " + gzip.length + "\r\n\r\n";
+		decoder.handleRx(key, new ChainBuffer(header.getBytes(StandardCharsets.US_ASCII)));
+		send(gzip, 100);
+
+		assertEquals(1, recorder.ends);
+		assertEquals(10000, recorder.body.size());
+		assertEquals(10000, recorder.buffered.length);
+		assertEquals(1, decoder.getTruncatedBodyCount());
+	}
+
+	@Test
+	public void testChunkedDeflate() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+		dos.write(text);
+		dos.close();
+		byte[] zlib = bos.toByteArray();
+
+		ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+		chunked.write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\nContent-Encoding: deflate\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII));
+		for (int offset = 0; offset < zlib.length; offset += 1000) {
+			int length = Math.min(1000, zlib.length - offset);
+			chunked.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			chunked.write(zlib, offset, length);
+			chunked.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		chunked.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		send(chunked.toByteArray(), 333);
+
+		assertEquals(1, recorder.ends);
+		assertArrayEquals(text, recorder.body.toByteArray());
+		assertArrayEquals(text, recorder.buffered);
+	}
+
+	@Test
+	public void testLargeChunkStreamed() throws IOException {
+		decoder.setBodyBuffering(false);
+
+		byte[] data = new byte[4 * 1024 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		String header = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ Integer.toHexString(data.length) + "\r\n";
+		send(concat(header.getBytes(StandardCharsets.US_ASCII), data), 1460);
+
+		/* the chunk body is decoded before its trailing \r\n arrives */
+		assertEquals(data.length, recorder.body.size());
+		assertEquals(0, recorder.ends);
+
+		send("\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII), 1);
+		assertEquals(1, recorder.ends);
+		assertArrayEquals(data, recorder.body.toByteArray());
+	}
+
+	@Test
+	public void testSpillUntilClose() throws IOException {
+		decoder.setBodySpillThreshold(1024);
+
+		String header = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\n";
+		send(concat(header.getBytes(StandardCharsets.US_ASCII), text), 1500);
+		assertEquals(0, recorder.ends);
+
+		decoder.onFinish(key);
+		assertEquals(1, recorder.ends);
+		assertArrayEquals(text, recorder.buffered);
+		assertNull(recorder.content);
+	}
+
+	@Test
+	public void testWithoutBuffering() throws IOException {
+		decoder.setBodyBuffering(false);
+
+		String header = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + text.length + "\r\n\r\n";
+		send(concat(header.getBytes(StandardCharsets.US_ASCII), text), 4096);
+
+		assertEquals(1, recorder.ends);
+		assertArrayEquals(text, recorder.body.toByteArray());
+		assertNull(recorder.buffered);
+		assertNull(recorder.content);
+	}
+
+	private void send(byte[] b, int segmentSize) {
+		for (int offset = 0; offset < b.length; offset += segmentSize) {
+			int length = Math.min(segmentSize, b.length - offset);
+			byte[] segment = new byte[length];
+			System.arraycopy(b, offset, segment, 0, length);
+			decoder.handleRx(key, new ChainBuffer(segment));
+		}
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = new byte[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	private static class Recorder extends DefaultHttpProcessor {
+		private int starts;
+		private int ends;
+		private ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private byte[] buffered;
+		private String content;
+
+		@Override
+		public void onResponseBodyStart(HttpSession session, HttpRequest request, HttpResponse response) {
+			starts++;
+		}
+
+		@Override
+		public void onResponseBody(HttpSession session, HttpRequest request, HttpResponse response, byte[] b, int offset, int length) {
+			body.write(b, offset, length);
+		}
+
+		@Override
+		public void onResponseBodyEnd(HttpSession session, HttpRequest request, HttpResponse response) {
+			ends++;
+		}
+
+		@Override
+		public void onResponse(HttpSession session, HttpRequest request, HttpResponse response) {
+			content = response.getContent();
+			InputStream is = response.getInputStream();
+			if (is == null)
+				return;
+
+			try {
+				buffered = HttpDecoder.toByteArray(is);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -18,9 +18,7 @@ package org.krakenapps.pcap.decoder.msn;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -32,6 +30,8 @@ import org.krakenapps.pcap.decoder.tcp.TcpProcessor;
 import org.krakenapps.pcap.decoder.tcp.TcpSession;
 import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,11 +42,19 @@ public class MsnDecoder implements TcpProcessor {
 	private Logger logger = LoggerFactory.getLogger(MsnDecoder.class.getName());
 
 	private Set<MsnProcessor> callbacks;
-	private Map<TcpSessionKey, MsnSession> sessionMap;
+	private SessionStateTable<TcpSessionKey, MsnSession> sessionMap;
 
 	public MsnDecoder() {
 		callbacks = new HashSet<MsnProcessor>();
-		sessionMap = new HashMap<TcpSessionKey, MsnSession>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessionMap = new SessionStateTable<TcpSessionKey, MsnSession>(evictor, evictor);
+	}
+
+	/**
+	 * Returns the msn session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, MsnSession> getSessionTable() {
+		return sessionMap;
 	}
 
 	public void register(MsnProcessor processor) {
@@ -60,6 +68,8 @@ public class MsnDecoder implements TcpProcessor {
 	@Override
 	public void handleTx(TcpSessionKey sessionKey, Buffer data) {
 		MsnSession session = sessionMap.get(sessionKey);
+		if (session == null)
+			return;
 
 		byte[] t = new byte[data.readableBytes()];
 		data.gets(t);
@@ -73,7 +83,9 @@ public class MsnDecoder implements TcpProcessor {
 	@Override
 	public void handleRx(TcpSessionKey sessionKey, Buffer data) {
 		MsnSession session = sessionMap.get(sessionKey);
-		
+		if (session == null)
+			return;
+
 		byte[] t = new byte[data.readableBytes()];
 		data.gets(t);
 		
@@ -102,12 +114,11 @@ public class MsnDecoder implements TcpProcessor {
 
 	@Override
 	public void onReset(TcpSessionKey session) {
-		MsnSession msnSession = sessionMap.get(session);
+		MsnSession msnSession = sessionMap.remove(session);
 		if (msnSession != null) {
 			if (logger.isDebugEnabled())
 				logger.debug("Deallocate tx, rx buffer and remove Msn session.");
 			msnSession.clear();
-			sessionMap.remove(session);
 		}
 	}
 
@@ -369,4 +380,18 @@ public class MsnDecoder implements TcpProcessor {
 			processor.onChat(fromAddr, chatContent);
 		}
 	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<TcpSessionKey, MsnSession>,
+			SessionStateTable.Weigher<MsnSession> {
+		@Override
+		public void onEvict(TcpSessionKey key, MsnSession session, EvictCause cause) {
+			logger.debug("msn decoder: evict session {}, {}", key, cause);
+			session.clear();
+		}
+
+		@Override
+		public long getBufferedBytes(MsnSession session) {
+			return session.getBufferedBytes();
+		}
+	}
 }
\ No newline at end of file
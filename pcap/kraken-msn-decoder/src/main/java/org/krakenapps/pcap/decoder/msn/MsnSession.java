@@ -126,6 +126,18 @@ public class MsnSession {
 		isTruncated = false;
 	}
 
+	/**
+	 * Returns the bytes waiting in the tx and rx buffers.
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		if (txBuffer != null)
+			bytes += txBuffer.readableBytes();
+		if (rxBuffer != null)
+			bytes += rxBuffer.readableBytes();
+		return bytes;
+	}
+
 	public void clear() {
 		txBuffer = null;
 		rxBuffer = null;
@@ -97,10 +97,16 @@ public class NetBiosDecoder implements TcpProcessor, UdpProcessor {
 
 	@Override
 	public void onFinish(TcpSessionKey key) {
+		for (NetBiosSessionProcessor callback : sessionCallbacks) {
+			callback.onFinish(key);
+		}
 	}
 
 	@Override
 	public void onReset(TcpSessionKey key) {
+		for (NetBiosSessionProcessor callback : sessionCallbacks) {
+			callback.onReset(key);
+		}
 	}
 
 	@Override
@@ -20,4 +20,16 @@ import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 public interface NetBiosSessionProcessor {
 	void processRx(NetBiosSessionPacket p, TcpSessionKey key);
 	void processTx(NetBiosSessionPacket p, TcpSessionKey key);
+
+	/**
+	 * Called when the underlying tcp session is closed or expired.
+	 */
+	default void onFinish(TcpSessionKey key) {
+	}
+
+	/**
+	 * Called when the underlying tcp session is reset or evicted.
+	 */
+	default void onReset(TcpSessionKey key) {
+	}
 }
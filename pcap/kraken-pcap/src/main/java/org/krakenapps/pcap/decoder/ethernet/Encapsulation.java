@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.ethernet;
+
+import java.util.Arrays;
+
+/**
+ * Outer tags stripped from a frame by {@link EthernetDecoder}: 802.1Q/QinQ
+ * vlan ids, the mpls label stack, the gre key and the vxlan network
+ * identifier. Missing tags are -1.
+ */
+public class Encapsulation {
+	private static final int[] NO_LABELS = new int[0];
+
+	private int vlanId = -1;
+	private int innerVlanId = -1;
+	private int[] mplsLabels = NO_LABELS;
+	private long greKey = -1;
+	private int vni = -1;
+
+	/**
+	 * @return the outermost vlan id
+	 */
+	public int getVlanId() {
+		return vlanId;
+	}
+
+	/**
+	 * @return the second vlan id of a QinQ frame
+	 */
+	public int getInnerVlanId() {
+		return innerVlanId;
+	}
+
+	/**
+	 * @return mpls labels from the top of the stack
+	 */
+	public int[] getMplsLabels() {
+		return mplsLabels;
+	}
+
+	public long getGreKey() {
+		return greKey;
+	}
+
+	public int getVni() {
+		return vni;
+	}
+
+	/**
+	 * Identifies the virtual network of the frame. Flows with the same
+	 * addresses are distinct if they are carried in different vlans or vxlan
+	 * segments.
+	 * 
+	 * @return 0 for untagged frames
+	 */
+	public long getZone() {
+		long zone = vlanId + 1;
+		zone |= (long) (innerVlanId + 1) << 13;
+		zone |= (long) (vni + 1) << 26;
+		return zone;
+	}
+
+	boolean isEmpty() {
+		return vlanId < 0 && mplsLabels.length == 0 && greKey < 0 && vni < 0;
+	}
+
+	void addVlan(int vlanId) {
+		if (this.vlanId < 0)
+			this.vlanId = vlanId;
+		else if (innerVlanId < 0)
+			innerVlanId = vlanId;
+	}
+
+	void addMplsLabel(int label) {
+		int[] labels = Arrays.copyOf(mplsLabels, mplsLabels.length + 1);
+		labels[mplsLabels.length] = label;
+		mplsLabels = labels;
+	}
+
+	void setGreKey(long greKey) {
+		this.greKey = greKey;
+	}
+
+	void setVni(int vni) {
+		this.vni = vni;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("encapsulation {vlan: %d, inner vlan: %d, mpls: %s, gre key: %d, vni: %d}", vlanId, innerVlanId,
+				Arrays.toString(mplsLabels), greKey, vni);
+	}
+}
@@ -16,6 +16,7 @@
 
 package org.krakenapps.pcap.decoder.ethernet;
 
+import java.nio.BufferUnderflowException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -26,12 +27,28 @@ import org.krakenapps.pcap.packet.PcapPacket;
 import org.krakenapps.pcap.util.Buffer;
 
 /**
+ * Decodes ethernet frames. VLAN/QinQ tags, MPLS label stacks and GRE, ERSPAN
+ * type II and VXLAN tunnels are stripped before dispatch by moving the buffer
+ * offset, and the stripped tags are kept in {@link Encapsulation}. Each kind
+ * of stripping can be disabled.
+ * 
  * @author mindori
  */
 public class EthernetDecoder {
+	public static final int DEFAULT_VXLAN_PORT = 4789;
+
+	/* gre, udp */
+	private static final int IP_PROTO_GRE = 47;
+	private static final int IP_PROTO_UDP = 17;
+
 	private Set<EthernetProcessor> callbacks;
 	private final Map<Integer, Set<EthernetProcessor>> typeCallbacks;
 
+	private volatile boolean vlanStripping = true;
+	private volatile boolean mplsStripping = true;
+	private volatile boolean tunnelStripping = true;
+	private volatile int vxlanPort = DEFAULT_VXLAN_PORT;
+
 	public EthernetDecoder() {
 		callbacks = new CopyOnWriteArraySet<EthernetProcessor>();
 		typeCallbacks = new ConcurrentHashMap<Integer, Set<EthernetProcessor>>();
@@ -51,6 +68,41 @@ public class EthernetDecoder {
 		processors.add(processor);
 	}
 
+	public boolean isVlanStripping() {
+		return vlanStripping;
+	}
+
+	public void setVlanStripping(boolean vlanStripping) {
+		this.vlanStripping = vlanStripping;
+	}
+
+	public boolean isMplsStripping() {
+		return mplsStripping;
+	}
+
+	public void setMplsStripping(boolean mplsStripping) {
+		this.mplsStripping = mplsStripping;
+	}
+
+	/**
+	 * If disabled, GRE and VXLAN packets are dispatched as ip packets.
+	 */
+	public boolean isTunnelStripping() {
+		return tunnelStripping;
+	}
+
+	public void setTunnelStripping(boolean tunnelStripping) {
+		this.tunnelStripping = tunnelStripping;
+	}
+
+	public int getVxlanPort() {
+		return vxlanPort;
+	}
+
+	public void setVxlanPort(int vxlanPort) {
+		this.vxlanPort = vxlanPort;
+	}
+
 	public void unregister(EthernetProcessor processor) {
 		this.callbacks.remove(processor);
 	}
@@ -64,18 +116,228 @@ public class EthernetDecoder {
 	}
 
 	public void decode(PcapPacket packet) {
-		// do not reorder following codes (parse sequence)
-		MacAddress destination = getMacAddress(packet.getPacketData());
-		MacAddress source = getMacAddress(packet.getPacketData());
-		int type = getEtherType(packet.getPacketData());
 		Buffer buffer = packet.getPacketData();
+		MacAddress[] addresses = new MacAddress[2];
+		Encapsulation encapsulation = new Encapsulation();
+		int type = decapsulate(buffer, encapsulation, addresses);
+		if (type < 0)
+			return;
+
 		buffer.discardReadBytes();
 
-		EthernetFrame frame = new EthernetFrame(source, destination, type, buffer);
+		EthernetFrame frame = new EthernetFrame(addresses[1], addresses[0], type, buffer);
 		frame.setPcapPacket(packet);
+		if (!encapsulation.isEmpty())
+			frame.setEncapsulation(encapsulation);
 		dispatch(frame);
 	}
 
+	/**
+	 * Skips the ethernet header and the tags and tunnels which are stripped by
+	 * this decoder, leaving the buffer at the inner payload. The stripped tags
+	 * are added to the encapsulation.
+	 * 
+	 * @return the inner ether type, or -1 if an encapsulation header is
+	 *         truncated
+	 */
+	public int decapsulate(Buffer buffer, Encapsulation encapsulation) {
+		return decapsulate(buffer, encapsulation, null);
+	}
+
+	/*
+	 * addresses receives the destination and source of the innermost frame.
+	 * do not reorder following codes (parse sequence)
+	 */
+	private int decapsulate(Buffer buffer, Encapsulation encapsulation, MacAddress[] addresses) {
+		readAddresses(buffer, addresses);
+		int type = getEtherType(buffer);
+
+		try {
+			while (true) {
+				if (vlanStripping && isVlan(type)) {
+					encapsulation.addVlan(buffer.getUnsignedShort() & 0xfff);
+					type = getEtherType(buffer);
+					continue;
+				}
+
+				int inner = -1;
+				if (mplsStripping && (type == EthernetType.MPLS_UNICAST || type == EthernetType.MPLS_MULTICAST)) {
+					inner = stripMpls(buffer, encapsulation);
+				} else if (tunnelStripping && (type == EthernetType.IPV4 || type == EthernetType.IPV6)) {
+					int protocol = skipTunnelIp(buffer, type);
+					if (protocol == IP_PROTO_GRE)
+						inner = stripGre(buffer, encapsulation);
+					else if (protocol == IP_PROTO_UDP)
+						inner = stripVxlan(buffer, encapsulation);
+				}
+
+				if (inner < 0)
+					return type;
+
+				if (inner == EthernetType.TRANSPARENT_ETHERNET) {
+					readAddresses(buffer, addresses);
+					type = getEtherType(buffer);
+				} else {
+					type = inner;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			/* truncated encapsulation header */
+			return -1;
+		}
+	}
+
+	private void readAddresses(Buffer buffer, MacAddress[] addresses) {
+		if (addresses == null) {
+			skip(buffer, 12);
+			return;
+		}
+
+		addresses[0] = getMacAddress(buffer);
+		addresses[1] = getMacAddress(buffer);
+	}
+
+	private static boolean isVlan(int type) {
+		return type == EthernetType.VLAN || type == EthernetType.QINQ || type == EthernetType.QINQ_LEGACY;
+	}
+
+	/*
+	 * returns the type of the payload after the label stack, or -1 if unknown.
+	 * pseudowire payload is expected to start with a control word.
+	 */
+	private int stripMpls(Buffer buffer, Encapsulation encapsulation) {
+		while (true) {
+			int entry = buffer.getInt();
+			encapsulation.addMplsLabel(entry >>> 12);
+			if ((entry & 0x100) != 0)
+				break;
+		}
+
+		buffer.mark();
+		int version = (buffer.get() & 0xff) >> 4;
+		buffer.reset();
+
+		switch (version) {
+		case 4:
+			return EthernetType.IPV4;
+		case 6:
+			return EthernetType.IPV6;
+		case 0:
+			skip(buffer, 4);
+			return EthernetType.TRANSPARENT_ETHERNET;
+		default:
+			return -1;
+		}
+	}
+
+	/*
+	 * skips the outer ip header of a gre or vxlan packet, and returns the ip
+	 * protocol. returns -1 with the position restored if the packet is not a
+	 * tunnel. the mark is kept for the gre and vxlan parsers.
+	 */
+	private int skipTunnelIp(Buffer buffer, int type) {
+		buffer.mark();
+		try {
+			return skipTunnelHeaders(buffer, type);
+		} catch (BufferUnderflowException e) {
+			/* short packets are not tunnels */
+			return notTunnel(buffer);
+		}
+	}
+
+	private int skipTunnelHeaders(Buffer buffer, int type) {
+		int protocol;
+		if (type == EthernetType.IPV4) {
+			int versionAndIhl = buffer.get() & 0xff;
+			int ihl = (versionAndIhl & 0x0f) * 4;
+			skip(buffer, 5);
+			int fragment = buffer.getUnsignedShort();
+			skip(buffer, 1);
+			protocol = buffer.get() & 0xff;
+
+			/* fragments are left to ip reassembly */
+			if ((versionAndIhl >> 4) != 4 || ihl < 20 || (fragment & 0x3fff) != 0)
+				return notTunnel(buffer);
+			skip(buffer, ihl - 10);
+		} else {
+			int version = (buffer.get() & 0xff) >> 4;
+			skip(buffer, 5);
+			protocol = buffer.get() & 0xff;
+			if (version != 6)
+				return notTunnel(buffer);
+			skip(buffer, 33);
+		}
+
+		if (protocol == IP_PROTO_GRE)
+			return protocol;
+
+		if (protocol == IP_PROTO_UDP) {
+			/* peek the destination port and the vxlan flags */
+			skip(buffer, 2);
+			int destinationPort = buffer.getUnsignedShort();
+			skip(buffer, 4);
+			int flags = buffer.get() & 0xff;
+			if (destinationPort == vxlanPort && (flags & 0x08) != 0) {
+				skip(buffer, 3);
+				return protocol;
+			}
+		}
+		return notTunnel(buffer);
+	}
+
+	private int stripGre(Buffer buffer, Encapsulation encapsulation) {
+		int flags = buffer.getUnsignedShort();
+		int protocolType = buffer.getUnsignedShort();
+
+		/* version 1 is pptp */
+		if ((flags & 0x7) != 0)
+			return notTunnel(buffer);
+
+		if ((flags & 0x8000) != 0)
+			skip(buffer, 4);
+		long key = -1;
+		if ((flags & 0x2000) != 0)
+			key = buffer.getInt() & 0xffffffffL;
+		if ((flags & 0x1000) != 0)
+			skip(buffer, 4);
+
+		switch (protocolType) {
+		case EthernetType.ERSPAN:
+			/* erspan type II header */
+			skip(buffer, 8);
+			protocolType = EthernetType.TRANSPARENT_ETHERNET;
+			break;
+		case EthernetType.TRANSPARENT_ETHERNET:
+		case EthernetType.IPV4:
+		case EthernetType.IPV6:
+		case EthernetType.MPLS_UNICAST:
+		case EthernetType.MPLS_MULTICAST:
+			break;
+		default:
+			return notTunnel(buffer);
+		}
+
+		if (key >= 0)
+			encapsulation.setGreKey(key);
+		return protocolType;
+	}
+
+	/* called after the udp header and vxlan flags were skipped */
+	private int stripVxlan(Buffer buffer, Encapsulation encapsulation) {
+		encapsulation.setVni(buffer.getInt() >>> 8);
+		return EthernetType.TRANSPARENT_ETHERNET;
+	}
+
+	private static void skip(Buffer buffer, int length) {
+		if (length > 0 && buffer.skip(length) == null)
+			throw new BufferUnderflowException();
+	}
+
+	private static int notTunnel(Buffer buffer) {
+		buffer.reset();
+		return -1;
+	}
+
 	private MacAddress getMacAddress(Buffer data) {
 		byte[] mac = new byte[6];
 		data.gets(mac, 0, 6);
@@ -36,6 +36,7 @@ public class EthernetFrame implements Injectable {
 	private final EthernetHeader header;
 	private final Buffer payload;
 	private PcapPacket pcapPacket;
+	private Encapsulation encapsulation;
 
 	public EthernetFrame(MacAddress source, MacAddress destination, int type, Buffer payload) {
 		this.header = new EthernetHeader(source, destination, type);
@@ -50,6 +51,7 @@ public class EthernetFrame implements Injectable {
 	public EthernetFrame(EthernetFrame other) { // copy constructor
 		this.header = other.header;
 		this.payload = other.payload;
+		this.encapsulation = other.encapsulation;
 	}
 
 	public PcapPacket getPcapPacket() {
@@ -60,6 +62,25 @@ public class EthernetFrame implements Injectable {
 		this.pcapPacket = pcapPacket;
 	}
 
+	/**
+	 * @return the outer tags stripped from the frame, null if the frame was
+	 *         not encapsulated
+	 */
+	public Encapsulation getEncapsulation() {
+		return encapsulation;
+	}
+
+	public void setEncapsulation(Encapsulation encapsulation) {
+		this.encapsulation = encapsulation;
+	}
+
+	/**
+	 * @return the virtual network of the frame, 0 if untagged
+	 */
+	public long getZone() {
+		return encapsulation == null ? 0 : encapsulation.getZone();
+	}
+
 	public MacAddress getDestination() {
 		return header.getDestination();
 	}
@@ -76,11 +97,16 @@ public class EthernetFrame implements Injectable {
 		return payload;
 	}
 
+	/**
+	 * @return a frame sharing the header and payload bytes, whose payload is
+	 *         a slice starting at position 0
+	 */
 	public EthernetFrame dup() {
-		ChainBuffer buf = new ChainBuffer();
-		buf.addLast(payload);
-		EthernetFrame f = new EthernetFrame(this.getSource(), this.getDestination(), this.getType(), buf);
+		Buffer start = payload.duplicate();
+		start.rewind();
+		EthernetFrame f = new EthernetFrame(header, start.slice());
 		f.setPcapPacket(pcapPacket);
+		f.setEncapsulation(encapsulation);
 		return f;
 	}
 
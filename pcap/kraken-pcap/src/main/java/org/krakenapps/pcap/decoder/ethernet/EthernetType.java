@@ -23,4 +23,13 @@ public class EthernetType {
 	public static final int IPV6 = 0x86DD;
 	public static final int ARP = 0x0806;
 	public static final int RARP = 0x8035;
+	public static final int VLAN = 0x8100;
+	public static final int QINQ = 0x88A8;
+	/* pre-standard QinQ outer tag */
+	public static final int QINQ_LEGACY = 0x9100;
+	public static final int MPLS_UNICAST = 0x8847;
+	public static final int MPLS_MULTICAST = 0x8848;
+	/* gre protocol types */
+	public static final int TRANSPARENT_ETHERNET = 0x6558;
+	public static final int ERSPAN = 0x88BE;
 }
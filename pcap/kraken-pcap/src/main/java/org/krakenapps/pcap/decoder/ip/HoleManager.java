@@ -23,7 +23,10 @@ import org.krakenapps.pcap.util.Buffer;
 
 /**
  * @author mindori
+ * @deprecated boxes every payload byte. {@link IpReassembler} tracks hole
+ *             ranges instead.
  */
+@Deprecated
 public class HoleManager {
 	private int first = 0;
 	private int goal = -1;
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.ip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+/**
+ * Collects the fragments of one datagram. Missing ranges are tracked as a
+ * sorted hole descriptor list (RFC 815), and fragment payloads are kept as the
+ * original buffers until the datagram is complete, so nothing is copied until
+ * the final datagram is built. Pooled packets are retained while their
+ * fragments are held.
+ */
+class IpFragmentGroup {
+	private static final int MAX_DATAGRAM = 65535;
+
+	private final IpFragmentKey key;
+	private final long time;
+
+	/* sorted, non-overlapping holes. last is inclusive */
+	private final List<int[]> holes;
+	private final List<Fragment> fragments;
+
+	private int totalLength = -1;
+	private int bytes;
+
+	public IpFragmentGroup(IpFragmentKey key, long time) {
+		this.key = key;
+		this.time = time;
+
+		holes = new ArrayList<int[]>(2);
+		holes.add(new int[] { 0, Integer.MAX_VALUE });
+		fragments = new ArrayList<Fragment>(4);
+	}
+
+	public IpFragmentKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the capture time of the first fragment
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the payload bytes held by this group
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+
+	public int getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Adds a fragment and fills the holes it covers.
+	 * 
+	 * @param packet
+	 *            the captured packet of the fragment, retained until
+	 *            {@link #releasePackets()}. may be null.
+	 * @return false if the fragment is malformed
+	 */
+	public boolean put(int offset, int length, boolean lastFragment, Buffer data, PcapPacket packet) {
+		if (length <= 0 || offset + length > MAX_DATAGRAM)
+			return false;
+
+		int first = offset;
+		int last = offset + length - 1;
+
+		if (lastFragment) {
+			if (totalLength != -1 && totalLength != last + 1)
+				return false;
+
+			/* fragments received earlier must end within the datagram */
+			for (Fragment f : fragments) {
+				if (f.offset + f.length > last + 1)
+					return false;
+			}
+			totalLength = last + 1;
+		} else if (totalLength != -1 && last >= totalLength) {
+			return false;
+		}
+
+		for (int i = 0; i < holes.size(); i++) {
+			int[] hole = holes.get(i);
+			if (first > hole[1] || last < hole[0])
+				continue;
+
+			holes.remove(i);
+			if (first > hole[0])
+				holes.add(i++, new int[] { hole[0], first - 1 });
+			if (last < hole[1] && !lastFragment)
+				holes.add(i++, new int[] { last + 1, hole[1] });
+			i--;
+		}
+
+		if (lastFragment)
+			truncateHoles();
+
+		if (packet != null)
+			packet.retain();
+		fragments.add(new Fragment(offset, length, data, packet));
+		bytes += length;
+		return true;
+	}
+
+	public void releasePackets() {
+		for (Fragment f : fragments) {
+			if (f.packet != null)
+				f.packet.release();
+		}
+		fragments.clear();
+	}
+
+	public boolean isComplete() {
+		return totalLength != -1 && holes.isEmpty();
+	}
+
+	/**
+	 * Builds the datagram payload. Fragments are applied in arrival order, so
+	 * later data wins for overlapping ranges.
+	 */
+	public Buffer reassemble() {
+		byte[] b = new byte[totalLength];
+		for (Fragment f : fragments) {
+			int length = Math.min(Math.min(f.length, f.data.readableBytes()), totalLength - f.offset);
+			if (length > 0)
+				f.data.gets(b, f.offset, length);
+		}
+		return new ChainBuffer(b);
+	}
+
+	/* drop holes beyond the end of datagram */
+	private void truncateHoles() {
+		for (int i = holes.size() - 1; i >= 0; i--) {
+			int[] hole = holes.get(i);
+			if (hole[0] >= totalLength)
+				holes.remove(i);
+			else if (hole[1] >= totalLength)
+				hole[1] = totalLength - 1;
+		}
+	}
+
+	private static class Fragment {
+		private final int offset;
+		private final int length;
+		private final Buffer data;
+		private final PcapPacket packet;
+
+		public Fragment(int offset, int length, Buffer data, PcapPacket packet) {
+			this.offset = offset;
+			this.length = length;
+			this.data = data;
+			this.packet = packet;
+		}
+	}
+}
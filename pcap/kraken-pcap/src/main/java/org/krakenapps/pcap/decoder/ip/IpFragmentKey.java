@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.ip;
+
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+
+/**
+ * Identifies the fragments of one datagram as RFC 791 requires: source,
+ * destination, protocol and identification. The encapsulation zone is
+ * included, so tunnels with overlapping inner addresses do not mix.
+ */
+final class IpFragmentKey {
+	private final int source;
+	private final int destination;
+	private final int protocol;
+	private final int id;
+	private final long zone;
+
+	public IpFragmentKey(Ipv4Packet fragment) {
+		this.source = fragment.getSource();
+		this.destination = fragment.getDestination();
+		this.protocol = fragment.getProtocol();
+		this.id = fragment.getId();
+
+		Object frame = fragment.getL2Frame();
+		this.zone = frame instanceof EthernetFrame ? ((EthernetFrame) frame).getZone() : 0;
+	}
+
+	public int getSource() {
+		return source;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = source;
+		result = 31 * result + destination;
+		result = 31 * result + protocol;
+		result = 31 * result + id;
+		result = 31 * result + (int) (zone ^ (zone >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof IpFragmentKey))
+			return false;
+
+		IpFragmentKey o = (IpFragmentKey) obj;
+		return source == o.source && destination == o.destination && protocol == o.protocol && id == o.id && zone == o.zone;
+	}
+}
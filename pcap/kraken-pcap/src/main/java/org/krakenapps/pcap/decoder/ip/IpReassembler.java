@@ -15,29 +15,46 @@
  */
 package org.krakenapps.pcap.decoder.ip;
 
-import java.nio.ByteBuffer;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.PriorityQueue;
 
 import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.packet.PacketHeader;
 import org.krakenapps.pcap.packet.PcapPacket;
 import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.ChainBuffer;
 
 /**
+ * Reassembles ipv4 fragments. Fragment groups are keyed by (source,
+ * destination, protocol, id) and expire by capture time. The number of groups
+ * and buffered bytes are limited per source address, so a fragment flood from
+ * one host cannot exhaust the heap.
+ * 
  * @author mindori
  */
 public class IpReassembler {
-	private Map<Integer, HoleManagerWrapper> lmap;
-	private PriorityQueue<HoleManagerWrapper> wrapper;
+	/* insertion order is creation order, so the eldest group is always first */
+	private final Map<IpFragmentKey, IpFragmentGroup> groups;
+	private final Map<Integer, SourceUsage> sources;
+
 	private int dropTimeout;
+	private int maxGroups;
+	private int maxGroupsPerSource;
+	private int maxBytesPerSource;
+	private long now;
+
+	private long reassembledCount;
+	private long droppedCount;
+	private long timeoutCount;
 
 	public IpReassembler() {
-		this.lmap = new HashMap<Integer, HoleManagerWrapper>();
-		this.wrapper = new PriorityQueue<IpReassembler.HoleManagerWrapper>(11, new HoleManagerWrapperComparator());
+		this.groups = new LinkedHashMap<IpFragmentKey, IpFragmentGroup>();
+		this.sources = new HashMap<Integer, SourceUsage>();
 		this.dropTimeout = 30000;
+		this.maxGroups = 16384;
+		this.maxGroupsPerSource = 256;
+		this.maxBytesPerSource = 4 * 1024 * 1024;
 	}
 
 	public int getDropTimeout() {
@@ -48,96 +65,164 @@ public class IpReassembler {
 		this.dropTimeout = dropTimeout;
 	}
 
+	public int getMaxGroups() {
+		return maxGroups;
+	}
+
+	public void setMaxGroups(int maxGroups) {
+		this.maxGroups = maxGroups;
+	}
+
+	public int getMaxGroupsPerSource() {
+		return maxGroupsPerSource;
+	}
+
+	public void setMaxGroupsPerSource(int maxGroupsPerSource) {
+		this.maxGroupsPerSource = maxGroupsPerSource;
+	}
+
+	public int getMaxBytesPerSource() {
+		return maxBytesPerSource;
+	}
+
+	public void setMaxBytesPerSource(int maxBytesPerSource) {
+		this.maxBytesPerSource = maxBytesPerSource;
+	}
+
+	public int getPendingCount() {
+		return groups.size();
+	}
+
+	public long getReassembledCount() {
+		return reassembledCount;
+	}
+
+	/**
+	 * @return the number of fragments dropped by malformed offsets or limits
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount;
+	}
+
 	public Ipv4Packet tryReassemble(Ipv4Packet fragment) {
-		/* check HoleDescriptor */
-		int id = fragment.getId();
-		if (!lmap.containsKey(id)) {
-			HoleManagerWrapper t = new HoleManagerWrapper(id, new HoleManager());
-			lmap.put(id, t);
-			wrapper.add(t);
-		}
+		long time = getCaptureTime(fragment);
+		if (time > now)
+			now = time;
+
+		IpFragmentKey key = new IpFragmentKey(fragment);
+		IpFragmentGroup group = groups.get(key);
+		SourceUsage usage = sources.get(key.getSource());
 
-		HoleManagerWrapper t = lmap.get(id);
-		t.setTime(((EthernetFrame) fragment.getL2Frame()).getPcapPacket());
-		HoleManager h = t.getManager();
 		int offset = fragment.getFragmentOffset() * 8;
 		int length = fragment.getTotalLength() - fragment.getIhl();
-		Buffer data = fragment.getData();
 
-		/* check MF == 0 */
-		if (fragment.getFlags() == 0) {
-			int goal = offset + length;
-			h.setGoal(goal);
+		if (group == null) {
+			if (groups.size() >= maxGroups || (usage != null && usage.groups >= maxGroupsPerSource)) {
+				droppedCount++;
+				return null;
+			}
+
+			if (usage == null) {
+				usage = new SourceUsage();
+				sources.put(key.getSource(), usage);
+			}
+
+			group = new IpFragmentGroup(key, now);
+			groups.put(key, group);
+			usage.groups++;
 		}
 
-		/* put data */
-		h.put(data, offset, length);
+		if (usage.bytes + length > maxBytesPerSource) {
+			droppedCount++;
+			remove(group);
+			return null;
+		}
 
-		/* check flush */
-		if (h.isFlush(offset, length)) {
-			h.flush(data);
-		} else
+		/* check MF == 0 */
+		boolean lastFragment = (fragment.getFlags() & 0x01) == 0;
+		if (!group.put(offset, length, lastFragment, fragment.getData(), getPcapPacket(fragment))) {
+			droppedCount++;
+			remove(group);
 			return null;
+		}
+		usage.bytes += length;
 
-		if (h.isReassemble()) {
-			ByteBuffer b = h.getReassembled();
-			b.position(0);
-			return reassemble(fragment, b, h.getGoal());
-		} else
+		if (!group.isComplete())
 			return null;
+
+		/* fragments may be pooled, so copy them before release */
+		Ipv4Packet p = reassemble(fragment, group);
+		remove(group);
+		reassembledCount++;
+		return p;
 	}
 
+	/**
+	 * Drops incomplete datagrams whose first fragment is older than drop
+	 * timeout, measured in capture time.
+	 */
 	public void drop() {
-		long now = System.currentTimeMillis();
-		while (!wrapper.isEmpty() && now - wrapper.peek().getTime() > dropTimeout)
-			lmap.remove(wrapper.poll().getId());
+		Iterator<IpFragmentGroup> it = groups.values().iterator();
+		while (it.hasNext()) {
+			IpFragmentGroup group = it.next();
+			if (now - group.getTime() <= dropTimeout)
+				break;
+
+			it.remove();
+			release(group);
+			timeoutCount++;
+		}
 	}
 
-	private Ipv4Packet reassemble(Ipv4Packet fragment, ByteBuffer reassembled, int goal) {
-		byte[] b = new byte[goal];
-		reassembled.get(b, 0, goal);
+	private void remove(IpFragmentGroup group) {
+		if (groups.remove(group.getKey()) != null)
+			release(group);
+	}
 
-		Buffer data = new ChainBuffer();
-		data.addLast(b);
+	private void release(IpFragmentGroup group) {
+		group.releasePackets();
 
-		int tl = fragment.getIhl() + goal;
-		Ipv4Packet p = Ipv4Packet.makeReassembled(fragment, data, tl);
+		SourceUsage usage = sources.get(group.getKey().getSource());
+		if (usage == null)
+			return;
 
-		return p;
+		usage.groups--;
+		usage.bytes -= group.getBytes();
+		if (usage.groups <= 0)
+			sources.remove(group.getKey().getSource());
 	}
 
-	private class HoleManagerWrapper {
-		private int id;
-		private HoleManager manager;
-		private long time;
+	private Ipv4Packet reassemble(Ipv4Packet fragment, IpFragmentGroup group) {
+		Buffer data = group.reassemble();
 
-		public HoleManagerWrapper(int id, HoleManager manager) {
-			this.id = id;
-			this.manager = manager;
-		}
+		int tl = fragment.getIhl() + group.getTotalLength();
+		Ipv4Packet p = Ipv4Packet.makeReassembled(fragment, data, tl);
+		p.setL2Frame(fragment.getL2Frame());
 
-		public int getId() {
-			return id;
-		}
+		return p;
+	}
 
-		public long getTime() {
-			return time;
-		}
+	private static long getCaptureTime(Ipv4Packet fragment) {
+		PcapPacket packet = getPcapPacket(fragment);
+		if (packet == null)
+			return -1;
 
-		public void setTime(PcapPacket packet) {
-			this.time = ((long) (packet.getPacketHeader().getTsSec())) * 1000;
-			this.time += packet.getPacketHeader().getTsUsec() / 1000;
-		}
+		PacketHeader header = packet.getPacketHeader();
+		return (header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000;
+	}
 
-		public HoleManager getManager() {
-			return manager;
-		}
+	private static PcapPacket getPcapPacket(Ipv4Packet fragment) {
+		if (!(fragment.getL2Frame() instanceof EthernetFrame))
+			return null;
+		return ((EthernetFrame) fragment.getL2Frame()).getPcapPacket();
 	}
 
-	private class HoleManagerWrapperComparator implements Comparator<HoleManagerWrapper> {
-		@Override
-		public int compare(HoleManagerWrapper o1, HoleManagerWrapper o2) {
-			return (int) (o1.getTime() - o2.getTime());
-		}
+	private static class SourceUsage {
+		private int groups;
+		private long bytes;
 	}
 }
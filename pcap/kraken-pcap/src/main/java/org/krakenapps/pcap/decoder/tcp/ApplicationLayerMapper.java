@@ -29,32 +29,62 @@ public class ApplicationLayerMapper {
 	}
 
 	public void sendToApplicationLayer(TcpSessionImpl session, Protocol protocol, TcpSessionKey key, TcpDirection direction, Buffer data) {
-		if (!session.firstDataSentToServer && direction == TcpDirection.ToServer && data.readableBytes() > 0) { // first data to detect protocol
-			session.firstDataSentToServer = true;
-			Protocol detectedProtocol = mapper.detectProtocol(key, data);
-			if (detectedProtocol != null) {
-				protocol = detectedProtocol;
-				session.registerProtocol(protocol);
-
-				Collection<TcpProcessor> processors = mapper.getTcpProcessors(protocol);
-				if (processors != null) {
-					for (TcpProcessor p : processors) {
-						p.onEstablish(session);
-					}
-				}
-				session.setRegisterProtocol(true);
-			}
+		if (data.readableBytes() > 0) {
+			if (!isInspected(session, direction))
+				protocol = detect(session, protocol, direction, data);
+			session.dataDispatched = true;
 		}
 
-		Collection<TcpProcessor> processors = mapper.getTcpProcessors(protocol);
+		Collection<TcpProcessor> processors = session.getTcpProcessors();
 
 		if (processors == null) {
 			return;
 		}
 
-		for (TcpProcessor p : processors) {
-			handlingL7(key, p, direction, data);
+		if (processors instanceof TcpProcessorSet) {
+			for (TcpProcessor p : ((TcpProcessorSet) processors).array())
+				handlingL7(key, p, direction, data);
+		} else {
+			for (TcpProcessor p : processors) {
+				handlingL7(key, p, direction, data);
+			}
+		}
+	}
+
+	private boolean isInspected(TcpSessionImpl session, TcpDirection direction) {
+		return direction == TcpDirection.ToServer ? session.toServerInspected : session.toClientInspected;
+	}
+
+	/*
+	 * inspects the first payload of each direction. the protocol is switched
+	 * only before any payload reached the port protocol processors.
+	 */
+	private Protocol detect(TcpSessionImpl session, Protocol protocol, TcpDirection direction, Buffer data) {
+		if (direction == TcpDirection.ToServer)
+			session.toServerInspected = true;
+		else
+			session.toClientInspected = true;
+
+		Protocol detected = mapper.detectProtocol(session, direction, data);
+		if (detected == protocol || (session.dataDispatched && protocol != null))
+			return protocol;
+
+		Collection<TcpProcessor> oldProcessors = session.getTcpProcessors();
+		Collection<TcpProcessor> newProcessors = mapper.getTcpProcessors(detected);
+		session.registerProtocol(detected);
+		session.setRegisterProtocol(true);
+
+		if (oldProcessors != null) {
+			for (TcpProcessor p : oldProcessors)
+				if (newProcessors == null || !newProcessors.contains(p))
+					p.onFinish(session.getKey());
+		}
+
+		if (newProcessors != null) {
+			for (TcpProcessor p : newProcessors)
+				p.onEstablish(session);
 		}
+		return detected;
 	}
 
 	private void handlingL7(TcpSessionKey key, TcpProcessor processor, TcpDirection direction, Buffer data) {
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.util.Buffer;
+
+/**
+ * Detects the application protocol from the first payload bytes of a tcp
+ * direction. All signatures are compiled into one Aho-Corasick automaton, so
+ * the payload is scanned once regardless of the number of signatures. At most
+ * {@link #getMaxInspectBytes()} bytes are scanned.
+ * 
+ * A signature is either anchored at a fixed offset or matched anywhere in the
+ * inspected bytes. If several signatures match, the one added first wins.
+ */
+public class SignatureProtocolDetector implements ProtocolDetector {
+	public static final int DEFAULT_MAX_INSPECT_BYTES = 256;
+
+	/* signature matches anywhere in the inspected bytes */
+	public static final int ANY_OFFSET = -1;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final List<Signature> signatures = new ArrayList<Signature>();
+	private volatile Automaton automaton;
+	private volatile int maxInspectBytes = DEFAULT_MAX_INSPECT_BYTES;
+
+	/**
+	 * @return a detector with signatures of the protocols decoded by kraken
+	 */
+	public static SignatureProtocolDetector createDefault() {
+		SignatureProtocolDetector d = new SignatureProtocolDetector();
+		String[] methods = { "GET ", "POST ", "HEAD ", "PUT ", "DELETE ", "OPTIONS ", "CONNECT ", "PATCH ", "TRACE " };
+		for (String method : methods)
+			d.addSignature(Protocol.HTTP, TcpDirection.ToServer, method);
+
+		d.addSignature(Protocol.HTTP, TcpDirection.ToClient, "HTTP/1.");
+		d.addSignature(Protocol.HTTP2, TcpDirection.ToServer, "PRI * HTTP/2.0");
+
+		/* tls handshake record */
+		d.addSignature(Protocol.SSL, TcpDirection.ToServer, new byte[] { 0x16, 0x03 }, 0);
+		d.addSignature(Protocol.SSL, TcpDirection.ToClient, new byte[] { 0x16, 0x03 }, 0);
+
+		d.addSignature(Protocol.SSH, null, "SSH-");
+		d.addSignature(Protocol.SMTP, TcpDirection.ToServer, "EHLO ");
+		d.addSignature(Protocol.SMTP, TcpDirection.ToServer, "HELO ");
+		d.addSignature(Protocol.POP3, TcpDirection.ToClient, "+OK");
+		d.addSignature(Protocol.IMAP, TcpDirection.ToClient, "* OK");
+		d.addSignature(Protocol.MSN, TcpDirection.ToServer, "VER ");
+
+		/* smb1 and smb2 header after the netbios session header */
+		d.addSignature(Protocol.NETBIOS, null, new byte[] { (byte) 0xff, 'S', 'M', 'B' }, 4);
+		d.addSignature(Protocol.NETBIOS, null, new byte[] { (byte) 0xfe, 'S', 'M', 'B' }, 4);
+
+		/* startup message protocol 3.0 and ssl request */
+		d.addSignature(Protocol.POSTGRES, TcpDirection.ToServer, new byte[] { 0, 3, 0, 0 }, 4);
+		d.addSignature(Protocol.POSTGRES, TcpDirection.ToServer, new byte[] { 0x04, (byte) 0xd2, 0x16, 0x2f }, 4);
+
+		/* greeting banners, checked last */
+		d.addSignature(Protocol.SMTP, TcpDirection.ToClient, "ESMTP".getBytes(ASCII), ANY_OFFSET);
+		d.addSignature(Protocol.FTP, TcpDirection.ToClient, "FTP".getBytes(ASCII), ANY_OFFSET);
+		return d;
+	}
+
+	public int getMaxInspectBytes() {
+		return maxInspectBytes;
+	}
+
+	public void setMaxInspectBytes(int maxInspectBytes) {
+		if (maxInspectBytes <= 0)
+			throw new IllegalArgumentException("max inspect bytes should be positive");
+		this.maxInspectBytes = maxInspectBytes;
+	}
+
+	/**
+	 * Adds a signature which matches a payload starting with the prefix.
+	 * 
+	 * @param direction
+	 *            the direction of the payload, null for both
+	 */
+	public void addSignature(Protocol protocol, TcpDirection direction, String prefix) {
+		addSignature(protocol, direction, prefix.getBytes(ASCII), 0);
+	}
+
+	/**
+	 * @param direction
+	 *            the direction of the payload, null for both
+	 * @param offset
+	 *            the offset of the pattern in the payload, or
+	 *            {@link #ANY_OFFSET}
+	 */
+	public synchronized void addSignature(Protocol protocol, TcpDirection direction, byte[] pattern, int offset) {
+		if (protocol == null)
+			throw new IllegalArgumentException("protocol should be not null");
+		if (pattern == null || pattern.length == 0)
+			throw new IllegalArgumentException("pattern should be not empty");
+		if (offset < ANY_OFFSET)
+			throw new IllegalArgumentException("invalid offset: " + offset);
+
+		signatures.add(new Signature(protocol, direction, Arrays.copyOf(pattern, pattern.length), offset));
+		automaton = null;
+	}
+
+	public synchronized void clearSignatures() {
+		signatures.clear();
+		automaton = null;
+	}
+
+	/**
+	 * @return true if any signature identifies the protocol in the direction
+	 */
+	public boolean hasSignature(Protocol protocol, TcpDirection direction) {
+		Automaton a = getAutomaton();
+		for (Signature s : a.signatures)
+			if (s.protocol == protocol && s.accepts(direction))
+				return true;
+		return false;
+	}
+
+	@Override
+	public Protocol detectProtocol(TcpSessionKey key, Buffer data) {
+		return detect(TcpDirection.ToServer, data);
+	}
+
+	/**
+	 * Scans the readable bytes of data without consuming them.
+	 * 
+	 * @return the detected protocol, or null if no signature matched
+	 */
+	public Protocol detect(TcpDirection direction, Buffer data) {
+		int length = Math.min(data.readableBytes(), maxInspectBytes);
+		if (length <= 0)
+			return null;
+
+		byte[] b = new byte[length];
+		data.mark();
+		try {
+			data.gets(b);
+		} finally {
+			data.reset();
+		}
+		return detect(direction, b, 0, length);
+	}
+
+	public Protocol detect(TcpDirection direction, byte[] b, int offset, int length) {
+		Automaton a = getAutomaton();
+		int end = offset + Math.min(length, maxInspectBytes);
+		int state = 0;
+		int best = Integer.MAX_VALUE;
+
+		for (int i = offset; i < end; i++) {
+			state = a.next[(state << 8) | (b[i] & 0xff)];
+			int[] matched = a.outputs[state];
+			if (matched == null)
+				continue;
+
+			for (int id : matched) {
+				if (id >= best)
+					continue;
+
+				Signature s = a.signatures[id];
+				int start = i - offset - s.pattern.length + 1;
+				if (s.accepts(direction) && (s.offset == ANY_OFFSET || s.offset == start))
+					best = id;
+			}
+
+			/* the first signature can not be beaten */
+			if (best == 0)
+				break;
+		}
+
+		return best == Integer.MAX_VALUE ? null : a.signatures[best].protocol;
+	}
+
+	private Automaton getAutomaton() {
+		Automaton a = automaton;
+		if (a != null)
+			return a;
+
+		synchronized (this) {
+			if (automaton == null)
+				automaton = new Automaton(signatures.toArray(new Signature[0]));
+			return automaton;
+		}
+	}
+
+	private static class Signature {
+		private final Protocol protocol;
+		private final TcpDirection direction;
+		private final byte[] pattern;
+		private final int offset;
+
+		public Signature(Protocol protocol, TcpDirection direction, byte[] pattern, int offset) {
+			this.protocol = protocol;
+			this.direction = direction;
+			this.pattern = pattern;
+			this.offset = offset;
+		}
+
+		public boolean accepts(TcpDirection d) {
+			return direction == null || direction == d;
+		}
+	}
+
+	/**
+	 * Immutable automaton. Failure transitions are folded into a dense 256-way
+	 * transition table, so matching takes one table lookup per byte.
+	 */
+	private static class Automaton {
+		private final Signature[] signatures;
+		private final int[] next;
+		private final int[][] outputs;
+
+		public Automaton(Signature[] signatures) {
+			this.signatures = signatures;
+
+			/* build the trie */
+			List<int[]> gotos = new ArrayList<int[]>();
+			List<int[]> outs = new ArrayList<int[]>();
+			gotos.add(newRow());
+			outs.add(null);
+
+			for (int id = 0; id < signatures.length; id++) {
+				int state = 0;
+				for (byte c : signatures[id].pattern) {
+					int[] row = gotos.get(state);
+					int n = row[c & 0xff];
+					if (n < 0) {
+						n = gotos.size();
+						row[c & 0xff] = n;
+						gotos.add(newRow());
+						outs.add(null);
+					}
+					state = n;
+				}
+				outs.set(state, append(outs.get(state), id));
+			}
+
+			/* breadth first, resolve failure links into the transition table */
+			int count = gotos.size();
+			int[] fail = new int[count];
+			next = new int[count << 8];
+			ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+
+			int[] root = gotos.get(0);
+			for (int c = 0; c < 256; c++) {
+				int n = root[c];
+				if (n < 0) {
+					next[c] = 0;
+				} else {
+					next[c] = n;
+					fail[n] = 0;
+					queue.add(n);
+				}
+			}
+
+			while (!queue.isEmpty()) {
+				int state = queue.poll();
+				int[] row = gotos.get(state);
+				int f = fail[state];
+				outs.set(state, merge(outs.get(state), outs.get(f)));
+
+				for (int c = 0; c < 256; c++) {
+					int n = row[c];
+					if (n < 0) {
+						next[(state << 8) | c] = next[(f << 8) | c];
+					} else {
+						next[(state << 8) | c] = n;
+						fail[n] = next[(f << 8) | c];
+						queue.add(n);
+					}
+				}
+			}
+
+			outputs = outs.toArray(new int[0][]);
+		}
+
+		private static int[] newRow() {
+			int[] row = new int[256];
+			Arrays.fill(row, -1);
+			return row;
+		}
+
+		private static int[] append(int[] ids, int id) {
+			if (ids == null)
+				return new int[] { id };
+
+			int[] n = Arrays.copyOf(ids, ids.length + 1);
+			n[ids.length] = id;
+			return n;
+		}
+
+		private static int[] merge(int[] a, int[] b) {
+			if (b == null)
+				return a;
+			if (a == null)
+				return b;
+
+			int[] n = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, n, a.length, b.length);
+			return n;
+		}
+	}
+}
@@ -52,6 +52,22 @@ public class TcpDecoder implements IpProcessor, Ipv6Processor {
 		return sessionTable.getCurrentSessions();
 	}
 
+	/**
+	 * Returns the idle/budget expiry settings and eviction counters of the
+	 * session table.
+	 */
+	public TcpSessionExpirer getSessionExpirer() {
+		return sessionTable.getExpirer();
+	}
+
+	/**
+	 * Limits the out-of-order bytes queued per direction of each new session.
+	 * 0 means unlimited.
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		sessionTable.setMaxQueuedBytes(maxQueuedBytes);
+	}
+
 	public void registerSegmentCallback(TcpSegmentCallback callback) {
 		segmentCallbacks.register(callback);
 	}
@@ -100,6 +116,7 @@ public class TcpDecoder implements IpProcessor, Ipv6Processor {
 			if (logger.isDebugEnabled()) {
 				logger.debug("kraken pcap: null session for tcp [{}]", pkt);
 			}
+			sessionTable.touch(null, pkt);
 			return;
 		}
 
@@ -135,6 +152,7 @@ public class TcpDecoder implements IpProcessor, Ipv6Processor {
 		}
 		
 		segmentCallbacks.fireProcessCallbacks(session, pkt);
+		sessionTable.touch(session, pkt);
 	}
 
 	private boolean isSack(TcpPacket packet) {
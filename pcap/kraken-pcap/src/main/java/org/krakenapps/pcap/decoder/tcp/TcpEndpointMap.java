@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import java.net.InetAddress;
+
+import org.krakenapps.pcap.Protocol;
+
+/**
+ * Protocols of server endpoints discovered at runtime, such as ftp data
+ * channels. Lookups are lock-free and allocate nothing: the table is an
+ * immutable open addressing table probed by a primitive (address hash, port)
+ * key, and every update publishes a new table. Updates are rare compared to
+ * lookups, which happen once per new session.
+ * 
+ * Entries expire timeout milliseconds of capture time after the first expiry
+ * sweep which saw them.
+ */
+class TcpEndpointMap {
+	private static final int MIN_CAPACITY = 16;
+
+	private volatile Table table = new Table(MIN_CAPACITY);
+	private volatile long nextDeadline = Long.MAX_VALUE;
+	private volatile boolean unstamped;
+	private volatile long timeout;
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public synchronized void setTimeout(long timeout) {
+		this.timeout = timeout;
+		publish(table);
+	}
+
+	public int size() {
+		return table.size;
+	}
+
+	public boolean isEmpty() {
+		return table.size == 0;
+	}
+
+	public Protocol get(InetAddress ip, int port) {
+		Table t = table;
+		if (t.size == 0)
+			return null;
+
+		int i = t.find(key(ip, port), ip);
+		return i < 0 ? null : t.protocols[i];
+	}
+
+	public synchronized void put(InetAddress ip, int port, Protocol protocol, long now) {
+		long deadline = deadline(now);
+		Table t = copy(table, table.size + 1, ip, port);
+		t.insert(key(ip, port), ip, protocol, deadline);
+		publish(t);
+	}
+
+	public synchronized boolean remove(InetAddress ip, int port) {
+		Table old = table;
+		if (old.find(key(ip, port), ip) < 0)
+			return false;
+
+		publish(copy(old, old.size, ip, port));
+		return true;
+	}
+
+	public synchronized void clear() {
+		publish(new Table(MIN_CAPACITY));
+	}
+
+	/**
+	 * Removes expired entries and stamps the deadline of new entries.
+	 * 
+	 * @return the number of expired entries
+	 */
+	public int expire(long now) {
+		if (!unstamped && now < nextDeadline)
+			return 0;
+
+		synchronized (this) {
+			Table old = table;
+			Table t = new Table(capacityFor(old.size));
+			int expired = 0;
+			for (int i = 0; i < old.keys.length; i++) {
+				if (old.addresses[i] == null)
+					continue;
+
+				long deadline = old.deadlines[i];
+				if (deadline == 0 && timeout > 0)
+					deadline = now + timeout;
+
+				if (deadline != 0 && deadline <= now) {
+					expired++;
+					continue;
+				}
+				t.insert(old.keys[i], old.addresses[i], old.protocols[i], deadline);
+			}
+			publish(t);
+			return expired;
+		}
+	}
+
+	/* 0 means not stamped yet, for registrations before any capture time */
+	private long deadline(long now) {
+		long t = timeout;
+		if (t <= 0 || now <= 0)
+			return 0;
+		return now + t;
+	}
+
+	private void publish(Table t) {
+		long min = Long.MAX_VALUE;
+		boolean pending = false;
+		for (int i = 0; i < t.keys.length; i++) {
+			if (t.addresses[i] == null)
+				continue;
+			if (t.deadlines[i] == 0)
+				pending = true;
+			else
+				min = Math.min(min, t.deadlines[i]);
+		}
+
+		table = t;
+		nextDeadline = min;
+		unstamped = pending && timeout > 0;
+	}
+
+	/* copy without the given endpoint */
+	private static Table copy(Table old, int size, InetAddress ip, int port) {
+		long skip = key(ip, port);
+		Table t = new Table(capacityFor(size));
+		for (int i = 0; i < old.keys.length; i++) {
+			if (old.addresses[i] == null)
+				continue;
+			if (old.keys[i] == skip && old.addresses[i].equals(ip))
+				continue;
+			t.insert(old.keys[i], old.addresses[i], old.protocols[i], old.deadlines[i]);
+		}
+		return t;
+	}
+
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	/* address hash and port, the address is compared on hit */
+	private static long key(InetAddress ip, int port) {
+		return ((long) ip.hashCode() << 16) | (port & 0xffff);
+	}
+
+	private static class Table {
+		private final long[] keys;
+		private final InetAddress[] addresses;
+		private final Protocol[] protocols;
+		private final long[] deadlines;
+		private final int mask;
+		private int size;
+
+		public Table(int capacity) {
+			keys = new long[capacity];
+			addresses = new InetAddress[capacity];
+			protocols = new Protocol[capacity];
+			deadlines = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		public int find(long key, InetAddress ip) {
+			int i = slot(key);
+			while (addresses[i] != null) {
+				if (keys[i] == key && addresses[i].equals(ip))
+					return i;
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		public void insert(long key, InetAddress ip, Protocol protocol, long deadline) {
+			int i = slot(key);
+			while (addresses[i] != null)
+				i = (i + 1) & mask;
+
+			keys[i] = key;
+			addresses[i] = ip;
+			protocols[i] = protocol;
+			deadlines[i] = deadline;
+			size++;
+		}
+
+		private int slot(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 40) & mask;
+		}
+	}
+}
@@ -17,7 +17,6 @@ package org.krakenapps.pcap.decoder.tcp;
 
 import java.util.Collection;
 
-import org.krakenapps.pcap.Protocol;
 
 public class TcpFlagHandler {
 	private final TcpProtocolMapper mapper;
@@ -53,7 +52,8 @@ public class TcpFlagHandler {
 	}
 
 	private void onSynSent(TcpSessionTable sessionTable, TcpPacket packet) {
-		TcpSessionKey key = new TcpSessionKeyImpl(packet.getSourceAddress(), packet.getDestinationAddress(), packet.getSourcePort(), packet.getDestinationPort());
+		long zone = ((TcpSessionKeyImpl) packet.getSessionKey()).getZone();
+		TcpSessionKey key = new TcpSessionKeyImpl(packet.getSourceAddress(), packet.getDestinationAddress(), packet.getSourcePort(), packet.getDestinationPort(), zone);
 		sessionTable.openSession(mapper, key, packet);
 		TcpSessionImpl session = sessionTable.getSession(key);
 
@@ -96,9 +96,10 @@ public class TcpFlagHandler {
 		}
 
 		if (received == 0 || (received == seq) || ((received + 1) == seq)) {
-			Protocol protocol = session.getProtocol();
-			Collection<TcpProcessor> processors = mapper.getTcpProcessors(protocol);
+			Collection<TcpProcessor> processors = session.getTcpProcessors();
 
+			/* always drop the session, even if nobody listens for this protocol */
+			sessionTable.abnormalClose(packet.getSessionKey());
 			if (processors == null) {
 				return;
 			}
@@ -106,8 +107,6 @@ public class TcpFlagHandler {
 			for (TcpProcessor p : processors) {
 				p.onReset(session.getKey());
 			}
-
-			sessionTable.abnormalClose(packet.getSessionKey());
 		}
 
 		/* invalid RST packet */
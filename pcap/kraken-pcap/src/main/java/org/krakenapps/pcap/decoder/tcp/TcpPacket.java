@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 
 import org.krakenapps.pcap.Injectable;
 import org.krakenapps.pcap.PacketBuilder;
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
 import org.krakenapps.pcap.decoder.ip.InternetProtocol;
 import org.krakenapps.pcap.decoder.ip.IpPacket;
 import org.krakenapps.pcap.decoder.ip.Ipv4Packet;
@@ -133,7 +134,7 @@ public class TcpPacket implements TcpSegment, Injectable {
 		s.srcPort = data.getUnsignedShort();
 		s.dstPort = data.getUnsignedShort();
 
-		s.sessionKey = new TcpSessionKeyImpl(s.sourceAddr, s.destinationAddr, s.srcPort, s.dstPort);
+		s.sessionKey = new TcpSessionKeyImpl(s.sourceAddr, s.destinationAddr, s.srcPort, s.dstPort, getZone(p));
 
 		s.seq = data.getInt();
 		s.ack = data.getInt();
@@ -147,6 +148,12 @@ public class TcpPacket implements TcpSegment, Injectable {
 		return s;
 	}
 	
+	/* flows in different vlans or vxlan segments are different sessions */
+	private static long getZone(IpPacket p) {
+		Object frame = p.getL2Frame();
+		return frame instanceof EthernetFrame ? ((EthernetFrame) frame).getZone() : 0;
+	}
+
 	private void parseDataOffsetAndFlags(Buffer dataBuffer) {
 		byte dataOffsetAndReserved = dataBuffer.get();
 		byte reservedAndFlags = dataBuffer.get();
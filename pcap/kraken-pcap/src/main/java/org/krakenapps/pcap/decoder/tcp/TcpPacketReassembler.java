@@ -70,7 +70,7 @@ public class TcpPacketReassembler {
 	private static void doReassemble(TcpSessionImpl session, TcpPacket packet, int lengthOfData) {
 		if (packet.isAck()) {
 			if (lengthOfData > 0) {
-				Buffer data = packet.getData();
+				Buffer data = WaitQueue.detach(packet, packet.getData());
 				if (packet.getDirection() == TcpDirection.ToServer) {
 					session.pushToServer(data);
 				} else {
@@ -16,23 +16,34 @@
 package org.krakenapps.pcap.decoder.tcp;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.krakenapps.pcap.Protocol;
 import org.krakenapps.pcap.util.Buffer;
 
 public class TcpPortProtocolMapper implements TcpProtocolMapper {
-	private final ConcurrentMap<Integer, Protocol> tcpMap;
-	private final Map<InetSocketAddress, Protocol> temporaryTcpMap;
-	private final ConcurrentMap<Protocol, Set<TcpProcessor>> tcpProcessorMap;
-	
+	/* dynamic endpoints are dropped 5 minutes after registration by default */
+	public static final long DEFAULT_ENDPOINT_TIMEOUT = 300000;
+
+	private final AtomicReferenceArray<Protocol> tcpMap;
+	private final TcpEndpointMap temporaryTcpMap;
+	private final Map<Protocol, Set<TcpProcessor>> tcpProcessorMap;
+
+	/* immutable after construction, the sets inside are copy-on-write */
+	private final Map<Protocol, TcpProcessorSet> dispatchMap;
+	private final TcpProcessorSet unknownDispatch;
+
+	private volatile SignatureProtocolDetector signatureDetector;
+	private volatile boolean strictPortMapping;
+	private volatile long now;
+
 	public TcpPortProtocolMapper() {
 		this(null);
 	}
@@ -42,136 +53,247 @@ public class TcpPortProtocolMapper implements TcpProtocolMapper {
 		
 		this.defaultProtocolProcessor = defaultProtocolProcessor;
 		
-		tcpMap = new ConcurrentHashMap<Integer, Protocol>();
-		temporaryTcpMap = new HashMap<InetSocketAddress, Protocol>();
-		tcpProcessorMap = new ConcurrentHashMap<Protocol, Set<TcpProcessor>>();
-
-		tcpMap.put(80, Protocol.HTTP);
-		tcpMap.put(8080, Protocol.HTTP);
-		tcpMap.put(25, Protocol.SMTP);
-		tcpMap.put(587, Protocol.SMTP);
-		tcpMap.put(110, Protocol.POP3);
-		tcpMap.put(1863, Protocol.MSN);
-		tcpMap.put(21, Protocol.FTP);
-		tcpMap.put(138, Protocol.NETBIOS);
-		tcpMap.put(139, Protocol.NETBIOS);
-		tcpMap.put(445, Protocol.NETBIOS);
-		tcpMap.put(22, Protocol.SSH);
-		tcpMap.put(23, Protocol.TELNET);
-		tcpMap.put(43, Protocol.WHOIS);
-		tcpMap.put(53, Protocol.DNS);
-		tcpMap.put(66, Protocol.SQLNET);
-		tcpMap.put(79, Protocol.FINGER);
-		tcpMap.put(143, Protocol.IMAP);
-		tcpMap.put(179, Protocol.BGP);
-		tcpMap.put(1433, Protocol.MSSQL);
-		tcpMap.put(1434, Protocol.MSSQL);
-		tcpMap.put(3306, Protocol.MYSQL);
-		tcpMap.put(5432, Protocol.POSTGRES);
+		tcpMap = new AtomicReferenceArray<Protocol>(65536);
+		temporaryTcpMap = new TcpEndpointMap();
+		temporaryTcpMap.setTimeout(DEFAULT_ENDPOINT_TIMEOUT);
+		tcpProcessorMap = new EnumMap<Protocol, Set<TcpProcessor>>(Protocol.class);
+		signatureDetector = SignatureProtocolDetector.createDefault();
+
+		dispatchMap = new EnumMap<Protocol, TcpProcessorSet>(Protocol.class);
+		for (Protocol protocol : Protocol.values())
+			dispatchMap.put(protocol, new TcpProcessorSet());
+		unknownDispatch = new TcpProcessorSet();
+		rebuildAll();
+
+		register(80, Protocol.HTTP);
+		register(8080, Protocol.HTTP);
+		register(25, Protocol.SMTP);
+		register(587, Protocol.SMTP);
+		register(110, Protocol.POP3);
+		register(1863, Protocol.MSN);
+		register(21, Protocol.FTP);
+		register(138, Protocol.NETBIOS);
+		register(139, Protocol.NETBIOS);
+		register(445, Protocol.NETBIOS);
+		register(22, Protocol.SSH);
+		register(23, Protocol.TELNET);
+		register(43, Protocol.WHOIS);
+		register(53, Protocol.DNS);
+		register(66, Protocol.SQLNET);
+		register(79, Protocol.FINGER);
+		register(143, Protocol.IMAP);
+		register(179, Protocol.BGP);
+		register(1433, Protocol.MSSQL);
+		register(1434, Protocol.MSSQL);
+		register(3306, Protocol.MYSQL);
+		register(5432, Protocol.POSTGRES);
 		
-		tcpMap.put(443, Protocol.SSL);
+		register(443, Protocol.SSL);
 	}
 
 	public void register(int port, Protocol protocol) {
-		tcpMap.put(port, protocol);
+		tcpMap.set(port & 0xffff, protocol);
 	}
 
 	public void unregister(int port) {
-		tcpMap.remove(port);
+		tcpMap.set(port & 0xffff, null);
 	}
 
 	@Override
 	public void register(InetSocketAddress sockAddr, Protocol protocol) {
-		temporaryTcpMap.put(sockAddr, protocol);
+		temporaryTcpMap.put(sockAddr.getAddress(), sockAddr.getPort(), protocol, now);
 	}
 
 	@Override
 	public void unregister(InetSocketAddress sockAddr) {
-		temporaryTcpMap.remove(sockAddr);
+		temporaryTcpMap.remove(sockAddr.getAddress(), sockAddr.getPort());
 	}
 
 	@Override
 	public boolean containsProtocol(InetSocketAddress sockAddr) {
-		return temporaryTcpMap.containsKey(sockAddr);
+		return temporaryTcpMap.get(sockAddr.getAddress(), sockAddr.getPort()) != null;
+	}
+
+	/**
+	 * @return the lifetime of dynamic endpoint registrations in milliseconds
+	 *         of capture time, 0 if they never expire
+	 */
+	public long getEndpointTimeout() {
+		return temporaryTcpMap.getTimeout();
+	}
+
+	public void setEndpointTimeout(long timeout) {
+		temporaryTcpMap.setTimeout(timeout);
+	}
+
+	/**
+	 * Drops expired dynamic endpoint registrations. Called by the session
+	 * table with the latest capture time.
+	 */
+	public void expireEndpoints(long captureTime) {
+		if (captureTime > now)
+			now = captureTime;
+		temporaryTcpMap.expire(now);
+	}
+
+	public int getEndpointCount() {
+		return temporaryTcpMap.size();
 	}
 
 	@Override
-	public void register(Protocol protocol, TcpProcessor processor) {
-		tcpProcessorMap.putIfAbsent(protocol, Collections.newSetFromMap(new ConcurrentHashMap<TcpProcessor, Boolean>()));
-		tcpProcessorMap.get(protocol).add(processor);
+	public synchronized void register(Protocol protocol, TcpProcessor processor) {
+		Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
+		if (processors == null) {
+			processors = new CopyOnWriteArraySet<TcpProcessor>();
+			tcpProcessorMap.put(protocol, processors);
+		}
+		processors.add(processor);
+		rebuild(protocol);
 	}
 
 	@Override
-	public void unregister(Protocol protocol, TcpProcessor processor) {
-		tcpProcessorMap.putIfAbsent(protocol, Collections.newSetFromMap(new ConcurrentHashMap<TcpProcessor, Boolean>()));
-		tcpProcessorMap.get(protocol).remove(processor);
+	public synchronized void unregister(Protocol protocol, TcpProcessor processor) {
+		Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
+		if (processors != null)
+			processors.remove(processor);
+		rebuild(protocol);
 	}
 
 	@Deprecated
 	@Override
-	public void unregister(Protocol protocol) {
+	public synchronized void unregister(Protocol protocol) {
 		tcpProcessorMap.remove(protocol);
+		rebuild(protocol);
 	}
 
 	@Override
 	public Protocol map(TcpSegment segment) {
 		TcpSessionKey key = segment.getSessionKey();
-		InetSocketAddress server = new InetSocketAddress(key.getServerIp(), key.getServerPort());
-		if (temporaryTcpMap.containsKey(server)) {
-			return temporaryTcpMap.get(server);
-		} else if (tcpMap.containsKey(key.getServerPort())) {
-			return tcpMap.get(key.getServerPort());
+		if (!temporaryTcpMap.isEmpty()) {
+			Protocol protocol = temporaryTcpMap.get(key.getServerIp(), key.getServerPort());
+			if (protocol != null)
+				return protocol;
 		}
 
-		return null;
+		return tcpMap.get(key.getServerPort() & 0xffff);
 	}
 
+	/**
+	 * Returns the dispatch set of the protocol. The same set instance is
+	 * returned for a protocol until it becomes empty, and registrations are
+	 * visible through it, so callers may keep it.
+	 */
 	@Override
 	public Collection<TcpProcessor> getTcpProcessors(Protocol protocol) {
-		Set<TcpProcessor> set = new HashSet<TcpProcessor>(10);
-
-		if(defaultProtocolProcessor != null) {
-			set.add(defaultProtocolProcessor);
-		}
-		if (protocol == null) {
-			if(unknownProtocolProcessor != null) {
-				set.add(unknownProtocolProcessor);
-			}
-		} else {
-			Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
-			if(processors != null) {
-				set.addAll(processors);
-			}
-		}
+		TcpProcessorSet set = protocol == null ? unknownDispatch : dispatchMap.get(protocol);
 		return set.isEmpty() ? null : set;
 	}
 
 	@Deprecated
 	@Override
-	public TcpProcessor getTcpProcessor(Protocol protocol) {
+	public synchronized TcpProcessor getTcpProcessor(Protocol protocol) {
 		if (protocol == null)
 			return unknownProtocolProcessor;
 
-		if (tcpProcessorMap.containsKey(protocol)) {
-			Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
-			if (processors.size() > 0)
-				return processors.iterator().next();
+		Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
+		if (processors != null) {
+			for (TcpProcessor p : processors)
+				return p;
 		}
 		return null;
 	}
 	
-	private TcpProcessor unknownProtocolProcessor;
+	private volatile TcpProcessor unknownProtocolProcessor;
 
 	@Override
-	public void setUnknownProtocolProcessor(TcpProcessor processor) {
+	public synchronized void setUnknownProtocolProcessor(TcpProcessor processor) {
 		this.unknownProtocolProcessor = processor;
+		rebuild(null);
 	}
 	
 	private final TcpProcessor defaultProtocolProcessor;
 
+	private void rebuildAll() {
+		for (Protocol protocol : Protocol.values())
+			rebuild(protocol);
+		rebuild(null);
+	}
+
+	/* called with lock held, or from the constructor */
+	private void rebuild(Protocol protocol) {
+		List<TcpProcessor> list = new ArrayList<TcpProcessor>();
+		if (defaultProtocolProcessor != null)
+			list.add(defaultProtocolProcessor);
+
+		if (protocol == null) {
+			if (unknownProtocolProcessor != null && !list.contains(unknownProtocolProcessor))
+				list.add(unknownProtocolProcessor);
+			unknownDispatch.update(list.toArray(new TcpProcessor[0]));
+			return;
+		}
+
+		Set<TcpProcessor> processors = tcpProcessorMap.get(protocol);
+		if (processors != null) {
+			for (TcpProcessor p : processors)
+				if (!list.contains(p))
+					list.add(p);
+		}
+		dispatchMap.get(protocol).update(list.toArray(new TcpProcessor[0]));
+	}
+
+	/**
+	 * @return the payload signature detector, null if detection is disabled
+	 */
+	public SignatureProtocolDetector getSignatureDetector() {
+		return signatureDetector;
+	}
+
+	public void setSignatureDetector(SignatureProtocolDetector signatureDetector) {
+		this.signatureDetector = signatureDetector;
+	}
+
+	public boolean isStrictPortMapping() {
+		return strictPortMapping;
+	}
+
+	/**
+	 * If enabled, a session whose first payload does not match any signature
+	 * of its port protocol is decoded as unknown protocol. Protocols without
+	 * signatures in that direction are not affected.
+	 */
+	public void setStrictPortMapping(boolean strictPortMapping) {
+		this.strictPortMapping = strictPortMapping;
+	}
+
 	@Override
 	public Protocol detectProtocol(TcpSessionKey key, Buffer data) {
-		return null;
+		SignatureProtocolDetector detector = signatureDetector;
+		return detector == null ? null : detector.detect(TcpDirection.ToServer, data);
+	}
+
+	@Override
+	public Protocol detectProtocol(TcpSession session, TcpDirection direction, Buffer data) {
+		TcpSessionKey key = session.getKey();
+		Protocol current = session.getProtocol();
+
+		/* dynamic endpoints such as ftp data channels are trusted */
+		if (!temporaryTcpMap.isEmpty() && temporaryTcpMap.get(key.getServerIp(), key.getServerPort()) != null)
+			return current;
+
+		SignatureProtocolDetector detector = signatureDetector;
+		Protocol detected;
+		if (direction == TcpDirection.ToServer)
+			detected = detectProtocol(key, data);
+		else
+			detected = detector == null ? null : detector.detect(direction, data);
+
+		if (detected != null)
+			return detected;
+
+		if (strictPortMapping && current != null && detector != null && detector.hasSignature(current, direction))
+			return null;
+
+		return current;
 	}
 
 }
\ No newline at end of file
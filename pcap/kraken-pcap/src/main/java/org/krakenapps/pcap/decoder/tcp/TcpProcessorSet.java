@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Copy-on-write dispatch set of one protocol. The set instance of a protocol
+ * never changes, so sessions can keep it, while registrations replace the
+ * immutable processor array inside.
+ */
+final class TcpProcessorSet extends AbstractCollection<TcpProcessor> {
+	private static final TcpProcessor[] EMPTY = new TcpProcessor[0];
+
+	private volatile TcpProcessor[] processors = EMPTY;
+
+	/**
+	 * Returns the current processors. The array is shared and should not be
+	 * modified.
+	 */
+	TcpProcessor[] array() {
+		return processors;
+	}
+
+	void update(TcpProcessor[] processors) {
+		this.processors = processors.length == 0 ? EMPTY : processors;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return processors.length == 0;
+	}
+
+	@Override
+	public int size() {
+		return processors.length;
+	}
+
+	@Override
+	public Iterator<TcpProcessor> iterator() {
+		final TcpProcessor[] snapshot = processors;
+		return new Iterator<TcpProcessor>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < snapshot.length;
+			}
+
+			@Override
+			public TcpProcessor next() {
+				if (i >= snapshot.length)
+					throw new NoSuchElementException();
+				return snapshot[i++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(processors);
+	}
+}
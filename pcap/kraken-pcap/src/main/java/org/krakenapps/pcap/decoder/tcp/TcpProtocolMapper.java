@@ -44,4 +44,12 @@ public interface TcpProtocolMapper extends ProtocolDetector {
 	
 	void setUnknownProtocolProcessor(TcpProcessor processor);
 
+	/**
+	 * Inspects the first payload of a direction before it is dispatched.
+	 * 
+	 * @return the protocol the session should be decoded as. the current
+	 *         protocol of the session if the payload is not recognized.
+	 */
+	Protocol detectProtocol(TcpSession session, TcpDirection direction, Buffer data);
+
 }
@@ -15,8 +15,6 @@
  */
 package org.krakenapps.pcap.decoder.tcp;
 
-import org.krakenapps.pcap.util.Buffer;
-
 public class TcpSackHandler {
 	
 	private TcpStateUpdater stateUpdater;
@@ -45,6 +43,7 @@ public class TcpSackHandler {
 
 				slideWindow(session, reassembledPacket);
 				stateUpdater.updateState(session, reassembledPacket);
+				WaitQueue.release(reassembledPacket);
 			}
 			if (session.getClientState() == TcpState.CLOSED && session.getServerState() == TcpState.CLOSED) {
 				session.close(sessionTable, session, packet);
@@ -69,25 +68,7 @@ public class TcpSackHandler {
 		int end = host.getLastAcceptableFrame();
 
 		/* clear up receive window */
-		for (int i = 0; i < queue.size(); i++) {
-			TcpPacket p = queue.dequeue(i);
-			int seq = p.getRelativeSeq();
-			int lengthOfData = 0;
-			if (p.getData() != null)
-				lengthOfData = p.getData().readableBytes();
-
-			if (seq > end)
-				queue.remove(i);
-			else if (seq + lengthOfData > end) {
-				/* cut garbage data */
-				int garbage = (seq + lengthOfData) - end;
-				int remain = lengthOfData - garbage;
-
-				Buffer data = p.getData();
-				data.skip(remain);
-				data.flip();
-			}
-		}
+		queue.truncate(end);
 	}
 
 	private void slideWindow(TcpSessionImpl session, TcpPacket packet) {
@@ -66,7 +66,8 @@ public class TcpSackReassembler {
 				}
 				else 
 					p.setReassembledLength(readable);
-				
+
+				data = WaitQueue.detach(p, data);
 				if (packet.getDirection() == TcpDirection.ToServer) 
 					session.pushToClientSack(data);
 				else
@@ -77,26 +78,6 @@ public class TcpSackReassembler {
 	}
 	
 	private static TcpPacket findNextDatagram(WaitQueue queue, int lastReceived) {
-		for (int i = 0; i < queue.size(); i++) {
-			TcpPacket p = queue.dequeue(i);
-
-			int seq = p.getRelativeSeq();
-			if (seq == lastReceived) {
-				queue.remove(i);
-				return p;
-			} else if (seq + p.getDataLength() > lastReceived) {
-				if (seq > lastReceived || p.getData() == null)
-					continue;
-
-				/* check TCP packet range. drop received data(=garbage) */
-				int garbage = lastReceived - seq;
-				Buffer tcpData = p.getData();
-				tcpData.skip(garbage);
-				tcpData.discardReadBytes();
-				queue.remove(i);
-				return p;
-			}
-		}
-		return null;
+		return queue.poll(lastReceived);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.krakenapps.pcap.util.CaptureClock;
+
+/**
+ * Expires tcp sessions which lost their FIN/RST segments. Sessions are kept in
+ * a doubly linked list ordered by the capture time of their last segment, so
+ * the head is always the least recently seen session. Idle expiry and the
+ * session/byte budgets both evict from the head, which makes every operation
+ * O(1) per segment.
+ *
+ * All limits are disabled (0) by default. Time is capture time, not wall
+ * clock time, so offline replays expire sessions exactly like live capture.
+ */
+public class TcpSessionExpirer implements CaptureClock {
+	private final TcpSessionTable sessionTable;
+
+	private TcpSessionImpl head;
+	private TcpSessionImpl tail;
+	private int size;
+	private long bufferedBytes;
+	private long now;
+
+	private volatile long idleTimeout;
+	private volatile int maxSessions;
+	private volatile long maxBytes;
+
+	private final AtomicLong idleExpired = new AtomicLong();
+	private final AtomicLong sessionLimitEvicted = new AtomicLong();
+	private final AtomicLong byteLimitEvicted = new AtomicLong();
+
+	public TcpSessionExpirer(TcpSessionTable sessionTable) {
+		this.sessionTable = sessionTable;
+	}
+
+	/**
+	 * @return the idle timeout in milliseconds of capture time, 0 if disabled
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * @return the upper bound of bytes buffered by all sessions, 0 if unlimited
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	/**
+	 * @return the latest capture time seen in milliseconds
+	 */
+	@Override
+	public long getCurrentTime() {
+		return now;
+	}
+
+	public long getIdleExpiredCount() {
+		return idleExpired.get();
+	}
+
+	public long getSessionLimitEvictedCount() {
+		return sessionLimitEvicted.get();
+	}
+
+	public long getByteLimitEvictedCount() {
+		return byteLimitEvicted.get();
+	}
+
+	public long getEvictedCount() {
+		return idleExpired.get() + sessionLimitEvicted.get() + byteLimitEvicted.get();
+	}
+
+	void advance(long time) {
+		if (time > now)
+			now = time;
+	}
+
+	/* move session to most recently seen position and refresh byte accounting */
+	void touch(TcpSessionImpl session) {
+		session.setLastSeen(now);
+		if (tail != session) {
+			if (isLinked(session))
+				unlinkNode(session);
+			else
+				size++;
+
+			session.lruPrev = tail;
+			session.lruNext = null;
+			if (tail != null)
+				tail.lruNext = session;
+			tail = session;
+			if (head == null)
+				head = session;
+		}
+
+		long bytes = session.getBufferedBytes();
+		bufferedBytes += bytes - session.accountedBytes;
+		session.accountedBytes = bytes;
+	}
+
+	void remove(TcpSessionImpl session) {
+		if (!isLinked(session))
+			return;
+
+		unlinkNode(session);
+		session.lruPrev = null;
+		session.lruNext = null;
+		size--;
+
+		bufferedBytes -= session.accountedBytes;
+		session.accountedBytes = 0;
+	}
+
+	/**
+	 * Evicts idle sessions first, then least recently seen sessions until the
+	 * session and byte budgets are met.
+	 */
+	public void expire() {
+		long timeout = idleTimeout;
+		if (timeout > 0) {
+			while (head != null && now - head.getLastSeen() > timeout) {
+				idleExpired.incrementAndGet();
+				sessionTable.evict(head, false);
+			}
+		}
+
+		int sessionLimit = maxSessions;
+		if (sessionLimit > 0) {
+			while (head != null && size > sessionLimit) {
+				sessionLimitEvicted.incrementAndGet();
+				sessionTable.evict(head, true);
+			}
+		}
+
+		long byteLimit = maxBytes;
+		if (byteLimit > 0) {
+			while (head != null && bufferedBytes > byteLimit) {
+				byteLimitEvicted.incrementAndGet();
+				sessionTable.evict(head, true);
+			}
+		}
+	}
+
+	private boolean isLinked(TcpSessionImpl session) {
+		return session.lruPrev != null || session.lruNext != null || head == session;
+	}
+
+	private void unlinkNode(TcpSessionImpl session) {
+		if (session.lruPrev != null)
+			session.lruPrev.lruNext = session.lruNext;
+		else
+			head = session.lruNext;
+
+		if (session.lruNext != null)
+			session.lruNext.lruPrev = session.lruPrev;
+		else
+			tail = session.lruPrev;
+	}
+}
@@ -15,6 +15,7 @@
  */
 package org.krakenapps.pcap.decoder.tcp;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -53,12 +54,23 @@ public class TcpSessionImpl implements TcpSession {
 	private final WaitQueue clientQueue;
 	private final WaitQueue serverQueue;
 
+	private final TcpProtocolMapper mapper;
 	private final ApplicationLayerMapper l7Mapper;
 
+	/* dispatch set resolved for the current protocol */
+	private Collection<TcpProcessor> processors;
+	private Protocol processorsProtocol;
+
 	private int packetCountAfterFin = 0;
 	private int firstFinSeq = -1;
 	private int firstFinAck = -1;
 
+	/* capture time of the last segment, maintained by TcpSessionExpirer */
+	private long lastSeen;
+	long accountedBytes;
+	TcpSessionImpl lruPrev;
+	TcpSessionImpl lruNext;
+
 	public TcpSessionImpl(TcpProtocolMapper mapper) {
 		id = LAST_ID.getAndIncrement();
 		key = null;
@@ -75,6 +87,7 @@ public class TcpSessionImpl implements TcpSession {
 		clientQueue = new WaitQueue();
 		serverQueue = new WaitQueue();
 
+		this.mapper = mapper;
 		l7Mapper = new ApplicationLayerMapper(mapper);
 	}
 
@@ -193,6 +206,18 @@ public class TcpSessionImpl implements TcpSession {
 		return protocol;
 	}
 
+	/**
+	 * Returns the processors of the session protocol. The dispatch set is
+	 * resolved once and kept until the protocol changes.
+	 */
+	Collection<TcpProcessor> getTcpProcessors() {
+		if (processors == null || processorsProtocol != protocol) {
+			processors = mapper.getTcpProcessors(protocol);
+			processorsProtocol = protocol;
+		}
+		return processors;
+	}
+
 	public void storeToClientSent(Buffer data) {
 		clientSent.addLast(data);
 	}
@@ -249,6 +274,23 @@ public class TcpSessionImpl implements TcpSession {
 		this.firstFinAck = firstFinAck;
 	}
 
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	void setLastSeen(long lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+
+	/**
+	 * Returns the bytes currently held by this session's stream buffers and
+	 * out-of-order wait queues.
+	 */
+	public long getBufferedBytes() {
+		return clientSent.readableBytes() + serverSent.readableBytes() + clientQueue.getQueuedBytes()
+				+ serverQueue.getQueuedBytes();
+	}
+
 	public void doEstablish(TcpSessionTable sessionTable, TcpSessionImpl session, TcpPacket packet, TcpStateUpdater stateUpdater) {
 		sessionTable.doEstablish(session, packet, stateUpdater);
 	}
@@ -291,7 +333,10 @@ public class TcpSessionImpl implements TcpSession {
 		return clazz.cast(attrMap.get(key));
 	}
 
-	boolean firstDataSentToServer;
+	/* directions whose first payload was inspected by protocol detection */
+	boolean toServerInspected;
+	boolean toClientInspected;
+	boolean dataDispatched;
 
 	@Override
 	public String[] getApplicationProtocols() {
@@ -26,9 +26,20 @@ public class TcpSessionKeyImpl implements TcpSessionKey {
 	private final InetAddress serverIp;
 	private final int clientPort;
 	private final int serverPort;
+	private final long zone;
 	private boolean reversed = false;
 
 	public TcpSessionKeyImpl(InetAddress clientIp, InetAddress serverIp, int clientPort, int serverPort) {
+		this(clientIp, serverIp, clientPort, serverPort, 0);
+	}
+
+	/**
+	 * @param zone
+	 *            the virtual network of the flow, see
+	 *            {@link org.krakenapps.pcap.decoder.ethernet.Encapsulation#getZone()}
+	 */
+	public TcpSessionKeyImpl(InetAddress clientIp, InetAddress serverIp, int clientPort, int serverPort, long zone) {
+		this.zone = zone;
 		if (clientIp.hashCode() < serverIp.hashCode()) {
 			this.clientIp = clientIp;
 			this.serverIp = serverIp;
@@ -59,12 +70,21 @@ public class TcpSessionKeyImpl implements TcpSessionKey {
 			return false;
 		if (!serverIp.equals(o.serverIp))
 			return false;
+		if (zone != o.zone)
+			return false;
 		return serverPort == o.serverPort;
 	}
 
 	@Override
 	public int hashCode() {
-		return clientIp.hashCode() ^ clientPort ^ serverIp.hashCode() ^ serverPort;
+		return clientIp.hashCode() ^ clientPort ^ serverIp.hashCode() ^ serverPort ^ (int) (zone ^ (zone >>> 32)) * 31;
+	}
+
+	/**
+	 * @return the virtual network of the flow, 0 if untagged
+	 */
+	public long getZone() {
+		return zone;
 	}
 
 	@Override
@@ -93,8 +113,9 @@ public class TcpSessionKeyImpl implements TcpSessionKey {
 
 	@Override
 	public String toString() {
-		return String.format("%s:%d => %s:%d", getClientIp().getHostAddress(), getClientPort(), getServerIp()
+		String s = String.format("%s:%d => %s:%d", getClientIp().getHostAddress(), getClientPort(), getServerIp()
 				.getHostAddress(), getServerPort());
+		return zone == 0 ? s : s + " (zone " + zone + ")";
 	}
 
 	@Override
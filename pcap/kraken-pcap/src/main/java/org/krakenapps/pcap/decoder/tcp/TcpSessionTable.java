@@ -22,20 +22,47 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.decoder.ip.IpPacket;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
 
 public class TcpSessionTable {
 	private final TcpProtocolMapper mapper;
+	private final TcpPortProtocolMapper portMapper;
 	private final Map<TcpSessionKey, TcpSessionImpl> map;
+	private final TcpSessionExpirer expirer;
+	private volatile long maxQueuedBytes;
 
 	public TcpSessionTable(TcpProtocolMapper mapper) {
 		this.mapper = mapper;
+		this.portMapper = mapper instanceof TcpPortProtocolMapper ? (TcpPortProtocolMapper) mapper : null;
 		map = new ConcurrentHashMap<TcpSessionKey, TcpSessionImpl>();
+		expirer = new TcpSessionExpirer(this);
+	}
+
+	public TcpSessionExpirer getExpirer() {
+		return expirer;
+	}
+
+	/**
+	 * @return the out-of-order byte limit per direction of new sessions, 0 if
+	 *         unlimited
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
 	}
 
 	public void openSession(TcpProtocolMapper mapper, TcpSessionKey key, TcpPacket packet) {
 		TcpSessionImpl session = new TcpSessionImpl(mapper);
 		session.setKey(key);
 		session.createClient(packet);
+		session.getClientQueue().setMaxBytes(maxQueuedBytes);
+		session.getServerQueue().setMaxBytes(maxQueuedBytes);
 		
 		map.put(key, session);
 	}
@@ -63,11 +90,14 @@ public class TcpSessionTable {
 		}
 				
 		TcpSessionKey key = packet.getSessionKey();
-		Protocol protocol = map.get(key).getProtocol();
-
-		map.remove(key);
+		TcpSessionImpl session = map.remove(key);
+		if (session == null) {
+			return;
+		}
+		expirer.remove(session);
+		clearQueues(session);
 
-		Collection<TcpProcessor> processors = mapper.getTcpProcessors(protocol);
+		Collection<TcpProcessor> processors = session.getTcpProcessors();
 		if (processors == null) {
 			return;
 		}
@@ -78,7 +108,65 @@ public class TcpSessionTable {
 	}
 	
 	public void abnormalClose(TcpSessionKey key) {
-		map.remove(key);
+		TcpSessionImpl session = map.remove(key);
+		if (session != null) {
+			expirer.remove(session);
+			clearQueues(session);
+		}
+	}
+
+	/**
+	 * Marks the session as seen at the packet's capture time, then expires
+	 * idle sessions and enforces the session/byte budgets.
+	 */
+	public void touch(TcpSessionImpl session, TcpPacket packet) {
+		expirer.advance(getCaptureTime(packet));
+		if (session != null && map.get(session.getKey()) == session)
+			expirer.touch(session);
+		expirer.expire();
+		expireEndpoints();
+	}
+
+	/**
+	 * Expires idle sessions at the given capture time. Live capture can use
+	 * this to drive expiry while no tcp traffic arrives.
+	 */
+	public void expire(long captureTime) {
+		expirer.advance(captureTime);
+		expirer.expire();
+		expireEndpoints();
+	}
+
+	/* called by expirer. reset is fired on forced eviction, finish on idle expiry */
+	void evict(TcpSessionImpl session, boolean reset) {
+		TcpSessionKey key = session.getKey();
+		expirer.remove(session);
+		if (map.get(key) == session)
+			map.remove(key);
+		clearQueues(session);
+
+		Collection<TcpProcessor> processors = session.getTcpProcessors();
+		if (processors == null) {
+			return;
+		}
+
+		for (TcpProcessor p : processors) {
+			if (reset)
+				p.onReset(key);
+			else
+				p.onFinish(key);
+		}
+	}
+
+	private void expireEndpoints() {
+		if (portMapper != null && expirer.getCurrentTime() > 0)
+			portMapper.expireEndpoints(expirer.getCurrentTime());
+	}
+
+	/* release pooled packets still waiting for reassembly */
+	private void clearQueues(TcpSessionImpl session) {
+		session.getClientQueue().clear();
+		session.getServerQueue().clear();
 	}
 
 	public TcpSessionImpl getSession(TcpSessionKey key) {
@@ -93,6 +181,19 @@ public class TcpSessionTable {
 		return map.containsKey(key);
 	}
 	
+	private static long getCaptureTime(TcpPacket packet) {
+		IpPacket ipPacket = packet.getIpPacket();
+		if (ipPacket == null || !(ipPacket.getL2Frame() instanceof EthernetFrame))
+			return -1;
+
+		PcapPacket pcapPacket = ((EthernetFrame) ipPacket.getL2Frame()).getPcapPacket();
+		if (pcapPacket == null)
+			return -1;
+
+		PacketHeader header = pcapPacket.getPacketHeader();
+		return (header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000;
+	}
+
 	private boolean isCorrectConnection(TcpSessionImpl session, TcpPacket packet) {
 		TcpState clientState = session.getClientState();
 
@@ -117,7 +218,7 @@ public class TcpSessionTable {
 		Protocol protocol = mapper.map(segment);
 		session.registerProtocol(protocol);
 
-		Collection<TcpProcessor> processors = mapper.getTcpProcessors(protocol);
+		Collection<TcpProcessor> processors = session.getTcpProcessors();
 		if (processors == null) {
 			return;
 		}
@@ -15,36 +15,282 @@
  */
 package org.krakenapps.pcap.decoder.tcp;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.decoder.ip.IpPacket;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ReferenceCounted;
 
 /**
+ * Out-of-order segments of one direction, ordered by relative sequence
+ * number. Sequence numbers are compared modulo 2^32, so the order survives
+ * sequence wrap-around. Segments sharing a sequence number (pure acks,
+ * retransmissions) are kept in arrival order.
+ * 
+ * Pooled captured packets are retained while their segment is queued. A
+ * segment returned by {@link #poll(int)} is owned by the caller, which should
+ * {@link #release(TcpPacket)} it when done.
+ * 
  * @author mindori
  */
 public class WaitQueue {
-	private final List<TcpPacket> queue;
+	/* the largest tcp payload an ipv4/ipv6 packet can carry */
+	private static final int MAX_SEGMENT_LENGTH = 65535;
+
+	private static final Comparator<Integer> SEQ_ORDER = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer o1, Integer o2) {
+			int diff = o1 - o2;
+			return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+		}
+	};
+
+	private final TreeMap<Integer, ArrayDeque<TcpPacket>> queue;
+	private int size;
+	private long queuedBytes;
+	private long maxBytes;
+	private long droppedCount;
 
 	public WaitQueue() {
-		queue = new ArrayList<TcpPacket>();
+		queue = new TreeMap<Integer, ArrayDeque<TcpPacket>>(SEQ_ORDER);
 	}
 
+	/**
+	 * @deprecated segments are kept in a sorted map, capacity is ignored.
+	 */
+	@Deprecated
 	public WaitQueue(int capacity) {
-		queue = new ArrayList<TcpPacket>(capacity);
+		this();
 	}
 
-	public void enqueue(TcpPacket element) {
-		queue.add(element);
+	/**
+	 * Queues a segment. Segments whose payload is already covered by a queued
+	 * segment are dropped. If the queued bytes exceed the limit, the segments
+	 * farthest from the receive point are dropped.
+	 * 
+	 * @return false if the segment was dropped
+	 */
+	public boolean enqueue(TcpPacket element) {
+		int seq = element.getRelativeSeq();
+		if (isCovered(seq, element)) {
+			droppedCount++;
+			return false;
+		}
+
+		ArrayDeque<TcpPacket> slot = queue.get(seq);
+		if (slot == null) {
+			slot = new ArrayDeque<TcpPacket>(2);
+			queue.put(seq, slot);
+		}
+		slot.add(element);
+		retain(element);
+		size++;
+		queuedBytes += lengthOf(element);
+
+		boolean accepted = true;
+		while (maxBytes > 0 && queuedBytes > maxBytes && !queue.isEmpty()) {
+			TcpPacket p = pollLast();
+			if (p == element)
+				accepted = false;
+			release(p);
+			droppedCount++;
+		}
+		return accepted;
 	}
 
-	public TcpPacket dequeue(int index) {
-		return queue.get(index);
+	/**
+	 * Removes and returns the next segment which starts at or before the
+	 * receive point and ends after it. The overlapped head of the segment is
+	 * trimmed. Stale segments found on the way are discarded.
+	 * 
+	 * @param lastReceived
+	 *            the relative sequence number expected next
+	 * @return the next segment, or null if there is a hole
+	 */
+	public TcpPacket poll(int lastReceived) {
+		while (!queue.isEmpty()) {
+			Entry<Integer, ArrayDeque<TcpPacket>> e = queue.firstEntry();
+			int seq = e.getKey();
+			if (seq - lastReceived > 0)
+				return null;
+
+			TcpPacket p = pollFirst(e);
+			if (seq == lastReceived)
+				return p;
+
+			if (seq + p.getDataLength() - lastReceived > 0 && p.getData() != null) {
+				/* check TCP packet range. drop received data(=garbage) */
+				int garbage = lastReceived - seq;
+				Buffer tcpData = p.getData();
+				tcpData.skip(garbage);
+				tcpData.discardReadBytes();
+				return p;
+			}
+			release(p);
+		}
+		return null;
 	}
 
-	public void remove(int index) {
-		queue.remove(index);
+	/**
+	 * Drops segments beyond the receive window end and cuts the segment
+	 * crossing it.
+	 */
+	public void truncate(int end) {
+		while (!queue.isEmpty() && queue.lastKey() - end >= 0)
+			release(pollLast());
+
+		Iterator<Entry<Integer, ArrayDeque<TcpPacket>>> it = queue.headMap(end, false).descendingMap().entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<Integer, ArrayDeque<TcpPacket>> e = it.next();
+			int seq = e.getKey();
+			if (end - seq > MAX_SEGMENT_LENGTH)
+				break;
+
+			for (TcpPacket p : e.getValue()) {
+				Buffer data = p.getData();
+				if (data == null)
+					continue;
+
+				int lengthOfData = data.readableBytes();
+				if (seq + lengthOfData - end > 0) {
+					/* cut garbage data */
+					data.skip(end - seq);
+					data.flip();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all queued segments.
+	 */
+	public void clear() {
+		for (ArrayDeque<TcpPacket> slot : queue.values())
+			for (TcpPacket p : slot)
+				release(p);
+
+		queue.clear();
+		size = 0;
+		queuedBytes = 0;
 	}
 
 	public int size() {
-		return queue.size();
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the payload bytes of all queued segments, as declared by their
+	 * tcp headers when they were enqueued.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return the queued byte limit, 0 if unlimited
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the number of duplicated or over-limit segments dropped
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	private boolean isCovered(int seq, TcpPacket element) {
+		if (element.getDataLength() <= 0 || element.isFin())
+			return false;
+
+		Entry<Integer, ArrayDeque<TcpPacket>> e = queue.floorEntry(seq);
+		if (e == null)
+			return false;
+
+		int end = seq + element.getDataLength();
+		for (TcpPacket p : e.getValue()) {
+			if (p.getData() != null && e.getKey() + p.getDataLength() - end >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	private TcpPacket pollFirst(Entry<Integer, ArrayDeque<TcpPacket>> e) {
+		ArrayDeque<TcpPacket> slot = e.getValue();
+		TcpPacket p = slot.poll();
+		if (slot.isEmpty())
+			queue.remove(e.getKey());
+
+		size--;
+		queuedBytes -= lengthOf(p);
+		return p;
+	}
+
+	private TcpPacket pollLast() {
+		Entry<Integer, ArrayDeque<TcpPacket>> e = queue.lastEntry();
+		ArrayDeque<TcpPacket> slot = e.getValue();
+		TcpPacket p = slot.pollLast();
+		if (slot.isEmpty())
+			queue.remove(e.getKey());
+
+		size--;
+		queuedBytes -= lengthOf(p);
+		return p;
+	}
+
+	/**
+	 * Returns the payload of the segment. If the segment was captured into a
+	 * pooled buffer, a heap copy is returned so that the payload outlives the
+	 * release of the packet.
+	 */
+	static Buffer detach(TcpPacket p, Buffer data) {
+		PcapPacket packet = getPcapPacket(p);
+		if (packet == null || !(packet.getPacketData() instanceof ReferenceCounted))
+			return data;
+
+		byte[] b = new byte[data.readableBytes()];
+		data.mark();
+		data.gets(b);
+		data.reset();
+		return new ChainBuffer(b);
+	}
+
+	static void retain(TcpPacket p) {
+		PcapPacket packet = getPcapPacket(p);
+		if (packet != null)
+			packet.retain();
+	}
+
+	static void release(TcpPacket p) {
+		PcapPacket packet = getPcapPacket(p);
+		if (packet != null)
+			packet.release();
+	}
+
+	private static PcapPacket getPcapPacket(TcpPacket p) {
+		IpPacket ipPacket = p.getIpPacket();
+		if (ipPacket == null || !(ipPacket.getL2Frame() instanceof EthernetFrame))
+			return null;
+		return ((EthernetFrame) ipPacket.getL2Frame()).getPcapPacket();
+	}
+
+	private static int lengthOf(TcpPacket p) {
+		return Math.max(p.getDataLength(), 0);
 	}
-}
\ No newline at end of file
+}
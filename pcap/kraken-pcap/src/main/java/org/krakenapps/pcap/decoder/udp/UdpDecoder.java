@@ -19,11 +19,16 @@ import java.util.Collection;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.decoder.ip.IpPacket;
 import org.krakenapps.pcap.decoder.ip.Ipv4Packet;
 import org.krakenapps.pcap.decoder.ip.IpProcessor;
 import org.krakenapps.pcap.decoder.ipv6.Ipv6Packet;
 import org.krakenapps.pcap.decoder.ipv6.Ipv6Processor;
+import org.krakenapps.pcap.packet.PcapPacket;
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ReferenceCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,11 +98,14 @@ public class UdpDecoder implements IpProcessor, Ipv6Processor {
 
 	private void dispatch(UdpPacket newUdp) {
 		/* manipulate udp packet from outside */
-		for (UdpProcessor callback : callbacks) {
-			try {
-				callback.process(new UdpPacket(newUdp));
-			} catch (Exception e) {
-				e.printStackTrace();
+		if (!callbacks.isEmpty()) {
+			UdpPacket detached = detach(newUdp);
+			for (UdpProcessor callback : callbacks) {
+				try {
+					callback.process(new UdpPacket(detached));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
 			}
 		}
 
@@ -113,4 +121,26 @@ public class UdpDecoder implements IpProcessor, Ipv6Processor {
 			}
 		}
 	}
+
+	/*
+	 * callbacks may keep the packet, so the payload of a pooled packet is
+	 * copied before the pool recycles it.
+	 */
+	private static UdpPacket detach(UdpPacket p) {
+		IpPacket ipPacket = p.getIpPacket();
+		if (ipPacket == null || !(ipPacket.getL2Frame() instanceof EthernetFrame))
+			return p;
+
+		PcapPacket packet = ((EthernetFrame) ipPacket.getL2Frame()).getPcapPacket();
+		if (packet == null || !(packet.getPacketData() instanceof ReferenceCounted))
+			return p;
+
+		Buffer data = p.getData().duplicate();
+		byte[] b = new byte[data.readableBytes()];
+		data.gets(b);
+
+		UdpPacket copy = new UdpPacket(p);
+		copy.setData(new ChainBuffer(b));
+		return copy;
+	}
 }
\ No newline at end of file
@@ -60,7 +60,7 @@ public class UdpPacket implements Injectable {
 		destination = other.getDestination();
 		length = other.getLength();
 		checksum = other.getChecksum();
-		data = new ChainBuffer(other.getData());
+		data = other.getData().slice();
 	}
 
 	public IpPacket getIpPacket() {
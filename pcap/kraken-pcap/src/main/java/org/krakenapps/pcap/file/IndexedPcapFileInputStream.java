@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.filter.BpfProgram;
+import org.krakenapps.pcap.packet.PcapPacket;
+
+/**
+ * Pcap file reader which jumps to a time or packet number using
+ * {@link PcapIndex}. Seeking costs a binary search over the checkpoints and a
+ * scan of at most one index interval. Time seeks expect the capture to be in
+ * time order.
+ */
+public class IndexedPcapFileInputStream implements PcapInputStream {
+	private static final int GLOBAL_HEADER_LENGTH = 24;
+
+	private MappedPcapFileInputStream is;
+	private PcapIndex index;
+	private long packetNumber;
+	private BpfProgram filter;
+
+	/**
+	 * Opens pcap file with its sidecar index, building the index if needed.
+	 */
+	public IndexedPcapFileInputStream(File file) throws IOException {
+		this(file, PcapIndex.open(file));
+	}
+
+	public IndexedPcapFileInputStream(File file, PcapIndex index) throws IOException {
+		this.is = new MappedPcapFileInputStream(file);
+		this.index = index;
+	}
+
+	public PcapIndex getIndex() {
+		return index;
+	}
+
+	public GlobalHeader getGlobalHeader() {
+		return is.getGlobalHeader();
+	}
+
+	public BpfProgram getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Skips packets rejected by the filter in {@link #getPacket()}. Seeks and
+	 * packet numbers still count every packet of the file.
+	 */
+	public void setFilter(BpfProgram filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * @return the zero-based number of the packet to be read next
+	 */
+	public long getPacketNumber() {
+		return packetNumber;
+	}
+
+	@Override
+	public PcapPacket getPacket() throws IOException {
+		BpfProgram filter = this.filter;
+		if (filter == null) {
+			PcapPacket packet = is.getPacket();
+			packetNumber++;
+			return packet;
+		}
+
+		while (true) {
+			ByteBuffer slice = is.nextSlice();
+			packetNumber++;
+			if (filter.matches(slice, is.getLastHeader().getOrigLen()))
+				return is.toPacket(slice);
+		}
+	}
+
+	/**
+	 * Moves to the first packet whose timestamp is not before the time.
+	 * 
+	 * @param nanos
+	 *            nanoseconds since epoch
+	 * @return false if there is no such packet
+	 */
+	public boolean seekTime(long nanos) throws IOException {
+		/* packets of the same time may precede a checkpoint at the time */
+		int i = index.lowerByTime(nanos);
+		moveTo(i);
+
+		try {
+			while (true) {
+				long position = is.getPosition();
+				is.nextSlice();
+				if (PcapngFileInputStream.toNanos(is.getLastHeader()) >= nanos) {
+					is.setPosition(position);
+					return true;
+				}
+				packetNumber++;
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves to the packet of the zero-based number.
+	 * 
+	 * @return false if the file has less packets
+	 */
+	public boolean seekPacket(long number) throws IOException {
+		int i = index.floorByPacket(number);
+		moveTo(i);
+
+		try {
+			while (packetNumber < number) {
+				is.nextSlice();
+				packetNumber++;
+			}
+
+			long position = is.getPosition();
+			is.nextSlice();
+			is.setPosition(position);
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	private void moveTo(int checkpoint) throws IOException {
+		if (checkpoint < 0) {
+			is.setPosition(GLOBAL_HEADER_LENGTH);
+			packetNumber = 0;
+		} else {
+			is.setPosition(index.getOffset(checkpoint));
+			packetNumber = index.getPacketNumber(checkpoint);
+		}
+	}
+
+	@Override
+	public int datalink() {
+		return is.datalink();
+	}
+
+	@Override
+	public void close() throws IOException {
+		is.close();
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.filter.BpfProgram;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.BufferPool;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.PooledBuffer;
+
+/**
+ * Reads pcap file through a read-only memory mapped window of the file. The
+ * window slides forward when a record crosses its end, so files larger than 2
+ * GB can be read with a bounded address space. Headers are read in the byte
+ * order of the file, so no swap is needed.
+ * 
+ * {@link #nextSlice()} returns the packet data as a slice of the mapped window
+ * without copying. {@link #getPacket()} copies the data once into the returned
+ * packet, because {@link Buffer} is backed by heap arrays.
+ */
+public class MappedPcapFileInputStream implements PcapInputStream {
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private static final int GLOBAL_HEADER_LENGTH = 24;
+	private static final int PACKET_HEADER_LENGTH = 16;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private GlobalHeader globalHeader;
+	private ByteOrder order;
+
+	private final int windowSize;
+	private final long fileSize;
+
+	private MappedByteBuffer window;
+	private long windowOffset;
+
+	private PacketHeader lastHeader;
+	private BufferPool pool;
+	private BpfProgram filter;
+
+	public MappedPcapFileInputStream(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Opens pcap file for memory mapped reading.
+	 * 
+	 * @param file
+	 *            the pcap file to be opened for reading
+	 * @param windowSize
+	 *            the size of the mapped window in bytes. a larger window is
+	 *            mapped when a single record does not fit.
+	 */
+	public MappedPcapFileInputStream(File file, int windowSize) throws IOException {
+		if (windowSize < GLOBAL_HEADER_LENGTH)
+			throw new IllegalArgumentException("window size should be at least " + GLOBAL_HEADER_LENGTH);
+
+		this.windowSize = windowSize;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = channel.size();
+
+		try {
+			readGlobalHeader();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public GlobalHeader getGlobalHeader() {
+		return globalHeader;
+	}
+
+	/**
+	 * @return the byte order of the pcap file
+	 */
+	public ByteOrder order() {
+		return order;
+	}
+
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Copies packet data into pooled buffers in {@link #getPacket()}. The
+	 * caller should release every packet after use.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	public BpfProgram getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Skips packets rejected by the filter in {@link #getPacket()}. The filter
+	 * runs over the mapped slice, so rejected packets are never copied.
+	 * {@link #nextSlice()} is not filtered.
+	 */
+	public void setFilter(BpfProgram filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * @return the file offset of the next record
+	 */
+	public long getPosition() {
+		return windowOffset + window.position();
+	}
+
+	/**
+	 * Moves to the record starting at the specified file offset.
+	 */
+	public void setPosition(long position) throws IOException {
+		if (position < GLOBAL_HEADER_LENGTH || position > fileSize)
+			throw new IllegalArgumentException("invalid position: " + position);
+
+		if (position >= windowOffset && position <= windowOffset + window.limit())
+			window.position((int) (position - windowOffset));
+		else
+			map(position, 0);
+	}
+
+	/**
+	 * @return the header of the packet returned by the last
+	 *         {@link #nextSlice()} or {@link #getPacket()} call
+	 */
+	public PacketHeader getLastHeader() {
+		return lastHeader;
+	}
+
+	/**
+	 * Reads a packet and copies its data to the heap.
+	 * 
+	 * @exception EOFException
+	 *                if there is no more complete record
+	 */
+	@Override
+	public PcapPacket getPacket() throws IOException {
+		BpfProgram filter = this.filter;
+		while (true) {
+			ByteBuffer slice = nextSlice();
+			if (filter == null || filter.matches(slice, lastHeader.getOrigLen()))
+				return toPacket(slice);
+		}
+	}
+
+	/* copies the slice returned by the last nextSlice() */
+	PcapPacket toPacket(ByteBuffer slice) {
+		BufferPool pool = this.pool;
+		if (pool != null) {
+			PooledBuffer buffer = pool.acquire(slice.remaining());
+			slice.get(buffer.array());
+			return new PcapPacket(lastHeader, buffer);
+		}
+
+		byte[] data = new byte[slice.remaining()];
+		slice.get(data);
+
+		Buffer payload = new ChainBuffer();
+		payload.addLast(data);
+		return new PcapPacket(lastHeader, payload);
+	}
+
+	/**
+	 * Reads a packet without copying its data. The returned buffer is a
+	 * read-only view of the mapped window and becomes invalid after the stream
+	 * is closed. Use {@link #getLastHeader()} to get the packet header.
+	 * 
+	 * @exception EOFException
+	 *                if there is no more complete record
+	 */
+	public ByteBuffer nextSlice() throws IOException {
+		if (window.remaining() < PACKET_HEADER_LENGTH)
+			ensure(PACKET_HEADER_LENGTH);
+
+		int begin = window.position();
+		int tsSec = window.getInt(begin);
+		int tsUsec = window.getInt(begin + 4);
+		int inclLen = window.getInt(begin + 8);
+		int origLen = window.getInt(begin + 12);
+
+		if (inclLen < 0 || inclLen > fileSize)
+			throw new IOException("invalid packet length " + (inclLen & 0xffffffffL) + " at offset "
+					+ (windowOffset + begin));
+
+		int recordLength = PACKET_HEADER_LENGTH + inclLen;
+		if (window.remaining() < recordLength) {
+			ensure(recordLength);
+			begin = window.position();
+		}
+
+		int dataOffset = begin + PACKET_HEADER_LENGTH;
+		ByteBuffer slice = window.duplicate();
+		slice.position(dataOffset);
+		slice.limit(dataOffset + inclLen);
+		window.position(dataOffset + inclLen);
+
+		lastHeader = new PacketHeader(tsSec, tsUsec, inclLen, origLen);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	private void readGlobalHeader() throws IOException {
+		if (fileSize < GLOBAL_HEADER_LENGTH)
+			throw new EOFException("pcap global header is truncated");
+
+		map(0, GLOBAL_HEADER_LENGTH);
+
+		/* magic is compared in big endian like PcapFileInputStream does */
+		int magic = window.getInt(0);
+		if (magic == 0xA1B2C3D4)
+			order = ByteOrder.BIG_ENDIAN;
+		else if (magic == 0xD4C3B2A1)
+			order = ByteOrder.LITTLE_ENDIAN;
+		else
+			throw new IOException("invalid pcap magic number: " + Integer.toHexString(magic));
+
+		window.order(order);
+		short major = window.getShort(4);
+		short minor = window.getShort(6);
+		int tz = window.getInt(8);
+		int sigfigs = window.getInt(12);
+		int snaplen = window.getInt(16);
+		int network = window.getInt(20);
+
+		globalHeader = new GlobalHeader(magic, major, minor, tz, sigfigs, snaplen, network);
+		window.position(GLOBAL_HEADER_LENGTH);
+	}
+
+	/* remaps the window from the current record if it holds less than length bytes */
+	private void ensure(int length) throws IOException {
+		long position = windowOffset + window.position();
+		if (fileSize - position < length)
+			throw new EOFException();
+
+		map(position, length);
+	}
+
+	private void map(long position, int minLength) throws IOException {
+		long size = Math.min(Math.max(windowSize, minLength), fileSize - position);
+		window = channel.map(MapMode.READ_ONLY, position, size);
+		if (order != null)
+			window.order(order);
+		windowOffset = position;
+	}
+
+	@Override
+	public int datalink() {
+		return globalHeader.getNetwork();
+	}
+
+	/**
+	 * Closes pcap file handle. The mapped window is released by the garbage
+	 * collector.
+	 */
+	@Override
+	public void close() throws IOException {
+		window = null;
+		raf.close();
+	}
+}
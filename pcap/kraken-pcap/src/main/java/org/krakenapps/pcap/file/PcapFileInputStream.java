@@ -15,6 +15,7 @@
  */
 package org.krakenapps.pcap.file;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -24,11 +25,14 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.filter.BpfProgram;
 import org.krakenapps.pcap.packet.PacketHeader;
 import org.krakenapps.pcap.packet.PcapPacket;
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.BufferPool;
 import org.krakenapps.pcap.util.ByteOrderConverter;
 import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.PooledBuffer;
 
 /**
  * PcapFileInputStream reads pcap packet stream from pcap dump file. At this
@@ -41,6 +45,11 @@ import org.krakenapps.pcap.util.ChainBuffer;
 public class PcapFileInputStream implements PcapInputStream {
 	private DataInputStream is;
 	private GlobalHeader globalHeader;
+	private BufferPool pool;
+	private BpfProgram filter;
+
+	/* packet data is read here while filtering, and copied only if accepted */
+	private byte[] scratch;
 
 	/**
 	 * Opens pcap file input stream.
@@ -68,7 +77,7 @@ public class PcapFileInputStream implements PcapInputStream {
 	 *             reading.
 	 */
 	public PcapFileInputStream(File file) throws IOException {
-		is = new DataInputStream(new FileInputStream(file));
+		is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
 		readGlobalHeader();
 	}
 
@@ -92,6 +101,30 @@ public class PcapFileInputStream implements PcapInputStream {
 		return globalHeader;
 	}
 
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Reads packet data into pooled buffers. The caller should release every
+	 * packet after use.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	public BpfProgram getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Skips packets rejected by the filter in {@link #getPacket()}, before
+	 * allocating packet buffers.
+	 */
+	public void setFilter(BpfProgram filter) {
+		this.filter = filter;
+	}
+
 	private void readGlobalHeader() throws IOException {
 		int magic = is.readInt();
 		short major = is.readShort();
@@ -108,9 +141,25 @@ public class PcapFileInputStream implements PcapInputStream {
 	}
 
 	private PcapPacket readPacket(int magicNumber) throws IOException, EOFException {
-		PacketHeader packetHeader = readPacketHeader(magicNumber);
-		Buffer packetData = readPacketData(packetHeader.getInclLen());
-		return new PcapPacket(packetHeader, packetData);
+		BpfProgram filter = this.filter;
+		if (filter == null) {
+			PacketHeader packetHeader = readPacketHeader(magicNumber);
+			Buffer packetData = readPacketData(packetHeader.getInclLen());
+			return new PcapPacket(packetHeader, packetData);
+		}
+
+		while (true) {
+			PacketHeader packetHeader = readPacketHeader(magicNumber);
+			int length = packetHeader.getInclLen();
+			if (scratch == null || scratch.length < length)
+				scratch = new byte[Math.max(length, 2048)];
+
+			is.readFully(scratch, 0, length);
+			if (filter.filter(scratch, 0, length, packetHeader.getOrigLen()) == 0)
+				continue;
+
+			return new PcapPacket(packetHeader, copyPacketData(length));
+		}
 	}
 
 	private PacketHeader readPacketHeader(int magicNumber) throws IOException, EOFException {
@@ -129,9 +178,34 @@ public class PcapFileInputStream implements PcapInputStream {
 		return new PacketHeader(tsSec, tsUsec, inclLen, origLen);
 	}
 
+	private Buffer copyPacketData(int packetLength) {
+		BufferPool pool = this.pool;
+		if (pool != null) {
+			PooledBuffer buffer = pool.acquire(packetLength);
+			System.arraycopy(scratch, 0, buffer.array(), 0, packetLength);
+			return buffer;
+		}
+
+		byte[] packets = new byte[packetLength];
+		System.arraycopy(scratch, 0, packets, 0, packetLength);
+		return new ChainBuffer(packets);
+	}
+
 	private Buffer readPacketData(int packetLength) throws IOException {
+		BufferPool pool = this.pool;
+		if (pool != null) {
+			PooledBuffer buffer = pool.acquire(packetLength);
+			try {
+				is.readFully(buffer.array());
+			} catch (IOException e) {
+				buffer.release();
+				throw e;
+			}
+			return buffer;
+		}
+
 		byte[] packets = new byte[packetLength];
-		is.read(packets);
+		is.readFully(packets);
 
 		Buffer payload = new ChainBuffer();
 		payload.addLast(packets);
@@ -16,12 +16,11 @@
 package org.krakenapps.pcap.file;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 import org.krakenapps.pcap.PcapOutputStream;
@@ -32,24 +31,56 @@ import org.krakenapps.pcap.util.Buffer;
 /**
  * PcapFileOutputStream writes pcap packet stream to pcap file.
  * 
+ * Records are encoded into a direct buffer and written to the file channel
+ * in blocks. By default every packet is flushed to the file, see
+ * {@link #setGroupCommit(int, long)} and {@link #setAutoFlush(boolean)} for
+ * high packet rates.
+ * 
  * http://wiki.wireshark.org/Development/LibpcapFileFormat
  * @author mindori
  * @since 1.1
  */
 public class PcapFileOutputStream implements PcapOutputStream {
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private static final int GLOBAL_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
 
-	private FileOutputStream fos;
-	
 	private final int datalink;
 
+	private long size;
+
+	private boolean autoFlush = true;
+
+	private int groupCommitCount = 1;
+
+	private long groupCommitDelay;
+
+	private int pendingCount;
+
+	private long pendingSince;
+
 	public PcapFileOutputStream(File file, int datalink) throws IOException {
+		this(file, datalink, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the size of the direct write buffer
+	 */
+	public PcapFileOutputStream(File file, int datalink, int bufferSize) throws IOException {
 		super();
 		this.datalink = datalink;
 
 		if (file.exists()) {
 			throw new IOException("file exists: " + file.getName());
 		}
-		fos = new FileOutputStream(file);
+		channel = new FileOutputStream(file).getChannel();
+		buffer = allocate(bufferSize);
 		createGlobalHeader();
 	}
 
@@ -57,117 +88,212 @@ public class PcapFileOutputStream implements PcapOutputStream {
 		super();
 		this.datalink = header.getNetwork();
 
+		buffer = allocate(DEFAULT_BUFFER_SIZE);
 		if (file.exists()) {
-			fos = new FileOutputStream(file, true);
+			channel = new FileOutputStream(file, true).getChannel();
+			size = channel.size();
 		} else {
-			fos = new FileOutputStream(file);
+			channel = new FileOutputStream(file).getChannel();
 			copyGlobalHeader(header);
 		}
 	}
 
-	private synchronized void createGlobalHeader() throws IOException {
-		/* magic number(swapped) */
-		fos.write(new byte[] { (byte) 0xd4, (byte) 0xc3, (byte) 0xb2, (byte) 0xa1 });
+	private static ByteBuffer allocate(int bufferSize) {
+		if (bufferSize < GLOBAL_HEADER_LENGTH)
+			throw new IllegalArgumentException("buffer size too small: " + bufferSize);
+		return ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getDatalink() {
+		return datalink;
+	}
+
+	/**
+	 * @return the file length including buffered bytes
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	public boolean isAutoFlush() {
+		return autoFlush;
+	}
+
+	/**
+	 * Packets are flushed to the file after every write by default. Disabling
+	 * auto flush lets bulk writers such as merge fill the write buffer before
+	 * each file write.
+	 */
+	public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+
+	public int getGroupCommitCount() {
+		return groupCommitCount;
+	}
+
+	public long getGroupCommitDelay() {
+		return groupCommitDelay;
+	}
 
-		/* major version number */
-		fos.write(new byte[] { 0x2, 0x0 });
+	/**
+	 * Flushes pending packets together once count packets are pending or delay
+	 * milliseconds passed since the first pending packet, whichever comes
+	 * first. Both limits are checked only by {@link #write(PcapPacket)} and
+	 * {@link #flushIfDue()}, so a recorder which may go idle should call
+	 * flushIfDue() from a timer. {@link #flush()}, {@link #sync()} and
+	 * {@link #close()} always write all pending packets. Ignored if auto flush
+	 * is disabled.
+	 * 
+	 * @param count
+	 *            the number of pending packets, 0 to ignore
+	 * @param delay
+	 *            the delay in milliseconds, 0 to ignore
+	 */
+	public synchronized void setGroupCommit(int count, long delay) {
+		if (count < 0 || delay < 0)
+			throw new IllegalArgumentException("negative group commit parameter");
 
-		/* minor version number */
-		fos.write(new byte[] { 0x4, 0x0 });
+		this.groupCommitCount = count;
+		this.groupCommitDelay = delay;
+	}
+
+	private synchronized void createGlobalHeader() throws IOException {
+		/* magic number */
+		buffer.putInt(0xA1B2C3D4);
+
+		/* major and minor version number */
+		buffer.putShort((short) 2);
+		buffer.putShort((short) 4);
 
 		/* GMT to local correction */
-		fos.write(new byte[4]);
+		buffer.putInt(0);
 
 		/* accuracy of timestamps */
-		fos.write(new byte[4]);
+		buffer.putInt(0);
 
 		/* max length of captured packets, in octets */
-		fos.write(new byte[] { (byte) 0xff, (byte) 0xff, 0x0, 0x0 });
+		buffer.putInt(65535);
 
 		/* data link type(ethernet) */
-		byte[] g = intToByteArrayLE(datalink);
-		fos.write(g);
+		buffer.putInt(datalink);
+
+		size += GLOBAL_HEADER_LENGTH;
 	}
-	
+
 	private synchronized void copyGlobalHeader(GlobalHeader header) throws IOException {
-		byte[] a = intToByteArray(header.getMagicNumber());
-		byte[] b = shortToByteArrayLE(header.getMajorVersion());
-		byte[] c = shortToByteArrayLE(header.getMinorVersion());
-		byte[] d = intToByteArrayLE(header.getThiszone());
-		byte[] e = intToByteArrayLE(header.getSigfigs());
-		byte[] f = intToByteArrayLE(header.getSnaplen());
-		byte[] g = intToByteArrayLE(header.getNetwork());
-
-		fos.write(a);
-		
-		fos.write(b);
-		
-		fos.write(c);
-		
-		fos.write(d);
-		
-		fos.write(e);
-		
-		fos.write(f);
-		
-		fos.write(g);
-	}
-	
+		/* all fields are written in little endian, so is the magic number */
+		buffer.putInt(0xA1B2C3D4);
+		buffer.putShort(header.getMajorVersion());
+		buffer.putShort(header.getMinorVersion());
+		buffer.putInt(header.getThiszone());
+		buffer.putInt(header.getSigfigs());
+		buffer.putInt(header.getSnaplen());
+		buffer.putInt(header.getNetwork());
+
+		size += GLOBAL_HEADER_LENGTH;
+	}
+
 	public synchronized void write(PcapPacket packet) throws IOException {
 		PacketHeader packetHeader = packet.getPacketHeader();
+		Buffer payload = packet.getPacketData();
 
-		int tsSec = packetHeader.getTsSec();
-		int tsUsec = packetHeader.getTsUsec();
-		int inclLen = packetHeader.getInclLen();
-		int origLen = packetHeader.getOrigLen();
+		if (buffer.remaining() < RECORD_HEADER_LENGTH)
+			drain();
 
-		addInt(tsSec);
-		addInt(tsUsec);
-		addInt(inclLen);
-		addInt(origLen);
+		buffer.putInt(packetHeader.getTsSec());
+		buffer.putInt(packetHeader.getTsUsec());
+		buffer.putInt(packetHeader.getInclLen());
+		buffer.putInt(packetHeader.getOrigLen());
 
-		Buffer payload = packet.getPacketData();
+		/* copy the chunks from the current position without moving it */
+		int length = payload.readableBytes();
+		List<byte[]> chunks = payload.getBuffers();
+		int index = payload.getBufIndex();
+		int offset = payload.getOffset();
+		int left = length;
+		while (left > 0) {
+			byte[] chunk = chunks.get(index);
+			int chunkLength = Math.min(chunk.length - offset, left);
+			while (chunkLength > 0) {
+				if (!buffer.hasRemaining())
+					drain();
 
-		try {
-			payload.mark();
-			byte[] buf = new byte[payload.readableBytes()];
-			payload.gets(buf);
-			fos.write(buf);
-		} finally {
-			payload.reset();
+				int n = Math.min(buffer.remaining(), chunkLength);
+				buffer.put(chunk, offset, n);
+				offset += n;
+				chunkLength -= n;
+				left -= n;
+			}
+
+			index++;
+			offset = 0;
 		}
 
-		flush();
-	}
+		size += RECORD_HEADER_LENGTH + length;
 
-	private synchronized void addInt(int d) throws IOException {
-		fos.write(intToByteArrayLE(d));
+		if (autoFlush)
+			commit();
 	}
 
-	private static byte[] intToByteArray(int d) {
-		return new byte[] { (byte) (d >>> 24), (byte) (d >>> 16), (byte) (d >>> 8), (byte) d };
-	}
+	private void commit() throws IOException {
+		if (pendingCount++ == 0 && groupCommitDelay > 0)
+			pendingSince = System.currentTimeMillis();
 
-	private static byte[] intToByteArrayLE(int d) {
-		return new byte[] { (byte) d, (byte) (d >>> 8), (byte) (d >>> 16), (byte) (d >>> 24) };
+		if (groupCommitCount > 0 && pendingCount >= groupCommitCount)
+			flush();
+		else if (groupCommitDelay > 0 && System.currentTimeMillis() - pendingSince >= groupCommitDelay)
+			flush();
 	}
 
-	private static byte[] shortToByteArray(short s) {
-		return new byte[] { (byte) (s >>> 8), (byte) s };
+	/**
+	 * Flushes pending packets if the group commit delay has passed since the
+	 * first of them. Recorders call this from a timer, so that the delay also
+	 * holds when no packet arrives.
+	 * 
+	 * @return true if packets were flushed
+	 */
+	public synchronized boolean flushIfDue() throws IOException {
+		if (pendingCount == 0 || groupCommitDelay <= 0)
+			return false;
+		if (System.currentTimeMillis() - pendingSince < groupCommitDelay)
+			return false;
+
+		flush();
+		return true;
 	}
 
-	private static byte[] shortToByteArrayLE(short s) {
-		return new byte[] { (byte) s, (byte) (s >>> 8) };
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
 	}
 
+	/**
+	 * Writes buffered packets to the file. Data is handed to the operating
+	 * system, see {@link #sync()} for durability.
+	 */
 	@Override
 	public synchronized void flush() throws IOException {
-		fos.flush();
+		drain();
+		pendingCount = 0;
+	}
+
+	/**
+	 * Flushes and forces written packets to the storage device.
+	 */
+	public synchronized void sync() throws IOException {
+		flush();
+		channel.force(false);
 	}
 
 	@Override
 	public synchronized void close() throws IOException {
-		flush();
-		fos.close();
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
 	}
 }
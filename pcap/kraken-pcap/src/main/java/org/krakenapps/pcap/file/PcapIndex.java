@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar index of a pcap file. Every n-th packet is recorded as a checkpoint
+ * of (timestamp, packet number, file offset), so a reader can jump near any
+ * time or packet number with a binary search and scan at most n packets.
+ * 
+ * The index is saved next to the pcap file with ".idx" suffix, and it is
+ * rebuilt when the pcap file length or modification time does not match.
+ */
+public class PcapIndex {
+	public static final int DEFAULT_INTERVAL = 1024;
+
+	private static final Logger logger = LoggerFactory.getLogger(PcapIndex.class.getName());
+	private static final int MAGIC = 0x4b504958;
+	private static final int VERSION = 1;
+
+	private long fileLength;
+	private long lastModified;
+	private int interval;
+	private long packetCount;
+
+	private int size;
+	private long[] times;
+	private long[] numbers;
+	private long[] offsets;
+
+	private PcapIndex(long fileLength, long lastModified, int interval, int capacity) {
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.interval = interval;
+		this.times = new long[capacity];
+		this.numbers = new long[capacity];
+		this.offsets = new long[capacity];
+	}
+
+	public static File getIndexFile(File pcap) {
+		return new File(pcap.getPath() + ".idx");
+	}
+
+	/**
+	 * Loads the sidecar index of the pcap file. If it does not exist or it is
+	 * stale, the index is built and saved. Failure to save is logged only.
+	 */
+	public static PcapIndex open(File pcap) throws IOException {
+		File indexFile = getIndexFile(pcap);
+		if (indexFile.exists()) {
+			try {
+				PcapIndex index = load(indexFile);
+				if (index.matches(pcap))
+					return index;
+			} catch (IOException e) {
+				logger.warn("kraken-pcap: cannot load pcap index " + indexFile.getAbsolutePath(), e);
+			}
+		}
+
+		PcapIndex index = build(pcap, DEFAULT_INTERVAL);
+		try {
+			index.save(indexFile);
+		} catch (IOException e) {
+			logger.warn("kraken-pcap: cannot save pcap index " + indexFile.getAbsolutePath(), e);
+		}
+		return index;
+	}
+
+	/**
+	 * Scans the pcap file and records every interval-th packet.
+	 */
+	public static PcapIndex build(File pcap, int interval) throws IOException {
+		if (interval <= 0)
+			throw new IllegalArgumentException("interval should be positive: " + interval);
+
+		PcapIndex index = new PcapIndex(pcap.length(), pcap.lastModified(), interval, 64);
+		MappedPcapFileInputStream is = new MappedPcapFileInputStream(pcap);
+		try {
+			long number = 0;
+			while (true) {
+				long offset = is.getPosition();
+				is.nextSlice();
+				if (number % interval == 0)
+					index.add(PcapngFileInputStream.toNanos(is.getLastHeader()), number, offset);
+				number++;
+				index.packetCount = number;
+			}
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+
+		return index;
+	}
+
+	public static PcapIndex load(File indexFile) throws IOException {
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (is.readInt() != MAGIC)
+				throw new IOException("invalid pcap index: " + indexFile.getName());
+			int version = is.readInt();
+			if (version != VERSION)
+				throw new IOException("unsupported pcap index version " + version + ": " + indexFile.getName());
+
+			long fileLength = is.readLong();
+			long lastModified = is.readLong();
+			int interval = is.readInt();
+			long packetCount = is.readLong();
+			int size = is.readInt();
+			if (interval <= 0 || size < 0)
+				throw new IOException("invalid pcap index: " + indexFile.getName());
+
+			PcapIndex index = new PcapIndex(fileLength, lastModified, interval, size);
+			index.packetCount = packetCount;
+			for (int i = 0; i < size; i++)
+				index.add(is.readLong(), is.readLong(), is.readLong());
+			return index;
+		} finally {
+			is.close();
+		}
+	}
+
+	public void save(File indexFile) throws IOException {
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeLong(fileLength);
+			os.writeLong(lastModified);
+			os.writeInt(interval);
+			os.writeLong(packetCount);
+			os.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				os.writeLong(times[i]);
+				os.writeLong(numbers[i]);
+				os.writeLong(offsets[i]);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * @return true if the index was built from the current pcap file
+	 */
+	public boolean matches(File pcap) {
+		return pcap.length() == fileLength && pcap.lastModified() == lastModified;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the timestamp of the checkpoint in nanoseconds since epoch
+	 */
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	public long getPacketNumber(int i) {
+		return numbers[i];
+	}
+
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * @return the last checkpoint at or before the time, or -1
+	 */
+	public int floorByTime(long nanos) {
+		return floor(times, nanos);
+	}
+
+	/**
+	 * @return the last checkpoint strictly before the time, or -1
+	 */
+	public int lowerByTime(long nanos) {
+		return floor(times, nanos - 1);
+	}
+
+	/**
+	 * @return the last checkpoint at or before the packet number, or -1
+	 */
+	public int floorByPacket(long number) {
+		return floor(numbers, number);
+	}
+
+	private int floor(long[] values, long key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] <= key)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high;
+	}
+
+	private void add(long time, long number, long offset) {
+		if (size == times.length) {
+			int capacity = Math.max(16, size * 2);
+			times = Arrays.copyOf(times, capacity);
+			numbers = Arrays.copyOf(numbers, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+
+		times[size] = time;
+		numbers[size] = number;
+		offsets[size] = offset;
+		size++;
+	}
+}
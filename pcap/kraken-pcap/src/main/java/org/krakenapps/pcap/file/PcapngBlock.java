@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+/**
+ * pcapng block types and option codes.
+ */
+final class PcapngBlock {
+	static final int SECTION_HEADER = 0x0A0D0D0A;
+	static final int INTERFACE_DESCRIPTION = 0x00000001;
+	static final int PACKET = 0x00000002;
+	static final int SIMPLE_PACKET = 0x00000003;
+	static final int ENHANCED_PACKET = 0x00000006;
+
+	/**
+	 * custom block which should not be copied, because it holds file offsets
+	 */
+	static final int CUSTOM_NO_COPY = 0x40000BAD;
+
+	static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	static final int OPT_END = 0;
+	static final int IF_NAME = 2;
+	static final int IF_TSRESOL = 9;
+	static final int IF_TSOFFSET = 14;
+
+	/**
+	 * enterprise number and magic of the kraken block index
+	 */
+	static final int INDEX_PEN = 0x4b524b4e;
+	static final int INDEX_MAGIC = 0x4b494458;
+	static final int INDEX_VERSION = 1;
+
+	private PcapngBlock() {
+	}
+
+	static int pad(int length) {
+		return (length + 3) & ~3;
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+/**
+ * Reads pcapng file. Section header, interface description, enhanced packet,
+ * simple packet and obsolete packet blocks are supported, other blocks are
+ * skipped. Every section is read in its own byte order, and packet timestamps
+ * are converted from the interface resolution to nanoseconds. The datalink of
+ * the returned packet is the link type of its interface.
+ * 
+ * If the file ends with a block index written by {@link PcapngFileOutputStream},
+ * {@link #seek(long)} jumps to the nearest checkpoint instead of scanning the
+ * file from the start.
+ */
+public class PcapngFileInputStream implements PcapInputStream {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	/* read buffer, bufferOffset is the file offset of its first byte */
+	private ByteBuffer buf;
+	private long bufferOffset;
+
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+	private List<PcapngInterface> interfaces = new ArrayList<PcapngInterface>();
+	private int lastInterfaceId = -1;
+	private PcapPacket pending;
+
+	/* block index, checkpoints are sorted by time */
+	private long[] interfaceOffsets;
+	private long[] checkpointTimes;
+	private long[] checkpointOffsets;
+
+	public PcapngFileInputStream(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.limit(0);
+
+		try {
+			if (!ensure(12) || buf.getInt(0) != PcapngBlock.SECTION_HEADER)
+				throw new IOException("not a pcapng file: " + file.getName());
+
+			readBlock();
+			readIndex();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a packet from pcapng file.
+	 * 
+	 * @exception EOFException
+	 *                if there is no more packet block
+	 */
+	@Override
+	public PcapPacket getPacket() throws IOException {
+		if (pending != null) {
+			PcapPacket packet = pending;
+			pending = null;
+			return packet;
+		}
+
+		while (true) {
+			PcapPacket packet = readBlock();
+			if (packet != null)
+				return packet;
+		}
+	}
+
+	/**
+	 * @return the interfaces of the current section
+	 */
+	public List<PcapngInterface> getInterfaces() {
+		return Collections.unmodifiableList(interfaces);
+	}
+
+	/**
+	 * @return the interface id of the last packet
+	 */
+	public int getLastInterfaceId() {
+		return lastInterfaceId;
+	}
+
+	public boolean hasIndex() {
+		return checkpointTimes != null;
+	}
+
+	/**
+	 * Moves to the first packet whose timestamp is not before the specified
+	 * time. Without block index, the file is scanned from the start. Captures
+	 * are expected to be in time order.
+	 * 
+	 * @param nanos
+	 *            nanoseconds since epoch
+	 * @return false if there is no such packet
+	 */
+	public boolean seek(long nanos) throws IOException {
+		pending = null;
+
+		/* packets of the same time may precede a checkpoint at the time */
+		int i = hasIndex() ? lower(checkpointTimes, nanos) : -1;
+		if (i < 0) {
+			setPosition(0);
+		} else {
+			long offset = checkpointOffsets[i];
+			for (int id = interfaces.size(); id < interfaceOffsets.length && interfaceOffsets[id] < offset; id++) {
+				setPosition(interfaceOffsets[id]);
+				readBlock();
+			}
+			setPosition(offset);
+		}
+
+		try {
+			while (true) {
+				PcapPacket packet = getPacket();
+				if (toNanos(packet.getPacketHeader()) >= nanos) {
+					pending = packet;
+					return true;
+				}
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int datalink() {
+		if (interfaces.isEmpty())
+			return -1;
+		return interfaces.get(0).getLinkType();
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	static long toNanos(PacketHeader header) {
+		return (header.getTsSec() & 0xffffffffL) * PcapngInterface.NANOSECONDS + header.getTsNsec();
+	}
+
+	/* reads one block, returns null for blocks other than packet blocks */
+	private PcapPacket readBlock() throws IOException {
+		if (!ensure(12))
+			throw new EOFException();
+
+		int p = buf.position();
+		int type = buf.getInt(p);
+		if (type == PcapngBlock.SECTION_HEADER) {
+			int magic = buf.order(ByteOrder.BIG_ENDIAN).getInt(p + 8);
+			if (magic == PcapngBlock.BYTE_ORDER_MAGIC)
+				order = ByteOrder.BIG_ENDIAN;
+			else if (magic == Integer.reverseBytes(PcapngBlock.BYTE_ORDER_MAGIC))
+				order = ByteOrder.LITTLE_ENDIAN;
+			else
+				throw new IOException("invalid pcapng byte order magic: " + Integer.toHexString(magic));
+			buf.order(order);
+		}
+
+		int length = buf.getInt(p + 4);
+		if (length < 12 || (length & 3) != 0)
+			throw new IOException("invalid pcapng block length " + length + " at offset " + (bufferOffset + p));
+
+		if (!ensure(length))
+			throw new EOFException();
+
+		/* buffer may be compacted by ensure */
+		p = buf.position();
+		PcapPacket packet = null;
+		switch (type) {
+		case PcapngBlock.SECTION_HEADER:
+			interfaces.clear();
+			break;
+		case PcapngBlock.INTERFACE_DESCRIPTION:
+			interfaces.add(readInterface(p, length));
+			break;
+		case PcapngBlock.ENHANCED_PACKET:
+			packet = readPacket(buf.getInt(p + 8), buf.getInt(p + 12), buf.getInt(p + 16), buf.getInt(p + 20),
+					buf.getInt(p + 24), p + 28, length - 32);
+			break;
+		case PcapngBlock.PACKET:
+			packet = readPacket(buf.getShort(p + 8) & 0xffff, buf.getInt(p + 12), buf.getInt(p + 16),
+					buf.getInt(p + 20), buf.getInt(p + 24), p + 28, length - 32);
+			break;
+		case PcapngBlock.SIMPLE_PACKET: {
+			int origLen = buf.getInt(p + 8);
+			int capLen = Math.min(origLen, length - 16);
+			if (!interfaces.isEmpty() && interfaces.get(0).getSnapLen() > 0)
+				capLen = Math.min(capLen, interfaces.get(0).getSnapLen());
+
+			packet = newPacket(0, new PacketHeader(0, 0, capLen, origLen, 0), p + 12);
+			break;
+		}
+		default:
+			break;
+		}
+
+		buf.position(p + length);
+		return packet;
+	}
+
+	private PcapPacket readPacket(int interfaceId, int tsHigh, int tsLow, int capLen, int origLen, int dataOffset,
+			int maxLength) throws IOException {
+		if (interfaceId < 0 || interfaceId >= interfaces.size())
+			throw new IOException("unknown pcapng interface id " + interfaceId);
+		if (capLen < 0 || capLen > maxLength)
+			throw new IOException("invalid pcapng captured length " + capLen);
+
+		long ts = ((long) tsHigh << 32) | (tsLow & 0xffffffffL);
+		long nanos = interfaces.get(interfaceId).toNanos(ts);
+		int sec = (int) (nanos / PcapngInterface.NANOSECONDS);
+		int nsec = (int) (nanos % PcapngInterface.NANOSECONDS);
+
+		return newPacket(interfaceId, new PacketHeader(sec, nsec / 1000, capLen, origLen, nsec), dataOffset);
+	}
+
+	private PcapPacket newPacket(int interfaceId, PacketHeader header, int dataOffset) {
+		byte[] data = new byte[header.getInclLen()];
+		ByteBuffer dup = buf.duplicate();
+		dup.position(dataOffset);
+		dup.get(data);
+
+		Buffer payload = new ChainBuffer();
+		payload.addLast(data);
+
+		lastInterfaceId = interfaceId;
+		PcapPacket packet = new PcapPacket(header, payload);
+		packet.setDatalink(interfaces.isEmpty() ? -1 : interfaces.get(interfaceId).getLinkType());
+		return packet;
+	}
+
+	private PcapngInterface readInterface(int p, int length) {
+		int linkType = buf.getShort(p + 8) & 0xffff;
+		int snapLen = buf.getInt(p + 12);
+		String name = null;
+		long tsUnits = PcapngInterface.MICROSECONDS;
+		long tsOffset = 0;
+
+		int end = p + length - 4;
+		int opt = p + 16;
+		while (opt + 4 <= end) {
+			int code = buf.getShort(opt) & 0xffff;
+			int len = buf.getShort(opt + 2) & 0xffff;
+			int value = opt + 4;
+			if (code == PcapngBlock.OPT_END || value + len > end)
+				break;
+
+			if (code == PcapngBlock.IF_NAME) {
+				byte[] b = new byte[len];
+				ByteBuffer dup = buf.duplicate();
+				dup.position(value);
+				dup.get(b);
+				name = new String(b, UTF8);
+			} else if (code == PcapngBlock.IF_TSRESOL && len >= 1) {
+				int resol = buf.get(value);
+				int exp = resol & 0x7f;
+				if ((resol & 0x80) != 0)
+					tsUnits = 1L << Math.min(exp, 62);
+				else
+					tsUnits = pow10(Math.min(exp, 18));
+			} else if (code == PcapngBlock.IF_TSOFFSET && len >= 8) {
+				tsOffset = buf.getLong(value);
+			}
+
+			opt = value + PcapngBlock.pad(len);
+		}
+
+		return new PcapngInterface(linkType, snapLen, name, tsUnits, tsOffset);
+	}
+
+	private static long pow10(int exp) {
+		long v = 1;
+		for (int i = 0; i < exp; i++)
+			v *= 10;
+		return v;
+	}
+
+	/* loads the block index if the last block of the file is the kraken index */
+	private void readIndex() throws IOException {
+		long size = channel.size();
+		if (size < 28)
+			return;
+
+		ByteBuffer tail = read(size - 4, 4);
+		int length = tail.getInt(0);
+		if (length < 28 || (length & 3) != 0 || length > size)
+			return;
+
+		ByteBuffer b = read(size - length, length);
+		if (b.getInt(0) != PcapngBlock.CUSTOM_NO_COPY || b.getInt(8) != PcapngBlock.INDEX_PEN
+				|| b.getInt(12) != PcapngBlock.INDEX_MAGIC || b.getInt(16) != PcapngBlock.INDEX_VERSION)
+			return;
+
+		int interfaceCount = b.getInt(20);
+		int checkpointCount = b.getInt(24);
+		if (interfaceCount < 0 || checkpointCount < 0
+				|| 32L + interfaceCount * 8L + checkpointCount * 16L > length)
+			return;
+
+		b.position(28);
+		interfaceOffsets = new long[interfaceCount];
+		for (int i = 0; i < interfaceCount; i++)
+			interfaceOffsets[i] = b.getLong();
+
+		long[] times = new long[checkpointCount];
+		checkpointOffsets = new long[checkpointCount];
+		for (int i = 0; i < checkpointCount; i++) {
+			times[i] = b.getLong();
+			checkpointOffsets[i] = b.getLong();
+		}
+		checkpointTimes = times;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length).order(order);
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0)
+				throw new EOFException();
+		}
+		b.flip();
+		return b;
+	}
+
+	/* returns the last index whose value is less than key, or -1 */
+	private static int lower(long[] values, long key) {
+		int low = 0;
+		int high = values.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < key)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high;
+	}
+
+	private void setPosition(long position) throws IOException {
+		if (position >= bufferOffset && position <= bufferOffset + buf.limit()) {
+			buf.position((int) (position - bufferOffset));
+			return;
+		}
+
+		channel.position(position);
+		buf.clear();
+		buf.limit(0);
+		bufferOffset = position;
+	}
+
+	/* makes at least length bytes readable, returns false at end of file */
+	private boolean ensure(int length) throws IOException {
+		if (buf.remaining() >= length)
+			return true;
+
+		int consumed = buf.position();
+		if (length > buf.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(length, buf.capacity() * 2));
+			larger.put(buf);
+			buf = larger;
+		} else {
+			buf.compact();
+		}
+		buf.order(order);
+		bufferOffset += consumed;
+
+		while (buf.position() < length) {
+			if (channel.read(buf) < 0)
+				break;
+		}
+
+		buf.flip();
+		return buf.remaining() >= length;
+	}
+}
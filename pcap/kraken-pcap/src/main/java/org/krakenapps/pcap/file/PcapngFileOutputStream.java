@@ -0,0 +1,266 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.pcap.PcapOutputStream;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+
+/**
+ * Writes pcapng file with a single little endian section. Packets are written
+ * as enhanced packet blocks. An interface is added for each link type on
+ * demand, or explicitly by {@link #addInterface(int, int, boolean)}.
+ * 
+ * Unless the index interval is 0, every n-th packet offset is recorded and a
+ * block index is appended on close, which lets {@link PcapngFileInputStream}
+ * seek by time. The index is a custom block, so other readers skip it.
+ */
+public class PcapngFileOutputStream implements PcapOutputStream {
+	public static final int DEFAULT_INDEX_INTERVAL = 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private FileOutputStream fos;
+	private FileChannel channel;
+	private ByteBuffer buf;
+	private long position;
+
+	private final int datalink;
+	private List<PcapngInterface> interfaces = new ArrayList<PcapngInterface>();
+
+	private int indexInterval = DEFAULT_INDEX_INTERVAL;
+	private long packetCount;
+	private List<Long> interfaceOffsets = new ArrayList<Long>();
+	private List<long[]> checkpoints = new ArrayList<long[]>();
+
+	/**
+	 * Creates pcapng file.
+	 * 
+	 * @param file
+	 *            the file to be created
+	 * @param datalink
+	 *            the link type of packets which have no datalink
+	 */
+	public PcapngFileOutputStream(File file, int datalink) throws IOException {
+		if (file.exists())
+			throw new IOException("file exists: " + file.getName());
+
+		this.datalink = datalink;
+		this.fos = new FileOutputStream(file);
+		this.channel = fos.getChannel();
+		this.buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		writeSectionHeader();
+	}
+
+	public int getIndexInterval() {
+		return indexInterval;
+	}
+
+	/**
+	 * @param indexInterval
+	 *            the packet count between index checkpoints, 0 disables the
+	 *            block index
+	 */
+	public void setIndexInterval(int indexInterval) {
+		if (indexInterval < 0)
+			throw new IllegalArgumentException("negative index interval: " + indexInterval);
+		this.indexInterval = indexInterval;
+	}
+
+	/**
+	 * Writes interface description block.
+	 * 
+	 * @param nanosecond
+	 *            true for nanosecond timestamps, otherwise microsecond
+	 * @return the interface id
+	 */
+	public synchronized int addInterface(int linkType, int snapLen, boolean nanosecond) throws IOException {
+		int length = nanosecond ? 32 : 20;
+		ByteBuffer b = block(length);
+		interfaceOffsets.add(position + buf.position());
+
+		b.putInt(PcapngBlock.INTERFACE_DESCRIPTION);
+		b.putInt(length);
+		b.putShort((short) linkType);
+		b.putShort((short) 0);
+		b.putInt(snapLen);
+		if (nanosecond) {
+			b.putShort((short) PcapngBlock.IF_TSRESOL);
+			b.putShort((short) 1);
+			b.putInt(9);
+			b.putInt(PcapngBlock.OPT_END);
+		}
+		b.putInt(length);
+
+		long units = nanosecond ? PcapngInterface.NANOSECONDS : PcapngInterface.MICROSECONDS;
+		interfaces.add(new PcapngInterface(linkType, snapLen, null, units, 0));
+		return interfaces.size() - 1;
+	}
+
+	/**
+	 * Writes packet to the interface of its datalink. A nanosecond resolution
+	 * interface is added if there is none yet.
+	 */
+	@Override
+	public synchronized void write(PcapPacket packet) throws IOException {
+		int linkType = packet.getDatalink() == -1 ? datalink : packet.getDatalink();
+		int id = -1;
+		for (int i = 0; i < interfaces.size(); i++) {
+			if (interfaces.get(i).getLinkType() == linkType) {
+				id = i;
+				break;
+			}
+		}
+
+		if (id < 0)
+			id = addInterface(linkType, 65535, true);
+
+		write(id, packet);
+	}
+
+	public synchronized void write(int interfaceId, PcapPacket packet) throws IOException {
+		if (interfaceId < 0 || interfaceId >= interfaces.size())
+			throw new IllegalArgumentException("unknown interface id: " + interfaceId);
+
+		PacketHeader header = packet.getPacketHeader();
+		long nanos = PcapngFileInputStream.toNanos(header);
+		long ts = interfaces.get(interfaceId).fromNanos(nanos);
+
+		Buffer payload = packet.getPacketData();
+		int capLen = payload.readableBytes();
+		int length = 32 + PcapngBlock.pad(capLen);
+		ByteBuffer b = block(length);
+
+		payload.mark();
+		try {
+
+			if (indexInterval > 0 && packetCount % indexInterval == 0)
+				checkpoints.add(new long[] { nanos, position + buf.position() });
+			packetCount++;
+
+			b.putInt(PcapngBlock.ENHANCED_PACKET);
+			b.putInt(length);
+			b.putInt(interfaceId);
+			b.putInt((int) (ts >>> 32));
+			b.putInt((int) ts);
+			b.putInt(capLen);
+			b.putInt(header.getOrigLen());
+			if (b.hasArray()) {
+				payload.gets(b.array(), b.arrayOffset() + b.position(), capLen);
+				b.position(b.position() + capLen);
+			} else {
+				byte[] data = new byte[capLen];
+				payload.gets(data);
+				b.put(data);
+			}
+			for (int i = capLen; i < PcapngBlock.pad(capLen); i++)
+				b.put((byte) 0);
+			b.putInt(length);
+		} finally {
+			payload.reset();
+		}
+
+		if (b != buf)
+			flushBlock(b);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			position += channel.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Appends the block index if enabled, and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (indexInterval > 0)
+				writeIndex();
+			flush();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private void writeSectionHeader() throws IOException {
+		ByteBuffer b = block(28);
+		b.putInt(PcapngBlock.SECTION_HEADER);
+		b.putInt(28);
+		b.putInt(PcapngBlock.BYTE_ORDER_MAGIC);
+		b.putShort((short) 1);
+		b.putShort((short) 0);
+		/* section length is not specified */
+		b.putLong(-1L);
+		b.putInt(28);
+	}
+
+	private void writeIndex() throws IOException {
+		int length = 32 + interfaceOffsets.size() * 8 + checkpoints.size() * 16;
+		ByteBuffer b = block(length);
+		b.putInt(PcapngBlock.CUSTOM_NO_COPY);
+		b.putInt(length);
+		b.putInt(PcapngBlock.INDEX_PEN);
+		b.putInt(PcapngBlock.INDEX_MAGIC);
+		b.putInt(PcapngBlock.INDEX_VERSION);
+		b.putInt(interfaceOffsets.size());
+		b.putInt(checkpoints.size());
+		for (long offset : interfaceOffsets)
+			b.putLong(offset);
+		for (long[] checkpoint : checkpoints) {
+			b.putLong(checkpoint[0]);
+			b.putLong(checkpoint[1]);
+		}
+		b.putInt(length);
+
+		if (b != buf)
+			flushBlock(b);
+	}
+
+	/*
+	 * returns the write buffer with room for the block, or a dedicated buffer
+	 * if the block is larger than the write buffer
+	 */
+	private ByteBuffer block(int length) throws IOException {
+		if (buf.remaining() >= length)
+			return buf;
+
+		flush();
+		if (length <= buf.capacity())
+			return buf;
+
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void flushBlock(ByteBuffer b) throws IOException {
+		b.flip();
+		while (b.hasRemaining())
+			position += channel.write(b);
+	}
+}
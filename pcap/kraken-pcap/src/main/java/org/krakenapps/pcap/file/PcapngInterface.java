@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+/**
+ * Interface description of a pcapng section. Packet blocks refer to it by its
+ * index in the section.
+ */
+public class PcapngInterface {
+	static final long MICROSECONDS = 1000000L;
+	static final long NANOSECONDS = 1000000000L;
+
+	private int linkType;
+	private int snapLen;
+	private String name;
+
+	/**
+	 * timestamp units per second, from if_tsresol
+	 */
+	private long tsUnits;
+
+	/**
+	 * seconds added to every timestamp, from if_tsoffset
+	 */
+	private long tsOffset;
+
+	PcapngInterface(int linkType, int snapLen, String name, long tsUnits, long tsOffset) {
+		this.linkType = linkType;
+		this.snapLen = snapLen;
+		this.name = name;
+		this.tsUnits = tsUnits;
+		this.tsOffset = tsOffset;
+	}
+
+	public int getLinkType() {
+		return linkType;
+	}
+
+	public int getSnapLen() {
+		return snapLen;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the timestamp units per second
+	 */
+	public long getTimestampUnits() {
+		return tsUnits;
+	}
+
+	public long getTimestampOffset() {
+		return tsOffset;
+	}
+
+	/**
+	 * Converts a raw block timestamp to nanoseconds since epoch.
+	 */
+	long toNanos(long ts) {
+		long sec = ts / tsUnits + tsOffset;
+		long frac = ts % tsUnits;
+		if (tsUnits <= NANOSECONDS && NANOSECONDS % tsUnits == 0)
+			return sec * NANOSECONDS + frac * (NANOSECONDS / tsUnits);
+		return sec * NANOSECONDS + (long) ((double) frac * NANOSECONDS / tsUnits);
+	}
+
+	/**
+	 * Converts nanoseconds since epoch to a raw block timestamp.
+	 */
+	long fromNanos(long nanos) {
+		long sec = nanos / NANOSECONDS - tsOffset;
+		long frac = nanos % NANOSECONDS;
+		return sec * tsUnits + frac * tsUnits / NANOSECONDS;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("link type: %d, snaplen: %d, name: %s, ts units: %d", linkType, snapLen, name, tsUnits);
+	}
+}
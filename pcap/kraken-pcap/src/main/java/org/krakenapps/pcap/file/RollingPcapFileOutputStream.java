@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.pcap.PcapOutputStream;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes packets to a ring of pcap files, like tcpdump -C, -G and -W. A new
+ * file is started when the current file would exceed the file size limit or
+ * when the capture time passed the rotate interval. The oldest files are
+ * deleted to keep the file count and the total disk usage within their
+ * limits. All limits are disabled (0) by default.
+ * 
+ * Files are named after the base file with a sequence number before the
+ * extension, e.g. capture-0.pcap, capture-1.pcap for capture.pcap.
+ */
+public class RollingPcapFileOutputStream implements PcapOutputStream {
+	private final Logger logger = LoggerFactory.getLogger(RollingPcapFileOutputStream.class.getName());
+
+	private final File dir;
+	private final String prefix;
+	private final String suffix;
+	private final int datalink;
+
+	private long maxFileSize;
+	private long rotateInterval;
+	private int maxFileCount;
+	private long maxTotalBytes;
+
+	private int bufferSize = PcapFileOutputStream.DEFAULT_BUFFER_SIZE;
+	private boolean autoFlush = true;
+	private int groupCommitCount = 1;
+	private long groupCommitDelay;
+
+	private final ArrayDeque<File> closedFiles = new ArrayDeque<File>();
+	private final ArrayDeque<Long> closedSizes = new ArrayDeque<Long>();
+	private long closedBytes;
+
+	private PcapFileOutputStream current;
+	private File currentFile;
+	private long currentStart;
+	private int sequence;
+	private long rotatedCount;
+	private long deletedCount;
+
+	public RollingPcapFileOutputStream(File base, int datalink) {
+		String name = base.getName();
+		int p = name.lastIndexOf('.');
+
+		this.dir = base.getAbsoluteFile().getParentFile();
+		this.prefix = p > 0 ? name.substring(0, p) : name;
+		this.suffix = p > 0 ? name.substring(p) : "";
+		this.datalink = datalink;
+	}
+
+	/**
+	 * @return the file size limit in bytes, 0 if unlimited
+	 */
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @return the rotate interval in milliseconds of capture time, 0 if
+	 *         disabled
+	 */
+	public long getRotateInterval() {
+		return rotateInterval;
+	}
+
+	public void setRotateInterval(long rotateInterval) {
+		this.rotateInterval = rotateInterval;
+	}
+
+	/**
+	 * @return the number of files kept including the current file, 0 if
+	 *         unlimited
+	 */
+	public int getMaxFileCount() {
+		return maxFileCount;
+	}
+
+	public void setMaxFileCount(int maxFileCount) {
+		this.maxFileCount = maxFileCount;
+	}
+
+	/**
+	 * @return the disk budget of all files in bytes, 0 if unlimited. the
+	 *         current file is never deleted.
+	 */
+	public long getMaxTotalBytes() {
+		return maxTotalBytes;
+	}
+
+	public void setMaxTotalBytes(long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * Sets the write buffer size of files opened after this call.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @see PcapFileOutputStream#setAutoFlush(boolean)
+	 */
+	public synchronized void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+		if (current != null)
+			current.setAutoFlush(autoFlush);
+	}
+
+	/**
+	 * @see PcapFileOutputStream#setGroupCommit(int, long)
+	 */
+	public synchronized void setGroupCommit(int count, long delay) {
+		if (current != null)
+			current.setGroupCommit(count, delay);
+
+		this.groupCommitCount = count;
+		this.groupCommitDelay = delay;
+	}
+
+	public synchronized File getCurrentFile() {
+		return currentFile;
+	}
+
+	/**
+	 * @return the files on disk from the oldest to the current one
+	 */
+	public synchronized List<File> getFiles() {
+		List<File> files = new ArrayList<File>(closedFiles);
+		if (currentFile != null)
+			files.add(currentFile);
+		return files;
+	}
+
+	public synchronized long getTotalBytes() {
+		return closedBytes + (current != null ? current.size() : 0);
+	}
+
+	public synchronized long getRotatedCount() {
+		return rotatedCount;
+	}
+
+	public synchronized long getDeletedCount() {
+		return deletedCount;
+	}
+
+	@Override
+	public synchronized void write(PcapPacket packet) throws IOException {
+		PacketHeader header = packet.getPacketHeader();
+		long time = (header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000;
+		long length = 16 + packet.getPacketData().readableBytes();
+
+		if (current == null) {
+			open(time);
+		} else if (isRotateTime(time) || isFull(length)) {
+			closeCurrent();
+			rotatedCount++;
+			open(time);
+		}
+
+		current.write(packet);
+		enforceBudget();
+	}
+
+	private boolean isRotateTime(long time) {
+		return rotateInterval > 0 && time - currentStart >= rotateInterval;
+	}
+
+	/* a file holds at least one packet, even if it exceeds the size limit */
+	private boolean isFull(long length) {
+		long size = current.size();
+		return maxFileSize > 0 && size > 24 && size + length > maxFileSize;
+	}
+
+	private void open(long time) throws IOException {
+		File file = nextFile();
+		current = new PcapFileOutputStream(file, datalink, bufferSize);
+		current.setAutoFlush(autoFlush);
+		current.setGroupCommit(groupCommitCount, groupCommitDelay);
+		currentFile = file;
+		currentStart = time;
+
+		while (maxFileCount > 0 && closedFiles.size() + 1 > maxFileCount)
+			deleteOldest();
+	}
+
+	private File nextFile() {
+		while (true) {
+			File file = new File(dir, prefix + "-" + sequence++ + suffix);
+			if (!file.exists())
+				return file;
+		}
+	}
+
+	private void enforceBudget() {
+		if (maxTotalBytes <= 0)
+			return;
+
+		long currentSize = current.size();
+		while (!closedFiles.isEmpty() && closedBytes + currentSize > maxTotalBytes)
+			deleteOldest();
+	}
+
+	private void deleteOldest() {
+		File file = closedFiles.poll();
+		closedBytes -= closedSizes.poll();
+		if (!file.delete())
+			logger.warn("kraken-pcap: cannot delete rotated pcap file {}", file.getAbsolutePath());
+		deletedCount++;
+	}
+
+	private void closeCurrent() throws IOException {
+		try {
+			current.close();
+		} finally {
+			closedFiles.add(currentFile);
+			closedSizes.add(current.size());
+			closedBytes += current.size();
+			current = null;
+			currentFile = null;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (current != null)
+			current.flush();
+	}
+
+	/**
+	 * @see PcapFileOutputStream#flushIfDue()
+	 */
+	public synchronized boolean flushIfDue() throws IOException {
+		return current != null && current.flushIfDue();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (current != null)
+			closeCurrent();
+	}
+}
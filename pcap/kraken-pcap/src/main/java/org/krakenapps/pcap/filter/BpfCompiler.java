@@ -0,0 +1,682 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.filter;
+
+import static org.krakenapps.pcap.filter.BpfInstruction.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a subset of the tcpdump filter syntax into a {@link BpfProgram}.
+ * Supported primitives are {@code ip}, {@code ip6}, {@code arp},
+ * {@code tcp}, {@code udp}, {@code sctp}, {@code icmp}, {@code icmp6},
+ * {@code host}, {@code net}, {@code port} and {@code portrange} with optional
+ * {@code src}/{@code dst} and protocol qualifiers, {@code len} comparisons,
+ * {@code greater} and {@code less}, combined with {@code and}, {@code or},
+ * {@code not} and parentheses. Host names are not resolved, and primitives
+ * see the outermost headers of VLAN tagged or tunneled frames.
+ */
+public class BpfCompiler {
+	/* MAXIMUM_SNAPLEN of libpcap, returned for accepted packets */
+	public static final int ACCEPT_LENGTH = 262144;
+
+	public static final int LINKTYPE_ETHERNET = 1;
+	public static final int LINKTYPE_RAW = 101;
+	public static final int LINKTYPE_LINUX_SLL = 113;
+
+	/* DLT_RAW values used by pcap files of some platforms */
+	private static final int DLT_RAW = 12;
+	private static final int DLT_RAW_BSD = 14;
+
+	private static final int ETHERTYPE_IP = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86dd;
+	private static final int ETHERTYPE_ARP = 0x0806;
+
+	private static final int IPPROTO_ICMP = 1;
+	private static final int IPPROTO_TCP = 6;
+	private static final int IPPROTO_UDP = 17;
+	private static final int IPPROTO_ICMPV6 = 58;
+	private static final int IPPROTO_SCTP = 132;
+
+	private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+	private static final int SRC = 1;
+	private static final int DST = 2;
+	private static final int SRC_OR_DST = 3;
+	private static final int SRC_AND_DST = 4;
+
+	/* link header length, and ethertype offset or -1 for raw ip */
+	private final int linkLength;
+	private final int typeOffset;
+
+	private List<String> tokens;
+	private int pos;
+
+	/* qualifiers of the last primitive, reused by "host a or b" */
+	private String lastProto;
+	private int lastDir;
+	private String lastType;
+
+	private BpfCompiler(int datalink) {
+		switch (datalink) {
+		case LINKTYPE_ETHERNET:
+			linkLength = 14;
+			typeOffset = 12;
+			break;
+		case LINKTYPE_LINUX_SLL:
+			linkLength = 16;
+			typeOffset = 14;
+			break;
+		case LINKTYPE_RAW:
+		case DLT_RAW:
+		case DLT_RAW_BSD:
+			linkLength = 0;
+			typeOffset = -1;
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported datalink for bpf filter: " + datalink);
+		}
+	}
+
+	/**
+	 * Compiles the filter expression for the datalink of a pcap file. An empty
+	 * expression accepts every packet.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the expression has syntax errors, or the datalink is not
+	 *             ethernet, linux cooked or raw ip
+	 */
+	public static BpfProgram compile(String expression, int datalink) {
+		BpfCompiler compiler = new BpfCompiler(datalink);
+		compiler.tokens = tokenize(expression);
+		if (compiler.tokens.isEmpty())
+			return new BpfProgram(Collections.singletonList(new BpfInstruction(RET | K, ACCEPT_LENGTH)));
+
+		Node root = compiler.parseOr();
+		if (compiler.pos < compiler.tokens.size())
+			throw compiler.syntaxError();
+
+		Generator g = new Generator();
+		int accept = g.label();
+		int reject = g.label();
+		root.generate(g, accept, reject);
+		g.place(accept);
+		g.statement(RET | K, ACCEPT_LENGTH);
+		g.place(reject);
+		g.statement(RET | K, 0);
+		return new BpfProgram(g.resolve());
+	}
+
+	private static List<String> tokenize(String s) {
+		List<String> tokens = new ArrayList<String>();
+		if (s == null)
+			return tokens;
+
+		int i = 0;
+		int length = s.length();
+		while (i < length) {
+			char c = s.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '(' || c == ')') {
+				tokens.add(String.valueOf(c));
+				i++;
+			} else if (s.startsWith("&&", i) || s.startsWith("||", i) || s.startsWith("<=", i)
+					|| s.startsWith(">=", i) || s.startsWith("==", i) || s.startsWith("!=", i)) {
+				tokens.add(s.substring(i, i + 2));
+				i += 2;
+			} else if (c == '!' || c == '<' || c == '>' || c == '=') {
+				tokens.add(String.valueOf(c));
+				i++;
+			} else {
+				int begin = i;
+				while (i < length && !Character.isWhitespace(s.charAt(i)) && "()!&|<>=".indexOf(s.charAt(i)) < 0)
+					i++;
+				if (i == begin)
+					throw new IllegalArgumentException("bpf syntax error near '" + s.substring(begin) + "'");
+				tokens.add(s.substring(begin, i));
+			}
+		}
+		return tokens;
+	}
+
+	//
+	// parser
+	//
+
+	private Node parseOr() {
+		Node node = parseAnd();
+		while (accept("or") || accept("||"))
+			node = new Or(node, parseAnd());
+		return node;
+	}
+
+	private Node parseAnd() {
+		Node node = parseNot();
+		while (accept("and") || accept("&&"))
+			node = new And(node, parseNot());
+		return node;
+	}
+
+	private Node parseNot() {
+		if (accept("not") || accept("!"))
+			return new Not(parseNot());
+
+		if (accept("(")) {
+			Node node = parseOr();
+			if (!accept(")"))
+				throw syntaxError();
+			return node;
+		}
+
+		return parsePrimitive();
+	}
+
+	private Node parsePrimitive() {
+		String token = next();
+		String word = token.toLowerCase();
+		if (word.equals("len")) {
+			String op = next();
+			return lengthCompare(op, parseNumber(next()));
+		}
+		if (word.equals("greater"))
+			return new Compare(W | LEN, 0, -1, JGE, parseNumber(next()));
+		if (word.equals("less"))
+			return new Not(new Compare(W | LEN, 0, -1, JGT, parseNumber(next())));
+		if (word.equals("arp"))
+			return etherType(ETHERTYPE_ARP);
+		if (word.equals("icmp"))
+			return ipProtocol(IPPROTO_ICMP);
+		if (word.equals("icmp6"))
+			return ip6Protocol(IPPROTO_ICMPV6);
+
+		if (word.equals("ip") || word.equals("ip6") || word.equals("tcp") || word.equals("udp")
+				|| word.equals("sctp")) {
+			if (isQualifier(peek()))
+				return parseQualified(word);
+			return protocol(word);
+		}
+
+		if (isQualifier(word)) {
+			pos--;
+			return parseQualified(null);
+		}
+
+		/* "host a or b" repeats the qualifiers of the last primitive */
+		if (lastType != null && (Character.isDigit(word.charAt(0)) || word.indexOf(':') >= 0))
+			return primitive(lastProto, lastDir, lastType, token);
+
+		pos--;
+		throw syntaxError();
+	}
+
+	private Node parseQualified(String proto) {
+		int dir = SRC_OR_DST;
+		boolean hasDir = false;
+		String word = peekWord();
+		if (word.equals("src") || word.equals("dst")) {
+			pos++;
+			hasDir = true;
+			dir = word.equals("src") ? SRC : DST;
+			String other = word.equals("src") ? "dst" : "src";
+			String conj = peekWord();
+			if ((conj.equals("or") || conj.equals("and")) && pos + 1 < tokens.size()
+					&& tokens.get(pos + 1).equalsIgnoreCase(other)) {
+				pos += 2;
+				dir = conj.equals("or") ? SRC_OR_DST : SRC_AND_DST;
+			}
+		}
+
+		String type = peekWord();
+		if (type.equals("host") || type.equals("net") || type.equals("port") || type.equals("portrange")) {
+			pos++;
+		} else if (hasDir) {
+			type = "host";
+		} else {
+			throw syntaxError();
+		}
+
+		lastProto = proto;
+		lastDir = dir;
+		lastType = type;
+		return primitive(proto, dir, type, next());
+	}
+
+	private boolean isQualifier(String token) {
+		if (token == null)
+			return false;
+		String word = token.toLowerCase();
+		return word.equals("src") || word.equals("dst") || word.equals("host") || word.equals("net")
+				|| word.equals("port") || word.equals("portrange");
+	}
+
+	private Node lengthCompare(String op, int value) {
+		if (op.equals(">"))
+			return new Compare(W | LEN, 0, -1, JGT, value);
+		if (op.equals(">="))
+			return new Compare(W | LEN, 0, -1, JGE, value);
+		if (op.equals("<"))
+			return new Not(new Compare(W | LEN, 0, -1, JGE, value));
+		if (op.equals("<="))
+			return new Not(new Compare(W | LEN, 0, -1, JGT, value));
+		if (op.equals("=") || op.equals("=="))
+			return new Compare(W | LEN, 0, -1, JEQ, value);
+		if (op.equals("!="))
+			return new Not(new Compare(W | LEN, 0, -1, JEQ, value));
+
+		pos--;
+		throw syntaxError();
+	}
+
+	private boolean accept(String word) {
+		if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(word)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private String peek() {
+		return pos < tokens.size() ? tokens.get(pos) : null;
+	}
+
+	private String peekWord() {
+		return pos < tokens.size() ? tokens.get(pos).toLowerCase() : "";
+	}
+
+	private String next() {
+		if (pos >= tokens.size())
+			throw new IllegalArgumentException("bpf syntax error: unexpected end of expression");
+		return tokens.get(pos++);
+	}
+
+	private IllegalArgumentException syntaxError() {
+		if (pos >= tokens.size())
+			return new IllegalArgumentException("bpf syntax error: unexpected end of expression");
+		return new IllegalArgumentException("bpf syntax error near '" + tokens.get(pos) + "'");
+	}
+
+	private static int parseNumber(String token) {
+		try {
+			if (token.startsWith("0x") || token.startsWith("0X"))
+				return (int) Long.parseLong(token.substring(2), 16);
+			long n = Long.parseLong(token);
+			if (n < 0 || n > 0xffffffffL)
+				throw new IllegalArgumentException("bpf number out of range: " + token);
+			return (int) n;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bpf syntax error: invalid number '" + token + "'");
+		}
+	}
+
+	private static byte[] parseAddress(String token) {
+		if (token.indexOf(':') < 0 && !IPV4.matcher(token).matches())
+			throw new IllegalArgumentException("bpf filter supports address literals only: " + token);
+
+		try {
+			return InetAddress.getByName(token).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("bpf syntax error: invalid address '" + token + "'");
+		}
+	}
+
+	//
+	// primitives
+	//
+
+	private Node primitive(String proto, int dir, String type, String id) {
+		if (type.equals("host") || type.equals("net"))
+			return address(proto, dir, type, id);
+
+		int low;
+		int high;
+		if (type.equals("port")) {
+			low = high = parsePort(id);
+		} else {
+			int dash = id.indexOf('-');
+			if (dash < 0)
+				throw new IllegalArgumentException("bpf syntax error: invalid port range '" + id + "'");
+			low = parsePort(id.substring(0, dash));
+			high = parsePort(id.substring(dash + 1));
+			if (low > high) {
+				int t = low;
+				low = high;
+				high = t;
+			}
+		}
+		return port(proto, dir, low, high);
+	}
+
+	private static int parsePort(String token) {
+		int port = parseNumber(token);
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException("bpf port out of range: " + token);
+		return port;
+	}
+
+	private Node address(String proto, int dir, String type, String id) {
+		int prefix = -1;
+		String literal = id;
+		if (type.equals("net")) {
+			int slash = id.indexOf('/');
+			if (slash >= 0) {
+				literal = id.substring(0, slash);
+				prefix = parseNumber(id.substring(slash + 1));
+			}
+		}
+
+		byte[] addr = parseAddress(literal);
+		int bits = addr.length * 8;
+		if (prefix < 0)
+			prefix = bits;
+		if (prefix > bits)
+			throw new IllegalArgumentException("bpf netmask out of range: " + id);
+
+		if (addr.length == 4) {
+			if (proto != null && !proto.equals("ip"))
+				throw new IllegalArgumentException("bpf filter does not support '" + proto + " " + type + "'");
+			Node src = addressCompare(linkLength + 12, addr, prefix, id);
+			Node dst = addressCompare(linkLength + 16, addr, prefix, id);
+			return new And(etherType(ETHERTYPE_IP), direction(dir, src, dst));
+		}
+
+		if (proto != null && !proto.equals("ip6"))
+			throw new IllegalArgumentException("bpf filter does not support '" + proto + " " + type + "'");
+		Node src = addressCompare(linkLength + 8, addr, prefix, id);
+		Node dst = addressCompare(linkLength + 24, addr, prefix, id);
+		return new And(etherType(ETHERTYPE_IPV6), direction(dir, src, dst));
+	}
+
+	/* compares the address word by word, skipping words outside of prefix */
+	private Node addressCompare(int offset, byte[] addr, int prefix, String id) {
+		Node node = null;
+		for (int i = 0; i < addr.length / 4; i++) {
+			int bits = Math.min(Math.max(prefix - i * 32, 0), 32);
+			int word = (addr[i * 4] & 0xff) << 24 | (addr[i * 4 + 1] & 0xff) << 16 | (addr[i * 4 + 2] & 0xff) << 8
+					| (addr[i * 4 + 3] & 0xff);
+			int mask = bits == 0 ? 0 : -1 << (32 - bits);
+			if ((word & ~mask) != 0)
+				throw new IllegalArgumentException("bpf non-network bits set in " + id);
+			if (bits == 0)
+				continue;
+
+			Node compare = new Compare(W | ABS, offset + i * 4, mask, JEQ, word);
+			node = node == null ? compare : new And(node, compare);
+		}
+		return node == null ? new Constant(true) : node;
+	}
+
+	private Node port(String proto, int dir, int low, int high) {
+		int[] protocols;
+		if (proto == null || proto.equals("ip") || proto.equals("ip6"))
+			protocols = new int[] { IPPROTO_TCP, IPPROTO_UDP, IPPROTO_SCTP };
+		else if (proto.equals("tcp"))
+			protocols = new int[] { IPPROTO_TCP };
+		else if (proto.equals("udp"))
+			protocols = new int[] { IPPROTO_UDP };
+		else
+			protocols = new int[] { IPPROTO_SCTP };
+
+		Node v4 = new And(etherType(ETHERTYPE_IP), new And(protocolIn(linkLength + 9, protocols), direction(dir,
+				new Ipv4Port(linkLength, 0, low, high), new Ipv4Port(linkLength, 2, low, high))));
+		Node v6 = new And(etherType(ETHERTYPE_IPV6), new And(protocolIn(linkLength + 6, protocols), direction(dir,
+				range(linkLength + 40, low, high), range(linkLength + 42, low, high))));
+
+		if ("ip".equals(proto))
+			return v4;
+		if ("ip6".equals(proto))
+			return v6;
+		return new Or(v4, v6);
+	}
+
+	private static Node range(int offset, int low, int high) {
+		if (low == high)
+			return new Compare(H | ABS, offset, -1, JEQ, low);
+		return new And(new Compare(H | ABS, offset, -1, JGE, low), new Not(new Compare(H | ABS, offset, -1, JGT,
+				high)));
+	}
+
+	private static Node protocolIn(int offset, int[] protocols) {
+		Node node = null;
+		for (int protocol : protocols) {
+			Node compare = new Compare(B | ABS, offset, -1, JEQ, protocol);
+			node = node == null ? compare : new Or(node, compare);
+		}
+		return node;
+	}
+
+	private static Node direction(int dir, Node src, Node dst) {
+		switch (dir) {
+		case SRC:
+			return src;
+		case DST:
+			return dst;
+		case SRC_AND_DST:
+			return new And(src, dst);
+		default:
+			return new Or(src, dst);
+		}
+	}
+
+	private Node protocol(String word) {
+		if (word.equals("ip"))
+			return etherType(ETHERTYPE_IP);
+		if (word.equals("ip6"))
+			return etherType(ETHERTYPE_IPV6);
+
+		int protocol = word.equals("tcp") ? IPPROTO_TCP : word.equals("udp") ? IPPROTO_UDP : IPPROTO_SCTP;
+		return new Or(ipProtocol(protocol), ip6Protocol(protocol));
+	}
+
+	private Node ipProtocol(int protocol) {
+		return new And(etherType(ETHERTYPE_IP), new Compare(B | ABS, linkLength + 9, -1, JEQ, protocol));
+	}
+
+	private Node ip6Protocol(int protocol) {
+		return new And(etherType(ETHERTYPE_IPV6), new Compare(B | ABS, linkLength + 6, -1, JEQ, protocol));
+	}
+
+	private Node etherType(int type) {
+		if (typeOffset >= 0)
+			return new Compare(H | ABS, typeOffset, -1, JEQ, type);
+
+		/* raw ip, test the version nibble */
+		if (type == ETHERTYPE_IP)
+			return new Compare(B | ABS, 0, 0xf0, JEQ, 0x40);
+		if (type == ETHERTYPE_IPV6)
+			return new Compare(B | ABS, 0, 0xf0, JEQ, 0x60);
+		return new Constant(false);
+	}
+
+	//
+	// code generation
+	//
+
+	private static abstract class Node {
+		/* emits code which jumps to t if the node matches, to f otherwise */
+		abstract void generate(Generator g, int t, int f);
+	}
+
+	private static class And extends Node {
+		private final Node left;
+		private final Node right;
+
+		public And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			int next = g.label();
+			left.generate(g, next, f);
+			g.place(next);
+			right.generate(g, t, f);
+		}
+	}
+
+	private static class Or extends Node {
+		private final Node left;
+		private final Node right;
+
+		public Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			int next = g.label();
+			left.generate(g, t, next);
+			g.place(next);
+			right.generate(g, t, f);
+		}
+	}
+
+	private static class Not extends Node {
+		private final Node node;
+
+		public Not(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			node.generate(g, f, t);
+		}
+	}
+
+	private static class Constant extends Node {
+		private final boolean value;
+
+		public Constant(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			g.jump(value ? t : f);
+		}
+	}
+
+	/* load, optional mask, and a conditional jump */
+	private static class Compare extends Node {
+		private final int load;
+		private final int offset;
+		private final int mask;
+		private final int op;
+		private final int value;
+
+		public Compare(int load, int offset, int mask, int op, int value) {
+			this.load = load;
+			this.offset = offset;
+			this.mask = mask;
+			this.op = op;
+			this.value = value;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			g.statement(LD | load, offset);
+			if (mask != -1)
+				g.statement(ALU | AND | K, mask);
+			g.branch(JMP | op | K, value, t, f);
+		}
+	}
+
+	/* tcp, udp or sctp port of an unfragmented ipv4 packet */
+	private static class Ipv4Port extends Node {
+		private final int linkLength;
+		private final int offset;
+		private final int low;
+		private final int high;
+
+		public Ipv4Port(int linkLength, int offset, int low, int high) {
+			this.linkLength = linkLength;
+			this.offset = offset;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		void generate(Generator g, int t, int f) {
+			int unfragmented = g.label();
+			g.statement(LD | H | ABS, linkLength + 6);
+			g.branch(JMP | JSET | K, 0x1fff, f, unfragmented);
+			g.place(unfragmented);
+			g.statement(LDX | B | MSH, linkLength);
+			g.statement(LD | H | IND, linkLength + offset);
+			if (low == high) {
+				g.branch(JMP | JEQ | K, low, t, f);
+			} else {
+				int above = g.label();
+				g.branch(JMP | JGE | K, low, above, f);
+				g.place(above);
+				g.branch(JMP | JGT | K, high, f, t);
+			}
+		}
+	}
+
+	/* emits instructions with jump targets as labels, resolved at the end */
+	private static class Generator {
+		private List<int[]> code = new ArrayList<int[]>();
+		private List<Integer> labels = new ArrayList<Integer>();
+
+		public int label() {
+			labels.add(-1);
+			return labels.size() - 1;
+		}
+
+		public void place(int label) {
+			labels.set(label, code.size());
+		}
+
+		public void statement(int op, int k) {
+			code.add(new int[] { op, -1, -1, k });
+		}
+
+		public void branch(int op, int k, int t, int f) {
+			code.add(new int[] { op, t, f, k });
+		}
+
+		public void jump(int label) {
+			code.add(new int[] { JMP | JA, -1, -1, label });
+		}
+
+		public List<BpfInstruction> resolve() {
+			List<BpfInstruction> l = new ArrayList<BpfInstruction>(code.size());
+			for (int pc = 0; pc < code.size(); pc++) {
+				int[] insn = code.get(pc);
+				if (insn[0] == (JMP | JA))
+					l.add(new BpfInstruction(insn[0], offset(pc, insn[3])));
+				else if ((insn[0] & 0x07) == JMP)
+					l.add(new BpfInstruction(insn[0], offset(pc, insn[1]), offset(pc, insn[2]), insn[3]));
+				else
+					l.add(new BpfInstruction(insn[0], insn[3]));
+			}
+			return l;
+		}
+
+		private int offset(int pc, int label) {
+			return labels.get(label) - pc - 1;
+		}
+	}
+}
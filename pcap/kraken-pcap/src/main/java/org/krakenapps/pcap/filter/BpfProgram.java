@@ -0,0 +1,450 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.filter;
+
+import static org.krakenapps.pcap.filter.BpfInstruction.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+
+/**
+ * Validated classic BPF program. Instructions are packed into int arrays and
+ * run by a switch over the opcode, with the same semantics as bpf_filter() of
+ * libpcap: loads beyond the captured bytes and division by zero reject the
+ * packet. The instructions are immutable, but the scratch memory words are
+ * kept per program, so a program should not be run by several threads at
+ * once.
+ */
+public class BpfProgram {
+	/* BPF_MAXINSNS of libpcap */
+	public static final int MAX_INSTRUCTIONS = 4096;
+
+	private final List<BpfInstruction> instructions;
+	private final int[] code;
+	private final int[] jt;
+	private final int[] jf;
+	private final int[] k;
+
+	/* scratch memory of the running packet, zeroed per run */
+	private final int[] mem;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the program has invalid opcodes, jumps out of the
+	 *             program or does not end with a return
+	 */
+	public BpfProgram(List<BpfInstruction> instructions) {
+		int length = instructions.size();
+		if (length == 0 || length > MAX_INSTRUCTIONS)
+			throw new IllegalArgumentException("invalid bpf program length: " + length);
+
+		this.instructions = Collections.unmodifiableList(new ArrayList<BpfInstruction>(instructions));
+		this.code = new int[length];
+		this.jt = new int[length];
+		this.jf = new int[length];
+		this.k = new int[length];
+
+		boolean usesMemory = false;
+		for (int pc = 0; pc < length; pc++) {
+			BpfInstruction insn = instructions.get(pc);
+			code[pc] = insn.getCode();
+			jt[pc] = insn.getJt();
+			jf[pc] = insn.getJf();
+			k[pc] = insn.getK();
+			usesMemory |= validate(pc);
+		}
+
+		int last = code[length - 1] & 0x07;
+		if (last != RET)
+			throw new IllegalArgumentException("bpf program should end with ret");
+
+		this.mem = usesMemory ? new int[MEMWORDS] : null;
+	}
+
+	public List<BpfInstruction> getInstructions() {
+		return instructions;
+	}
+
+	/* returns true if the instruction uses scratch memory */
+	private boolean validate(int pc) {
+		int op = code[pc];
+		int length = code.length;
+		switch (op & 0x07) {
+		case LD:
+			switch (op) {
+			case LD | W | ABS:
+			case LD | H | ABS:
+			case LD | B | ABS:
+			case LD | W | IND:
+			case LD | H | IND:
+			case LD | B | IND:
+			case LD | W | LEN:
+			case LD | IMM:
+				return false;
+			case LD | MEM:
+				checkMemory(pc);
+				return true;
+			}
+			break;
+
+		case LDX:
+			switch (op) {
+			case LDX | W | LEN:
+			case LDX | IMM:
+			case LDX | B | MSH:
+				return false;
+			case LDX | MEM:
+				checkMemory(pc);
+				return true;
+			}
+			break;
+
+		case ST:
+		case STX:
+			if (op != ST && op != STX)
+				break;
+			checkMemory(pc);
+			return true;
+
+		case ALU:
+			int aluOp = op & 0xf0;
+			if (aluOp > XOR || (aluOp == NEG && op != (ALU | NEG)))
+				break;
+			if ((aluOp == DIV || aluOp == MOD) && (op & X) == K && k[pc] == 0)
+				throw invalid(pc, "division by zero");
+			return false;
+
+		case JMP:
+			int jmpOp = op & 0xf0;
+			if (jmpOp > JSET)
+				break;
+			if (jmpOp == JA) {
+				if (op != (JMP | JA) || k[pc] < 0 || k[pc] >= length - pc - 1)
+					throw invalid(pc, "jump out of program");
+			} else if (jt[pc] < 0 || jf[pc] < 0 || jt[pc] >= length - pc - 1 || jf[pc] >= length - pc - 1) {
+				throw invalid(pc, "jump out of program");
+			}
+			return false;
+
+		case RET:
+			if (op == (RET | K) || op == (RET | A) || op == (RET | X))
+				return false;
+			break;
+
+		case MISC:
+			if (op == (MISC | TAX) || op == (MISC | TXA))
+				return false;
+			break;
+		}
+
+		throw invalid(pc, "unknown opcode");
+	}
+
+	private void checkMemory(int pc) {
+		if (k[pc] < 0 || k[pc] >= MEMWORDS)
+			throw invalid(pc, "scratch memory index out of range");
+	}
+
+	private IllegalArgumentException invalid(int pc, String reason) {
+		return new IllegalArgumentException("invalid bpf instruction " + pc + " " + instructions.get(pc) + ": " + reason);
+	}
+
+	/**
+	 * Tests the frame of the pcap packet, regardless of its read position.
+	 */
+	public boolean matches(PcapPacket packet) {
+		Buffer data = packet.getPacketData();
+		int wirelen = packet.getPacketHeader().getOrigLen();
+
+		/* readers keep the frame in a single chunk */
+		List<byte[]> chunks = data.getBuffers();
+		if (chunks.size() == 1) {
+			byte[] b = chunks.get(0);
+			return filter(b, 0, b.length, wirelen) != 0;
+		}
+
+		int length = 0;
+		for (byte[] chunk : chunks)
+			length += chunk.length;
+
+		byte[] b = new byte[length];
+		int offset = 0;
+		for (byte[] chunk : chunks) {
+			System.arraycopy(chunk, 0, b, offset, chunk.length);
+			offset += chunk.length;
+		}
+		return filter(b, 0, length, wirelen) != 0;
+	}
+
+	/**
+	 * Tests the remaining bytes of the buffer without moving its position.
+	 */
+	public boolean matches(ByteBuffer packet, int wirelen) {
+		return filter(packet, wirelen) != 0;
+	}
+
+	/**
+	 * Runs the program over the remaining bytes of the buffer.
+	 * 
+	 * @return the number of bytes to accept, 0 if the packet is rejected
+	 */
+	public int filter(ByteBuffer packet, int wirelen) {
+		if (packet.hasArray())
+			return run(packet.array(), null, packet.arrayOffset() + packet.position(), packet.remaining(), wirelen);
+		return run(null, packet, packet.position(), packet.remaining(), wirelen);
+	}
+
+	/**
+	 * Runs the program over the captured bytes.
+	 * 
+	 * @param wirelen
+	 *            the original length of the packet
+	 * @return the number of bytes to accept, 0 if the packet is rejected
+	 */
+	public int filter(byte[] packet, int offset, int length, int wirelen) {
+		return run(packet, null, offset, length, wirelen);
+	}
+
+	private int run(byte[] array, ByteBuffer buf, int offset, int length, int wirelen) {
+		int[] code = this.code;
+		int[] mem = this.mem;
+		if (mem != null)
+			Arrays.fill(mem, 0);
+		int a = 0;
+		int x = 0;
+		int pc = 0;
+
+		while (true) {
+			int k = this.k[pc];
+			switch (code[pc]) {
+			case RET | K:
+				return k;
+			case RET | A:
+				return a;
+			case RET | X:
+				return x;
+
+			case LD | W | ABS:
+				if (!inBounds(k, 0, 4, length))
+					return 0;
+				a = getInt(array, buf, offset + k);
+				break;
+			case LD | H | ABS:
+				if (!inBounds(k, 0, 2, length))
+					return 0;
+				a = getShort(array, buf, offset + k);
+				break;
+			case LD | B | ABS:
+				if (!inBounds(k, 0, 1, length))
+					return 0;
+				a = getByte(array, buf, offset + k);
+				break;
+			case LD | W | IND:
+				if (!inBounds(k, x, 4, length))
+					return 0;
+				a = getInt(array, buf, offset + x + k);
+				break;
+			case LD | H | IND:
+				if (!inBounds(k, x, 2, length))
+					return 0;
+				a = getShort(array, buf, offset + x + k);
+				break;
+			case LD | B | IND:
+				if (!inBounds(k, x, 1, length))
+					return 0;
+				a = getByte(array, buf, offset + x + k);
+				break;
+			case LD | W | LEN:
+				a = wirelen;
+				break;
+			case LDX | W | LEN:
+				x = wirelen;
+				break;
+			case LD | IMM:
+				a = k;
+				break;
+			case LDX | IMM:
+				x = k;
+				break;
+			case LD | MEM:
+				a = mem[k];
+				break;
+			case LDX | MEM:
+				x = mem[k];
+				break;
+			case LDX | B | MSH:
+				if (!inBounds(k, 0, 1, length))
+					return 0;
+				x = (getByte(array, buf, offset + k) & 0xf) << 2;
+				break;
+			case ST:
+				mem[k] = a;
+				break;
+			case STX:
+				mem[k] = x;
+				break;
+
+			case JMP | JA:
+				pc += k;
+				break;
+			case JMP | JGT | K:
+				pc += Integer.compareUnsigned(a, k) > 0 ? jt[pc] : jf[pc];
+				break;
+			case JMP | JGE | K:
+				pc += Integer.compareUnsigned(a, k) >= 0 ? jt[pc] : jf[pc];
+				break;
+			case JMP | JEQ | K:
+				pc += a == k ? jt[pc] : jf[pc];
+				break;
+			case JMP | JSET | K:
+				pc += (a & k) != 0 ? jt[pc] : jf[pc];
+				break;
+			case JMP | JGT | X:
+				pc += Integer.compareUnsigned(a, x) > 0 ? jt[pc] : jf[pc];
+				break;
+			case JMP | JGE | X:
+				pc += Integer.compareUnsigned(a, x) >= 0 ? jt[pc] : jf[pc];
+				break;
+			case JMP | JEQ | X:
+				pc += a == x ? jt[pc] : jf[pc];
+				break;
+			case JMP | JSET | X:
+				pc += (a & x) != 0 ? jt[pc] : jf[pc];
+				break;
+
+			case ALU | ADD | X:
+				a += x;
+				break;
+			case ALU | SUB | X:
+				a -= x;
+				break;
+			case ALU | MUL | X:
+				a *= x;
+				break;
+			case ALU | DIV | X:
+				if (x == 0)
+					return 0;
+				a = Integer.divideUnsigned(a, x);
+				break;
+			case ALU | MOD | X:
+				if (x == 0)
+					return 0;
+				a = Integer.remainderUnsigned(a, x);
+				break;
+			case ALU | AND | X:
+				a &= x;
+				break;
+			case ALU | OR | X:
+				a |= x;
+				break;
+			case ALU | XOR | X:
+				a ^= x;
+				break;
+			case ALU | LSH | X:
+				a = (x & 0xffffffe0) != 0 ? 0 : a << x;
+				break;
+			case ALU | RSH | X:
+				a = (x & 0xffffffe0) != 0 ? 0 : a >>> x;
+				break;
+			case ALU | ADD | K:
+				a += k;
+				break;
+			case ALU | SUB | K:
+				a -= k;
+				break;
+			case ALU | MUL | K:
+				a *= k;
+				break;
+			case ALU | DIV | K:
+				a = Integer.divideUnsigned(a, k);
+				break;
+			case ALU | MOD | K:
+				a = Integer.remainderUnsigned(a, k);
+				break;
+			case ALU | AND | K:
+				a &= k;
+				break;
+			case ALU | OR | K:
+				a |= k;
+				break;
+			case ALU | XOR | K:
+				a ^= k;
+				break;
+			case ALU | LSH | K:
+				a = (k & 0xffffffe0) != 0 ? 0 : a << k;
+				break;
+			case ALU | RSH | K:
+				a = (k & 0xffffffe0) != 0 ? 0 : a >>> k;
+				break;
+			case ALU | NEG:
+				a = -a;
+				break;
+
+			case MISC | TAX:
+				x = a;
+				break;
+			case MISC | TXA:
+				a = x;
+				break;
+
+			default:
+				/* validated in constructor */
+				throw new IllegalStateException("unknown bpf opcode " + code[pc]);
+			}
+			pc++;
+		}
+	}
+
+	/* k and x are unsigned in bpf */
+	private static boolean inBounds(int k, int x, int size, int length) {
+		long end = (k & 0xffffffffL) + (x & 0xffffffffL) + size;
+		return end <= length;
+	}
+
+	private static int getByte(byte[] array, ByteBuffer buf, int i) {
+		if (array != null)
+			return array[i] & 0xff;
+		return buf.get(i) & 0xff;
+	}
+
+	private static int getShort(byte[] array, ByteBuffer buf, int i) {
+		if (array != null)
+			return (array[i] & 0xff) << 8 | (array[i + 1] & 0xff);
+		return (buf.get(i) & 0xff) << 8 | (buf.get(i + 1) & 0xff);
+	}
+
+	private static int getInt(byte[] array, ByteBuffer buf, int i) {
+		if (array != null)
+			return (array[i] & 0xff) << 24 | (array[i + 1] & 0xff) << 16 | (array[i + 2] & 0xff) << 8
+					| (array[i + 3] & 0xff);
+		return (buf.get(i) & 0xff) << 24 | (buf.get(i + 1) & 0xff) << 16 | (buf.get(i + 2) & 0xff) << 8
+				| (buf.get(i + 3) & 0xff);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (BpfInstruction insn : instructions)
+			sb.append(insn).append('\n');
+		return sb.toString();
+	}
+}
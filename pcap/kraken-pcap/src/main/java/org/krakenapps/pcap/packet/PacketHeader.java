@@ -45,11 +45,22 @@ public class PacketHeader {
 	 */
 	private int origLen;
 
+	/**
+	 * timestamp nanoseconds, tsUsec * 1000 unless the capture has nanosecond
+	 * resolution
+	 */
+	private int tsNsec;
+
 	public PacketHeader(int tsSec, int tsUsec, int inclLen, int origLen) {
+		this(tsSec, tsUsec, inclLen, origLen, tsUsec * 1000);
+	}
+
+	public PacketHeader(int tsSec, int tsUsec, int inclLen, int origLen, int tsNsec) {
 		this.tsSec = tsSec;
 		this.tsUsec = tsUsec;
 		this.inclLen = inclLen;
 		this.origLen = origLen;
+		this.tsNsec = tsNsec;
 	}
 
 	/**
@@ -63,6 +74,7 @@ public class PacketHeader {
 		this.tsUsec = source.tsUsec;
 		this.inclLen = source.inclLen;
 		this.origLen = source.origLen;
+		this.tsNsec = source.tsNsec;
 	}
 
 	public Date getDate() {
@@ -77,6 +89,10 @@ public class PacketHeader {
 		return tsUsec;
 	}
 
+	public int getTsNsec() {
+		return tsNsec;
+	}
+
 	public int getInclLen() {
 		return inclLen;
 	}
@@ -93,6 +109,7 @@ public class PacketHeader {
 		result = prime * result + origLen;
 		result = prime * result + tsSec;
 		result = prime * result + tsUsec;
+		result = prime * result + tsNsec;
 		return result;
 	}
 
@@ -113,6 +130,8 @@ public class PacketHeader {
 			return false;
 		if (tsUsec != other.tsUsec)
 			return false;
+		if (tsNsec != other.tsNsec)
+			return false;
 		return true;
 	}
 
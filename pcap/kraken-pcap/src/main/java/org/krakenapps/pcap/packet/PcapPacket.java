@@ -16,6 +16,7 @@
 package org.krakenapps.pcap.packet;
 
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ReferenceCounted;
 
 /**
  * PcapPacket contains header and payload.
@@ -45,6 +46,27 @@ public class PcapPacket {
 		return payload;
 	}
 
+	/**
+	 * Retains the packet data if it is pooled. Holders which keep the packet
+	 * beyond the decode callback should retain it and release it later.
+	 */
+	public PcapPacket retain() {
+		if (payload instanceof ReferenceCounted)
+			((ReferenceCounted) payload).retain();
+		return this;
+	}
+
+	/**
+	 * Releases the packet data if it is pooled.
+	 * 
+	 * @return true if the data is returned to its pool
+	 */
+	public boolean release() {
+		if (payload instanceof ReferenceCounted)
+			return ((ReferenceCounted) payload).release();
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		return header.toString();
@@ -229,8 +229,20 @@ public interface Buffer {
 	 */
 	boolean isEOB();
 
+	/**
+	 * Returns a view which shares the internal buffer list and has its own
+	 * position, mark and byte order. The list is copied when either of them
+	 * adds or removes buffers, so changes are not visible to the other.
+	 */
 	Buffer duplicate();
 
+	/**
+	 * Returns a view like {@link #duplicate()} whose start point is the
+	 * current position. {@link #rewind()} returns to it, and
+	 * {@link #position()} and {@link #getCapacity()} count from it.
+	 */
+	Buffer slice();
+
 	/**
 	 * Flips this buffer. The position is set to zero. If the mark is defined then it is discarded.
 	 */
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opt-in pool of packet buffers. A {@link Buffer} chunk must be exactly as
+ * long as its data, so buffers are kept in one slab per length, each holding a
+ * bounded number of free buffers. The free buffers of all slabs are limited by
+ * a total byte budget, so that rare lengths cannot pin memory. Packets longer
+ * than the maximum length, or released while the budget is used up, are
+ * allocated as usual and dropped on release.
+ * 
+ * Readers acquire a buffer with reference count 1 for every packet, and the
+ * runner releases it after decoding. Decoders which keep packet data across
+ * packets, such as ip fragment and tcp out-of-order queues, retain it.
+ * 
+ * With leak detection enabled, the acquiring stack trace is recorded, and
+ * buffers collected by GC without release are logged and counted.
+ */
+public class BufferPool {
+	public static final int DEFAULT_MAX_LENGTH = 65535;
+	public static final int DEFAULT_SLAB_CAPACITY = 256;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(BufferPool.class.getName());
+
+	private final int maxLength;
+	private final int slabCapacity;
+	private final long maxPooledBytes;
+	private final AtomicReferenceArray<Slab> slabs;
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+	private final AtomicLong leaked = new AtomicLong();
+
+	private volatile boolean leakDetection;
+	private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+	private final Set<LeakRecord> leakRecords = Collections
+			.newSetFromMap(new ConcurrentHashMap<LeakRecord, Boolean>());
+
+	public BufferPool() {
+		this(DEFAULT_MAX_LENGTH, DEFAULT_SLAB_CAPACITY);
+	}
+
+	/**
+	 * @param maxLength
+	 *            the longest pooled buffer
+	 * @param slabCapacity
+	 *            the maximum free buffers kept per length
+	 */
+	public BufferPool(int maxLength, int slabCapacity) {
+		this(maxLength, slabCapacity, DEFAULT_MAX_POOLED_BYTES);
+	}
+
+	/**
+	 * @param maxLength
+	 *            the longest pooled buffer
+	 * @param slabCapacity
+	 *            the maximum free buffers kept per length
+	 * @param maxPooledBytes
+	 *            the maximum total length of free buffers in all slabs
+	 */
+	public BufferPool(int maxLength, int slabCapacity, long maxPooledBytes) {
+		if (maxLength < 0 || slabCapacity < 0 || maxPooledBytes < 0)
+			throw new IllegalArgumentException("negative pool size");
+
+		this.maxLength = maxLength;
+		this.slabCapacity = slabCapacity;
+		this.maxPooledBytes = maxPooledBytes;
+		this.slabs = new AtomicReferenceArray<Slab>(maxLength + 1);
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+
+	/**
+	 * Returns a buffer of exactly length bytes with reference count 1. The
+	 * content of a reused buffer is not cleared.
+	 */
+	public PooledBuffer acquire(int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("negative length: " + length);
+
+		PooledBuffer buffer = null;
+		Slab slab = getSlab(length);
+		if (slab != null)
+			buffer = slab.pop();
+
+		if (buffer == null) {
+			buffer = new PooledBuffer(this, new byte[length]);
+			allocated.incrementAndGet();
+		} else {
+			pooledBytes.addAndGet(-length);
+			reused.incrementAndGet();
+		}
+
+		buffer.reuse();
+		outstanding.incrementAndGet();
+
+		if (leakDetection) {
+			drainLeaks();
+			LeakRecord record = new LeakRecord(buffer, leakQueue);
+			leakRecords.add(record);
+			buffer.leak = record;
+		}
+		return buffer;
+	}
+
+	void recycle(PooledBuffer buffer) {
+		outstanding.decrementAndGet();
+
+		LeakRecord record = buffer.leak;
+		if (record != null) {
+			buffer.leak = null;
+			leakRecords.remove(record);
+			record.clear();
+		}
+
+		int length = buffer.array().length;
+		Slab slab = getSlab(length);
+		if (slab != null && reserve(length)) {
+			if (slab.push(buffer)) {
+				recycled.incrementAndGet();
+				return;
+			}
+			pooledBytes.addAndGet(-length);
+		}
+		discarded.incrementAndGet();
+	}
+
+	/* takes length bytes from the budget of free buffers */
+	private boolean reserve(int length) {
+		while (true) {
+			long bytes = pooledBytes.get();
+			if (bytes + length > maxPooledBytes)
+				return false;
+			if (pooledBytes.compareAndSet(bytes, bytes + length))
+				return true;
+		}
+	}
+
+	/**
+	 * Reports buffers which were collected without release.
+	 * 
+	 * @return the number of leaks found
+	 */
+	public int drainLeaks() {
+		int count = 0;
+		while (true) {
+			LeakRecord record = (LeakRecord) leakQueue.poll();
+			if (record == null)
+				break;
+
+			if (leakRecords.remove(record)) {
+				count++;
+				leaked.incrementAndGet();
+				outstanding.decrementAndGet();
+				logger.warn("kraken-pcap: pooled buffer was not released", record.trace);
+			}
+		}
+		return count;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	public int getSlabCapacity() {
+		return slabCapacity;
+	}
+
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	/**
+	 * @return the total length of free buffers kept in the slabs
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	public long getRecycledCount() {
+		return recycled.get();
+	}
+
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * @return the number of acquired buffers which are not released yet
+	 */
+	public long getOutstandingCount() {
+		return outstanding.get();
+	}
+
+	public long getLeakedCount() {
+		return leaked.get();
+	}
+
+	private Slab getSlab(int length) {
+		if (length > maxLength || slabCapacity == 0)
+			return null;
+
+		Slab slab = slabs.get(length);
+		if (slab == null) {
+			slabs.compareAndSet(length, null, new Slab(slabCapacity));
+			slab = slabs.get(length);
+		}
+		return slab;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("buffer pool {allocated: %d, reused: %d, recycled: %d, discarded: %d, outstanding: %d, "
+				+ "leaked: %d, pooled bytes: %d}", getAllocatedCount(), getReusedCount(), getRecycledCount(),
+				getDiscardedCount(), getOutstandingCount(), getLeakedCount(), getPooledBytes());
+	}
+
+	/* bounded stack of free buffers of one length */
+	private static final class Slab {
+		private final PooledBuffer[] free;
+		private int size;
+
+		public Slab(int capacity) {
+			free = new PooledBuffer[capacity];
+		}
+
+		public synchronized PooledBuffer pop() {
+			if (size == 0)
+				return null;
+			PooledBuffer buffer = free[--size];
+			free[size] = null;
+			return buffer;
+		}
+
+		public synchronized boolean push(PooledBuffer buffer) {
+			if (size == free.length)
+				return false;
+			free[size++] = buffer;
+			return true;
+		}
+	}
+
+	static final class LeakRecord extends WeakReference<PooledBuffer> {
+		private final Throwable trace = new Throwable("pooled buffer acquired here");
+
+		public LeakRecord(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+			super(referent, queue);
+		}
+	}
+}
@@ -28,7 +28,19 @@ import java.util.List;
  * @author mindori
  */
 public class ChainBuffer implements Buffer {
-	private final List<byte[]> buffers;
+	private ChunkList buffers;
+
+	/* set when a view shares the chunk list, copied before structural change */
+	private boolean buffersShared;
+
+	/*
+	 * offsets[i] is the absolute position of buffers[i], offsets[size] is the
+	 * capacity. valid while offsetsVersion equals the list modification count.
+	 * shared offsets are copied before write.
+	 */
+	private int[] offsets;
+	private int offsetsVersion = -1;
+	private boolean offsetsShared;
 
 	/* start[0] = bufIndex of start point. baseOffset = offset of start point. */
 	private int baseIndex;
@@ -37,11 +49,15 @@ public class ChainBuffer implements Buffer {
 	private int markIndex = -1;
 	private int markOffset = -1;
 
+	/* start point of a slice, which position() reports as 0 */
+	private int originIndex;
+	private int originOffset;
+
 	private int bufIndex = 0;
 	private int bufOffset = 0;
 
 	public ChainBuffer() {
-		buffers = new ArrayList<byte[]>();
+		buffers = new ChunkList();
 
 		baseIndex = 0;
 		baseOffset = 0;
@@ -54,9 +70,16 @@ public class ChainBuffer implements Buffer {
 
 	/* copy constructor */
 	public ChainBuffer(Buffer other) {
-		buffers = new ArrayList<byte[]>();
+		buffers = new ChunkList();
 		buffers.addAll(other.getBuffers());
 
+		if (other instanceof ChainBuffer) {
+			ChainBuffer o = (ChainBuffer) other;
+			copyCursor(o);
+			shareOffsets(o);
+			return;
+		}
+
 		int[] metaData = other.getMetaData();
 
 		baseIndex = metaData[0];
@@ -69,6 +92,110 @@ public class ChainBuffer implements Buffer {
 		bufOffset = metaData[5];
 	}
 
+	/* view constructor, shares the buffer list until either side changes it */
+	private ChainBuffer(ChainBuffer other, boolean view) {
+		buffers = other.buffers;
+		buffersShared = true;
+		other.buffersShared = true;
+		copyCursor(other);
+		shareOffsets(other);
+	}
+
+	private void copyCursor(ChainBuffer o) {
+		baseIndex = o.baseIndex;
+		baseOffset = o.baseOffset;
+		markIndex = o.markIndex;
+		markOffset = o.markOffset;
+		bufIndex = o.bufIndex;
+		bufOffset = o.bufOffset;
+		originIndex = o.originIndex;
+		originOffset = o.originOffset;
+		byteOrder = o.byteOrder;
+	}
+
+	private void shareOffsets(ChainBuffer o) {
+		offsets = o.offsets();
+		offsetsVersion = buffers.version();
+		offsetsShared = true;
+		o.offsetsShared = true;
+	}
+
+	/* takes a private copy of a shared chunk list, keeping valid offsets */
+	private void ownBuffers() {
+		if (!buffersShared)
+			return;
+
+		boolean valid = offsetsVersion == buffers.version();
+		ChunkList copy = new ChunkList();
+		copy.addAll(buffers);
+		buffers = copy;
+		buffersShared = false;
+		offsetsVersion = valid ? buffers.version() : -1;
+	}
+
+	/*
+	 * replaces the chunks with one array. a shared chunk list is copied first,
+	 * so views taken before a pooled buffer is recycled keep their chunks.
+	 */
+	void resetChunks(byte[] array) {
+		if (buffers.size() == 1 && buffers.get(0) == array)
+			return;
+
+		ownBuffers();
+		buffers.clear();
+		buffers.add(array);
+		originIndex = 0;
+		originOffset = 0;
+	}
+
+	private int origin(int[] offsets) {
+		return offsets[Math.min(originIndex, buffers.size())] + originOffset;
+	}
+
+	private int[] offsets() {
+		if (offsetsVersion != buffers.version())
+			rebuildOffsets();
+		return offsets;
+	}
+
+	private void rebuildOffsets() {
+		int size = buffers.size();
+		if (offsets == null || offsetsShared || offsets.length < size + 1) {
+			offsets = new int[Math.max(size + 1, 8)];
+			offsetsShared = false;
+		}
+
+		int sum = 0;
+		for (int i = 0; i < size; i++) {
+			offsets[i] = sum;
+			sum += buffers.get(i).length;
+		}
+		offsets[size] = sum;
+		offsetsVersion = buffers.version();
+	}
+
+	/* appends a chunk and extends valid offsets instead of rebuilding them */
+	private void append(byte[] b) {
+		ownBuffers();
+		boolean valid = offsetsVersion == buffers.version();
+		buffers.add(b);
+		if (!valid)
+			return;
+
+		int size = buffers.size();
+		if (offsetsShared || offsets.length < size + 1) {
+			offsets = Arrays.copyOf(offsets, Math.max(size + 1, offsets.length * 2));
+			offsetsShared = false;
+		}
+		offsets[size] = offsets[size - 1] + b.length;
+		offsetsVersion = buffers.version();
+	}
+
+	private void appendAll(List<byte[]> l) {
+		for (byte[] b : l)
+			append(b);
+	}
+
 	/* called by copy constructor */
 	@Override
 	public int[] getMetaData() {
@@ -82,10 +209,8 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public int getCapacity() {
-		int capacity = 0;
-		for (byte[] b : buffers)
-			capacity += b.length;
-		return capacity;
+		int[] offsets = offsets();
+		return offsets[buffers.size()] - origin(offsets);
 	}
 
 	@Override
@@ -110,38 +235,40 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public int position() {
-		int absPos = 0;
-		if (bufIndex > 0) {
-			int loopCount = 0;
-			for (byte[] buffer : buffers) {
-				absPos += buffer.length;
-				if (loopCount >= (bufIndex - 1))
-					break;
-				loopCount++;
-			}
-		}
-		absPos += bufOffset;
-		return absPos;
+		int[] offsets = offsets();
+		if (bufIndex > buffers.size())
+			return offsets[buffers.size()] + bufOffset - origin(offsets);
+		return offsets[bufIndex] + bufOffset - origin(offsets);
 	}
 
 	@Override
 	public Buffer position(int newPosition) {
-		int absPos = 0;
-		int i = 0;
-
 		if (newPosition < 0)
 			throw new IllegalArgumentException();
 
-		for (byte[] buffer : buffers) {
-			if (absPos + buffer.length >= newPosition) {
-				bufIndex = i;
-				bufOffset = newPosition - absPos;
-				return this;
-			}
-			absPos += buffer.length;
-			i++;
+		/* first buffer whose end is not before the new position */
+		int[] offsets = offsets();
+		int size = buffers.size();
+		newPosition += origin(offsets);
+		if (size == 0 || offsets[size] < newPosition)
+			throw new IllegalArgumentException();
+
+		int i = ceilingEnd(offsets, 0, size - 1, newPosition);
+		bufIndex = i;
+		bufOffset = newPosition - offsets[i];
+		return this;
+	}
+
+	/* returns the first buffer index in [low, high] whose end offset >= pos */
+	private static int ceilingEnd(int[] offsets, int low, int high, int pos) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (offsets[mid + 1] >= pos)
+				high = mid;
+			else
+				low = mid + 1;
 		}
-		throw new IllegalArgumentException();
+		return low;
 	}
 
 	@Override
@@ -149,6 +276,7 @@ public class ChainBuffer implements Buffer {
 		if (buffer == null)
 			return this;
 
+		ownBuffers();
 		buffers.add(0, buffer);
 		return this;
 	}
@@ -158,7 +286,7 @@ public class ChainBuffer implements Buffer {
 		if (buffer == null)
 			return this;
 
-		buffers.add(buffer);
+		append(buffer);
 		return this;
 	}
 
@@ -168,6 +296,7 @@ public class ChainBuffer implements Buffer {
 			return this;
 
 		List<byte[]> newBufList = buffer.getBuffers();
+		ownBuffers();
 		buffers.addAll(0, newBufList);
 		return this;
 	}
@@ -189,11 +318,11 @@ public class ChainBuffer implements Buffer {
 		if (j > 0) {
 			byte[] t = new byte[b.length - j];
 			if (t.length >= 0) System.arraycopy(b, j, t, 0, t.length);
-			buffers.add(t);
+			append(t);
 			if (i + 1 < l.size())
-				buffers.addAll(l.subList(i + 1, l.size()));
+				appendAll(l.subList(i + 1, l.size()));
 		} else {
-			buffers.addAll(l.subList(i, l.size()));
+			appendAll(l.subList(i, l.size()));
 		}
 		return this;
 	}
@@ -221,31 +350,31 @@ public class ChainBuffer implements Buffer {
 			if (m == i) {
 				byte[] t = new byte[n - j];
 				if (t.length >= 0) System.arraycopy(b, j, t, 0, t.length);
-				buffers.add(t);
+				append(t);
 			}
 
 			else {
 				byte[] t = new byte[b.length - j];
 				if (t.length >= 0) System.arraycopy(b, j, t, 0, t.length);
-				buffers.add(t);
+				append(t);
 				if (m == i + 1) {
 					if (n > 0) {
 						byte[] b1 = l.get(m);
 						byte[] t1 = new byte[n];
 						System.arraycopy(b1, 0, t1, 0, t1.length);
-						buffers.add(t1);
+						append(t1);
 					}
 				} else {
 					if (i + 1 == m - 1)
-						buffers.add(l.get(i + 1));
+						append(l.get(i + 1));
 					else
-						buffers.addAll(l.subList(i + 1, m));
+						appendAll(l.subList(i + 1, m));
 
 					if (n > 0) {
 						byte[] b1 = l.get(m);
 						byte[] t1 = new byte[n];
 						System.arraycopy(b1, 0, t1, 0, t1.length);
-						buffers.add(t1);
+						append(t1);
 					}
 				}
 			}
@@ -254,25 +383,25 @@ public class ChainBuffer implements Buffer {
 			if (m == i) {
 				byte[] t1 = new byte[n];
 				if (t1.length >= 0) System.arraycopy(b, 0, t1, 0, t1.length);
-				buffers.add(t1);
+				append(t1);
 			}
 
 			else {
 				if (i == m - 1) {
-					buffers.add(b);
+					append(b);
 					if (n > 0) {
 						byte[] b1 = l.get(m);
 						byte[] t1 = new byte[n];
 						System.arraycopy(b1, 0, t1, 0, t1.length);
-						buffers.add(t1);
+						append(t1);
 					}
 				} else {
-					buffers.addAll(l.subList(i, m));
+					appendAll(l.subList(i, m));
 					if (n > 0) {
 						byte[] b1 = l.get(m);
 						byte[] t1 = new byte[n];
 						System.arraycopy(b1, 0, t1, 0, t1.length);
-						buffers.add(t1);
+						append(t1);
 					}
 				}
 			}
@@ -286,42 +415,25 @@ public class ChainBuffer implements Buffer {
 		if (pos <= 0)
 			return null;
 
-		int skipped = 0;
+		int size = buffers.size();
+		if (bufIndex >= size)
+			return null;
 
-		int i = bufIndex;
-		byte[] buf = buffers.get(i);
-		int next = buf.length - bufOffset;
+		int[] offsets = offsets();
+		long target = (long) offsets[bufIndex] + bufOffset + pos;
+		if (target > offsets[size])
+			return null;
 
-		skipped += next;
-		if (skipped >= pos) {
-			bufOffset += pos;
-			if (bufOffset >= buf.length) {
-				bufIndex += 1;
-				bufOffset = 0;
-			}
-			// discardReadBytes();
-			return this;
-		}
-		i++;
-
-		while (i < buffers.size()) {
-			next = buffers.get(i).length;
-			skipped += next;
-			if (skipped >= pos) {
-				int remain = skipped - pos;
-				bufIndex = i;
-				bufOffset = (next - remain);
-
-				if (bufOffset >= next) {
-					bufIndex += 1;
-					bufOffset = 0;
-				}
-				// discardReadBytes();
-				return this;
-			}
-			i++;
+		/* stops at the start of next buffer if target is the end of a buffer */
+		int i = ceilingEnd(offsets, bufIndex, size - 1, (int) target);
+		if (offsets[i + 1] == target) {
+			bufIndex = i + 1;
+			bufOffset = 0;
+		} else {
+			bufIndex = i;
+			bufOffset = (int) (target - offsets[i]);
 		}
-		return null;
+		return this;
 	}
 
 	@Override
@@ -352,13 +464,14 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public short getShort() throws BufferUnderflowException {
-		byte[] b = new byte[2];
-		gets(b, 0, 2);
-
-		short s = 0;
-		for (int i = 0; i < 2; i++) {
-			s <<= 8;
-			s ^= (long) b[i] & 0xFF;
+		short s;
+		byte[] buf = current(2);
+		if (buf != null) {
+			int off = bufOffset;
+			s = (short) (((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF));
+			advance(buf, off + 2);
+		} else {
+			s = (short) readSlow(2);
 		}
 
 		return byteOrder == ByteOrder.LITTLE_ENDIAN ? ByteOrderConverter.swap(s) : s;
@@ -371,13 +484,15 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public int getInt() throws BufferUnderflowException {
-		byte[] b = new byte[4];
-		gets(b, 0, 4);
-
-		int s = 0;
-		for (int i = 0; i < 4; i++) {
-			s <<= 8;
-			s ^= (long) b[i] & 0xFF;
+		int s;
+		byte[] buf = current(4);
+		if (buf != null) {
+			int off = bufOffset;
+			s = ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+					| (buf[off + 3] & 0xFF);
+			advance(buf, off + 4);
+		} else {
+			s = (int) readSlow(4);
 		}
 
 		return byteOrder == ByteOrder.LITTLE_ENDIAN ? ByteOrderConverter.swap(s) : s;
@@ -390,18 +505,50 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public long getLong() throws BufferUnderflowException {
-		byte[] b = new byte[8];
-		gets(b, 0, 8);
-
-		long s = 0;
-		for (int i = 0; i < 8; i++) {
-			s <<= 8;
-			s ^= (long) b[i] & 0xffL;
+		long s;
+		byte[] buf = current(8);
+		if (buf != null) {
+			int off = bufOffset;
+			s = 0;
+			for (int i = 0; i < 8; i++)
+				s = (s << 8) | (buf[off + i] & 0xffL);
+			advance(buf, off + 8);
+		} else {
+			s = readSlow(8);
 		}
 
 		return byteOrder == ByteOrder.LITTLE_ENDIAN ? ByteOrderConverter.swap(s) : s;
 	}
 
+	/* returns current buffer if it holds length bytes from the offset */
+	private byte[] current(int length) {
+		if (bufIndex >= buffers.size())
+			return null;
+
+		byte[] buf = buffers.get(bufIndex);
+		return bufOffset + length <= buf.length ? buf : null;
+	}
+
+	private void advance(byte[] buf, int newOffset) {
+		if (newOffset >= buf.length) {
+			bufIndex++;
+			bufOffset = 0;
+		} else {
+			bufOffset = newOffset;
+		}
+	}
+
+	/* reads big endian value across buffer boundaries */
+	private long readSlow(int length) {
+		if (readableBytes() < length)
+			throw new BufferUnderflowException();
+
+		long s = 0;
+		for (int i = 0; i < length; i++)
+			s = (s << 8) | (get() & 0xffL);
+		return s;
+	}
+
 	@Override
 	public String getString(int length) throws BufferUnderflowException {
 		byte[] str = new byte[length];
@@ -447,40 +594,22 @@ public class ChainBuffer implements Buffer {
 			throw new BufferUnderflowException();
 
 		int index = offset;
-
-		int i;
-		int j = bufIndex;
+		int count = length;
 		int bufI = bufIndex;
 		int off = bufOffset;
 
-		int bufCount = 0;
-		int count = 0;
-
-		for (byte[] b : buffers) {
-			if (bufCount < j) {
-				/* skip buffer until count == bufIndex */
-				bufCount++;
-				continue;
-			}
-
-			for (i = off; i < b.length; i++) {
-				if (count == length) {
-					off = i;
-					break;
-				}
-				buffer[index] = b[i];
-				index++;
-				count++;
+		while (count > 0) {
+			byte[] b = buffers.get(bufI);
+			int n = Math.min(b.length - off, count);
+			if (n > 0) {
+				System.arraycopy(b, off, buffer, index, n);
+				index += n;
+				count -= n;
+				off += n;
 			}
 
-			if (count == length) {
-				if (i == b.length) {
-					bufI++;
-					off = 0;
-				}
-				break;
-			} else {
-				/* go to next buffer */
+			/* go to next buffer */
+			if (off >= b.length) {
 				bufI++;
 				off = 0;
 			}
@@ -491,58 +620,36 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public int bytesBefore(byte[] target) {
-		/* if, stateNum equals to target.length => pattern matching to target. */
+		/* keeps the mark side effect of the former implementation */
 		mark();
 
-		int stateNum = 0;
-		int length = 0;
+		int end = scan(new DelimiterScanner(target), 0);
+		return end < 0 ? 0 : end - target.length;
+	}
 
-		if (bufIndex >= buffers.size()) {
-			reset();
-			return 0;
+	/*
+	 * feeds bytes after skip bytes from current position to the scanner, and
+	 * returns the distance to the end of delimiter or -1
+	 */
+	int scan(DelimiterScanner scanner, int skip) {
+		int index = bufIndex;
+		int offset = bufOffset + skip;
+		while (index < buffers.size() && offset >= buffers.get(index).length) {
+			offset -= buffers.get(index).length;
+			index++;
 		}
 
-		/* retrieve first byte array */
-		byte[] bs = buffers.get(bufIndex);
-
-		for (int i = bufOffset; i < bs.length; i++) {
-			if (bs[i] == target[stateNum])
-				stateNum++;
-			else if (bs[i] == target[0]) {
-				stateNum = 1;
-			} else
-				stateNum = 0;
-			length++;
-
-			if (stateNum == target.length) {
-				/* return length */
-				reset();
-				return (length - target.length);
-			}
-		}
+		int distance = skip;
+		for (; index < buffers.size(); index++) {
+			byte[] b = buffers.get(index);
+			int end = scanner.feed(b, offset, b.length);
+			if (end >= 0)
+				return distance + end - offset;
 
-		/* get sublist from bufList */
-		int index = bufIndex + 1;
-		List<byte[]> subList = buffers.subList(index, buffers.size());
-		for (byte[] bs2 : subList) {
-			for (byte b : bs2) {
-				if (b == target[stateNum])
-					stateNum++;
-				else if (b == target[0])
-					stateNum = 1;
-				else
-					stateNum = 0;
-				length++;
-
-				if (stateNum == target.length) {
-					/* return length */
-					reset();
-					return (length - target.length);
-				}
-			}
+			distance += b.length - offset;
+			offset = 0;
 		}
-		reset();
-		return 0;
+		return -1;
 	}
 
 	@Override
@@ -566,25 +673,12 @@ public class ChainBuffer implements Buffer {
 			throw new InvalidMarkException();
 
 		if (bufIndex > markIndex) {
-			int rewindOffset = bufOffset;
-			for (int i = bufIndex - 1; i > markIndex; i--) {
-				byte[] buf = buffers.get(i);
-				rewindOffset += buf.length;
-			}
-			byte[] markBuf = buffers.get(markIndex);
-			rewindOffset += (markBuf.length - markOffset);
+			int[] offsets = offsets();
+			int rewindOffset = offsets[bufIndex] + bufOffset - offsets[markIndex] - markOffset;
 			return reset(rewindOffset);
 		} else if (bufIndex < markIndex) {
-			int absPos = 0;
-			int i = bufIndex + 1;
-			while (i < markIndex) {
-				absPos += buffers.get(i).length;
-				i++;
-			}
-			absPos += buffers.get(bufIndex).length - bufOffset;
-			absPos += markOffset;
-
-			return skip(absPos);
+			int[] offsets = offsets();
+			return skip(offsets[markIndex] + markOffset - offsets[bufIndex] - bufOffset);
 		} else {
 			/* markIndex = bufIndex */
 			if (bufOffset > markOffset) {
@@ -600,23 +694,25 @@ public class ChainBuffer implements Buffer {
 			if (bufOffset >= rewindOffset) {
 				bufOffset -= rewindOffset;
 			} else {
-				int i = bufIndex;
-				int sumOffset = bufOffset;
-				byte[] b;
-
-				do {
-					i--;
-					b = buffers.get(i);
-					sumOffset += b.length;
-				} while (sumOffset < rewindOffset && i > 0);
-
-				if (sumOffset < rewindOffset) {
+				int[] offsets = offsets();
+				int target = offsets[bufIndex] + bufOffset - rewindOffset;
+				if (target < 0) {
 					/* retrieve failed: bufList[bufIndex..0] */
 					return null;
-				} else {
-					bufIndex = i;
-					bufOffset = sumOffset - rewindOffset;
 				}
+
+				/* last buffer before current one which starts at or before target */
+				int low = 0;
+				int high = bufIndex - 1;
+				while (low < high) {
+					int mid = (low + high + 1) >>> 1;
+					if (offsets[mid] <= target)
+						low = mid;
+					else
+						high = mid - 1;
+				}
+				bufIndex = low;
+				bufOffset = target - offsets[low];
 			}
 		} else {
 			/* bufIndex = baseIndex */
@@ -648,24 +744,17 @@ public class ChainBuffer implements Buffer {
 		if (buffers.size() <= 0 || isEOB())
 			return 0;
 
-		byte[] buf = buffers.get(bufIndex);
-		int remain = buf.length - bufOffset;
-
-		for (int i = bufIndex + 1; i < buffers.size(); i++) {
-			buf = buffers.get(i);
-			remain += buf.length;
-		}
-
-		return remain;
+		int[] offsets = offsets();
+		return offsets[buffers.size()] - offsets[bufIndex] - bufOffset;
 	}
 
 	@Override
 	public Buffer clear() {
-		baseIndex = 0;
-		baseOffset = 0;
+		baseIndex = originIndex;
+		baseOffset = originOffset;
 
-		bufIndex = 0;
-		bufOffset = 0;
+		bufIndex = originIndex;
+		bufOffset = originOffset;
 
 		markIndex = -1;
 		markOffset = -1;
@@ -680,11 +769,24 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public Buffer duplicate() {
-		throw new UnsupportedOperationException();
+		return new ChainBuffer(this, true);
+	}
+
+	@Override
+	public Buffer slice() {
+		ChainBuffer view = new ChainBuffer(this, true);
+		view.baseIndex = bufIndex;
+		view.baseOffset = bufOffset;
+		view.originIndex = bufIndex;
+		view.originOffset = bufOffset;
+		view.markIndex = -1;
+		view.markOffset = -1;
+		return view;
 	}
 
 	@Override
 	public Buffer flip() {
+		ownBuffers();
 		int i = bufIndex + 1;
 		while(i < buffers.size()) {
 			buffers.remove(i);
@@ -727,12 +829,26 @@ public class ChainBuffer implements Buffer {
 
 	@Override
 	public void compact() {
+		ownBuffers();
 		while(bufIndex > 0) {
 			bufIndex--;
 			this.buffers.remove(0);
 			if(baseIndex > 0) {
 				baseIndex--;
 			}
+			if (originIndex > 0)
+				originIndex--;
+			else
+				originOffset = 0;
+		}
+	}
+
+	/* exposes modification count to validate cached offsets */
+	private static final class ChunkList extends ArrayList<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		int version() {
+			return modCount;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One worker of {@link ShardedDecodePipeline}. It owns a decoder chain and
+ * decodes the packets queued by the capture thread.
+ */
+public class DecodeShard implements Runnable {
+	private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Logger logger = LoggerFactory.getLogger(DecodeShard.class.getName());
+	private final int index;
+	private final PcapDecoderChain chain;
+	private final SpscRingBuffer<PcapPacket> queue;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong decoded = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private volatile boolean stop;
+	private volatile Thread thread;
+
+	public DecodeShard(int index, int queueCapacity) {
+		this.index = index;
+		this.chain = new PcapDecoderChain();
+		this.queue = new SpscRingBuffer<PcapPacket>(queueCapacity);
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public PcapDecoderChain getDecoderChain() {
+		return chain;
+	}
+
+	/**
+	 * @return the packets accepted into the queue
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return the packets dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getDecodedCount() {
+		return decoded.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public int getQueueCapacity() {
+		return queue.capacity();
+	}
+
+	/* called by capture thread only */
+	boolean offer(PcapPacket packet, boolean block) {
+		while (!queue.offer(packet)) {
+			if (!block || stop) {
+				dropped.incrementAndGet();
+				packet.release();
+				return false;
+			}
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+
+		received.incrementAndGet();
+
+		/* worker may be parked only if it has drained the queue */
+		Thread t = thread;
+		if (t != null && queue.size() == 1)
+			LockSupport.unpark(t);
+		return true;
+	}
+
+	void stop() {
+		stop = true;
+		Thread t = thread;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		try {
+			while (true) {
+				PcapPacket packet = queue.poll();
+				if (packet == null) {
+					if (stop)
+						break;
+
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					continue;
+				}
+
+				try {
+					chain.decode(packet);
+				} catch (Exception e) {
+					errors.incrementAndGet();
+					logger.warn("kraken-pcap: shard " + index + " decode error", e);
+				} finally {
+					decoded.incrementAndGet();
+					packet.release();
+				}
+			}
+		} finally {
+			thread = null;
+		}
+		logger.trace("kraken-pcap: shard {} stopped", index);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("shard %d {received: %d, dropped: %d, decoded: %d, errors: %d, queue: %d/%d}", index,
+				getReceivedCount(), getDroppedCount(), getDecodedCount(), getErrorCount(), getQueueSize(),
+				getQueueCapacity());
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+/**
+ * Resumable delimiter search over a growing buffer. The scanner remembers
+ * how far it has scanned from the buffer position and its partial match, so
+ * each call only looks at the bytes added since the previous call. Hold one
+ * scanner per session and stream direction.
+ * 
+ * Call {@link #reset()} whenever the buffer position is moved, for example
+ * after the bytes before the delimiter are consumed.
+ */
+public class DelimiterScanner {
+	public static final byte[] CRLF = new byte[] { 0x0d, 0x0a };
+
+	/* terminates SMTP DATA and POP3 multi-line responses */
+	public static final byte[] END_OF_DATA = new byte[] { 0x0d, 0x0a, 0x2e, 0x0d, 0x0a };
+
+	private final byte[] delimiter;
+
+	/* KMP failure function */
+	private final int[] failure;
+
+	/* length of matched prefix of the delimiter */
+	private int state;
+
+	/* bytes scanned from the buffer position */
+	private int scanned;
+
+	/* distance from the buffer position to the end of found delimiter */
+	private int found = -1;
+
+	public DelimiterScanner(byte[] delimiter) {
+		if (delimiter == null || delimiter.length == 0)
+			throw new IllegalArgumentException("empty delimiter");
+
+		this.delimiter = delimiter.clone();
+		this.failure = new int[delimiter.length];
+		for (int i = 1, k = 0; i < delimiter.length; i++) {
+			while (k > 0 && delimiter[i] != delimiter[k])
+				k = failure[k - 1];
+			if (delimiter[i] == delimiter[k])
+				k++;
+			failure[i] = k;
+		}
+	}
+
+	public byte[] getDelimiter() {
+		return delimiter.clone();
+	}
+
+	/**
+	 * Searches the delimiter from the current position of the buffer. The
+	 * position is not moved.
+	 * 
+	 * @return the number of bytes before the delimiter, or -1 if not found
+	 *         yet
+	 */
+	public int scan(Buffer buffer) {
+		if (found < 0) {
+			int end;
+			if (buffer instanceof ChainBuffer) {
+				end = ((ChainBuffer) buffer).scan(this, scanned);
+			} else {
+				buffer.mark();
+				buffer.skip(scanned);
+				byte[] b = new byte[buffer.readableBytes()];
+				buffer.gets(b);
+				buffer.reset();
+
+				end = feed(b, 0, b.length);
+				if (end >= 0)
+					end += scanned;
+			}
+
+			if (end < 0) {
+				scanned = buffer.readableBytes();
+				return -1;
+			}
+			found = end;
+		}
+		return found - delimiter.length;
+	}
+
+	/**
+	 * Restarts the search from the buffer position.
+	 */
+	public void reset() {
+		state = 0;
+		scanned = 0;
+		found = -1;
+	}
+
+	/**
+	 * Feeds b[offset, end) and returns the index after the end of delimiter,
+	 * or -1 if not matched yet.
+	 */
+	int feed(byte[] b, int offset, int end) {
+		byte[] p = delimiter;
+		byte first = p[0];
+
+		if (p.length == 1) {
+			for (int i = offset; i < end; i++)
+				if (b[i] == first)
+					return i + 1;
+			return -1;
+		}
+
+		int s = state;
+		for (int i = offset; i < end; i++) {
+			if (s == 0) {
+				/* skip to the next candidate */
+				while (i < end && b[i] != first)
+					i++;
+				if (i == end)
+					break;
+				s = 1;
+				continue;
+			}
+
+			while (s > 0 && b[i] != p[s])
+				s = failure[s - 1];
+			if (b[i] == p[s])
+				s++;
+
+			if (s == p.length) {
+				state = 0;
+				return i + 1;
+			}
+		}
+		state = s;
+		return -1;
+	}
+}
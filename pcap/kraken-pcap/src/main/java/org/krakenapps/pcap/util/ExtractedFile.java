@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Sink of a file carried by a data channel. Bytes are stored in a
+ * {@link SpillOutputStream} and hashed as they arrive, so the heap holds at
+ * most the spill threshold. Bytes beyond the per-file limit or the shared
+ * {@link ExtractionBudget} are hashed and counted but not stored, and the
+ * file is marked as truncated.
+ */
+public class ExtractedFile {
+	private final long maxSize;
+	private final ExtractionBudget budget;
+	private final SpillOutputStream os;
+
+	private MessageDigest md5;
+	private MessageDigest sha256;
+	private String md5Hex;
+	private String sha256Hex;
+
+	/* bytes seen, including unstored ones */
+	private long size;
+	private boolean truncated;
+	private boolean disposed;
+
+	public ExtractedFile() {
+		this(Long.MAX_VALUE, null, SpillOutputStream.DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of stored bytes
+	 * @param budget
+	 *            the shared budget, or null if unlimited
+	 * @param spillThreshold
+	 *            the in-memory limit before spilling to a temporary file
+	 * @param directory
+	 *            the directory of the temporary file, or null for the default
+	 *            temporary directory
+	 */
+	public ExtractedFile(long maxSize, ExtractionBudget budget, int spillThreshold, File directory) {
+		this.maxSize = maxSize;
+		this.budget = budget;
+		this.os = new SpillOutputStream(spillThreshold, directory);
+
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void write(byte[] b, int offset, int length) throws IOException {
+		if (disposed)
+			throw new IOException("disposed");
+		if (md5Hex != null)
+			throw new IOException("already finished");
+
+		md5.update(b, offset, length);
+		sha256.update(b, offset, length);
+		size += length;
+
+		if (truncated)
+			return;
+
+		if (os.size() + length > maxSize || (budget != null && !budget.tryAcquire(length))) {
+			truncated = true;
+			return;
+		}
+
+		try {
+			os.write(b, offset, length);
+		} catch (IOException e) {
+			truncated = true;
+			if (budget != null)
+				budget.release(length);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the readable bytes of the buffer. The buffer position is not
+	 * moved.
+	 */
+	public void write(Buffer data) throws IOException {
+		int length = data.readableBytes();
+		if (length <= 0)
+			return;
+
+		byte[] b = new byte[length];
+		data.mark();
+		data.gets(b);
+		data.reset();
+		write(b, 0, length);
+	}
+
+	/**
+	 * Returns the number of bytes written, including the bytes which are
+	 * not stored.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes available from {@link #getInputStream()}.
+	 */
+	public long getStoredSize() {
+		return os.size();
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public boolean isSpilled() {
+		return os.isSpilled();
+	}
+
+	/**
+	 * Returns the hex MD5 of all written bytes. Finishes the file.
+	 */
+	public String getMd5() {
+		finish();
+		return md5Hex;
+	}
+
+	/**
+	 * Returns the hex SHA-256 of all written bytes. Finishes the file.
+	 */
+	public String getSha256() {
+		finish();
+		return sha256Hex;
+	}
+
+	/**
+	 * Returns a stream over the stored bytes. It stays readable until
+	 * {@link #dispose()}.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (disposed)
+			throw new IOException("disposed");
+		return os.getInputStream();
+	}
+
+	/**
+	 * Deletes the temporary file and returns the stored bytes to the budget.
+	 */
+	public void dispose() {
+		if (disposed)
+			return;
+
+		disposed = true;
+		if (budget != null)
+			budget.release(os.size());
+		os.dispose();
+	}
+
+	private void finish() {
+		if (md5Hex != null)
+			return;
+
+		md5Hex = toHex(md5.digest());
+		sha256Hex = toHex(sha256.digest());
+		md5 = null;
+		sha256 = null;
+	}
+
+	private static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte c : b)
+			sb.append(String.format("%02x", c & 0xff));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "extracted file size=" + size + ", stored=" + os.size() + (truncated ? ", truncated" : "");
+	}
+}
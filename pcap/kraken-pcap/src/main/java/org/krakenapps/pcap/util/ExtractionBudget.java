@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte budget shared by the files being extracted at the same time. A
+ * transfer acquires bytes before storing them and releases them when the
+ * file is disposed. Safe to share between decoders and threads.
+ */
+public class ExtractionBudget {
+	private final long limit;
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public ExtractionBudget(long limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("negative limit: " + limit);
+		this.limit = limit;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the bytes held by active transfers.
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * Returns the number of refused acquisitions.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return true if the bytes are reserved, false if the budget would be
+	 *         exceeded
+	 */
+	public boolean tryAcquire(long bytes) {
+		while (true) {
+			long current = used.get();
+			long next = current + bytes;
+			if (next > limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			if (used.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	@Override
+	public String toString() {
+		return "extraction budget " + used.get() + "/" + limit + ", rejected " + rejected.get();
+	}
+}
@@ -18,10 +18,13 @@ package org.krakenapps.pcap.util;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Date;
 
-import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.file.IndexedPcapFileInputStream;
 import org.krakenapps.pcap.file.PcapFileInputStream;
+import org.krakenapps.pcap.filter.BpfCompiler;
 import org.krakenapps.pcap.live.PcapDevice;
+import org.krakenapps.pcap.packet.PacketHeader;
 import org.krakenapps.pcap.packet.PcapPacket;
 
 /**
@@ -32,13 +35,64 @@ public class PcapDumpReplay {
 	}
 
 	public static void replay(PcapDevice device, File file) throws IOException {
-		PcapInputStream is = new PcapFileInputStream(file);
+		replay(device, file, (String) null);
+	}
+
+	/**
+	 * Replays packets matching the tcpdump style filter expression. Rejected
+	 * packets are skipped before their data is copied.
+	 */
+	public static void replay(PcapDevice device, File file, String filter) throws IOException {
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		try {
+			if (filter != null)
+				is.setFilter(BpfCompiler.compile(filter, is.datalink()));
+
+			while (true) {
+				PcapPacket packet = is.getPacket();
+				device.write(packet);
+			}
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Replays packets captured in [from, to). The sidecar index of the pcap
+	 * file is used to skip to the start time, and it is built if missing.
+	 */
+	public static void replay(PcapDevice device, File file, Date from, Date to) throws IOException {
+		replay(device, file, from, to, null);
+	}
+
+	/**
+	 * Replays packets captured in [from, to) which match the tcpdump style
+	 * filter expression.
+	 */
+	public static void replay(PcapDevice device, File file, Date from, Date to, String filter) throws IOException {
+		IndexedPcapFileInputStream is = new IndexedPcapFileInputStream(file);
 		try {
+			if (filter != null)
+				is.setFilter(BpfCompiler.compile(filter, is.datalink()));
+
+			if (!is.seekTime(from.getTime() * 1000000L))
+				return;
+
 			while (true) {
 				PcapPacket packet = is.getPacket();
+				if (getCaptureTime(packet) >= to.getTime())
+					break;
 				device.write(packet);
 			}
 		} catch (EOFException e) {
+		} finally {
+			is.close();
 		}
 	}
+
+	private static long getCaptureTime(PcapPacket packet) {
+		PacketHeader header = packet.getPacketHeader();
+		return (header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000;
+	}
 }
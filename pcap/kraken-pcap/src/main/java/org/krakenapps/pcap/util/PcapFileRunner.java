@@ -22,21 +22,18 @@ import java.io.IOException;
 import org.krakenapps.pcap.Protocol;
 import org.krakenapps.pcap.decoder.arp.ArpDecoder;
 import org.krakenapps.pcap.decoder.ethernet.EthernetDecoder;
-import org.krakenapps.pcap.decoder.ethernet.EthernetType;
 import org.krakenapps.pcap.decoder.icmp.IcmpDecoder;
 import org.krakenapps.pcap.decoder.icmpv6.Icmpv6Decoder;
 import org.krakenapps.pcap.decoder.icmpv6.Icmpv6Processor;
-import org.krakenapps.pcap.decoder.ip.InternetProtocol;
 import org.krakenapps.pcap.decoder.ip.IpDecoder;
 import org.krakenapps.pcap.decoder.ipv6.Ipv6Decoder;
 import org.krakenapps.pcap.decoder.tcp.TcpDecoder;
-import org.krakenapps.pcap.decoder.tcp.TcpPortProtocolMapper;
 import org.krakenapps.pcap.decoder.tcp.TcpProcessor;
 import org.krakenapps.pcap.decoder.tcp.TcpSegmentCallback;
 import org.krakenapps.pcap.decoder.udp.UdpDecoder;
-import org.krakenapps.pcap.decoder.udp.UdpPortProtocolMapper;
 import org.krakenapps.pcap.decoder.udp.UdpProcessor;
-import org.krakenapps.pcap.file.PcapFileInputStream;
+import org.krakenapps.pcap.file.MappedPcapFileInputStream;
+import org.krakenapps.pcap.filter.BpfCompiler;
 import org.krakenapps.pcap.packet.PcapPacket;
 
 /**
@@ -45,6 +42,12 @@ import org.krakenapps.pcap.packet.PcapPacket;
 public class PcapFileRunner {
 	private File dumpFile;
 
+	private PcapDecoderChain chain;
+	private ShardedDecodePipeline pipeline;
+	private boolean registered;
+	private BufferPool bufferPool;
+	private String filter;
+
 	private EthernetDecoder eth;
 	private ArpDecoder arp;
 	private IpDecoder ip;
@@ -57,62 +60,133 @@ public class PcapFileRunner {
 	public PcapFileRunner(File dumpFile) {
 		this.dumpFile = dumpFile;
 
-		eth = new EthernetDecoder();
-		arp = new ArpDecoder();
-		ip = new IpDecoder();
-		ipv6 = new Ipv6Decoder();
-		icmp = new IcmpDecoder();
-		icmpv6 = new Icmpv6Decoder();
-		tcp = new TcpDecoder(new TcpPortProtocolMapper());
-		udp = new UdpDecoder(new UdpPortProtocolMapper());
+		chain = new PcapDecoderChain();
+		eth = chain.getEthernetDecoder();
+		arp = chain.getArpDecoder();
+		ip = chain.getIpDecoder();
+		ipv6 = chain.getIpv6Decoder();
+		icmp = chain.getIcmpDecoder();
+		icmpv6 = chain.getIcmpv6Decoder();
+		tcp = chain.getTcpDecoder();
+		udp = chain.getUdpDecoder();
+	}
+
+	/**
+	 * Decodes packets on the pipeline's shards instead of the calling thread.
+	 * The pipeline is started and closed by {@link #run()}. Processors should
+	 * be registered per shard by {@link ShardedDecodePipeline.ShardInitializer},
+	 * because the decoder chain of the runner is not used.
+	 * 
+	 * @throws IllegalStateException
+	 *             if processors are already registered to the runner
+	 */
+	public void setPipeline(ShardedDecodePipeline pipeline) {
+		if (pipeline != null && registered)
+			throw new IllegalStateException("kraken-pcap: processors are registered to the runner, not the shards");
+		this.pipeline = pipeline;
+	}
+
+	public ShardedDecodePipeline getPipeline() {
+		return pipeline;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Reads packets into pooled buffers, which are released after decoding.
+	 * Processors which keep packet data beyond their callbacks should retain
+	 * the packet or copy the data.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
 
-		eth.register(EthernetType.IPV4, ip);
-		eth.register(EthernetType.IPV6, ipv6);
-		eth.register(EthernetType.ARP, arp);
+	public String getFilter() {
+		return filter;
+	}
 
-		ip.register(InternetProtocol.ICMP, icmp);
-		ip.register(InternetProtocol.TCP, tcp);
-		ip.register(InternetProtocol.UDP, udp);
+	/**
+	 * Decodes only packets matching the tcpdump style filter expression. The
+	 * filter is compiled for the datalink of the file and runs over the raw
+	 * packet bytes before they are copied or decoded.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the expression is not supported by {@link BpfCompiler}
+	 */
+	public void setFilter(String filter) {
+		if (filter != null)
+			BpfCompiler.compile(filter, BpfCompiler.LINKTYPE_ETHERNET);
+		this.filter = filter;
+	}
 
-		ipv6.register(InternetProtocol.ICMPV6, icmpv6);
-		ipv6.register(InternetProtocol.TCP, tcp);
-		ipv6.register(InternetProtocol.UDP, udp);
+	public PcapDecoderChain getDecoderChain() {
+		return chain;
 	}
 
 	public void run() throws IOException {
-		PcapFileInputStream is = null;
+		MappedPcapFileInputStream is = null;
+		ShardedDecodePipeline pipeline = this.pipeline;
 		try {
-			is = new PcapFileInputStream(dumpFile);
+			if (pipeline != null)
+				pipeline.start();
+
+			is = new MappedPcapFileInputStream(dumpFile);
+			is.setBufferPool(bufferPool);
+			if (filter != null)
+				is.setFilter(BpfCompiler.compile(filter, is.datalink()));
 			while (true) {
 				PcapPacket packet = is.getPacket();
 				if (packet == null)
 					break;
-				eth.decode(packet);
+
+				if (pipeline != null) {
+					pipeline.dispatch(packet);
+				} else {
+					try {
+						eth.decode(packet);
+					} finally {
+						packet.release();
+					}
+				}
 			}
 		} catch (EOFException e) {
 			// do nothing
 		} finally {
+			if (pipeline != null)
+				pipeline.close();
 			if (is != null)
 				is.close();
 		}
 	}
 
 	public void setTcpProcessor(Protocol protocol, TcpProcessor processor) {
+		checkRegister();
 		tcp.getProtocolMapper().register(protocol, processor);
 	}
 
 	public void setUdpProcessor(Protocol protocol, UdpProcessor processor) {
+		checkRegister();
 		udp.getProtocolMapper().register(protocol, processor);
 	}
 
 	public void addTcpCallback(TcpSegmentCallback callback) {
+		checkRegister();
 		tcp.registerSegmentCallback(callback);
 	}
 
 	public void addIcmpv6Processor(Icmpv6Processor processor) {
+		checkRegister();
 		icmpv6.register(processor);
 	}
 
+	private void checkRegister() {
+		if (pipeline != null)
+			throw new IllegalStateException("kraken-pcap: register processors to the pipeline shards");
+		registered = true;
+	}
+
 	public EthernetDecoder getEthernetDecoder() {
 		return eth;
 	}
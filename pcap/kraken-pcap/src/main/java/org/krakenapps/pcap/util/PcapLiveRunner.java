@@ -20,20 +20,16 @@ import java.io.IOException;
 import org.krakenapps.pcap.Protocol;
 import org.krakenapps.pcap.decoder.arp.ArpDecoder;
 import org.krakenapps.pcap.decoder.ethernet.EthernetDecoder;
-import org.krakenapps.pcap.decoder.ethernet.EthernetType;
 import org.krakenapps.pcap.decoder.ethernet.MacAddress;
 import org.krakenapps.pcap.decoder.icmp.IcmpDecoder;
 import org.krakenapps.pcap.decoder.icmpv6.Icmpv6Decoder;
 import org.krakenapps.pcap.decoder.icmpv6.Icmpv6Processor;
-import org.krakenapps.pcap.decoder.ip.InternetProtocol;
 import org.krakenapps.pcap.decoder.ip.IpDecoder;
 import org.krakenapps.pcap.decoder.ipv6.Ipv6Decoder;
 import org.krakenapps.pcap.decoder.tcp.TcpDecoder;
-import org.krakenapps.pcap.decoder.tcp.TcpPortProtocolMapper;
 import org.krakenapps.pcap.decoder.tcp.TcpProcessor;
 import org.krakenapps.pcap.decoder.tcp.TcpSegmentCallback;
 import org.krakenapps.pcap.decoder.udp.UdpDecoder;
-import org.krakenapps.pcap.decoder.udp.UdpPortProtocolMapper;
 import org.krakenapps.pcap.decoder.udp.UdpProcessor;
 import org.krakenapps.pcap.live.PcapDevice;
 import org.krakenapps.pcap.live.PcapDeviceMetadata;
@@ -50,6 +46,10 @@ public class PcapLiveRunner implements Runnable {
 	private volatile boolean stop = false;
 	private PcapDevice device;
 
+	private PcapDecoderChain chain;
+	private volatile ShardedDecodePipeline pipeline;
+	private volatile boolean registered;
+
 	private EthernetDecoder eth;
 	private ArpDecoder arp;
 	private IpDecoder ip;
@@ -61,30 +61,22 @@ public class PcapLiveRunner implements Runnable {
 
 	public PcapLiveRunner(PcapDevice device) {
 		this.device = device;
-		eth = new EthernetDecoder();
-		arp = new ArpDecoder();
-		ip = new IpDecoder();
-		ipv6 = new Ipv6Decoder();
-		icmp = new IcmpDecoder();
-		icmpv6 = new Icmpv6Decoder();
-		tcp = new TcpDecoder(new TcpPortProtocolMapper());
-		udp = new UdpDecoder(new UdpPortProtocolMapper());
-
-		eth.register(EthernetType.IPV4, ip);
-		eth.register(EthernetType.IPV6, ipv6);
-		eth.register(EthernetType.ARP, arp);
-
-		ip.register(InternetProtocol.ICMP, icmp);
-		ip.register(InternetProtocol.UDP, udp);
-		ip.register(InternetProtocol.TCP, tcp);
-
-		ipv6.register(InternetProtocol.ICMPV6, icmpv6);
-		ipv6.register(InternetProtocol.TCP, tcp);
-		ipv6.register(InternetProtocol.UDP, udp);
+		chain = new PcapDecoderChain();
+		eth = chain.getEthernetDecoder();
+		arp = chain.getArpDecoder();
+		ip = chain.getIpDecoder();
+		ipv6 = chain.getIpv6Decoder();
+		icmp = chain.getIcmpDecoder();
+		icmpv6 = chain.getIcmpv6Decoder();
+		tcp = chain.getTcpDecoder();
+		udp = chain.getUdpDecoder();
 	}
 
 	public void run() {
 		try {
+			if (pipeline != null)
+				pipeline.start();
+
 			while (true) {
 				try {
 					if (stop)
@@ -92,7 +84,7 @@ public class PcapLiveRunner implements Runnable {
 
 					PcapPacket packet = device.getPacket();
 					if (packet != null)
-						eth.decode(packet);
+						decode(packet);
 				} catch (IOException e) {
 					if (e.getMessage().equalsIgnoreCase("Timeout"))
 						continue;
@@ -106,6 +98,8 @@ public class PcapLiveRunner implements Runnable {
 			logger.trace("pcap live runner failed", e);
 		} finally {
 			closeDevice();
+			if (pipeline != null)
+				pipeline.close();
 		}
 
 		PcapDeviceMetadata metadata = device.getMetadata();
@@ -116,8 +110,43 @@ public class PcapLiveRunner implements Runnable {
 	}
 
 	public void runOnce() throws IOException {
+		if (pipeline != null)
+			pipeline.start();
+
 		PcapPacket packet = device.getPacket();
-		eth.decode(packet);
+		decode(packet);
+	}
+
+	private void decode(PcapPacket packet) {
+		if (pipeline != null)
+			pipeline.dispatch(packet);
+		else
+			eth.decode(packet);
+	}
+
+	/**
+	 * Decodes packets on the pipeline's shards instead of the capture thread.
+	 * The pipeline is started by {@link #run()} and closed when it stops.
+	 * {@link ShardedDecodePipeline.OverflowPolicy#DROP} keeps the capture
+	 * thread from stalling behind a slow shard. Processors should be
+	 * registered per shard by {@link ShardedDecodePipeline.ShardInitializer},
+	 * because the decoder chain of the runner is not used.
+	 * 
+	 * @throws IllegalStateException
+	 *             if processors are already registered to the runner
+	 */
+	public void setPipeline(ShardedDecodePipeline pipeline) {
+		if (pipeline != null && registered)
+			throw new IllegalStateException("kraken-pcap: processors are registered to the runner, not the shards");
+		this.pipeline = pipeline;
+	}
+
+	public ShardedDecodePipeline getPipeline() {
+		return pipeline;
+	}
+
+	public PcapDecoderChain getDecoderChain() {
+		return chain;
 	}
 
 	public PcapDevice getDevice() {
@@ -125,6 +154,7 @@ public class PcapLiveRunner implements Runnable {
 	}
 
 	public void setTcpProcessor(Protocol protocol, TcpProcessor processor) {
+		checkRegister();
 		tcp.getProtocolMapper().register(protocol, processor);
 	}
 
@@ -133,6 +163,7 @@ public class PcapLiveRunner implements Runnable {
 	}
 
 	public void setUdpProcessor(Protocol protocol, UdpProcessor processor) {
+		checkRegister();
 		udp.getProtocolMapper().register(protocol, processor);
 	}
 
@@ -141,6 +172,7 @@ public class PcapLiveRunner implements Runnable {
 	}
 
 	public void addTcpCallback(TcpSegmentCallback callback) {
+		checkRegister();
 		tcp.registerSegmentCallback(callback);
 	}
 
@@ -149,9 +181,16 @@ public class PcapLiveRunner implements Runnable {
 	}
 
 	public void addIcmpv6Processor(Icmpv6Processor processor) {
+		checkRegister();
 		icmpv6.register(processor);
 	}
 
+	private void checkRegister() {
+		if (pipeline != null)
+			throw new IllegalStateException("kraken-pcap: register processors to the pipeline shards");
+		registered = true;
+	}
+
 	public EthernetDecoder getEthernetDecoder() {
 		return eth;
 	}
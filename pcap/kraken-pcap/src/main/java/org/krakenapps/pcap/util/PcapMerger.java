@@ -15,12 +15,24 @@
  */
 package org.krakenapps.pcap.util;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
 
+import org.krakenapps.pcap.PcapInputStream;
+import org.krakenapps.pcap.file.IndexedPcapFileInputStream;
 import org.krakenapps.pcap.file.PcapFileInputStream;
 import org.krakenapps.pcap.file.PcapFileOutputStream;
+import org.krakenapps.pcap.filter.BpfCompiler;
+import org.krakenapps.pcap.filter.BpfProgram;
+import org.krakenapps.pcap.packet.PacketHeader;
 import org.krakenapps.pcap.packet.PcapPacket;
 
 /**
@@ -44,11 +56,28 @@ public class PcapMerger {
 	 *             related problems.
 	 */
 	public static void merge(File to, File from) throws IOException {
+		merge(to, from, (String) null);
+	}
+
+	/**
+	 * Append packets matching the tcpdump style filter expression to the
+	 * target pcap file. Rejected packets are skipped before their data is
+	 * copied.
+	 * 
+	 * @param filter
+	 *            the filter expression, or null for all packets
+	 * @throws IllegalArgumentException
+	 *             if the expression is not supported by {@link BpfCompiler}
+	 */
+	public static void merge(File to, File from, String filter) throws IOException {
 		PcapFileInputStream is = null;
 		PcapFileOutputStream os = null;
 		try {
 			is = new PcapFileInputStream(from);
+			if (filter != null)
+				is.setFilter(BpfCompiler.compile(filter, is.datalink()));
 			os = new PcapFileOutputStream(to, is.getGlobalHeader());
+			os.setAutoFlush(false);
 
 			writePacket(is, os);
 		} finally {
@@ -58,36 +87,131 @@ public class PcapMerger {
 	}
 
 	/**
-	 * Merge file1 with file2, and write to output file. It doesn't hurt
-	 * original pcap dump files.
+	 * Merge file1 with file2 by timestamp, and write to output file. It
+	 * doesn't hurt original pcap dump files.
 	 * 
 	 * @param output
 	 *            the new pcap file. it will contain both file1 and file2.
 	 * @param file1
-	 *            the first pcap file. it will be written first.
+	 *            the first pcap file. its packet is written first if
+	 *            timestamps are equal.
 	 * @param file2
-	 *            the second pcap file. it will be written to output after first
-	 *            pcap file.
+	 *            the second pcap file.
 	 * 
 	 * @throws IOException
 	 *             if there are no source files, have no read and/or write
 	 *             permissions, or anything else.
 	 */
 	public static void merge(File output, File file1, File file2) throws IOException {
-		PcapFileInputStream is1 = null;
-		PcapFileInputStream is2 = null;
+		merge(output, Arrays.asList(file1, file2));
+	}
+
+	/**
+	 * Merge pcap files by timestamp, and write to output file. Each input is
+	 * read through its own buffered cursor and the cursors are kept in a heap
+	 * ordered by the timestamp of their next packet, so memory usage depends
+	 * on the number of inputs only. Packets with equal timestamps are written
+	 * in input order.
+	 * 
+	 * @param output
+	 *            the new pcap file. pcap data will be appended if it exists.
+	 * @param inputs
+	 *            the source pcap files. all of them should have the same
+	 *            datalink.
+	 * @throws IOException
+	 *             if there are no source files, datalinks are different, or
+	 *             other io related problems.
+	 */
+	public static void merge(File output, List<File> inputs) throws IOException {
+		merge(output, inputs, null);
+	}
+
+	/**
+	 * Merge packets matching the tcpdump style filter expression by
+	 * timestamp, and write to output file.
+	 * 
+	 * @param filter
+	 *            the filter expression, or null for all packets
+	 * @see #merge(File, List)
+	 */
+	public static void merge(File output, List<File> inputs, String filter) throws IOException {
+		if (inputs.isEmpty())
+			throw new IllegalArgumentException("no input pcap file");
+
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(inputs.size());
+		List<Cursor> cursors = new ArrayList<Cursor>(inputs.size());
 		PcapFileOutputStream os = null;
+		BpfProgram program = null;
 		try {
+			for (File input : inputs) {
+				Cursor cursor = new Cursor(cursors.size(), input);
+				cursors.add(cursor);
+
+				int datalink = cursors.get(0).is.datalink();
+				if (cursor.is.datalink() != datalink)
+					throw new IOException("datalink mismatch: " + input.getName() + " has " + cursor.is.datalink()
+							+ ", expected " + datalink);
+				if (filter != null) {
+					if (program == null)
+						program = BpfCompiler.compile(filter, datalink);
+					cursor.is.setFilter(program);
+				}
+
+				if (cursor.next())
+					heap.add(cursor);
+			}
 
-			is1 = new PcapFileInputStream(file1);
-			is2 = new PcapFileInputStream(file2);
-			os = new PcapFileOutputStream(output, is1.getGlobalHeader());
+			os = new PcapFileOutputStream(output, cursors.get(0).is.getGlobalHeader());
+			os.setAutoFlush(false);
 
-			writePacket(is1, os);
-			writePacket(is2, os);
+			while (!heap.isEmpty()) {
+				Cursor cursor = heap.poll();
+				os.write(cursor.packet);
+				if (cursor.next())
+					heap.add(cursor);
+			}
 		} finally {
-			closeInput(is1);
-			closeInput(is2);
+			for (Cursor cursor : cursors)
+				closeInput(cursor.is);
+			closeOutput(os);
+		}
+	}
+
+	/**
+	 * Append packets captured in [begin, end) to the target pcap file. The
+	 * sidecar index of the source file is used to skip to the begin time, and
+	 * it is built if missing.
+	 * 
+	 * @param to
+	 *            the target pcap file. pcap data will be appended to this file.
+	 * @param from
+	 *            the source pcap file.
+	 * @param begin
+	 *            the inclusive start of the time range
+	 * @param end
+	 *            the exclusive end of the time range
+	 */
+	public static void merge(File to, File from, Date begin, Date end) throws IOException {
+		IndexedPcapFileInputStream is = null;
+		PcapFileOutputStream os = null;
+		try {
+			is = new IndexedPcapFileInputStream(from);
+			os = new PcapFileOutputStream(to, is.getGlobalHeader());
+			os.setAutoFlush(false);
+			if (!is.seekTime(begin.getTime() * 1000000L))
+				return;
+
+			while (true) {
+				PcapPacket packet = is.getPacket();
+				PacketHeader header = packet.getPacketHeader();
+				long time = (header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000;
+				if (time >= end.getTime())
+					break;
+				os.write(packet);
+			}
+		} catch (EOFException e) {
+		} finally {
+			closeInput(is);
 			closeOutput(os);
 		}
 	}
@@ -104,7 +228,43 @@ public class PcapMerger {
 		}
 	}
 
-	private static void closeInput(PcapFileInputStream is) {
+	private static class Cursor implements Comparable<Cursor> {
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		private final int order;
+		private final PcapFileInputStream is;
+		private PcapPacket packet;
+		private long sec;
+		private int usec;
+
+		public Cursor(int order, File file) throws IOException {
+			this.order = order;
+			this.is = new PcapFileInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		public boolean next() throws IOException {
+			try {
+				packet = is.getPacket();
+				sec = packet.getPacketHeader().getTsSec() & 0xffffffffL;
+				usec = packet.getPacketHeader().getTsUsec();
+				return true;
+			} catch (EOFException e) {
+				packet = null;
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(Cursor o) {
+			if (sec != o.sec)
+				return sec < o.sec ? -1 : 1;
+			if (usec != o.usec)
+				return usec < o.usec ? -1 : 1;
+			return order - o.order;
+		}
+	}
+
+	private static void closeInput(PcapInputStream is) {
 		if (is == null)
 			return;
 		try {
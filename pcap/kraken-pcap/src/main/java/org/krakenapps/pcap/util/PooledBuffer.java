@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Packet buffer backed by a single array of {@link BufferPool}. The array is
+ * returned to the pool when the last reference is released, so it should not
+ * be read after release.
+ */
+public class PooledBuffer extends ChainBuffer implements ReferenceCounted {
+	private final BufferPool pool;
+	private final byte[] array;
+	private final AtomicInteger refCnt = new AtomicInteger();
+
+	/* set while leak detection is enabled */
+	BufferPool.LeakRecord leak;
+
+	PooledBuffer(BufferPool pool, byte[] array) {
+		super(array);
+		this.pool = pool;
+		this.array = array;
+	}
+
+	/**
+	 * @return the backing array, which should be filled by the packet reader
+	 */
+	public byte[] array() {
+		return array;
+	}
+
+	@Override
+	public int refCnt() {
+		return refCnt.get();
+	}
+
+	@Override
+	public PooledBuffer retain() {
+		while (true) {
+			int count = refCnt.get();
+			if (count <= 0)
+				throw new IllegalStateException("buffer already released");
+			if (refCnt.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	@Override
+	public boolean release() {
+		while (true) {
+			int count = refCnt.get();
+			if (count <= 0)
+				throw new IllegalStateException("buffer already released");
+			if (refCnt.compareAndSet(count, count - 1)) {
+				if (count > 1)
+					return false;
+
+				pool.recycle(this);
+				return true;
+			}
+		}
+	}
+
+	/* prepares recycled buffer for the next packet */
+	void reuse() {
+		resetChunks(array);
+		clear();
+		order(ByteOrder.BIG_ENDIAN);
+		refCnt.set(1);
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+/**
+ * Object which is recycled when its reference count drops to zero. Every
+ * holder which keeps the object beyond the callback it was passed to should
+ * retain it, and release it when done.
+ */
+public interface ReferenceCounted {
+	int refCnt();
+
+	/**
+	 * Increases the reference count by one.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the object is already released
+	 */
+	ReferenceCounted retain();
+
+	/**
+	 * Decreases the reference count by one.
+	 * 
+	 * @return true if the count dropped to zero and the object is recycled
+	 * @throws IllegalStateException
+	 *             if the object is already released
+	 */
+	boolean release();
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-session state of an application decoder. Entries are kept in a doubly
+ * linked list ordered by last access, so idle expiry and the entry/byte
+ * budgets evict from the head in O(1). Evicted states are passed to the
+ * {@link EvictionListener} so that the decoder can release its buffers;
+ * {@link #remove(Object)} does not notify.
+ * 
+ * All limits are disabled (0) by default. Time is capture time taken from
+ * the {@link CaptureClock}, or advanced by {@link #advance(long)}. The most
+ * recently accessed entry is never evicted by the budgets, so the state in
+ * use by the caller stays valid. Not thread-safe, like the decoders.
+ */
+public class SessionStateTable<K, V> {
+	public enum EvictCause {
+		IDLE, ENTRY_LIMIT, BYTE_LIMIT, CLEAR
+	}
+
+	public interface EvictionListener<K, V> {
+		void onEvict(K key, V state, EvictCause cause);
+	}
+
+	public interface Weigher<V> {
+		/**
+		 * @return the bytes buffered by the state
+		 */
+		long getBufferedBytes(V state);
+	}
+
+	private final Map<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+	private final EvictionListener<K, V> listener;
+	private final Weigher<V> weigher;
+
+	private Node<K, V> head;
+	private Node<K, V> tail;
+	private long bufferedBytes;
+	private long now;
+
+	private volatile CaptureClock clock;
+	private volatile long idleTimeout;
+	private volatile int maxEntries;
+	private volatile long maxBytes;
+
+	private final AtomicLong idleExpired = new AtomicLong();
+	private final AtomicLong entryLimitEvicted = new AtomicLong();
+	private final AtomicLong byteLimitEvicted = new AtomicLong();
+
+	public SessionStateTable(EvictionListener<K, V> listener) {
+		this(listener, null);
+	}
+
+	/**
+	 * @param weigher
+	 *            the byte accounting of states, or null to count entries only
+	 */
+	public SessionStateTable(EvictionListener<K, V> listener, Weigher<V> weigher) {
+		this.listener = listener;
+		this.weigher = weigher;
+	}
+
+	public CaptureClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets the capture time source, for example
+	 * {@link org.krakenapps.pcap.decoder.tcp.TcpDecoder#getSessionExpirer()}.
+	 */
+	public void setClock(CaptureClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the idle timeout in milliseconds of capture time, 0 if disabled
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the upper bound of bytes buffered by all states, 0 if unlimited
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns the buffered bytes as of the last access of each entry.
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	/**
+	 * @return the latest capture time seen in milliseconds
+	 */
+	public long getCurrentTime() {
+		CaptureClock c = clock;
+		if (c != null)
+			advance(c.getCurrentTime());
+		return now;
+	}
+
+	public long getIdleExpiredCount() {
+		return idleExpired.get();
+	}
+
+	public long getEntryLimitEvictedCount() {
+		return entryLimitEvicted.get();
+	}
+
+	public long getByteLimitEvictedCount() {
+		return byteLimitEvicted.get();
+	}
+
+	public long getEvictedCount() {
+		return idleExpired.get() + entryLimitEvicted.get() + byteLimitEvicted.get();
+	}
+
+	public void advance(long time) {
+		if (time > now)
+			now = time;
+	}
+
+	/**
+	 * Returns the state and marks it as accessed, then expires other entries.
+	 */
+	public V get(K key) {
+		Node<K, V> node = map.get(key);
+		if (node == null)
+			return null;
+
+		touch(node);
+		expire();
+		return node.value;
+	}
+
+	/**
+	 * Returns the state without access marking or expiry.
+	 */
+	public V peek(K key) {
+		Node<K, V> node = map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	public boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Adds or replaces the state and expires other entries. A replaced state
+	 * is returned without notification.
+	 */
+	public V put(K key, V value) {
+		Node<K, V> old = map.get(key);
+		if (old != null)
+			unlink(old);
+
+		Node<K, V> node = new Node<K, V>(key, value);
+		map.put(key, node);
+		touch(node);
+		expire();
+		return old == null ? null : old.value;
+	}
+
+	/**
+	 * Removes the state without notification.
+	 */
+	public V remove(K key) {
+		Node<K, V> node = map.remove(key);
+		if (node == null)
+			return null;
+
+		unlink(node);
+		return node.value;
+	}
+
+	/**
+	 * Returns a snapshot of the states in access order.
+	 */
+	public List<V> values() {
+		List<V> l = new ArrayList<V>(map.size());
+		for (Node<K, V> n = head; n != null; n = n.next)
+			l.add(n.value);
+		return l;
+	}
+
+	/**
+	 * Evicts idle entries first, then least recently accessed entries until
+	 * the entry and byte budgets are met.
+	 */
+	public void expire() {
+		long time = getCurrentTime();
+
+		long timeout = idleTimeout;
+		if (timeout > 0) {
+			while (head != null && time - head.lastSeen > timeout) {
+				idleExpired.incrementAndGet();
+				evict(head, EvictCause.IDLE);
+			}
+		}
+
+		int entryLimit = maxEntries;
+		if (entryLimit > 0) {
+			while (head != null && head != tail && map.size() > entryLimit) {
+				entryLimitEvicted.incrementAndGet();
+				evict(head, EvictCause.ENTRY_LIMIT);
+			}
+		}
+
+		long byteLimit = maxBytes;
+		if (byteLimit > 0) {
+			while (head != null && head != tail && bufferedBytes > byteLimit) {
+				byteLimitEvicted.incrementAndGet();
+				evict(head, EvictCause.BYTE_LIMIT);
+			}
+		}
+	}
+
+	/**
+	 * Evicts all entries, for example when the decoder is shut down.
+	 */
+	public void clear() {
+		while (head != null)
+			evict(head, EvictCause.CLEAR);
+	}
+
+	private void evict(Node<K, V> node, EvictCause cause) {
+		map.remove(node.key);
+		unlink(node);
+		if (listener != null)
+			listener.onEvict(node.key, node.value, cause);
+	}
+
+	/* move node to most recently accessed position and refresh byte accounting */
+	private void touch(Node<K, V> node) {
+		node.lastSeen = getCurrentTime();
+		if (tail != node) {
+			if (node.linked)
+				unlinkNode(node);
+
+			node.prev = tail;
+			node.next = null;
+			if (tail != null)
+				tail.next = node;
+			tail = node;
+			if (head == null)
+				head = node;
+			node.linked = true;
+		}
+
+		if (weigher != null) {
+			long bytes = weigher.getBufferedBytes(node.value);
+			bufferedBytes += bytes - node.accountedBytes;
+			node.accountedBytes = bytes;
+		}
+	}
+
+	private void unlink(Node<K, V> node) {
+		if (!node.linked)
+			return;
+
+		unlinkNode(node);
+		node.prev = null;
+		node.next = null;
+		node.linked = false;
+
+		bufferedBytes -= node.accountedBytes;
+		node.accountedBytes = 0;
+	}
+
+	private void unlinkNode(Node<K, V> node) {
+		if (node.prev != null)
+			node.prev.next = node.next;
+		else
+			head = node.next;
+
+		if (node.next != null)
+			node.next.prev = node.prev;
+		else
+			tail = node.prev;
+	}
+
+	@Override
+	public String toString() {
+		return "session states=" + map.size() + ", bytes=" + bufferedBytes + ", evicted=" + getEvictedCount();
+	}
+
+	private static class Node<K, V> {
+		private final K key;
+		private final V value;
+		private Node<K, V> prev;
+		private Node<K, V> next;
+		private boolean linked;
+		private long lastSeen;
+		private long accountedBytes;
+
+		private Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.krakenapps.pcap.decoder.ethernet.Encapsulation;
+import org.krakenapps.pcap.decoder.ethernet.EthernetDecoder;
+import org.krakenapps.pcap.decoder.ethernet.EthernetType;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes packets on several worker threads. The capture thread hashes the
+ * address pair of each packet symmetrically, so both directions of a flow
+ * land on the same {@link DecodeShard}, and every shard keeps its own
+ * decoder chain and tcp session table. Vlan tags, mpls labels and tunnels are
+ * stripped before hashing as configured on the ethernet decoder of the first
+ * shard, so the inner flow and its zone decide the shard.
+ * 
+ * Processors are registered per shard through {@link ShardInitializer},
+ * because application decoders keep per-session state which is not thread
+ * safe. {@link #dispatch(PcapPacket)} must be called from one thread.
+ * 
+ * Ports are not hashed, because only the first fragment of a datagram carries
+ * them. Fragments are reassembled on the shard of their flow, but all flows
+ * between two hosts share one shard.
+ */
+public class ShardedDecodePipeline {
+	public enum OverflowPolicy {
+		/**
+		 * wait until the shard queue has room. file replays never lose packets.
+		 */
+		BLOCK,
+
+		/**
+		 * drop the packet and count it. live capture never stalls.
+		 */
+		DROP
+	}
+
+	public interface ShardInitializer {
+		void init(DecodeShard shard);
+	}
+
+	private static final EthernetDecoder DEFAULT_DECAPSULATOR = new EthernetDecoder();
+
+	private final Logger logger = LoggerFactory.getLogger(ShardedDecodePipeline.class.getName());
+	private final List<DecodeShard> shards;
+	private final List<Thread> threads;
+	private final OverflowPolicy policy;
+	private final EthernetDecoder decapsulator;
+	private boolean started;
+
+	public ShardedDecodePipeline(int shardCount, int queueCapacity, OverflowPolicy policy,
+			ShardInitializer initializer) {
+		if (shardCount <= 0)
+			throw new IllegalArgumentException("shard count should be positive: " + shardCount);
+
+		this.policy = policy;
+		this.shards = new ArrayList<DecodeShard>(shardCount);
+		this.threads = new ArrayList<Thread>(shardCount);
+
+		for (int i = 0; i < shardCount; i++) {
+			DecodeShard shard = new DecodeShard(i, queueCapacity);
+			if (initializer != null)
+				initializer.init(shard);
+			shards.add(shard);
+		}
+
+		this.decapsulator = shards.get(0).getDecoderChain().getEthernetDecoder();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	public List<DecodeShard> getShards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	public synchronized void start() {
+		if (started)
+			return;
+
+		for (DecodeShard shard : shards) {
+			Thread t = new Thread(shard, "kraken-pcap-shard-" + shard.getIndex());
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		started = true;
+	}
+
+	/**
+	 * Queues the packet to the shard of its flow. The pipeline takes over the
+	 * reference of a pooled packet and releases it after decoding or dropping.
+	 * 
+	 * @return false if the packet is dropped by overflow policy
+	 */
+	public boolean dispatch(PcapPacket packet) {
+		int hash = flowHash(packet.getPacketData(), decapsulator);
+		DecodeShard shard = shards.get((hash & 0x7fffffff) % shards.size());
+		return shard.offer(packet, policy == OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Stops the workers after they drain their queues, and waits for them.
+	 */
+	public synchronized void close() {
+		for (DecodeShard shard : shards)
+			shard.stop();
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		threads.clear();
+		started = false;
+		if (logger.isDebugEnabled()) {
+			for (DecodeShard shard : shards)
+				logger.debug("kraken-pcap: {}", shard);
+		}
+	}
+
+	/**
+	 * Returns a hash of the ethernet frame's flow which is identical for both
+	 * directions, using the default tag and tunnel stripping.
+	 */
+	public static int flowHash(Buffer data) {
+		return flowHash(data, DEFAULT_DECAPSULATOR);
+	}
+
+	/**
+	 * Returns a hash of the ethernet frame's flow which is identical for both
+	 * directions. The frame is decapsulated by the given decoder without
+	 * moving the buffer position, and the inner addresses are hashed with the
+	 * zone. Non-ip frames hash to 0.
+	 */
+	public static int flowHash(Buffer data, EthernetDecoder decapsulator) {
+		Buffer b = data.duplicate();
+		if (b.readableBytes() < 14)
+			return 0;
+
+		Encapsulation encapsulation = new Encapsulation();
+		int type = decapsulator.decapsulate(b, encapsulation);
+
+		int a;
+		int z;
+		try {
+			if (type == EthernetType.IPV4) {
+				if (b.skip(12) == null)
+					return 0;
+				a = b.getInt();
+				z = b.getInt();
+			} else if (type == EthernetType.IPV6) {
+				if (b.skip(8) == null)
+					return 0;
+				a = b.getInt() ^ b.getInt() ^ b.getInt() ^ b.getInt();
+				z = b.getInt() ^ b.getInt() ^ b.getInt() ^ b.getInt();
+			} else {
+				return 0;
+			}
+		} catch (BufferUnderflowException e) {
+			return 0;
+		}
+
+		/* order endpoints, so that both directions hash the same */
+		long zone = encapsulation.getZone();
+		int h = (int) (zone ^ (zone >>> 32));
+		h = 31 * h + Math.min(a, z);
+		h = 31 * h + Math.max(a, z);
+		return mix(h);
+	}
+
+	/* murmur3 finalizer */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
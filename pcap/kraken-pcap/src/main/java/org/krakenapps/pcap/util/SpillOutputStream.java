@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Output stream which keeps the first bytes in memory and spills everything
+ * to a temporary file once the threshold is exceeded. Used to hold extracted
+ * contents of unknown size without growing the heap.
+ */
+public class SpillOutputStream extends OutputStream {
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private final int threshold;
+	private final File directory;
+
+	private byte[] buf;
+	private int count;
+	private long size;
+
+	private File file;
+	private OutputStream fos;
+	private boolean closed;
+
+	public SpillOutputStream() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	public SpillOutputStream(int threshold) {
+		this(threshold, null);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of the temporary file, or null for the default
+	 *            temporary directory
+	 */
+	public SpillOutputStream(int threshold, File directory) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("negative threshold: " + threshold);
+
+		this.threshold = threshold;
+		this.directory = directory;
+		this.buf = new byte[Math.min(threshold, 4096)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("stream closed");
+
+		if (fos == null && count + len > threshold)
+			spill();
+
+		if (fos != null) {
+			fos.write(b, off, len);
+		} else {
+			if (count + len > buf.length)
+				buf = Arrays.copyOf(buf, Math.min(threshold, Math.max(buf.length * 2, count + len)));
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+		size += len;
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("kraken", ".spill", directory);
+		fos = new FileOutputStream(file);
+		fos.write(buf, 0, count);
+		buf = null;
+		count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (fos != null)
+			fos.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+		if (fos != null)
+			fos.close();
+	}
+
+	/**
+	 * Returns the total number of bytes written.
+	 */
+	public long size() {
+		return size;
+	}
+
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Returns the temporary file, or null if all bytes are in memory.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns a stream over the written bytes. Flushes but does not close
+	 * this stream.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (file == null)
+			return new ByteArrayInputStream(buf, 0, count);
+
+		flush();
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Returns a copy of the written bytes, reading the temporary file if
+	 * spilled.
+	 */
+	public byte[] toByteArray() throws IOException {
+		if (file == null)
+			return Arrays.copyOf(buf, count);
+
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("too large: " + size);
+
+		byte[] b = new byte[(int) size];
+		InputStream is = getInputStream();
+		try {
+			int offset = 0;
+			while (offset < b.length) {
+				int read = is.read(b, offset, b.length - offset);
+				if (read < 0)
+					break;
+				offset += read;
+			}
+		} finally {
+			is.close();
+		}
+		return b;
+	}
+
+	/**
+	 * Closes the stream and deletes the temporary file.
+	 */
+	public void dispose() {
+		try {
+			close();
+		} catch (IOException e) {
+		}
+
+		if (file != null)
+			file.delete();
+		buf = null;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer for exactly one producer thread and one
+ * consumer thread. Capacity is rounded up to a power of two.
+ */
+public class SpscRingBuffer<E> {
+	private final Object[] buffer;
+	private final int mask;
+	private final AtomicLong producerIndex = new AtomicLong();
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	public SpscRingBuffer(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity should be positive: " + capacity);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		buffer = new Object[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E e) {
+		long p = producerIndex.get();
+		if (p - consumerIndex.get() >= buffer.length)
+			return false;
+
+		buffer[(int) p & mask] = e;
+		producerIndex.lazySet(p + 1);
+		return true;
+	}
+
+	/**
+	 * @return the eldest element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long c = consumerIndex.get();
+		if (c >= producerIndex.get())
+			return null;
+
+		int index = (int) c & mask;
+		E e = (E) buffer[index];
+		buffer[index] = null;
+		consumerIndex.lazySet(c + 1);
+		return e;
+	}
+
+	public int size() {
+		long c = consumerIndex.get();
+		return (int) (producerIndex.get() - c);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+}
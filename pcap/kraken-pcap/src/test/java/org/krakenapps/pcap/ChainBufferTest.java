@@ -1719,4 +1719,102 @@ public class ChainBufferTest {
 		buffer.order(ByteOrder.BIG_ENDIAN);
 		Assert.assertEquals(0x304, buffer.getShort());
 	}
+
+	@Test
+	public void testPositionAfterAppend() {
+		Buffer buffer = initBuffer();
+		Assert.assertEquals(0, buffer.position());
+		buffer.skip(5);
+		Assert.assertEquals(5, buffer.position());
+		Assert.assertEquals(2, buffer.getBufIndex());
+
+		buffer.addLast(new byte[] { 15, 16 });
+		Assert.assertEquals(5, buffer.position());
+		Assert.assertEquals(11, buffer.readableBytes());
+		Assert.assertEquals(16, buffer.getCapacity());
+
+		buffer.position(15);
+		Assert.assertEquals(16, buffer.get());
+		Assert.assertTrue(buffer.isEOB());
+		Assert.assertNull(buffer.skip(1));
+	}
+
+	@Test
+	public void testReadAcrossBuffers() {
+		Buffer buffer = new ChainBuffer();
+		buffer.addLast(new byte[] { 1 });
+		buffer.addLast(new byte[] { 2, 3 });
+		buffer.addLast(new byte[] { 4, 5, 6, 7, 8, 9 });
+		Assert.assertEquals(0x01020304, buffer.getInt());
+		Assert.assertEquals(0x0506, buffer.getShort());
+		Assert.assertEquals(2, buffer.getBufIndex());
+
+		try {
+			buffer.getInt();
+			fail();
+		} catch (BufferUnderflowException e) {
+		}
+		Assert.assertEquals(3, buffer.readableBytes());
+	}
+
+	@Test
+	public void testDuplicateAndSlice() {
+		Buffer buffer = initBuffer();
+		buffer.skip(3);
+
+		Buffer dup = buffer.duplicate();
+		Assert.assertEquals(4, dup.get());
+		Assert.assertEquals(3, buffer.position());
+		Assert.assertEquals(4, dup.position());
+
+		Buffer slice = buffer.slice();
+		slice.skip(6);
+		slice.rewind();
+		Assert.assertEquals(0, slice.position());
+		Assert.assertEquals(11, slice.getCapacity());
+		Assert.assertEquals(4, slice.get());
+		slice.position(2);
+		Assert.assertEquals(6, slice.get());
+		Assert.assertEquals(3, slice.duplicate().position());
+
+		/* views copy the buffer list before changing it */
+		buffer.addLast(new byte[] { 15 });
+		Assert.assertEquals(15, buffer.getCapacity());
+		Assert.assertEquals(14, dup.getCapacity());
+		dup.addLast(new byte[] { 16, 17 });
+		Assert.assertEquals(16, dup.getCapacity());
+		dup.position(14);
+		Assert.assertEquals(16, dup.get());
+		Assert.assertEquals(15, buffer.getCapacity());
+	}
+
+	@Test
+	public void testViewFlip() {
+		Buffer buffer = initBuffer();
+		Buffer view = buffer.duplicate();
+		view.skip(5);
+		view.flip();
+		Assert.assertEquals(5, view.getCapacity());
+		Assert.assertEquals(14, buffer.getCapacity());
+
+		buffer.skip(13);
+		Assert.assertEquals(14, buffer.get());
+	}
+
+	@Test
+	public void testCopyKeepsPosition() {
+		Buffer buffer = initBuffer();
+		buffer.skip(7);
+		buffer.mark();
+		buffer.skip(2);
+
+		Buffer copy = new ChainBuffer(buffer);
+		Assert.assertEquals(9, copy.position());
+		copy.reset();
+		Assert.assertEquals(8, copy.get());
+
+		copy.addLast(new byte[] { 15 });
+		Assert.assertEquals(14, buffer.getCapacity());
+		Assert.assertEquals(15, copy.getCapacity());
+	}
 }
\ No newline at end of file
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.DecodeShard;
+import org.krakenapps.pcap.util.PcapFileRunner;
+import org.krakenapps.pcap.util.ShardedDecodePipeline;
+import org.krakenapps.pcap.util.ShardedDecodePipeline.OverflowPolicy;
+
+public class ShardedDecodePipelineTest {
+	@Test
+	public void testSymmetricHash() {
+		int forward = ShardedDecodePipeline.flowHash(new ChainBuffer(frame(0x0a000001, 0x0a000002, 40000, 80)));
+		int backward = ShardedDecodePipeline.flowHash(new ChainBuffer(frame(0x0a000002, 0x0a000001, 80, 40000)));
+		int other = ShardedDecodePipeline.flowHash(new ChainBuffer(frame(0x0a000001, 0x0a000003, 40000, 80)));
+
+		assertEquals(forward, backward);
+		assertNotEquals(forward, other);
+	}
+
+	@Test
+	public void testFragmentHash() {
+		int whole = ShardedDecodePipeline.flowHash(new ChainBuffer(frame(0x0a000001, 0x0a000002, 40000, 80)));
+
+		/* first fragment carries the ports, the next one does not */
+		byte[] first = frame(0x0a000001, 0x0a000002, 40000, 80);
+		first[20] = 0x20;
+		byte[] next = frame(0x0a000001, 0x0a000002, 0x1234, 0x5678);
+		next[20] = 0;
+		next[21] = 5;
+
+		assertEquals(whole, ShardedDecodePipeline.flowHash(new ChainBuffer(first)));
+		assertEquals(whole, ShardedDecodePipeline.flowHash(new ChainBuffer(next)));
+	}
+
+	@Test
+	public void testDispatch() {
+		ShardedDecodePipeline pipeline = new ShardedDecodePipeline(4, 16, OverflowPolicy.BLOCK, null);
+		pipeline.start();
+		for (int i = 0; i < 1000; i++) {
+			PacketHeader header = new PacketHeader(1000, 0, 54, 54);
+			pipeline.dispatch(new PcapPacket(header, new ChainBuffer(frame(0x0a000001, 0x0a000002 + i, 40000, 80))));
+		}
+		pipeline.close();
+
+		long decoded = 0;
+		for (DecodeShard shard : pipeline.getShards()) {
+			assertEquals(0, shard.getDroppedCount());
+			assertEquals(0, shard.getErrorCount());
+			decoded += shard.getDecodedCount();
+		}
+		assertEquals(1000, decoded);
+	}
+
+	@Test
+	public void testVxlanBothDirections() {
+		ShardedDecodePipeline pipeline = new ShardedDecodePipeline(4, 256, OverflowPolicy.BLOCK, null);
+		pipeline.start();
+		for (int i = 0; i < 100; i++) {
+			/* vteps pick the outer source port per direction */
+			byte[] forward = frame(0x0a000001, 0x0a000002, 40000, 80);
+			byte[] backward = frame(0x0a000002, 0x0a000001, 80, 40000);
+			pipeline.dispatch(packet(vxlan(0xc0a80001, 0xc0a80002, 50000 + i, 100, forward)));
+			pipeline.dispatch(packet(vxlan(0xc0a80002, 0xc0a80001, 60000 - i, 100, backward)));
+		}
+		pipeline.close();
+
+		int used = 0;
+		for (DecodeShard shard : pipeline.getShards()) {
+			if (shard.getReceivedCount() == 0)
+				continue;
+			assertEquals(200, shard.getReceivedCount());
+			used++;
+		}
+		assertEquals(1, used);
+	}
+
+	@Test
+	public void testInnerFlowHash() {
+		byte[] inner = frame(0x0a000001, 0x0a000002, 40000, 80);
+		int plain = ShardedDecodePipeline.flowHash(new ChainBuffer(inner));
+		byte[] otherInner = frame(0x0a000001, 0x0a000003, 40000, 80);
+		int other = ShardedDecodePipeline.flowHash(new ChainBuffer(otherInner));
+
+		/* mpls and legacy qinq frames hash by the inner flow */
+		assertEquals(plain, ShardedDecodePipeline.flowHash(new ChainBuffer(mpls(inner))));
+		assertEquals(other, ShardedDecodePipeline.flowHash(new ChainBuffer(mpls(otherInner))));
+		int tagged = ShardedDecodePipeline.flowHash(new ChainBuffer(vlan(0x9100, 7, inner)));
+		assertNotEquals(0, tagged);
+		assertNotEquals(plain, tagged);
+		assertNotEquals(tagged, ShardedDecodePipeline.flowHash(new ChainBuffer(vlan(0x9100, 7, otherInner))));
+
+		/* same addresses in another vxlan segment */
+		int vni100 = ShardedDecodePipeline.flowHash(new ChainBuffer(vxlan(0xc0a80001, 0xc0a80002, 50000, 100, inner)));
+		int vni200 = ShardedDecodePipeline.flowHash(new ChainBuffer(vxlan(0xc0a80001, 0xc0a80002, 50000, 200, inner)));
+		assertNotEquals(vni100, vni200);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRunnerProcessorWithPipeline() {
+		PcapFileRunner runner = new PcapFileRunner(new File("unused.pcap"));
+		runner.setPipeline(new ShardedDecodePipeline(2, 16, OverflowPolicy.BLOCK, null));
+		runner.addTcpCallback(null);
+	}
+
+	private static PcapPacket packet(byte[] frame) {
+		PacketHeader header = new PacketHeader(1000, 0, frame.length, frame.length);
+		return new PcapPacket(header, new ChainBuffer(frame));
+	}
+
+	private static byte[] vxlan(int src, int dst, int sport, int vni, byte[] inner) {
+		ByteBuffer bb = ByteBuffer.allocate(50 + inner.length);
+		bb.put(new byte[12]);
+		bb.putShort((short) 0x0800);
+
+		bb.put((byte) 0x45);
+		bb.put((byte) 0);
+		bb.putShort((short) (36 + inner.length));
+		bb.putShort((short) 1);
+		bb.putShort((short) 0);
+		bb.put((byte) 64);
+		bb.put((byte) 17);
+		bb.putShort((short) 0);
+		bb.putInt(src);
+		bb.putInt(dst);
+
+		bb.putShort((short) sport);
+		bb.putShort((short) 4789);
+		bb.putShort((short) (16 + inner.length));
+		bb.putShort((short) 0);
+
+		bb.putInt(0x08000000);
+		bb.putInt(vni << 8);
+		bb.put(inner);
+		return bb.array();
+	}
+
+	private static byte[] mpls(byte[] frame) {
+		ByteBuffer bb = ByteBuffer.allocate(frame.length + 8);
+		bb.put(frame, 0, 12);
+		bb.putShort((short) 0x8847);
+		bb.putInt(1000 << 12);
+		bb.putInt((2000 << 12) | 0x100 | 64);
+		bb.put(frame, 14, frame.length - 14);
+		return bb.array();
+	}
+
+	private static byte[] vlan(int tpid, int vlanId, byte[] frame) {
+		ByteBuffer bb = ByteBuffer.allocate(frame.length + 4);
+		bb.put(frame, 0, 12);
+		bb.putShort((short) tpid);
+		bb.putShort((short) vlanId);
+		bb.put(frame, 12, frame.length - 12);
+		return bb.array();
+	}
+
+	private static byte[] frame(int src, int dst, int sport, int dport) {
+		ByteBuffer bb = ByteBuffer.allocate(54);
+		bb.put(new byte[12]);
+		bb.putShort((short) 0x0800);
+
+		bb.put((byte) 0x45);
+		bb.put((byte) 0);
+		bb.putShort((short) 40);
+		bb.putShort((short) 1);
+		bb.putShort((short) 0x4000);
+		bb.put((byte) 64);
+		bb.put((byte) 6);
+		bb.putShort((short) 0);
+		bb.putInt(src);
+		bb.putInt(dst);
+
+		bb.putShort((short) sport);
+		bb.putShort((short) dport);
+		bb.putInt(1);
+		bb.putInt(0);
+		bb.put((byte) 0x50);
+		bb.put((byte) 0x10);
+		bb.putShort((short) 65535);
+		bb.putInt(0);
+		return bb.array();
+	}
+}
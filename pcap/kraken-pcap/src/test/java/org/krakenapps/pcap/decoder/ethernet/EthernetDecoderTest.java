@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.ethernet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.decoder.tcp.TcpSessionKeyImpl;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class EthernetDecoderTest {
+	private static final byte[] INNER_MAC = { 2, 0, 0, 0, 0, 9 };
+
+	private EthernetDecoder eth;
+	private List<EthernetFrame> frames;
+
+	@Before
+	public void setUp() {
+		frames = new ArrayList<EthernetFrame>();
+		eth = new EthernetDecoder();
+		EthernetProcessor recorder = new EthernetProcessor() {
+			@Override
+			public void process(EthernetFrame frame) {
+				frames.add(frame);
+			}
+		};
+		eth.register(EthernetType.IPV4, recorder);
+		eth.register(EthernetType.IPV6, recorder);
+	}
+
+	@Test
+	public void testPlainFrame() {
+		decode(ethernet(EthernetType.IPV4), ipv4(6, tcpPayload()));
+		EthernetFrame frame = single();
+		assertNull(frame.getEncapsulation());
+		assertEquals(0, frame.getZone());
+		assertEquals(0x45, frame.getData().get());
+	}
+
+	@Test
+	public void testVlan() {
+		decode(ethernet(EthernetType.QINQ), tag(100, EthernetType.VLAN), tag(200, EthernetType.IPV4), ipv4(6, tcpPayload()));
+		EthernetFrame frame = single();
+		assertEquals(EthernetType.IPV4, frame.getType());
+		assertEquals(100, frame.getEncapsulation().getVlanId());
+		assertEquals(200, frame.getEncapsulation().getInnerVlanId());
+		assertEquals(0x45, frame.getData().get());
+	}
+
+	@Test
+	public void testMpls() {
+		decode(ethernet(EthernetType.MPLS_UNICAST), label(16, false), label(17, true), ipv4(6, tcpPayload()));
+		EthernetFrame frame = single();
+		assertEquals(EthernetType.IPV4, frame.getType());
+		assertArrayEquals(new int[] { 16, 17 }, frame.getEncapsulation().getMplsLabels());
+		assertEquals(0x45, frame.getData().get());
+	}
+
+	@Test
+	public void testGre() {
+		/* gre with key bit, carrying ipv4 */
+		byte[] gre = { 0x20, 0, 0x08, 0, 0, 0, 0x30, 0x39 };
+		decode(ethernet(EthernetType.IPV4), ipv4(47, concat(gre, ipv4(6, tcpPayload()))));
+		EthernetFrame frame = single();
+		assertEquals(12345, frame.getEncapsulation().getGreKey());
+		assertEquals(0x45, frame.getData().get());
+
+		/* gre bridging an ethernet frame */
+		frames.clear();
+		byte[] teb = { 0, 0, 0x65, 0x58 };
+		decode(ethernet(EthernetType.IPV4), ipv4(47, concat(teb, ethernet(EthernetType.IPV4), ipv4(6, tcpPayload()))));
+		frame = single();
+		assertEquals(new MacAddress(INNER_MAC), frame.getDestination());
+	}
+
+	@Test
+	public void testVxlan() {
+		byte[] udp = { 0x30, 0x39, 0x12, (byte) 0xb5, 0, 0, 0, 0 };
+		byte[] vxlan = { 0x08, 0, 0, 0, 0, 0x10, 0x01, 0 };
+		byte[] inner = concat(ethernet(EthernetType.VLAN), tag(30, EthernetType.IPV4), ipv4(6, tcpPayload()));
+		decode(ethernet(EthernetType.IPV4), ipv4(17, concat(udp, vxlan, inner)));
+
+		EthernetFrame frame = single();
+		Encapsulation e = frame.getEncapsulation();
+		assertEquals(4097, e.getVni());
+		assertEquals(30, e.getVlanId());
+		assertEquals(new MacAddress(INNER_MAC), frame.getDestination());
+		assertEquals(0x45, frame.getData().get());
+
+		/* the same inner flow in another segment is another zone */
+		frames.clear();
+		vxlan[6] = 0x02;
+		decode(ethernet(EthernetType.IPV4), ipv4(17, concat(udp, vxlan, inner)));
+		assertFalse(e.getZone() == single().getZone());
+	}
+
+	@Test
+	public void testNotTunnel() {
+		/* udp to another port and a udp packet too short to be vxlan */
+		byte[] udp = { 0x30, 0x39, 0x00, 0x35, 0, 0, 0, 0, 0x08, 0, 0, 0 };
+		decode(ethernet(EthernetType.IPV4), ipv4(17, udp));
+		assertNull(single().getEncapsulation());
+
+		frames.clear();
+		decode(ethernet(EthernetType.IPV4), ipv4(17, new byte[] { 0x30, 0x39, 0x12, (byte) 0xb5, 0, 8, 0, 0 }));
+		EthernetFrame frame = single();
+		assertNull(frame.getEncapsulation());
+		assertEquals(0x45, frame.getData().get());
+
+		/* stripping disabled */
+		frames.clear();
+		eth.setVlanStripping(false);
+		decode(ethernet(EthernetType.VLAN), tag(100, EthernetType.IPV4), ipv4(6, tcpPayload()));
+		assertEquals(0, frames.size());
+	}
+
+	@Test
+	public void testDispatchViews() {
+		/* every type processor reads its own cursor over the same bytes */
+		eth.register(EthernetType.IPV4, new EthernetProcessor() {
+			@Override
+			public void process(EthernetFrame frame) {
+				frame.getData().skip(20);
+				frame.getData().addLast(new byte[] { 1 });
+			}
+		});
+		decode(ethernet(EthernetType.IPV4), ipv4(6, tcpPayload()));
+		decode(ethernet(EthernetType.IPV4), ipv4(6, tcpPayload()));
+
+		assertEquals(2, frames.size());
+		for (EthernetFrame frame : frames) {
+			assertEquals(40, frame.getData().readableBytes());
+			assertEquals(0x45, frame.getData().get());
+		}
+	}
+
+	@Test
+	public void testDupPosition() {
+		final int[] seen = new int[2];
+		eth.register(EthernetType.IPV4, new EthernetProcessor() {
+			@Override
+			public void process(EthernetFrame frame) {
+				seen[0] = frame.getData().position();
+				seen[1] = frame.getData().getCapacity();
+			}
+		});
+		decode(ethernet(EthernetType.IPV4), ipv4(6, tcpPayload()));
+
+		/* the payload view counts from the ip header, as the copy did */
+		assertEquals(0, seen[0]);
+		assertEquals(40, seen[1]);
+	}
+
+	@Test
+	public void testSessionKeyZone() throws UnknownHostException {
+		InetAddress client = InetAddress.getByName("10.0.0.1");
+		InetAddress server = InetAddress.getByName("10.0.0.2");
+		TcpSessionKeyImpl k1 = new TcpSessionKeyImpl(client, server, 40000, 80, 101);
+		TcpSessionKeyImpl k2 = new TcpSessionKeyImpl(client, server, 40000, 80, 102);
+		TcpSessionKeyImpl k3 = new TcpSessionKeyImpl(server, client, 80, 40000, 101);
+		assertFalse(k1.equals(k2));
+		assertEquals(k1, k3);
+		assertEquals(k1.hashCode(), k3.hashCode());
+	}
+
+	private EthernetFrame single() {
+		assertEquals(1, frames.size());
+		return frames.get(0);
+	}
+
+	private void decode(byte[]... parts) {
+		byte[] b = concat(parts);
+		eth.decode(new PcapPacket(new PacketHeader(0, 0, b.length, b.length), new ChainBuffer(b)));
+	}
+
+	private static byte[] ethernet(int type) {
+		byte[] b = new byte[14];
+		System.arraycopy(INNER_MAC, 0, b, 0, 6);
+		b[6] = 2;
+		b[12] = (byte) (type >> 8);
+		b[13] = (byte) type;
+		return b;
+	}
+
+	private static byte[] tag(int vlanId, int type) {
+		return new byte[] { (byte) (vlanId >> 8), (byte) vlanId, (byte) (type >> 8), (byte) type };
+	}
+
+	private static byte[] label(int label, boolean bottom) {
+		int entry = (label << 12) | (bottom ? 0x100 : 0) | 64;
+		return new byte[] { (byte) (entry >> 24), (byte) (entry >> 16), (byte) (entry >> 8), (byte) entry };
+	}
+
+	private static byte[] ipv4(int protocol, byte[] payload) {
+		byte[] b = new byte[20 + payload.length];
+		int length = b.length;
+		b[0] = 0x45;
+		b[2] = (byte) (length >> 8);
+		b[3] = (byte) length;
+		b[8] = 64;
+		b[9] = (byte) protocol;
+		b[12] = 10;
+		b[15] = 1;
+		b[16] = 10;
+		b[19] = 2;
+		System.arraycopy(payload, 0, b, 20, payload.length);
+		return b;
+	}
+
+	private static byte[] tcpPayload() {
+		return new byte[20];
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			os.write(part, 0, part.length);
+		return os.toByteArray();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.ip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.krakenapps.pcap.decoder.ethernet.Encapsulation;
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.decoder.ethernet.MacAddress;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class IpReassemblerTest {
+	@Test
+	public void testOutOfOrder() {
+		byte[] payload = payload(3000);
+		IpReassembler r = new IpReassembler();
+
+		assertNull(r.tryReassemble(fragment(1, 0x0a000001, payload, 2000, 1000, false)));
+		assertNull(r.tryReassemble(fragment(1, 0x0a000001, payload, 0, 1000, true)));
+		Ipv4Packet p = r.tryReassemble(fragment(1, 0x0a000001, payload, 1000, 1000, true));
+
+		assertNotNull(p);
+		assertEquals(20 + 3000, p.getTotalLength());
+		assertArrayEquals(payload, read(p.getData(), 3000));
+		assertEquals(0, r.getPendingCount());
+	}
+
+	@Test
+	public void testOverlap() {
+		byte[] payload = payload(2400);
+		IpReassembler r = new IpReassembler();
+
+		assertNull(r.tryReassemble(fragment(7, 0x0a000001, payload, 0, 1600, true)));
+		Ipv4Packet p = r.tryReassemble(fragment(7, 0x0a000001, payload, 800, 1600, false));
+
+		assertNotNull(p);
+		assertArrayEquals(payload, read(p.getData(), 2400));
+	}
+
+	@Test
+	public void testSameIdFromDifferentSources() {
+		byte[] payload = payload(2000);
+		IpReassembler r = new IpReassembler();
+
+		assertNull(r.tryReassemble(fragment(5, 0x0a000001, payload, 0, 1000, true)));
+		assertNull(r.tryReassemble(fragment(5, 0x0a000002, payload, 1000, 1000, false)));
+		assertEquals(2, r.getPendingCount());
+	}
+
+	@Test
+	public void testEarlierFragmentBeyondEnd() {
+		byte[] payload = payload(1600);
+		IpReassembler r = new IpReassembler();
+
+		/* 800-1599 was accepted before the last fragment ended the datagram at 800 */
+		assertNull(r.tryReassemble(fragment(9, 0x0a000001, payload, 0, 800, true)));
+		assertNull(r.tryReassemble(fragment(9, 0x0a000001, payload, 800, 800, true)));
+		assertNull(r.tryReassemble(fragment(9, 0x0a000001, payload, 400, 400, false)));
+
+		assertEquals(0, r.getPendingCount());
+		assertEquals(1, r.getDroppedCount());
+	}
+
+	@Test
+	public void testSameIdFromDifferentZones() {
+		byte[] payload = payload(2000);
+		IpReassembler r = new IpReassembler();
+
+		assertNull(r.tryReassemble(zone(fragment(5, 0x0a000001, payload, 0, 1000, true), 1)));
+		assertNull(r.tryReassemble(zone(fragment(5, 0x0a000001, payload, 1000, 1000, false), 2)));
+		assertEquals(2, r.getPendingCount());
+
+		assertNotNull(r.tryReassemble(zone(fragment(5, 0x0a000001, payload, 1000, 1000, false), 1)));
+	}
+
+	@Test
+	public void testPerSourceLimit() {
+		byte[] payload = payload(2000);
+		IpReassembler r = new IpReassembler();
+		r.setMaxGroupsPerSource(2);
+
+		r.tryReassemble(fragment(1, 0x0a000001, payload, 0, 1000, true));
+		r.tryReassemble(fragment(2, 0x0a000001, payload, 0, 1000, true));
+		r.tryReassemble(fragment(3, 0x0a000001, payload, 0, 1000, true));
+		r.tryReassemble(fragment(3, 0x0a000002, payload, 0, 1000, true));
+
+		assertEquals(3, r.getPendingCount());
+		assertEquals(1, r.getDroppedCount());
+	}
+
+	private static byte[] payload(int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++)
+			b[i] = (byte) (i * 7);
+		return b;
+	}
+
+	private static byte[] read(Buffer data, int length) {
+		byte[] b = new byte[length];
+		data.gets(b);
+		return b;
+	}
+
+	private static Ipv4Packet zone(Ipv4Packet p, final long zone) {
+		EthernetFrame frame = new EthernetFrame(new MacAddress("00:00:00:00:00:01"), new MacAddress("00:00:00:00:00:02"), 0x0800,
+				p.getData());
+		frame.setEncapsulation(new Encapsulation() {
+			@Override
+			public long getZone() {
+				return zone;
+			}
+		});
+		p.setL2Frame(frame);
+		return p;
+	}
+
+	private static Ipv4Packet fragment(int id, int source, byte[] payload, int offset, int length, boolean more) {
+		ByteBuffer bb = ByteBuffer.allocate(20 + length);
+		bb.put((byte) 0x45);
+		bb.put((byte) 0);
+		bb.putShort((short) (20 + length));
+		bb.putShort((short) id);
+		bb.putShort((short) ((more ? 0x2000 : 0) | (offset / 8)));
+		bb.put((byte) 64);
+		bb.put((byte) 17);
+		bb.putShort((short) 0);
+		bb.putInt(source);
+		bb.putInt(0x0a000063);
+		bb.put(payload, offset, length);
+		return Ipv4Packet.parse(new ChainBuffer(bb.array()));
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class SignatureProtocolDetectorTest {
+	private SignatureProtocolDetector detector;
+
+	@Before
+	public void setUp() {
+		detector = SignatureProtocolDetector.createDefault();
+	}
+
+	@Test
+	public void testDefaultSignatures() {
+		assertEquals(Protocol.HTTP, detect(TcpDirection.ToServer, "GET / HTTP/1.1\r\nHost: a\r\n\r\n"));
+		assertEquals(Protocol.HTTP, detect(TcpDirection.ToClient, "HTTP/1.1 200 OK\r\n"));
+		assertEquals(Protocol.HTTP2, detect(TcpDirection.ToServer, "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"));
+		assertEquals(Protocol.SSH, detect(TcpDirection.ToClient, "SSH-2.0-OpenSSH_8.9\r\n"));
+		assertEquals(Protocol.POP3, detect(TcpDirection.ToClient, "+OK POP3 ready\r\n"));
+		assertEquals(Protocol.SMTP, detect(TcpDirection.ToClient, "220 mail.example.com ESMTP Postfix\r\n"));
+		assertEquals(Protocol.FTP, detect(TcpDirection.ToClient, "220 (vsFTPd 3.0.3)\r\n"));
+		assertEquals(Protocol.SSL, detect(TcpDirection.ToServer, new byte[] { 0x16, 0x03, 0x01, 0x02, 0x00, 0x01 }));
+
+		byte[] smb = new byte[] { 0, 0, 0, 0x54, (byte) 0xff, 'S', 'M', 'B', 0x72 };
+		assertEquals(Protocol.NETBIOS, detect(TcpDirection.ToServer, smb));
+	}
+
+	@Test
+	public void testAnchoring() {
+		/* request methods are prefixes, not substrings */
+		assertNull(detect(TcpDirection.ToServer, "xGET / HTTP/1.1\r\n"));
+		assertNull(detect(TcpDirection.ToClient, "GET / HTTP/1.1\r\n"));
+
+		/* smb magic at the wrong offset */
+		assertNull(detect(TcpDirection.ToServer, new byte[] { 0, 0, 0, (byte) 0xff, 'S', 'M', 'B' }));
+
+		/* partial matches fall back through failure links */
+		assertEquals(Protocol.SMTP, detect(TcpDirection.ToClient, "220 ESESMTP ready\r\n"));
+	}
+
+	@Test
+	public void testPriority() {
+		/* http response headers mentioning ftp are still http */
+		assertEquals(Protocol.HTTP, detect(TcpDirection.ToClient, "HTTP/1.0 200 OK\r\nServer: FTP gateway\r\n"));
+
+		SignatureProtocolDetector d = new SignatureProtocolDetector();
+		d.addSignature(Protocol.USR_DEF1, null, "ABC".getBytes(), SignatureProtocolDetector.ANY_OFFSET);
+		d.addSignature(Protocol.USR_DEF2, null, "AB");
+		assertEquals(Protocol.USR_DEF1, d.detect(TcpDirection.ToServer, "ABC".getBytes(), 0, 3));
+		assertEquals(Protocol.USR_DEF2, d.detect(TcpDirection.ToServer, "ABD".getBytes(), 0, 3));
+		assertTrue(d.hasSignature(Protocol.USR_DEF2, TcpDirection.ToClient));
+		assertFalse(d.hasSignature(Protocol.HTTP, TcpDirection.ToClient));
+	}
+
+	@Test
+	public void testInspectBudget() {
+		String banner = "220 " + repeat('x', 300) + " ESMTP\r\n";
+		assertNull(detect(TcpDirection.ToClient, banner));
+
+		detector.setMaxInspectBytes(1024);
+		assertEquals(Protocol.SMTP, detect(TcpDirection.ToClient, banner));
+	}
+
+	@Test
+	public void testDetectDoesNotConsume() {
+		Buffer data = new ChainBuffer("GET / HTTP/1.1\r\n".getBytes());
+		data.get();
+		assertNull(detector.detect(TcpDirection.ToServer, data));
+		assertEquals(15, data.readableBytes());
+	}
+
+	@Test
+	public void testMixedCapture() {
+		/* first payloads of a mixed protocol capture, 1000 flows per protocol */
+		Object[][] flows = { { TcpDirection.ToServer, "POST /upload HTTP/1.1\r\n", Protocol.HTTP },
+				{ TcpDirection.ToClient, "HTTP/1.1 304 Not Modified\r\n", Protocol.HTTP },
+				{ TcpDirection.ToClient, "SSH-2.0-dropbear\r\n", Protocol.SSH },
+				{ TcpDirection.ToServer, "EHLO client.example.com\r\n", Protocol.SMTP },
+				{ TcpDirection.ToClient, "* OK IMAP4rev1 ready\r\n", Protocol.IMAP },
+				{ TcpDirection.ToServer, "\u0000\u0001\u0002 random binary", null } };
+
+		for (int i = 0; i < 1000; i++) {
+			for (Object[] flow : flows)
+				assertEquals(flow[2], detect((TcpDirection) flow[0], (String) flow[1]));
+		}
+	}
+
+	@Test
+	public void testSessionProtocolSwitch() throws UnknownHostException {
+		List<String> events = new ArrayList<String>();
+		TcpPortProtocolMapper mapper = new TcpPortProtocolMapper();
+		mapper.register(Protocol.HTTP, new RecordingProcessor("http", events));
+		mapper.register(Protocol.SMTP, new RecordingProcessor("smtp", events));
+		mapper.setUnknownProtocolProcessor(new RecordingProcessor("unknown", events));
+
+		/* http on a port without mapping */
+		TcpSessionImpl session = newSession(mapper, 8000, null);
+		session.pushToServer(new ChainBuffer("GET / HTTP/1.1\r\n".getBytes()));
+		assertEquals(Protocol.HTTP, session.getProtocol());
+		assertEquals("[unknown finish, http establish, http tx]", events.toString());
+
+		/* smtp on the http port */
+		events.clear();
+		session = newSession(mapper, 80, Protocol.HTTP);
+		session.pushToClient(new ChainBuffer("220 mx ESMTP\r\n".getBytes()));
+		session.pushToServer(new ChainBuffer("GET / HTTP/1.1\r\n".getBytes()));
+		assertEquals(Protocol.SMTP, session.getProtocol());
+		assertEquals("[http finish, smtp establish, smtp rx, smtp tx]", events.toString());
+
+		/* junk on the http port */
+		events.clear();
+		mapper.setStrictPortMapping(true);
+		session = newSession(mapper, 80, Protocol.HTTP);
+		session.pushToServer(new ChainBuffer("\u0001\u0002junk".getBytes()));
+		assertNull(session.getProtocol());
+		assertEquals("[http finish, unknown establish, unknown tx]", events.toString());
+
+		/* dynamic endpoints are not inspected */
+		events.clear();
+		mapper.register(new InetSocketAddress(InetAddress.getByName("10.0.1.1"), 20000), Protocol.HTTP);
+		session = newSession(mapper, 20000, Protocol.HTTP);
+		session.pushToServer(new ChainBuffer("EHLO x\r\n".getBytes()));
+		assertEquals(Protocol.HTTP, session.getProtocol());
+		assertEquals("[http tx]", events.toString());
+	}
+
+	private TcpSessionImpl newSession(TcpPortProtocolMapper mapper, int port, Protocol protocol) throws UnknownHostException {
+		TcpSessionImpl session = new TcpSessionImpl(mapper);
+		InetAddress client = InetAddress.getByName("10.0.0.1");
+		InetAddress server = InetAddress.getByName("10.0.1.1");
+		session.setKey(new TcpSessionKeyImpl(client, server, 40000, port));
+		session.registerProtocol(protocol);
+		return session;
+	}
+
+	private Protocol detect(TcpDirection direction, String s) {
+		return detect(direction, s.getBytes());
+	}
+
+	private Protocol detect(TcpDirection direction, byte[] b) {
+		return detector.detect(direction, new ChainBuffer(b));
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuilder sb = new StringBuilder(n);
+		for (int i = 0; i < n; i++)
+			sb.append(c);
+		return sb.toString();
+	}
+
+	private static class RecordingProcessor implements TcpProcessor {
+		private final String name;
+		private final List<String> events;
+
+		public RecordingProcessor(String name, List<String> events) {
+			this.name = name;
+			this.events = events;
+		}
+
+		@Override
+		public void onReset(TcpSessionKey key) {
+			events.add(name + " reset");
+		}
+
+		@Override
+		public boolean onEstablish(TcpSession session) {
+			events.add(name + " establish");
+			return true;
+		}
+
+		@Override
+		public void onFinish(TcpSessionKey key) {
+			events.add(name + " finish");
+		}
+
+		@Override
+		public void handleTx(TcpSessionKey session, Buffer data) {
+			events.add(name + " tx");
+		}
+
+		@Override
+		public void handleRx(TcpSessionKey session, Buffer data) {
+			events.add(name + " rx");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.util.Buffer;
+
+public class TcpPortProtocolMapperTest {
+	private TcpPortProtocolMapper mapper;
+
+	@Before
+	public void setUp() {
+		mapper = new TcpPortProtocolMapper();
+	}
+
+	@Test
+	public void testDispatchSet() {
+		assertNull(mapper.getTcpProcessors(Protocol.HTTP));
+
+		TcpProcessor p1 = new NullProcessor();
+		TcpProcessor p2 = new NullProcessor();
+		mapper.register(Protocol.HTTP, p1);
+		Collection<TcpProcessor> set = mapper.getTcpProcessors(Protocol.HTTP);
+		assertEquals(1, set.size());
+
+		/* kept sets see later registrations */
+		mapper.register(Protocol.HTTP, p2);
+		mapper.register(Protocol.HTTP, p2);
+		assertSame(set, mapper.getTcpProcessors(Protocol.HTTP));
+		assertEquals(2, set.size());
+		assertTrue(set.contains(p2));
+
+		mapper.unregister(Protocol.HTTP, p1);
+		assertEquals(1, set.size());
+		assertNull(mapper.getTcpProcessors(Protocol.SMTP));
+	}
+
+	@Test
+	public void testDefaultAndUnknownProcessor() {
+		TcpProcessor def = new NullProcessor();
+		TcpProcessor unknown = new NullProcessor();
+		TcpProcessor http = new NullProcessor();
+		mapper = new TcpPortProtocolMapper(def);
+		mapper.register(Protocol.HTTP, http);
+		mapper.setUnknownProtocolProcessor(unknown);
+
+		Collection<TcpProcessor> set = mapper.getTcpProcessors(null);
+		assertEquals(2, set.size());
+		assertTrue(set.contains(def));
+		assertTrue(set.contains(unknown));
+
+		assertEquals(2, mapper.getTcpProcessors(Protocol.HTTP).size());
+		assertEquals(1, mapper.getTcpProcessors(Protocol.SMTP).size());
+	}
+
+	@Test
+	public void testSessionKeepsDispatchSet() throws UnknownHostException {
+		TcpProcessor http = new NullProcessor();
+		mapper.register(Protocol.HTTP, http);
+
+		TcpSessionImpl session = new TcpSessionImpl(mapper);
+		session.registerProtocol(Protocol.HTTP);
+		Collection<TcpProcessor> set = session.getTcpProcessors();
+		assertSame(set, session.getTcpProcessors());
+
+		session.registerProtocol(Protocol.SMTP);
+		assertNull(session.getTcpProcessors());
+	}
+
+	@Test
+	public void testEndpointMapping() throws UnknownHostException {
+		InetSocketAddress data = new InetSocketAddress(InetAddress.getByName("10.0.1.1"), 20000);
+		InetSocketAddress data6 = new InetSocketAddress(InetAddress.getByName("fe80::1"), 20000);
+		assertFalse(mapper.containsProtocol(data));
+
+		mapper.register(data, Protocol.FTP);
+		mapper.register(data6, Protocol.FTP);
+		assertTrue(mapper.containsProtocol(data));
+		assertTrue(mapper.containsProtocol(data6));
+		assertEquals(Protocol.FTP, mapper.map(segment("10.0.1.1", 20000)));
+		assertNull(mapper.map(segment("10.0.1.2", 20000)));
+		assertEquals(Protocol.HTTP, mapper.map(segment("10.0.1.2", 80)));
+
+		mapper.unregister(data);
+		assertFalse(mapper.containsProtocol(data));
+		assertEquals(1, mapper.getEndpointCount());
+
+		/* many endpoints sharing a port */
+		for (int i = 0; i < 1000; i++)
+			mapper.register(new InetSocketAddress(InetAddress.getByName("10.1." + (i / 256) + "." + (i % 256)), 21000), Protocol.FTP);
+		assertEquals(1001, mapper.getEndpointCount());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(Protocol.FTP, mapper.map(segment("10.1." + (i / 256) + "." + (i % 256), 21000)));
+	}
+
+	@Test
+	public void testEndpointExpiry() throws UnknownHostException {
+		mapper.setEndpointTimeout(60000);
+
+		/* registered before any capture time, stamped on the first sweep */
+		mapper.register(new InetSocketAddress(InetAddress.getByName("10.0.1.1"), 20000), Protocol.FTP);
+		mapper.expireEndpoints(1000000);
+		mapper.register(new InetSocketAddress(InetAddress.getByName("10.0.1.2"), 20000), Protocol.FTP);
+
+		mapper.expireEndpoints(1059999);
+		assertEquals(2, mapper.getEndpointCount());
+		mapper.expireEndpoints(1060000);
+		assertEquals(0, mapper.getEndpointCount());
+
+		mapper.setEndpointTimeout(0);
+		mapper.register(new InetSocketAddress(InetAddress.getByName("10.0.1.3"), 20000), Protocol.FTP);
+		mapper.expireEndpoints(Long.MAX_VALUE / 2);
+		assertEquals(1, mapper.getEndpointCount());
+	}
+
+	private TcpSegment segment(String server, int port) throws UnknownHostException {
+		final TcpSessionKey key = new TcpSessionKeyImpl(InetAddress.getByName("10.0.0.1"), InetAddress.getByName(server), 40000, port);
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getSessionKey"))
+					return key;
+				throw new UnsupportedOperationException(method.getName());
+			}
+		};
+		return (TcpSegment) Proxy.newProxyInstance(TcpSegment.class.getClassLoader(), new Class<?>[] { TcpSegment.class }, handler);
+	}
+
+	private static class NullProcessor implements TcpProcessor {
+		@Override
+		public void onReset(TcpSessionKey key) {
+		}
+
+		@Override
+		public boolean onEstablish(TcpSession session) {
+			return true;
+		}
+
+		@Override
+		public void onFinish(TcpSessionKey key) {
+		}
+
+		@Override
+		public void handleTx(TcpSessionKey session, Buffer data) {
+		}
+
+		@Override
+		public void handleRx(TcpSessionKey session, Buffer data) {
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 NCHOVY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.util.Buffer;
+
+public class TcpSessionExpirerTest {
+	private TcpPortProtocolMapper mapper;
+	private TcpSessionTable table;
+	private TcpSessionExpirer expirer;
+	private List<TcpSessionKey> finished;
+	private List<TcpSessionKey> reset;
+
+	@Before
+	public void setUp() {
+		finished = new ArrayList<TcpSessionKey>();
+		reset = new ArrayList<TcpSessionKey>();
+
+		mapper = new TcpPortProtocolMapper();
+		mapper.setUnknownProtocolProcessor(new RecordingProcessor());
+		table = new TcpSessionTable(mapper);
+		expirer = table.getExpirer();
+	}
+
+	@Test
+	public void testIdleExpiry() throws UnknownHostException {
+		expirer.setIdleTimeout(1000);
+
+		TcpSessionImpl s1 = newSession(1);
+		TcpSessionImpl s2 = newSession(2);
+
+		expirer.advance(10000);
+		expirer.touch(s1);
+		expirer.advance(10500);
+		expirer.touch(s2);
+		expirer.expire();
+		assertEquals(2, expirer.size());
+
+		expirer.advance(11200);
+		expirer.expire();
+		assertEquals(1, expirer.size());
+		assertEquals(1, finished.size());
+		assertEquals(s1.getKey(), finished.get(0));
+		assertEquals(1, expirer.getIdleExpiredCount());
+
+		/* s2 is seen again, so it survives */
+		expirer.touch(s2);
+		expirer.advance(12000);
+		expirer.expire();
+		assertEquals(1, expirer.size());
+		assertTrue(reset.isEmpty());
+	}
+
+	@Test
+	public void testSessionLimit() throws UnknownHostException {
+		expirer.setMaxSessions(2);
+
+		TcpSessionImpl s1 = newSession(1);
+		TcpSessionImpl s2 = newSession(2);
+		TcpSessionImpl s3 = newSession(3);
+
+		expirer.touch(s1);
+		expirer.touch(s2);
+		expirer.touch(s1);
+		expirer.touch(s3);
+		expirer.expire();
+
+		/* s2 is the least recently seen */
+		assertEquals(2, expirer.size());
+		assertEquals(1, reset.size());
+		assertEquals(s2.getKey(), reset.get(0));
+		assertEquals(1, expirer.getSessionLimitEvictedCount());
+	}
+
+	@Test
+	public void testRemove() throws UnknownHostException {
+		TcpSessionImpl s1 = newSession(1);
+		expirer.touch(s1);
+		expirer.remove(s1);
+		expirer.remove(s1);
+		assertEquals(0, expirer.size());
+		assertEquals(0, expirer.getBufferedBytes());
+	}
+
+	private TcpSessionImpl newSession(int n) throws UnknownHostException {
+		TcpSessionImpl session = new TcpSessionImpl(mapper);
+		InetAddress client = InetAddress.getByName("10.0.0." + n);
+		InetAddress server = InetAddress.getByName("10.0.1.1");
+		session.setKey(new TcpSessionKeyImpl(client, server, 40000 + n, 80));
+		return session;
+	}
+
+	private class RecordingProcessor implements TcpProcessor {
+		@Override
+		public void onReset(TcpSessionKey key) {
+			reset.add(key);
+		}
+
+		@Override
+		public boolean onEstablish(TcpSession session) {
+			return true;
+		}
+
+		@Override
+		public void onFinish(TcpSessionKey key) {
+			finished.add(key);
+		}
+
+		@Override
+		public void handleTx(TcpSessionKey session, Buffer data) {
+		}
+
+		@Override
+		public void handleRx(TcpSessionKey session, Buffer data) {
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.krakenapps.pcap.decoder.ip.Ipv4Packet;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class WaitQueueTest {
+	@Test
+	public void testReordered() {
+		WaitQueue q = new WaitQueue();
+		for (int i = 999; i >= 0; i--)
+			q.enqueue(segment(1 + i * 100, 100));
+
+		assertEquals(1000, q.size());
+		assertEquals(100000, q.getQueuedBytes());
+
+		int next = 1;
+		TcpPacket p;
+		while ((p = q.poll(next)) != null) {
+			assertEquals(next, p.getRelativeSeq());
+			next += p.getDataLength();
+		}
+		assertEquals(1 + 1000 * 100, next);
+		assertTrue(q.isEmpty());
+		assertEquals(0, q.getQueuedBytes());
+	}
+
+	@Test
+	public void testHole() {
+		WaitQueue q = new WaitQueue();
+		q.enqueue(segment(201, 100));
+		assertNull(q.poll(101));
+		assertEquals(1, q.size());
+	}
+
+	@Test
+	public void testWrapAround() {
+		WaitQueue q = new WaitQueue();
+		int seq = Integer.MAX_VALUE - 49;
+		q.enqueue(segment(seq + 100, 100));
+		q.enqueue(segment(seq, 100));
+
+		assertEquals(seq, q.poll(seq).getRelativeSeq());
+		assertEquals(seq + 100, q.poll(seq + 100).getRelativeSeq());
+	}
+
+	@Test
+	public void testOverlap() {
+		WaitQueue q = new WaitQueue();
+		q.enqueue(segment(101, 200));
+		assertFalse(q.enqueue(segment(151, 100)));
+		q.enqueue(segment(251, 100));
+
+		TcpPacket p = q.poll(101);
+		assertEquals(200, p.getData().readableBytes());
+		p = q.poll(301);
+		assertEquals(50, p.getData().readableBytes());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void testStaleSegment() {
+		WaitQueue q = new WaitQueue();
+		q.enqueue(segment(1, 100));
+		assertNull(q.poll(501));
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void testByteLimit() {
+		WaitQueue q = new WaitQueue();
+		q.setMaxBytes(250);
+		q.enqueue(segment(301, 100));
+		q.enqueue(segment(201, 100));
+		q.enqueue(segment(101, 100));
+
+		/* the farthest segment is dropped first */
+		assertEquals(2, q.size());
+		assertEquals(1, q.getDroppedCount());
+		assertEquals(101, q.poll(101).getRelativeSeq());
+		assertEquals(201, q.poll(201).getRelativeSeq());
+		assertNull(q.poll(301));
+	}
+
+	private static TcpPacket segment(int relativeSeq, int length) {
+		ByteBuffer bb = ByteBuffer.allocate(40 + length);
+		bb.put((byte) 0x45);
+		bb.put((byte) 0);
+		bb.putShort((short) (40 + length));
+		bb.putShort((short) 1);
+		bb.putShort((short) 0x4000);
+		bb.put((byte) 64);
+		bb.put((byte) 6);
+		bb.putShort((short) 0);
+		bb.putInt(0x0a000001);
+		bb.putInt(0x0a000002);
+
+		bb.putShort((short) 40000);
+		bb.putShort((short) 80);
+		bb.putInt(relativeSeq);
+		bb.putInt(1);
+		bb.put((byte) 0x50);
+		bb.put((byte) TcpFlag.ACK);
+		bb.putShort((short) 65535);
+		bb.putShort((short) 0);
+		bb.putShort((short) 0);
+		for (int i = 0; i < length; i++)
+			bb.put((byte) i);
+
+		TcpPacket p = TcpPacket.parse(Ipv4Packet.parse(new ChainBuffer(bb.array())));
+		p.setRelativeSeq(relativeSeq);
+		return p;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class MappedPcapFileInputStreamTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLittleEndianWithRemap() throws IOException {
+		File file = new File(folder.getRoot(), "le.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+		for (int i = 0; i < 20; i++)
+			os.write(packet(i, i == 7 ? 300 : 10 + i));
+		os.close();
+
+		/* window smaller than some records forces remapping */
+		MappedPcapFileInputStream is = new MappedPcapFileInputStream(file, 64);
+		PcapFileInputStream expected = new PcapFileInputStream(file);
+		try {
+			assertEquals(ByteOrder.LITTLE_ENDIAN, is.order());
+			assertEquals(1, is.datalink());
+			assertEquals(expected.getGlobalHeader().getMagicNumber(), is.getGlobalHeader().getMagicNumber());
+
+			for (int i = 0; i < 20; i++) {
+				PcapPacket p = is.getPacket();
+				PcapPacket q = expected.getPacket();
+				assertEquals(i, p.getPacketHeader().getTsSec());
+				assertEquals(q.getPacketHeader().getInclLen(), p.getPacketHeader().getInclLen());
+				assertArrayEquals(bytes(q.getPacketData()), bytes(p.getPacketData()));
+			}
+
+			assertEof(is);
+		} finally {
+			is.close();
+			expected.close();
+		}
+	}
+
+	@Test
+	public void testBigEndianSlice() throws IOException {
+		File file = new File(folder.getRoot(), "be.pcap");
+		DataOutputStream os = new DataOutputStream(new FileOutputStream(file));
+		os.writeInt(0xa1b2c3d4);
+		os.writeShort(2);
+		os.writeShort(4);
+		os.writeInt(0);
+		os.writeInt(0);
+		os.writeInt(65535);
+		os.writeInt(1);
+		os.writeInt(1000);
+		os.writeInt(500);
+		os.writeInt(3);
+		os.writeInt(60);
+		os.write(new byte[] { 1, 2, 3 });
+		os.close();
+
+		MappedPcapFileInputStream is = new MappedPcapFileInputStream(file);
+		try {
+			assertEquals(ByteOrder.BIG_ENDIAN, is.order());
+			assertEquals(2, is.getGlobalHeader().getMajorVersion());
+			assertEquals(65535, is.getGlobalHeader().getSnaplen());
+
+			ByteBuffer slice = is.nextSlice();
+			PacketHeader header = is.getLastHeader();
+			assertEquals(1000, header.getTsSec());
+			assertEquals(500, header.getTsUsec());
+			assertEquals(60, header.getOrigLen());
+			assertEquals(3, slice.remaining());
+			assertEquals(2, slice.get(1));
+
+			assertEof(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		File file = new File(folder.getRoot(), "truncated.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+		os.write(packet(0, 40));
+		os.write(packet(1, 40));
+		os.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		MappedPcapFileInputStream is = new MappedPcapFileInputStream(file);
+		try {
+			long first = is.getPosition();
+			is.getPacket();
+			assertEof(is);
+
+			is.setPosition(first);
+			assertEquals(0, is.getPacket().getPacketHeader().getTsSec());
+		} finally {
+			is.close();
+		}
+	}
+
+	private void assertEof(MappedPcapFileInputStream is) throws IOException {
+		try {
+			is.getPacket();
+			fail();
+		} catch (EOFException e) {
+		}
+	}
+
+	private PcapPacket packet(int ts, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (ts + i);
+
+		Buffer buffer = new ChainBuffer();
+		buffer.addLast(data);
+		return new PcapPacket(new PacketHeader(ts, 0, length, length), buffer);
+	}
+
+	private byte[] bytes(Buffer buffer) {
+		byte[] b = new byte[buffer.readableBytes()];
+		buffer.gets(b);
+		return b;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.PcapMerger;
+
+public class PcapIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File pcap;
+
+	@Before
+	public void setUp() throws IOException {
+		/* packet n is captured at 1000 + n/2 seconds */
+		pcap = new File(folder.getRoot(), "test.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(pcap, 1);
+		for (int i = 0; i < 1000; i++) {
+			Buffer buffer = new ChainBuffer();
+			buffer.addLast(new byte[10 + i % 7]);
+			os.write(new PcapPacket(new PacketHeader(1000 + i / 2, (i % 2) * 500000, 10 + i % 7, 60), buffer));
+		}
+		os.close();
+	}
+
+	@Test
+	public void testBuildAndLoad() throws IOException {
+		PcapIndex index = PcapIndex.build(pcap, 100);
+		assertEquals(10, index.size());
+		assertEquals(1000, index.getPacketCount());
+		assertEquals(300, index.getPacketNumber(3));
+		assertEquals(1150 * 1000000000L, index.getTime(3));
+		assertEquals(24, index.getOffset(0));
+		assertEquals(2, index.floorByPacket(299));
+		assertEquals(-1, index.floorByTime(999 * 1000000000L));
+
+		File indexFile = PcapIndex.getIndexFile(pcap);
+		index.save(indexFile);
+		PcapIndex loaded = PcapIndex.load(indexFile);
+		assertTrue(loaded.matches(pcap));
+		assertEquals(index.size(), loaded.size());
+		assertEquals(index.getOffset(9), loaded.getOffset(9));
+	}
+
+	@Test
+	public void testSeek() throws IOException {
+		IndexedPcapFileInputStream is = new IndexedPcapFileInputStream(pcap, PcapIndex.build(pcap, 64));
+		try {
+			assertTrue(is.seekPacket(555));
+			assertEquals(555, is.getPacketNumber());
+			PcapPacket packet = is.getPacket();
+			assertEquals(1277, packet.getPacketHeader().getTsSec());
+			assertEquals(500000, packet.getPacketHeader().getTsUsec());
+			assertEquals(10 + 555 % 7, packet.getPacketHeader().getInclLen());
+
+			assertTrue(is.seekTime(1400 * 1000000000L + 1));
+			assertEquals(801, is.getPacketNumber());
+			assertEquals(1400, is.getPacket().getPacketHeader().getTsSec());
+
+			assertTrue(is.seekPacket(0));
+			assertEquals(1000, is.getPacket().getPacketHeader().getTsSec());
+
+			assertFalse(is.seekPacket(1000));
+			assertFalse(is.seekTime(2000 * 1000000000L));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testEqualTimesAcrossCheckpoint() throws IOException {
+		/* packets 1000 to 1099 share a time, checkpoint 1024 falls among them */
+		File same = new File(folder.getRoot(), "same.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(same, 1);
+		for (int i = 0; i < 1200; i++) {
+			int sec = i < 1000 ? 900 : i < 1100 ? 1000 : 1100;
+			Buffer buffer = new ChainBuffer();
+			buffer.addLast(new byte[10]);
+			os.write(new PcapPacket(new PacketHeader(sec, 0, 10, 60), buffer));
+		}
+		os.close();
+
+		PcapIndex index = PcapIndex.build(same, PcapIndex.DEFAULT_INTERVAL);
+		assertEquals(1, index.floorByTime(1000 * 1000000000L));
+		assertEquals(0, index.lowerByTime(1000 * 1000000000L));
+
+		IndexedPcapFileInputStream is = new IndexedPcapFileInputStream(same, index);
+		try {
+			assertTrue(is.seekTime(1000 * 1000000000L));
+			assertEquals(1000, is.getPacketNumber());
+		} finally {
+			is.close();
+		}
+
+		File output = new File(folder.getRoot(), "same-range.pcap");
+		PcapMerger.merge(output, same, new Date(1000 * 1000L), new Date(1100 * 1000L));
+		PcapFileInputStream merged = new PcapFileInputStream(output);
+		int count = 0;
+		try {
+			while (true) {
+				assertEquals(1000, merged.getPacket().getPacketHeader().getTsSec());
+				count++;
+			}
+		} catch (EOFException e) {
+		} finally {
+			merged.close();
+		}
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void testMergeRange() throws IOException {
+		File output = new File(folder.getRoot(), "range.pcap");
+		PcapMerger.merge(output, pcap, new Date(1100 * 1000L), new Date(1200 * 1000L));
+		assertTrue(PcapIndex.getIndexFile(pcap).exists());
+
+		PcapFileInputStream is = new PcapFileInputStream(output);
+		int count = 0;
+		try {
+			while (true) {
+				PcapPacket packet = is.getPacket();
+				int sec = packet.getPacketHeader().getTsSec();
+				assertTrue(sec >= 1100 && sec < 1200);
+				count++;
+			}
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+		assertEquals(200, count);
+	}
+}
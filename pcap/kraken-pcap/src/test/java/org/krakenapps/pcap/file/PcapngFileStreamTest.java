@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class PcapngFileStreamTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = new File(folder.getRoot(), "test.pcapng");
+		PcapngFileOutputStream os = new PcapngFileOutputStream(file, 1);
+		int usecInterface = os.addInterface(1, 1500, false);
+		os.write(usecInterface, packet(100, 123456789, 10));
+		/* datalink 105 adds a nanosecond interface on demand */
+		os.write(packet(101, 987654321, 70000).setDatalink(105));
+		os.write(packet(102, 5, 3));
+		os.close();
+
+		PcapngFileInputStream is = new PcapngFileInputStream(file);
+		try {
+			assertTrue(is.hasIndex());
+
+			PcapPacket p = is.getPacket();
+			assertEquals(0, is.getLastInterfaceId());
+			assertEquals(1, p.getDatalink());
+			assertEquals(100, p.getPacketHeader().getTsSec());
+			assertEquals(123456, p.getPacketHeader().getTsUsec());
+			assertEquals(123456000, p.getPacketHeader().getTsNsec());
+			assertArrayEquals(data(100, 10), bytes(p.getPacketData()));
+
+			p = is.getPacket();
+			assertEquals(1, is.getLastInterfaceId());
+			assertEquals(105, p.getDatalink());
+			assertEquals(987654321, p.getPacketHeader().getTsNsec());
+			assertEquals(70000, p.getPacketHeader().getInclLen());
+			assertArrayEquals(data(101, 70000), bytes(p.getPacketData()));
+
+			p = is.getPacket();
+			assertEquals(0, is.getLastInterfaceId());
+			assertEquals(102, p.getPacketHeader().getTsSec());
+
+			assertEquals(2, is.getInterfaces().size());
+			assertEquals(1000000L, is.getInterfaces().get(0).getTimestampUnits());
+			assertEquals(1000000000L, is.getInterfaces().get(1).getTimestampUnits());
+			assertEof(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testSeekWithIndex() throws IOException {
+		testSeek(16);
+	}
+
+	@Test
+	public void testSeekWithoutIndex() throws IOException {
+		testSeek(0);
+	}
+
+	private void testSeek(int indexInterval) throws IOException {
+		File file = new File(folder.getRoot(), "seek.pcapng");
+		PcapngFileOutputStream os = new PcapngFileOutputStream(file, 1);
+		os.setIndexInterval(indexInterval);
+		for (int i = 0; i < 1000; i++)
+			os.write(packet(1000 + i, 0, 20));
+		os.close();
+
+		PcapngFileInputStream is = new PcapngFileInputStream(file);
+		try {
+			assertEquals(indexInterval > 0, is.hasIndex());
+
+			assertTrue(is.seek(1500 * 1000000000L - 1));
+			assertEquals(1500, is.getPacket().getPacketHeader().getTsSec());
+			assertEquals(1501, is.getPacket().getPacketHeader().getTsSec());
+
+			assertTrue(is.seek(0));
+			assertEquals(1000, is.getPacket().getPacketHeader().getTsSec());
+
+			assertFalse(is.seek(3000 * 1000000000L));
+			assertEof(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testSeekEqualTimesAcrossCheckpoint() throws IOException {
+		/* checkpoints 16 and 32 fall among packets of the same time */
+		File file = new File(folder.getRoot(), "same.pcapng");
+		PcapngFileOutputStream os = new PcapngFileOutputStream(file, 1);
+		os.setIndexInterval(16);
+		for (int i = 0; i < 60; i++)
+			os.write(packet(i < 40 ? 1000 : 1001, 0, 10 + i));
+		os.close();
+
+		PcapngFileInputStream is = new PcapngFileInputStream(file);
+		try {
+			assertTrue(is.hasIndex());
+			assertTrue(is.seek(1000 * 1000000000L));
+			assertEquals(10, is.getPacket().getPacketHeader().getInclLen());
+
+			assertTrue(is.seek(1001 * 1000000000L));
+			assertEquals(50, is.getPacket().getPacketHeader().getInclLen());
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testBigEndianSimplePacket() throws IOException {
+		File file = new File(folder.getRoot(), "be.pcapng");
+		DataOutputStream os = new DataOutputStream(new FileOutputStream(file));
+
+		/* section header */
+		os.writeInt(0x0A0D0D0A);
+		os.writeInt(28);
+		os.writeInt(0x1A2B3C4D);
+		os.writeShort(1);
+		os.writeShort(0);
+		os.writeLong(-1);
+		os.writeInt(28);
+
+		/* interface description with if_name "eth0" */
+		os.writeInt(1);
+		os.writeInt(32);
+		os.writeShort(1);
+		os.writeShort(0);
+		os.writeInt(4);
+		os.writeShort(2);
+		os.writeShort(4);
+		os.write("eth0".getBytes());
+		os.writeInt(0);
+		os.writeInt(32);
+
+		/* simple packet truncated by snaplen 4 */
+		os.writeInt(3);
+		os.writeInt(24);
+		os.writeInt(6);
+		os.write(new byte[] { 1, 2, 3, 4, 5, 6, 0, 0 });
+		os.writeInt(24);
+		os.close();
+
+		PcapngFileInputStream is = new PcapngFileInputStream(file);
+		try {
+			assertFalse(is.hasIndex());
+			PcapPacket p = is.getPacket();
+			assertEquals("eth0", is.getInterfaces().get(0).getName());
+			assertEquals(1, is.datalink());
+			assertEquals(6, p.getPacketHeader().getOrigLen());
+			assertArrayEquals(new byte[] { 1, 2, 3, 4 }, bytes(p.getPacketData()));
+			assertEof(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testNotPcapng() throws IOException {
+		File file = new File(folder.getRoot(), "classic.pcap");
+		new PcapFileOutputStream(file, 1).close();
+		try {
+			new PcapngFileInputStream(file);
+			fail();
+		} catch (IOException e) {
+			assertEquals("not a pcapng file: classic.pcap", e.getMessage());
+		}
+	}
+
+	private void assertEof(PcapngFileInputStream is) throws IOException {
+		try {
+			is.getPacket();
+			fail();
+		} catch (EOFException e) {
+		}
+	}
+
+	private PcapPacket packet(int sec, int nsec, int length) {
+		Buffer buffer = new ChainBuffer();
+		buffer.addLast(data(sec, length));
+		return new PcapPacket(new PacketHeader(sec, nsec / 1000, length, length, nsec), buffer);
+	}
+
+	private byte[] data(int seed, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (seed + i);
+		return data;
+	}
+
+	private byte[] bytes(Buffer buffer) {
+		byte[] b = new byte[buffer.readableBytes()];
+		buffer.gets(b);
+		return b;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+import org.krakenapps.pcap.util.ChainBuffer;
+
+public class RollingPcapFileOutputStreamTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testGroupCommit() throws IOException {
+		File file = new File(folder.getRoot(), "group.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+		os.setGroupCommit(3, 0);
+
+		os.write(packet(1, 100));
+		os.write(packet(2, 100));
+		assertEquals(0, file.length());
+		assertEquals(24 + 2 * 116, os.size());
+
+		os.write(packet(3, 100));
+		assertEquals(24 + 3 * 116, file.length());
+		os.close();
+
+		assertEquals(3, count(file));
+	}
+
+	@Test
+	public void testGroupCommitDelayWhenIdle() throws Exception {
+		File file = new File(folder.getRoot(), "idle.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+		os.setGroupCommit(100, 20);
+
+		os.write(packet(1, 100));
+		assertFalse(os.flushIfDue());
+		assertEquals(0, file.length());
+
+		Thread.sleep(30);
+		assertTrue(os.flushIfDue());
+		assertEquals(24 + 116, file.length());
+		assertFalse(os.flushIfDue());
+		os.close();
+	}
+
+	@Test
+	public void testChainedPayload() throws IOException {
+		File file = new File(folder.getRoot(), "chain.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1, 64);
+		ChainBuffer data = new ChainBuffer(new byte[] { 9, 9, 1, 2 });
+		data.addLast(new byte[100]);
+		data.addLast(new byte[] { 3 });
+		data.skip(2);
+		os.write(new PcapPacket(new PacketHeader(1, 0, 103, 103), data));
+		os.close();
+		assertEquals(2, data.position());
+
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		try {
+			byte[] b = new byte[103];
+			is.getPacket().getPacketData().gets(b);
+			assertEquals(1, b[0]);
+			assertEquals(2, b[1]);
+			assertEquals(3, b[102]);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testLargeRecord() throws IOException {
+		File file = new File(folder.getRoot(), "large.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1, 64);
+		os.write(packet(1, 1000));
+		os.write(packet(2, 10));
+		os.close();
+
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		try {
+			assertEquals(1000, is.getPacket().getPacketData().readableBytes());
+			assertEquals(2, is.getPacket().getPacketHeader().getTsSec());
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testSizeRotation() throws IOException {
+		RollingPcapFileOutputStream os = new RollingPcapFileOutputStream(new File(folder.getRoot(), "ring.pcap"), 1);
+		/* two 116 byte records per file */
+		os.setMaxFileSize(24 + 2 * 116);
+		os.setMaxFileCount(3);
+
+		for (int i = 0; i < 10; i++)
+			os.write(packet(i, 100));
+		os.close();
+
+		List<File> files = os.getFiles();
+		assertEquals(3, files.size());
+		assertEquals("ring-2.pcap", files.get(0).getName());
+		assertEquals("ring-4.pcap", files.get(2).getName());
+		assertFalse(new File(folder.getRoot(), "ring-1.pcap").exists());
+		assertEquals(4, os.getRotatedCount());
+		assertEquals(2, os.getDeletedCount());
+
+		for (File f : files)
+			assertEquals(2, count(f));
+	}
+
+	@Test
+	public void testTimeRotation() throws IOException {
+		RollingPcapFileOutputStream os = new RollingPcapFileOutputStream(new File(folder.getRoot(), "time.pcap"), 1);
+		os.setRotateInterval(60000);
+
+		/* one packet per 10 seconds for 3 minutes */
+		for (int i = 0; i < 18; i++)
+			os.write(packet(i * 10, 10));
+		os.close();
+
+		List<File> files = os.getFiles();
+		assertEquals(3, files.size());
+		for (File f : files)
+			assertEquals(6, count(f));
+	}
+
+	@Test
+	public void testDiskBudget() throws IOException {
+		RollingPcapFileOutputStream os = new RollingPcapFileOutputStream(new File(folder.getRoot(), "budget"), 1);
+		os.setMaxFileSize(1024);
+		os.setMaxTotalBytes(4096);
+
+		for (int i = 0; i < 100; i++) {
+			os.write(packet(i, 200));
+			assertTrue(os.getTotalBytes() <= 4096);
+		}
+		os.close();
+
+		long total = 0;
+		for (File f : os.getFiles())
+			total += f.length();
+		assertEquals(os.getTotalBytes(), total);
+		assertFalse(new File(folder.getRoot(), "budget-0").exists());
+	}
+
+	private PcapPacket packet(int sec, int length) {
+		byte[] b = new byte[length];
+		b[0] = (byte) sec;
+		return new PcapPacket(new PacketHeader(sec, 0, length, length), new ChainBuffer(b));
+	}
+
+	private int count(File file) throws IOException {
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		int n = 0;
+		try {
+			while (true) {
+				is.getPacket();
+				n++;
+			}
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+		return n;
+	}
+}
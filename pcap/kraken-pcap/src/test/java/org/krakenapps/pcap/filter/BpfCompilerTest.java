@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.krakenapps.pcap.filter.BpfInstruction.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BpfCompilerTest {
+	private static final byte[] HOST_A = { 10, 0, 0, 1 };
+	private static final byte[] HOST_B = { 10, 0, 1, 2 };
+
+	@Test
+	public void testProtocols() {
+		byte[] tcp = ipv4(6, HOST_A, HOST_B, 40000, 80);
+		byte[] udp = ipv4(17, HOST_A, HOST_B, 5353, 53);
+		byte[] udp6 = ipv6(17, 5353, 53);
+
+		assertTrue(matches("tcp", tcp));
+		assertFalse(matches("tcp", udp));
+		assertTrue(matches("udp", udp6));
+		assertTrue(matches("ip", udp));
+		assertFalse(matches("ip", udp6));
+		assertTrue(matches("ip6 and udp", udp6));
+		assertFalse(matches("arp", tcp));
+		assertTrue(matches("", tcp));
+	}
+
+	@Test
+	public void testHostAndNet() {
+		byte[] p = ipv4(6, HOST_A, HOST_B, 40000, 80);
+		assertTrue(matches("host 10.0.0.1", p));
+		assertTrue(matches("src host 10.0.0.1", p));
+		assertFalse(matches("dst host 10.0.0.1", p));
+		assertTrue(matches("dst 10.0.1.2", p));
+		assertFalse(matches("src and dst host 10.0.0.1", p));
+		assertTrue(matches("net 10.0.0.0/24", p));
+		assertFalse(matches("dst net 10.0.0.0/24", p));
+		assertTrue(matches("dst net 10.0.0.0/16", p));
+		assertTrue(matches("host 192.168.0.1 or 10.0.1.2", p));
+		assertFalse(matches("ip6 host ::1", p));
+
+		try {
+			BpfCompiler.compile("net 10.0.0.1/8", BpfCompiler.LINKTYPE_ETHERNET);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testPorts() {
+		byte[] p = ipv4(6, HOST_A, HOST_B, 40000, 80);
+		assertTrue(matches("port 80", p));
+		assertTrue(matches("tcp dst port 80", p));
+		assertFalse(matches("udp port 80", p));
+		assertFalse(matches("src port 80", p));
+		assertTrue(matches("port 443 or 80", p));
+		assertTrue(matches("portrange 1-1024", p));
+		assertFalse(matches("src portrange 1-1024", p));
+		assertTrue(matches("ip6 port 53", ipv6(17, 5353, 53)));
+
+		/* ports are not in non-first fragments */
+		p[14 + 7] = 1;
+		assertFalse(matches("port 80", p));
+	}
+
+	@Test
+	public void testOperators() {
+		byte[] p = ipv4(6, HOST_A, HOST_B, 40000, 80);
+		assertTrue(matches("host 10.0.0.1 and not port 22", p));
+		assertTrue(matches("! port 22 && (udp || tcp)", p));
+		assertFalse(matches("not (tcp and port 80)", p));
+		assertTrue(matches("udp or tcp and port 80", p));
+		assertTrue(matches("len = " + p.length, p));
+		assertTrue(matches("greater 54 and less 54", p));
+		assertFalse(matches("len > 54", p));
+	}
+
+	@Test
+	public void testRawDatalink() {
+		byte[] p = ipv4(6, HOST_A, HOST_B, 40000, 80);
+		byte[] raw = Arrays.copyOfRange(p, 14, p.length);
+		BpfProgram program = BpfCompiler.compile("tcp port 80 and host 10.0.0.1", BpfCompiler.LINKTYPE_RAW);
+		assertTrue(program.filter(raw, 0, raw.length, raw.length) != 0);
+		assertEquals(0, BpfCompiler.compile("arp", BpfCompiler.LINKTYPE_RAW).filter(raw, 0, raw.length, raw.length));
+	}
+
+	@Test
+	public void testSyntaxError() {
+		String[] invalid = { "host", "port 70000", "tcp port", "(tcp", "host foo.example.com", "len ~ 3", "tcp host 10.0.0.1" };
+		for (String expr : invalid) {
+			try {
+				BpfCompiler.compile(expr, BpfCompiler.LINKTYPE_ETHERNET);
+				fail(expr);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testByteBuffer() {
+		byte[] p = ipv4(17, HOST_A, HOST_B, 5353, 53);
+		BpfProgram program = BpfCompiler.compile("udp port 53", BpfCompiler.LINKTYPE_ETHERNET);
+		ByteBuffer direct = ByteBuffer.allocateDirect(p.length + 4);
+		direct.position(4);
+		direct.put(p);
+		direct.position(4);
+		assertTrue(program.matches(direct, p.length));
+		assertEquals(4, direct.position());
+
+		/* truncated capture */
+		direct.limit(4 + 36);
+		assertFalse(program.matches(direct, p.length));
+	}
+
+	@Test
+	public void testValidation() {
+		/* tcpdump -dd "ether[0] / 2 = 1" with scratch memory */
+		BpfProgram program = new BpfProgram(Arrays.asList(new BpfInstruction(LD | B | ABS, 0), new BpfInstruction(
+				ST, 3), new BpfInstruction(LDX | MEM, 3), new BpfInstruction(MISC | TXA, 0), new BpfInstruction(ALU
+				| DIV | K, 2), new BpfInstruction(JMP | JEQ | K, 0, 1, 1), new BpfInstruction(RET | K, 96),
+				new BpfInstruction(RET | K, 0)));
+		assertEquals(96, program.filter(new byte[] { 3 }, 0, 1, 1));
+		assertEquals(0, program.filter(new byte[] { 4 }, 0, 1, 1));
+		assertEquals(0, program.filter(new byte[0], 0, 0, 0));
+
+		assertInvalid(new BpfInstruction(LD | B | ABS, 0));
+		assertInvalid(new BpfInstruction(JMP | JEQ | K, 1, 0, 0), new BpfInstruction(RET | K, 0));
+		assertInvalid(new BpfInstruction(ALU | DIV | K, 0), new BpfInstruction(RET | K, 0));
+		assertInvalid(new BpfInstruction(ST, 16), new BpfInstruction(RET | K, 0));
+		assertInvalid(new BpfInstruction(0xff, 0), new BpfInstruction(RET | K, 0));
+	}
+
+	@Test
+	public void testMemoryClearedPerRun() {
+		/* stores ether[0] only if it is 1, then returns the memory word */
+		BpfProgram program = new BpfProgram(Arrays.asList(new BpfInstruction(LD | B | ABS, 0), new BpfInstruction(
+				JMP | JEQ | K, 0, 1, 1), new BpfInstruction(ST, 0), new BpfInstruction(LD | MEM, 0),
+				new BpfInstruction(RET | A, 0)));
+		assertEquals(1, program.filter(new byte[] { 1 }, 0, 1, 1));
+		assertEquals(0, program.filter(new byte[] { 2 }, 0, 1, 1));
+	}
+
+	private static void assertInvalid(BpfInstruction... insns) {
+		try {
+			new BpfProgram(Arrays.asList(insns));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static boolean matches(String expr, byte[] packet) {
+		BpfProgram program = BpfCompiler.compile(expr, BpfCompiler.LINKTYPE_ETHERNET);
+		return program.filter(packet, 0, packet.length, packet.length) != 0;
+	}
+
+	private static byte[] ipv4(int protocol, byte[] src, byte[] dst, int srcPort, int dstPort) {
+		byte[] b = new byte[14 + 20 + 20];
+		b[12] = 0x08;
+		b[14] = 0x45;
+		b[14 + 9] = (byte) protocol;
+		System.arraycopy(src, 0, b, 14 + 12, 4);
+		System.arraycopy(dst, 0, b, 14 + 16, 4);
+		setPorts(b, 34, srcPort, dstPort);
+		return b;
+	}
+
+	private static byte[] ipv6(int nextHeader, int srcPort, int dstPort) {
+		byte[] b = new byte[14 + 40 + 8];
+		b[12] = (byte) 0x86;
+		b[13] = (byte) 0xdd;
+		b[14] = 0x60;
+		b[14 + 6] = (byte) nextHeader;
+		b[14 + 23] = 1;
+		b[14 + 39] = 2;
+		setPorts(b, 54, srcPort, dstPort);
+		return b;
+	}
+
+	private static void setPorts(byte[] b, int offset, int srcPort, int dstPort) {
+		b[offset] = (byte) (srcPort >> 8);
+		b[offset + 1] = (byte) srcPort;
+		b[offset + 2] = (byte) (dstPort >> 8);
+		b[offset + 3] = (byte) dstPort;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.file.PcapFileInputStream;
+import org.krakenapps.pcap.file.PcapFileOutputStream;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+
+public class BufferPoolTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(1500, 4);
+		PooledBuffer b1 = pool.acquire(100);
+		assertEquals(1, b1.refCnt());
+		assertEquals(100, b1.readableBytes());
+		b1.getInt();
+
+		assertTrue(b1.release());
+		assertEquals(0, pool.getOutstandingCount());
+		assertEquals(1, pool.getRecycledCount());
+
+		PooledBuffer b2 = pool.acquire(100);
+		assertSame(b1, b2);
+		assertEquals(0, b2.position());
+		assertEquals(100, b2.readableBytes());
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(1, pool.getReusedCount());
+
+		/* other lengths use other slabs */
+		PooledBuffer b3 = pool.acquire(60);
+		assertEquals(2, pool.getAllocatedCount());
+		assertEquals(2, pool.getOutstandingCount());
+		b2.release();
+		b3.release();
+	}
+
+	@Test
+	public void testRetainRelease() {
+		BufferPool pool = new BufferPool();
+		PooledBuffer b = pool.acquire(10);
+		b.retain();
+		assertEquals(2, b.refCnt());
+		assertFalse(b.release());
+		assertEquals(1, pool.getOutstandingCount());
+		assertTrue(b.release());
+		assertEquals(0, pool.getOutstandingCount());
+
+		try {
+			b.release();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		try {
+			b.retain();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testOversized() {
+		BufferPool pool = new BufferPool(1500, 4);
+		PooledBuffer b = pool.acquire(9000);
+		assertTrue(b.release());
+		assertEquals(1, pool.getDiscardedCount());
+		assertEquals(0, pool.getRecycledCount());
+	}
+
+	@Test
+	public void testPooledBytesLimit() {
+		BufferPool pool = new BufferPool(1500, 4, 1000);
+		PooledBuffer b1 = pool.acquire(600);
+		PooledBuffer b2 = pool.acquire(600);
+		PooledBuffer b3 = pool.acquire(300);
+		b1.release();
+		b2.release();
+		b3.release();
+
+		/* the second 600 bytes exceed the budget */
+		assertEquals(2, pool.getRecycledCount());
+		assertEquals(1, pool.getDiscardedCount());
+		assertEquals(900, pool.getPooledBytes());
+
+		pool.acquire(600);
+		assertEquals(300, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testViewSurvivesReuse() {
+		BufferPool pool = new BufferPool(1500, 4);
+		PooledBuffer b = pool.acquire(100);
+		b.addLast(new byte[4]);
+		Buffer view = b.duplicate();
+		b.release();
+
+		assertSame(b, pool.acquire(100));
+		assertEquals(100, b.readableBytes());
+		assertEquals(104, view.readableBytes());
+	}
+
+	@Test
+	public void testPooledFileInput() throws IOException {
+		File file = new File(folder.getRoot(), "pooled.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+		for (int i = 0; i < 10; i++) {
+			Buffer data = new ChainBuffer(new byte[] { (byte) i, 1, 2, 3 });
+			os.write(new PcapPacket(new PacketHeader(i, 0, 4, 4), data));
+		}
+		os.close();
+
+		BufferPool pool = new BufferPool();
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		is.setBufferPool(pool);
+		try {
+			for (int i = 0; i < 10; i++) {
+				PcapPacket packet = is.getPacket();
+				assertEquals(i, packet.getPacketData().get());
+				assertEquals(1, pool.getOutstandingCount());
+				packet.release();
+			}
+		} finally {
+			is.close();
+		}
+
+		assertEquals(0, pool.getOutstandingCount());
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(9, pool.getReusedCount());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class DelimiterScannerTest {
+	@Test
+	public void testOverlappingPrefix() {
+		ChainBuffer buf = new ChainBuffer(bytes("xaaab"));
+		assertEquals(2, buf.bytesBefore(bytes("aab")));
+		assertEquals(2, new DelimiterScanner(bytes("aab")).scan(buf));
+
+		buf = new ChainBuffer(bytes("hello\r\n\r\n.\r\n"));
+		assertEquals(7, new DelimiterScanner(DelimiterScanner.END_OF_DATA).scan(buf));
+		assertEquals(7, buf.bytesBefore(DelimiterScanner.END_OF_DATA));
+	}
+
+	@Test
+	public void testResumeAcrossSegments() {
+		DelimiterScanner scanner = new DelimiterScanner(DelimiterScanner.END_OF_DATA);
+		ChainBuffer buf = new ChainBuffer();
+		String mail = "Subject: test\r\n\r\nline\r\n..dot\r\n";
+		String data = mail + ".\r\nQUIT\r\n";
+
+		for (int i = 0; i < data.length(); i++) {
+			buf.addLast(bytes(data.substring(i, i + 1)));
+			int length = scanner.scan(buf);
+			if (i < mail.length() + 2)
+				assertEquals(-1, length);
+			else
+				assertEquals(mail.length() - 2, length);
+		}
+
+		/* consume and continue with the rest */
+		buf.skip(mail.length() + 3);
+		scanner.reset();
+		assertEquals(-1, scanner.scan(buf));
+	}
+
+	@Test
+	public void testSingleByteAndCrlf() {
+		ChainBuffer buf = new ChainBuffer();
+		buf.addLast(bytes("GET "));
+		buf.addLast(bytes("/ HTTP/1.1\r"));
+
+		DelimiterScanner space = new DelimiterScanner(new byte[] { 0x20 });
+		DelimiterScanner crlf = new DelimiterScanner(DelimiterScanner.CRLF);
+		assertEquals(3, space.scan(buf));
+		assertEquals(-1, crlf.scan(buf));
+
+		buf.addLast(bytes("\nHost: a\r\n"));
+		assertEquals(14, crlf.scan(buf));
+		assertEquals(14, buf.bytesBefore(DelimiterScanner.CRLF));
+
+		buf.skip(16);
+		crlf.reset();
+		assertEquals(7, crlf.scan(buf));
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractedFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSpillAndDigest() throws Exception {
+		byte[] expected = data(10000);
+
+		ExtractedFile file = new ExtractedFile(Long.MAX_VALUE, null, 4096, folder.getRoot());
+		for (int i = 0; i < expected.length; i += 1000)
+			file.write(new ChainBuffer(Arrays.copyOfRange(expected, i, i + 1000)));
+
+		assertTrue(file.isSpilled());
+		assertFalse(file.isTruncated());
+		assertEquals(expected.length, file.size());
+		assertEquals(hex("MD5", expected), file.getMd5());
+		assertEquals(hex("SHA-256", expected), file.getSha256());
+		assertArrayEquals(expected, read(file.getInputStream()));
+
+		file.dispose();
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		byte[] expected = data(3000);
+		ExtractionBudget budget = new ExtractionBudget(2500);
+
+		ExtractedFile limited = new ExtractedFile(1500, budget, 4096, folder.getRoot());
+		ExtractedFile other = new ExtractedFile(Long.MAX_VALUE, budget, 4096, folder.getRoot());
+		for (int i = 0; i < expected.length; i += 1000) {
+			limited.write(expected, i, 1000);
+			other.write(expected, i, 1000);
+		}
+
+		/* per-file limit stops the first, the shared budget the second */
+		assertTrue(limited.isTruncated());
+		assertEquals(1000, limited.getStoredSize());
+		assertTrue(other.isTruncated());
+		assertEquals(1000, other.getStoredSize());
+		assertEquals(2000, budget.getUsed());
+
+		/* unstored bytes are still counted and hashed */
+		assertEquals(expected.length, limited.size());
+		assertEquals(hex("SHA-256", expected), limited.getSha256());
+
+		limited.dispose();
+		other.dispose();
+		assertEquals(0, budget.getUsed());
+	}
+
+	private static byte[] data(int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) (i * 7);
+		return b;
+	}
+
+	private static String hex(String algorithm, byte[] b) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (byte c : MessageDigest.getInstance(algorithm).digest(b))
+			sb.append(String.format("%02x", c & 0xff));
+		return sb.toString();
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		try {
+			while (true) {
+				int n = is.read(b);
+				if (n < 0)
+					break;
+				bos.write(b, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.krakenapps.pcap.file.MappedPcapFileInputStream;
+import org.krakenapps.pcap.file.PcapFileInputStream;
+import org.krakenapps.pcap.file.PcapFileOutputStream;
+import org.krakenapps.pcap.filter.BpfCompiler;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
+
+public class PcapMergerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMergeByTimestamp() throws IOException {
+		/* file n has packets at n, n + 3, n + 6, ... seconds */
+		List<File> inputs = new ArrayList<File>();
+		for (int n = 0; n < 3; n++) {
+			File file = new File(folder.getRoot(), n + ".pcap");
+			PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+			for (int i = n; i < 300; i += 3)
+				os.write(packet(i, 0, (byte) n));
+			os.close();
+			inputs.add(file);
+		}
+
+		/* an empty input and a tie with the first input */
+		File empty = new File(folder.getRoot(), "empty.pcap");
+		new PcapFileOutputStream(empty, 1).close();
+		inputs.add(empty);
+		File tie = new File(folder.getRoot(), "tie.pcap");
+		PcapFileOutputStream os = new PcapFileOutputStream(tie, 1);
+		os.write(packet(0, 0, (byte) 9));
+		os.close();
+		inputs.add(tie);
+
+		File output = new File(folder.getRoot(), "merged.pcap");
+		PcapMerger.merge(output, inputs);
+
+		List<PcapPacket> packets = readAll(output);
+		assertEquals(301, packets.size());
+		assertEquals(0, packets.get(0).getPacketData().get());
+		assertEquals(9, packets.get(1).getPacketData().get());
+		for (int i = 2; i < packets.size(); i++)
+			assertEquals(i - 1, packets.get(i).getPacketHeader().getTsSec());
+	}
+
+	@Test
+	public void testMergeTwoFiles() throws IOException {
+		File file1 = new File(folder.getRoot(), "1.pcap");
+		File file2 = new File(folder.getRoot(), "2.pcap");
+		PcapFileOutputStream os1 = new PcapFileOutputStream(file1, 1);
+		PcapFileOutputStream os2 = new PcapFileOutputStream(file2, 1);
+		os1.write(packet(10, 500, (byte) 1));
+		os2.write(packet(10, 400, (byte) 2));
+		os1.write(packet(11, 0, (byte) 1));
+		os1.close();
+		os2.close();
+
+		File output = new File(folder.getRoot(), "merged.pcap");
+		PcapMerger.merge(output, file1, file2);
+
+		List<PcapPacket> packets = readAll(output);
+		assertEquals(3, packets.size());
+		assertEquals(400, packets.get(0).getPacketHeader().getTsUsec());
+		assertEquals(500, packets.get(1).getPacketHeader().getTsUsec());
+		assertEquals(11, packets.get(2).getPacketHeader().getTsSec());
+	}
+
+	@Test
+	public void testDatalinkMismatch() throws IOException {
+		File file1 = new File(folder.getRoot(), "1.pcap");
+		File file2 = new File(folder.getRoot(), "2.pcap");
+		new PcapFileOutputStream(file1, 1).close();
+		new PcapFileOutputStream(file2, 105).close();
+
+		try {
+			PcapMerger.merge(new File(folder.getRoot(), "merged.pcap"), Arrays.asList(file1, file2));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testMergeWithFilter() throws IOException {
+		/* even seconds are arp, odd seconds are ipv4 */
+		List<File> inputs = new ArrayList<File>();
+		for (int n = 0; n < 2; n++) {
+			File file = new File(folder.getRoot(), n + ".pcap");
+			PcapFileOutputStream os = new PcapFileOutputStream(file, 1);
+			for (int i = n; i < 20; i += 2)
+				os.write(frame(i, i % 2 == 0 ? 0x0806 : 0x0800));
+			os.close();
+			inputs.add(file);
+		}
+
+		File output = new File(folder.getRoot(), "merged.pcap");
+		PcapMerger.merge(output, inputs, "arp");
+		List<PcapPacket> packets = readAll(output);
+		assertEquals(10, packets.size());
+		for (int i = 0; i < packets.size(); i++)
+			assertEquals(i * 2, packets.get(i).getPacketHeader().getTsSec());
+
+		MappedPcapFileInputStream is = new MappedPcapFileInputStream(inputs.get(1));
+		try {
+			is.setFilter(BpfCompiler.compile("arp", is.datalink()));
+			is.getPacket();
+			fail();
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+	}
+
+	private PcapPacket frame(int sec, int type) {
+		byte[] b = new byte[60];
+		b[12] = (byte) (type >> 8);
+		b[13] = (byte) type;
+		return new PcapPacket(new PacketHeader(sec, 0, b.length, b.length), new ChainBuffer(b));
+	}
+
+	private PcapPacket packet(int sec, int usec, byte mark) {
+		Buffer buffer = new ChainBuffer();
+		buffer.addLast(new byte[] { mark, 0, 0, 0 });
+		return new PcapPacket(new PacketHeader(sec, usec, 4, 4), buffer);
+	}
+
+	private List<PcapPacket> readAll(File file) throws IOException {
+		List<PcapPacket> packets = new ArrayList<PcapPacket>();
+		PcapFileInputStream is = new PcapFileInputStream(file);
+		try {
+			while (true)
+				packets.add(is.getPacket());
+		} catch (EOFException e) {
+		} finally {
+			is.close();
+		}
+		return packets;
+	}
+}
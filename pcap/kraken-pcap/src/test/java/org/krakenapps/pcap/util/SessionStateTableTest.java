@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
+
+public class SessionStateTableTest {
+	private final List<String> evicted = new ArrayList<String>();
+	private final Map<String, Long> weights = new HashMap<String, Long>();
+
+	private SessionStateTable<String, String> table = new SessionStateTable<String, String>(
+			new SessionStateTable.EvictionListener<String, String>() {
+				@Override
+				public void onEvict(String key, String state, EvictCause cause) {
+					evicted.add(key + ":" + cause);
+				}
+			}, new SessionStateTable.Weigher<String>() {
+				@Override
+				public long getBufferedBytes(String state) {
+					Long w = weights.get(state);
+					return w == null ? 0 : w;
+				}
+			});
+
+	@Test
+	public void testIdleExpiry() {
+		final long[] now = new long[] { 1000 };
+		table.setClock(new CaptureClock() {
+			@Override
+			public long getCurrentTime() {
+				return now[0];
+			}
+		});
+		table.setIdleTimeout(500);
+
+		table.put("a", "a");
+		now[0] = 1300;
+		table.put("b", "b");
+		now[0] = 1600;
+		assertEquals("b", table.get("b"));
+
+		/* a is idle for 600ms, b was touched now */
+		assertNull(table.peek("a"));
+		assertEquals(Arrays.asList("a:IDLE"), evicted);
+		assertEquals(1, table.getIdleExpiredCount());
+
+		now[0] = 2200;
+		table.expire();
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testBudgets() {
+		table.setMaxEntries(2);
+		table.put("a", "a");
+		table.put("b", "b");
+		table.get("a");
+		table.put("c", "c");
+
+		/* b is the least recently accessed */
+		assertEquals(Arrays.asList("b:ENTRY_LIMIT"), evicted);
+		assertEquals(Arrays.asList("a", "c"), table.values());
+
+		table.setMaxEntries(0);
+		table.setMaxBytes(100);
+		weights.put("a", 80L);
+		weights.put("c", 50L);
+		table.get("a");
+		table.get("c");
+		assertEquals(Arrays.asList("b:ENTRY_LIMIT", "a:BYTE_LIMIT"), evicted);
+		assertEquals(50, table.getBufferedBytes());
+
+		/* the entry in use is never evicted, and remove does not notify */
+		weights.put("c", 500L);
+		assertEquals("c", table.get("c"));
+		assertEquals("c", table.remove("c"));
+		assertEquals(0, table.getBufferedBytes());
+		assertEquals(2, table.getEvictedCount());
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillOutputStreamTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testInMemory() throws IOException {
+		SpillOutputStream os = new SpillOutputStream(16, folder.getRoot());
+		os.write(new byte[] { 1, 2, 3 });
+		os.write(4);
+		os.close();
+
+		assertFalse(os.isSpilled());
+		assertNull(os.getFile());
+		assertEquals(4, os.size());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, os.toByteArray());
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		byte[] expected = new byte[10000];
+		for (int i = 0; i < expected.length; i++)
+			expected[i] = (byte) i;
+
+		SpillOutputStream os = new SpillOutputStream(4096, folder.getRoot());
+		for (int i = 0; i < expected.length; i += 1000)
+			os.write(expected, i, 1000);
+		os.close();
+
+		assertTrue(os.isSpilled());
+		File file = os.getFile();
+		assertEquals(expected.length, file.length());
+		assertEquals(expected.length, os.size());
+		assertArrayEquals(expected, os.toByteArray());
+
+		byte[] read = new byte[expected.length];
+		assertEquals(expected.length, readFully(os.getInputStream(), read));
+		assertArrayEquals(expected, read);
+
+		os.dispose();
+		assertFalse(file.exists());
+	}
+
+	private static int readFully(InputStream is, byte[] b) throws IOException {
+		int offset = 0;
+		try {
+			while (offset < b.length) {
+				int read = is.read(b, offset, b.length - offset);
+				if (read < 0)
+					break;
+				offset += read;
+			}
+		} finally {
+			is.close();
+		}
+		return offset;
+	}
+}
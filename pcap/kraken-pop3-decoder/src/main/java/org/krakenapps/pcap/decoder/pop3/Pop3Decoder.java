@@ -17,12 +17,13 @@
 package org.krakenapps.pcap.decoder.pop3;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
 
@@ -37,7 +38,12 @@ import org.krakenapps.pcap.decoder.tcp.TcpProcessor;
 import org.krakenapps.pcap.decoder.tcp.TcpSession;
 import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.DelimiterScanner;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
 import org.krakenapps.mime.MimeHeader;
+import org.krakenapps.mime.MimeStreamHandler;
+import org.krakenapps.mime.MimeStreamParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,11 +54,35 @@ public class Pop3Decoder implements TcpProcessor {
 	private Logger logger = LoggerFactory.getLogger(Pop3Decoder.class.getName());
 
 	private Set<Pop3Processor> callbacks;
-	private Map<TcpSessionKey, Pop3Session> sessionMap;
+	private SessionStateTable<TcpSessionKey, Pop3Session> sessionMap;
+
+	/* keep the whole message for onReceive() */
+	private boolean bufferMessage = true;
 
 	public Pop3Decoder() {
 		callbacks = new HashSet<Pop3Processor>();
-		sessionMap = new HashMap<TcpSessionKey, Pop3Session>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessionMap = new SessionStateTable<TcpSessionKey, Pop3Session>(evictor, evictor);
+	}
+
+	/**
+	 * Returns the pop3 session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, Pop3Session> getSessionTable() {
+		return sessionMap;
+	}
+
+	public boolean isBufferMessage() {
+		return bufferMessage;
+	}
+
+	/**
+	 * Disable to keep memory bounded on large mails. onReceive() is not
+	 * called then, and processors should use
+	 * {@link Pop3Processor#createMimeHandler()} instead.
+	 */
+	public void setBufferMessage(boolean bufferMessage) {
+		this.bufferMessage = bufferMessage;
 	}
 
 	public void register(Pop3Processor processor) {
@@ -75,23 +105,28 @@ public class Pop3Decoder implements TcpProcessor {
 	public void onFinish(TcpSessionKey session) {
 		if (logger.isDebugEnabled())
 			logger.debug("-> POP3 Session Closed: \n" + "Client Port: " + (int) session.getClientPort() + "\nServer Port: " + (int) session.getServerPort());
-		sessionMap.remove(session);
+		Pop3Session pop3Session = sessionMap.remove(session);
+		if (pop3Session != null)
+			finishMessage(pop3Session);
 	}
 
 	@Override
 	public void onReset(TcpSessionKey session) {
-		Pop3Session pop3Session = sessionMap.get(session);
+		Pop3Session pop3Session = sessionMap.remove(session);
 		if (pop3Session != null) {
 			if (logger.isDebugEnabled())
 				logger.debug("Deallocate tx, rx buffer and remove pop3 session.");
+			finishMessage(pop3Session);
 			pop3Session.clear();
-			sessionMap.remove(session);
 		}
 	}
 
 	@Override
 	public void handleTx(TcpSessionKey sessionKey, Buffer data) {
 		Pop3Session session = sessionMap.get(sessionKey);
+		if (session == null)
+			return;
+
 		Buffer txBuffer = session.getTxBuffer();
 		txBuffer.addLast(data);
 
@@ -101,6 +136,9 @@ public class Pop3Decoder implements TcpProcessor {
 	@Override
 	public void handleRx(TcpSessionKey sessionKey, Buffer data) {
 		Pop3Session session = sessionMap.get(sessionKey);
+		if (session == null)
+			return;
+
 		Buffer rxBuffer = session.getRxBuffer();
 		rxBuffer.addLast(data);
 
@@ -156,13 +194,14 @@ public class Pop3Decoder implements TcpProcessor {
 		case FIND_UIDL:
 		case FIND_LIST:
 			try {
-				int len = rxBuffer.bytesBefore(new byte[] { 0x0d, 0x0a, 0x2e, 0x0d, 0x0a });
-				if (len == 0) {
+				int len = session.getDataScanner().scan(rxBuffer);
+				if (len < 0) {
 					return;
 				}
 
 				byte[] t = new byte[len + 5];
 				rxBuffer.gets(t, 0, t.length);
+				session.getDataScanner().reset();
 			} catch (BufferUnderflowException e) {
 				rxBuffer.reset();
 				return;
@@ -190,6 +229,7 @@ public class Pop3Decoder implements TcpProcessor {
 					byte[] t = new byte[len + 2];
 					rxBuffer.gets(t, 0, t.length);
 					session.setSkipRETRMessage(true);
+					startMessage(session);
 				} catch (BufferUnderflowException e) {
 					rxBuffer.reset();
 					return;
@@ -201,24 +241,36 @@ public class Pop3Decoder implements TcpProcessor {
 					/* record start point of e-mail */
 					session.setRemarkStart(true);
 				}
-				int length = rxBuffer.bytesBefore(new byte[] { 0x0d, 0x0a, 0x2e, 0x0d, 0x0a });
-				if (length == 0) {
+				DelimiterScanner scanner = session.getDataScanner();
+				int length = scanner.scan(rxBuffer);
+
+				/* hold back a possibly partial terminator */
+				int consumable = length >= 0 ? length : rxBuffer.readableBytes() - (DelimiterScanner.END_OF_DATA.length - 1);
+				if (consumable > 0) {
+					byte[] b = new byte[consumable];
+					rxBuffer.gets(b, 0, consumable);
+					scanner.reset();
+					rxBuffer.compact();
+					feedMessage(session, b);
+				}
+
+				if (length < 0) {
 					return;
 				}
-				byte[] emailData = new byte[length];
-				rxBuffer.gets(emailData, 0, length);
 
-				MimeMessage msg = createMimeMessage(emailData);
-				MimeHeader header = new MimeHeader();
-				Charset headerCharset = header.getHeaderCharset(msg);
-				header.decodeHeader(headerCharset, emailData);
+				finishMessage(session);
 
-				Pop3DataImpl pop3Data = new Pop3DataImpl(msg);
-				getMessage(header, pop3Data);
+				ByteArrayOutputStream message = session.getMessage();
+				if (message != null) {
+					byte[] emailData = message.toByteArray();
+					MimeMessage msg = createMimeMessage(emailData);
+					MimeHeader header = new MimeHeader();
+					Charset headerCharset = header.getHeaderCharset(msg);
+					header.decodeHeader(headerCharset, emailData);
 
-				/* skip 'CRLF.CRLF' */
-				byte[] t = new byte[5];
-				rxBuffer.gets(t, 0, t.length);
+					Pop3DataImpl pop3Data = new Pop3DataImpl(msg);
+					getMessage(header, pop3Data);
+				}
 
 				/* initialize e-mail variables */
 				session.setRemarkStart(false);
@@ -253,6 +305,49 @@ public class Pop3Decoder implements TcpProcessor {
 		}
 	}
 
+	private void startMessage(Pop3Session session) {
+		for (Pop3Processor p : callbacks) {
+			MimeStreamHandler handler = p.createMimeHandler();
+			if (handler == null)
+				continue;
+
+			MimeStreamParser parser = new MimeStreamParser(handler);
+			parser.setDotStuffed(true);
+			session.getParsers().add(parser);
+		}
+
+		if (bufferMessage)
+			session.setMessage(new ByteArrayOutputStream());
+	}
+
+	private void feedMessage(Pop3Session session, byte[] b) {
+		Iterator<MimeStreamParser> it = session.getParsers().iterator();
+		while (it.hasNext()) {
+			MimeStreamParser parser = it.next();
+			try {
+				parser.update(b);
+			} catch (IOException e) {
+				logger.debug("pop3 decoder: mime handler failed, drop it", e);
+				it.remove();
+			}
+		}
+
+		ByteArrayOutputStream message = session.getMessage();
+		if (message != null)
+			message.write(b, 0, b.length);
+	}
+
+	private void finishMessage(Pop3Session session) {
+		for (MimeStreamParser parser : session.getParsers()) {
+			try {
+				parser.finish();
+			} catch (IOException e) {
+				logger.debug("pop3 decoder: mime handler failed", e);
+			}
+		}
+		session.getParsers().clear();
+	}
+
 	private MimeMessage createMimeMessage(byte[] data) {
 		Session mailSession = Session.getDefaultInstance(new Properties());
 		InputStream is = new ByteArrayInputStream(data, 0, data.length);
@@ -279,4 +374,19 @@ public class Pop3Decoder implements TcpProcessor {
 		for (Pop3Processor p : callbacks)
 			p.onResponse(response);
 	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<TcpSessionKey, Pop3Session>,
+			SessionStateTable.Weigher<Pop3Session> {
+		@Override
+		public void onEvict(TcpSessionKey key, Pop3Session session, EvictCause cause) {
+			logger.debug("pop3 decoder: evict session {}, {}", key, cause);
+			finishMessage(session);
+			session.clear();
+		}
+
+		@Override
+		public long getBufferedBytes(Pop3Session session) {
+			return session.getBufferedBytes();
+		}
+	}
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package org.krakenapps.pcap.decoder.pop3;
 
 import org.krakenapps.mime.MimeHeader;
+import org.krakenapps.mime.MimeStreamHandler;
 
 /**
  * @author mindori
@@ -27,4 +28,12 @@ public interface Pop3Processor {
 	void onCommand(String command);
 
 	void onResponse(String response);
+
+	/**
+	 * Called when a RETR message starts. The returned handler receives the
+	 * message parts as they arrive, or null to skip streaming parse.
+	 */
+	default MimeStreamHandler createMimeHandler() {
+		return null;
+	}
 }
@@ -16,7 +16,13 @@
  */
 package org.krakenapps.pcap.decoder.pop3.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.mime.MimeStreamParser;
 import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.DelimiterScanner;
 
 /**
  * @author mindori
@@ -24,12 +30,21 @@ import org.krakenapps.pcap.util.ChainBuffer;
 public class Pop3Session {
 	private ChainBuffer txBuffer;
 	private ChainBuffer rxBuffer;
+
+	/* finds the end of multi-line responses without rescanning */
+	private final DelimiterScanner dataScanner = new DelimiterScanner(DelimiterScanner.END_OF_DATA);
 	
 	private Pop3State state;
 
 	private boolean isSkipRETRMessage = false;
 	/* remark start point of e-mail */
 	private boolean remarkStart = false;
+
+	/* streaming parsers of the current message */
+	private List<MimeStreamParser> parsers = new ArrayList<MimeStreamParser>();
+
+	/* whole message for the buffered callback, null if disabled */
+	private ByteArrayOutputStream message;
 	
 	public Pop3Session() {
 		txBuffer = new ChainBuffer();
@@ -46,6 +61,22 @@ public class Pop3Session {
 		return rxBuffer;
 	}
 
+	public DelimiterScanner getDataScanner() {
+		return dataScanner;
+	}
+
+	public List<MimeStreamParser> getParsers() {
+		return parsers;
+	}
+
+	public ByteArrayOutputStream getMessage() {
+		return message;
+	}
+
+	public void setMessage(ByteArrayOutputStream message) {
+		this.message = message;
+	}
+
 	public Pop3State getState() {
 		return state;
 	}
@@ -74,11 +105,28 @@ public class Pop3Session {
 		remarkStart = false;
 	}
 	
+	/**
+	 * Returns the bytes waiting in the tx and rx buffers and the message buffer.
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		if (txBuffer != null)
+			bytes += txBuffer.readableBytes();
+		if (rxBuffer != null)
+			bytes += rxBuffer.readableBytes();
+		if (message != null)
+			bytes += message.size();
+		return bytes;
+	}
+
 	public void clear() { 
 		txBuffer = null;
 		rxBuffer = null;
 		
 		txBuffer = new ChainBuffer();
 		rxBuffer = new ChainBuffer();
+		dataScanner.reset();
+		parsers.clear();
+		message = null;
 	}
 }
@@ -1,8 +1,6 @@
 package org.krakenapps.pcap.decoder.smb;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import org.krakenapps.pcap.decoder.netbios.NetBiosDatagramPacket;
@@ -23,22 +21,36 @@ import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
 import org.krakenapps.pcap.util.ByteOrderConverter;
 import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class SmbDecoder implements NetBiosSessionProcessor, NetBiosDatagramProcessor {
 	private final Logger logger = LoggerFactory.getLogger(SmbDecoder.class.getName());
 	private Set<SmbProcessor> rpcCallbacks = new HashSet<SmbProcessor>();
-	private Map<TcpSessionKey, SmbSession> sessions;
+	private SessionStateTable<TcpSessionKey, SmbSession> sessions;
 	private ComCommandMapper parsers;
 	private UdpCommandMapper udpParsers;
 
 	public SmbDecoder() {
-		sessions = new HashMap<TcpSessionKey, SmbSession>();
+		sessions = new SessionStateTable<TcpSessionKey, SmbSession>(new SessionStateTable.EvictionListener<TcpSessionKey, SmbSession>() {
+			@Override
+			public void onEvict(TcpSessionKey key, SmbSession session, EvictCause cause) {
+				logger.debug("smb decoder: evict session {}, {}", key, cause);
+			}
+		});
 		parsers = new ComCommandMapper();
 		udpParsers = new UdpCommandMapper();
 	}
 
+	/**
+	 * Returns the smb session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, SmbSession> getSessionTable() {
+		return sessions;
+	}
+
 	public void registerRpcCallbacks(SmbProcessor callback) {
 		rpcCallbacks.add(callback);
 	}
@@ -152,6 +164,7 @@ public class SmbDecoder implements NetBiosSessionProcessor, NetBiosDatagramProce
 		// System.out.println("TX Header : " + smbP.header);
 		if ((session = sessions.get(netBiosKey)) == null) {
 			session = new SmbSession(netBiosKey);
+			sessions.put(netBiosKey, session);
 		}
 		session.setSessionHeader(smbP.header);
 		SmbDataParser parser = parsers.getComParser(smbP.header.getCommand());
@@ -175,6 +188,15 @@ public class SmbDecoder implements NetBiosSessionProcessor, NetBiosDatagramProce
 		}
 		// System.out.println("TX Data : " + smbP.data);
 		session.setSessionData(smbP.header, smbP.data);
-		sessions.put(netBiosKey, session);
+	}
+
+	@Override
+	public void onFinish(TcpSessionKey key) {
+		sessions.remove(key);
+	}
+
+	@Override
+	public void onReset(TcpSessionKey key) {
+		sessions.remove(key);
 	}
 }
@@ -16,11 +16,12 @@
 package org.krakenapps.pcap.decoder.smtp;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
 
@@ -29,12 +30,17 @@ import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
 import org.krakenapps.mime.MimeHeader;
+import org.krakenapps.mime.MimeStreamHandler;
+import org.krakenapps.mime.MimeStreamParser;
 import org.krakenapps.pcap.decoder.smtp.impl.SmtpDataImpl;
 import org.krakenapps.pcap.decoder.smtp.impl.SmtpSession;
 import org.krakenapps.pcap.decoder.tcp.TcpProcessor;
 import org.krakenapps.pcap.decoder.tcp.TcpSession;
 import org.krakenapps.pcap.decoder.tcp.TcpSessionKey;
 import org.krakenapps.pcap.util.Buffer;
+import org.krakenapps.pcap.util.DelimiterScanner;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,11 +51,35 @@ public class SmtpDecoder implements TcpProcessor {
 	private Logger logger = LoggerFactory.getLogger(SmtpDecoder.class.getName());
 
 	private Set<SmtpProcessor> callbacks;
-	private Map<TcpSessionKey, SmtpSession> sessionMap;
+	private SessionStateTable<TcpSessionKey, SmtpSession> sessionMap;
+
+	/* keep the whole message for onSend() */
+	private boolean bufferMessage = true;
 
 	public SmtpDecoder() {
 		callbacks = new HashSet<SmtpProcessor>();
-		sessionMap = new HashMap<TcpSessionKey, SmtpSession>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessionMap = new SessionStateTable<TcpSessionKey, SmtpSession>(evictor, evictor);
+	}
+
+	/**
+	 * Returns the smtp session states for expiry and budget settings.
+	 */
+	public SessionStateTable<TcpSessionKey, SmtpSession> getSessionTable() {
+		return sessionMap;
+	}
+
+	public boolean isBufferMessage() {
+		return bufferMessage;
+	}
+
+	/**
+	 * Disable to keep memory bounded on large mails. onSend() is not called
+	 * then, and processors should use
+	 * {@link SmtpProcessor#createMimeHandler()} instead.
+	 */
+	public void setBufferMessage(boolean bufferMessage) {
+		this.bufferMessage = bufferMessage;
 	}
 
 	public void register(SmtpProcessor processor) {
@@ -63,6 +93,9 @@ public class SmtpDecoder implements TcpProcessor {
 	@Override
 	public void handleTx(TcpSessionKey sessionKey, Buffer data) {
 		SmtpSession session = sessionMap.get(sessionKey);
+		if (session == null)
+			return;
+
 		Buffer txBuffer = session.getTxBuffer();
 		txBuffer.addLast(data);
 
@@ -72,6 +105,9 @@ public class SmtpDecoder implements TcpProcessor {
 	@Override
 	public void handleRx(TcpSessionKey sessionKey, Buffer data) {
 		SmtpSession session = sessionMap.get(sessionKey);
+		if (session == null)
+			return;
+
 		Buffer rxBuffer = session.getRxBuffer();
 		rxBuffer.addLast(data);
 
@@ -92,17 +128,19 @@ public class SmtpDecoder implements TcpProcessor {
 			logger.debug("-> SMTP Session Closed: \n" + "Client Port: "
 					+ (int) session.getClientPort() + "\nServer Port: "
 					+ (int) session.getServerPort());
-		sessionMap.remove(session);
+		SmtpSession smtpSession = sessionMap.remove(session);
+		if (smtpSession != null)
+			finishMessage(smtpSession);
 	}
 
 	@Override
 	public void onReset(TcpSessionKey session) {
-		SmtpSession smtpSession = sessionMap.get(session);
+		SmtpSession smtpSession = sessionMap.remove(session);
 		if (smtpSession != null) {
 			if (logger.isDebugEnabled())
 				logger.debug("Deallocate tx, rx buffer and remove smtp session.");
+			finishMessage(smtpSession);
 			smtpSession.clear();
-			sessionMap.remove(session);
 		}
 	}
 
@@ -121,28 +159,86 @@ public class SmtpDecoder implements TcpProcessor {
 		session.resetRx(); 
 	}
 
+	private void startMessage(SmtpSession session) {
+		for (SmtpProcessor processor : callbacks) {
+			MimeStreamHandler handler = processor.createMimeHandler();
+			if (handler == null)
+				continue;
+
+			MimeStreamParser parser = new MimeStreamParser(handler);
+			parser.setDotStuffed(true);
+			session.getParsers().add(parser);
+		}
+
+		if (bufferMessage)
+			session.setMessage(new ByteArrayOutputStream());
+	}
+
 	private void handleClientData(SmtpSession session, Buffer txBuffer) {
-		// store until find \r\n.\r\n
-		int length = txBuffer.bytesBefore(new byte[] { 0x0d, 0x0a, 0x2e, 0x0d, 0x0a });
-		if (length == 0) {
+		// pass through until find \r\n.\r\n
+		DelimiterScanner scanner = session.getDataScanner();
+		int length = scanner.scan(txBuffer);
+
+		/* hold back a possibly partial terminator */
+		int consumable = length >= 0 ? length : txBuffer.readableBytes() - (DelimiterScanner.END_OF_DATA.length - 1);
+		if (consumable > 0) {
+			byte[] b = new byte[consumable];
+			txBuffer.gets(b, 0, consumable);
+			scanner.reset();
+			txBuffer.compact();
+			feedMessage(session, b);
+		}
+
+		if (length < 0) {
 			return;
 		}
 
 		session.setDataMode(false);
-		byte[] emailData = new byte[length];
-		txBuffer.gets(emailData, 0, length);
+		finishMessage(session);
 
-		MimeMessage msg = createMimeMessage(emailData);
-		MimeHeader header = new MimeHeader();
-		Charset headerCharset = header.getHeaderCharset(msg);
-		header.decodeHeader(headerCharset, emailData);
+		ByteArrayOutputStream message = session.getMessage();
+		if (message != null) {
+			byte[] emailData = message.toByteArray();
+			MimeMessage msg = createMimeMessage(emailData);
+			MimeHeader header = new MimeHeader();
+			Charset headerCharset = header.getHeaderCharset(msg);
+			header.decodeHeader(headerCharset, emailData);
+
+			SmtpDataImpl smtpData = new SmtpDataImpl(msg);
+			getMessage(header, smtpData);
+		}
 
-		SmtpDataImpl smtpData = new SmtpDataImpl(msg);
-		getMessage(header, smtpData);
-		
 		session.reset();
 	}
 
+	private void feedMessage(SmtpSession session, byte[] b) {
+		Iterator<MimeStreamParser> it = session.getParsers().iterator();
+		while (it.hasNext()) {
+			MimeStreamParser parser = it.next();
+			try {
+				parser.update(b);
+			} catch (IOException e) {
+				logger.debug("smtp decoder: mime handler failed, drop it", e);
+				it.remove();
+			}
+		}
+
+		ByteArrayOutputStream message = session.getMessage();
+		if (message != null)
+			message.write(b, 0, b.length);
+	}
+
+	private void finishMessage(SmtpSession session) {
+		for (MimeStreamParser parser : session.getParsers()) {
+			try {
+				parser.finish();
+			} catch (IOException e) {
+				logger.debug("smtp decoder: mime handler failed", e);
+			}
+		}
+		session.getParsers().clear();
+	}
+
 	private void handleClientCommand(SmtpSession session, Buffer txBuffer) {
 		while(true) { 
 			int length = txBuffer.bytesBefore(new byte[] { 0x0d, 0x0a });
@@ -160,6 +256,7 @@ public class SmtpDecoder implements TcpProcessor {
 			if(command.equals("DATA")) {
 				session.setDataMode(true);
 				dispatchCommand(command, "");
+				startMessage(session);
 				break;
 			}
 			else if(command.matches("\\w{4} .+")) {
@@ -224,4 +321,19 @@ public class SmtpDecoder implements TcpProcessor {
 			processor.onReply(replyCode, replyMessage);
 		}
 	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<TcpSessionKey, SmtpSession>,
+			SessionStateTable.Weigher<SmtpSession> {
+		@Override
+		public void onEvict(TcpSessionKey key, SmtpSession session, EvictCause cause) {
+			logger.debug("smtp decoder: evict session {}, {}", key, cause);
+			finishMessage(session);
+			session.clear();
+		}
+
+		@Override
+		public long getBufferedBytes(SmtpSession session) {
+			return session.getBufferedBytes();
+		}
+	}
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 package org.krakenapps.pcap.decoder.smtp;
 
 import org.krakenapps.mime.MimeHeader;
+import org.krakenapps.mime.MimeStreamHandler;
 
 /**
  * @author mindori
@@ -26,4 +27,12 @@ public interface SmtpProcessor {
 	void onCommand(String command, String parameter);
 
 	void onReply(int code, String message);
+
+	/**
+	 * Called when DATA starts. The returned handler receives the message
+	 * parts as they arrive, or null to skip streaming parse.
+	 */
+	default MimeStreamHandler createMimeHandler() {
+		return null;
+	}
 }
\ No newline at end of file
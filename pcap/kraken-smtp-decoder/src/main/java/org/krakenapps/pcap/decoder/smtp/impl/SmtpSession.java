@@ -16,8 +16,14 @@
  */
 package org.krakenapps.pcap.decoder.smtp.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.mime.MimeStreamParser;
 import org.krakenapps.pcap.util.Buffer;
 import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.DelimiterScanner;
 
 /**
  * @author mindori
@@ -26,8 +32,17 @@ public class SmtpSession {
 	private Buffer txBuffer;
 	private Buffer rxBuffer;
 
+	/* finds the end of DATA without rescanning the accumulated mail */
+	private final DelimiterScanner dataScanner = new DelimiterScanner(DelimiterScanner.END_OF_DATA);
+
 	private boolean isDataMode;
 
+	/* streaming parsers of the current message */
+	private List<MimeStreamParser> parsers = new ArrayList<MimeStreamParser>();
+
+	/* whole message for the buffered callback, null if disabled */
+	private ByteArrayOutputStream message;
+
 	public SmtpSession() {
 		txBuffer = new ChainBuffer();
 		rxBuffer = new ChainBuffer();
@@ -49,17 +64,51 @@ public class SmtpSession {
 		return rxBuffer;
 	}
 
+	public DelimiterScanner getDataScanner() {
+		return dataScanner;
+	}
+
+	public List<MimeStreamParser> getParsers() {
+		return parsers;
+	}
+
+	public ByteArrayOutputStream getMessage() {
+		return message;
+	}
+
+	public void setMessage(ByteArrayOutputStream message) {
+		this.message = message;
+	}
+
+	/**
+	 * Returns the bytes waiting in the tx and rx buffers and the message buffer.
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		if (txBuffer != null)
+			bytes += txBuffer.readableBytes();
+		if (rxBuffer != null)
+			bytes += rxBuffer.readableBytes();
+		if (message != null)
+			bytes += message.size();
+		return bytes;
+	}
+
 	public void reset() { 
 		txBuffer = null;
 		rxBuffer = null;
 		
 		txBuffer = new ChainBuffer();
 		rxBuffer = new ChainBuffer();
+		dataScanner.reset();
+		parsers.clear();
+		message = null;
 	}
 	
 	public void resetTx() { 
 		txBuffer = null;
 		txBuffer = new ChainBuffer();
+		dataScanner.reset();
 	}
 	
 	public void resetRx() { 
@@ -70,5 +119,7 @@ public class SmtpSession {
 	public void clear() {
 		txBuffer = null;
 		rxBuffer = null;
+		parsers.clear();
+		message = null;
 	}
 }
\ No newline at end of file
@@ -1,28 +1,107 @@
 package org.krakenapps.pcap.decoder.tftp;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.HashSet;
 import java.util.Set;
 
 import org.krakenapps.pcap.Protocol;
+import org.krakenapps.pcap.decoder.ethernet.EthernetFrame;
+import org.krakenapps.pcap.decoder.ip.IpPacket;
 import org.krakenapps.pcap.decoder.udp.UdpPacket;
 import org.krakenapps.pcap.decoder.udp.UdpProcessor;
 import org.krakenapps.pcap.decoder.udp.UdpProtocolMapper;
+import org.krakenapps.pcap.packet.PacketHeader;
+import org.krakenapps.pcap.packet.PcapPacket;
 import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.BufferInputStream;
+import org.krakenapps.pcap.util.ExtractedFile;
+import org.krakenapps.pcap.util.ExtractionBudget;
+import org.krakenapps.pcap.util.SessionStateTable;
+import org.krakenapps.pcap.util.SessionStateTable.EvictCause;
+import org.krakenapps.pcap.util.SpillOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Extracts files of tftp transfers. Transfers are keyed by the client socket
+ * address, and a transfer whose last block never arrives is evicted after the
+ * idle timeout of capture time, releasing its file.
+ */
 public class TftpDecoder implements UdpProcessor {
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private final Logger logger = LoggerFactory.getLogger(TftpDecoder.class.getName());
 	private final UdpProtocolMapper mapper;
-	private Set<TftpSession> sessions;
+	private SessionStateTable<InetSocketAddress, TftpSession> sessions;
 	private Set<TftpProcessor> callbacks;
 
+	/* extraction limits */
+	private long maxFileSize = Long.MAX_VALUE;
+	private ExtractionBudget budget;
+	private int spillThreshold = SpillOutputStream.DEFAULT_THRESHOLD;
+	private File spillDirectory;
+
 	public TftpDecoder(UdpProtocolMapper mapper) {
 		this.mapper = mapper;
-		sessions = new HashSet<TftpSession>();
+		SessionEvictor evictor = new SessionEvictor();
+		sessions = new SessionStateTable<InetSocketAddress, TftpSession>(evictor, evictor);
+		sessions.setIdleTimeout(DEFAULT_IDLE_TIMEOUT);
 		callbacks = new HashSet<TftpProcessor>();
 	}
 
+	/**
+	 * Returns the tftp transfer states for expiry and budget settings.
+	 */
+	public SessionStateTable<InetSocketAddress, TftpSession> getSessionTable() {
+		return sessions;
+	}
+
+	/**
+	 * Releases all pending transfers, for example at the end of a capture.
+	 */
+	public void close() {
+		sessions.clear();
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	/**
+	 * Sets the maximum stored bytes of a transfer. Larger files are hashed
+	 * but reported as truncated.
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	public ExtractionBudget getExtractionBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the byte budget shared with other decoders, or null if
+	 * unlimited.
+	 */
+	public void setExtractionBudget(ExtractionBudget budget) {
+		this.budget = budget;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the in-memory limit of a transfer. Larger files are spilled to
+	 * temporary files in the given directory, or the default temporary
+	 * directory if null.
+	 */
+	public void setSpillThreshold(int spillThreshold, File spillDirectory) {
+		this.spillThreshold = spillThreshold;
+		this.spillDirectory = spillDirectory;
+	}
+
 	public void register(TftpProcessor processor) {
 		callbacks.add(processor);
 	}
@@ -41,6 +120,9 @@ public class TftpDecoder implements UdpProcessor {
 
 	@Override
 	public void process(UdpPacket p) {
+		advanceClock(p);
+		sessions.expire();
+
 		Buffer tftpData = p.getData();
 
 		short opCode = tftpData.getShort();
@@ -75,8 +157,11 @@ public class TftpDecoder implements UdpProcessor {
 		/* skip 00 */
 		tftpData.get();
 
-		TftpSession session = new TftpSession(opCode, p.getSource(), p.getDestination().getAddress(), fileName, mode);
-		sessions.add(session);
+		ExtractedFile file = new ExtractedFile(maxFileSize, budget, spillThreshold, spillDirectory);
+		TftpSession session = new TftpSession(opCode, p.getSource(), p.getDestination().getAddress(), fileName, mode, file);
+		TftpSession old = sessions.put(p.getSource(), session);
+		if (old != null)
+			old.dispose();
 
 		dispatchCommand(session.toString());
 	}
@@ -85,16 +170,34 @@ public class TftpDecoder implements UdpProcessor {
 		InetSocketAddress src = p.getSource();
 		InetSocketAddress dest = p.getDestination();
 
-		for (TftpSession s : sessions) {
-			if (s.equals(src, dest.getAddress()) || s.equals(dest, src.getAddress()))
-				return s;
-		}
+		TftpSession s = sessions.peek(src);
+		if (s != null && s.equals(src, dest.getAddress()))
+			return sessions.get(src);
+
+		s = sessions.peek(dest);
+		if (s != null && s.equals(dest, src.getAddress()))
+			return sessions.get(dest);
 		return null;
 	}
 
 	private void terminate(TftpSession session) {
 		unregisterTftp(session.getSrcAddress());
-		session = null;
+		sessions.remove(session.getSrcAddress());
+		session.dispose();
+	}
+
+	/* moves the session table to the capture time of the packet */
+	private void advanceClock(UdpPacket p) {
+		IpPacket ipPacket = p.getIpPacket();
+		if (ipPacket == null || !(ipPacket.getL2Frame() instanceof EthernetFrame))
+			return;
+
+		PcapPacket packet = ((EthernetFrame) ipPacket.getL2Frame()).getPcapPacket();
+		if (packet == null)
+			return;
+
+		PacketHeader header = packet.getPacketHeader();
+		sessions.advance((header.getTsSec() & 0xffffffffL) * 1000 + header.getTsUsec() / 1000);
 	}
 
 	private void handleDataPacket(UdpPacket p, Buffer tftpData) {
@@ -110,14 +213,16 @@ public class TftpDecoder implements UdpProcessor {
 			byte[] data = new byte[remain];
 			tftpData.gets(data);
 
-			session.putData(data);
+			try {
+				session.putData(data);
+			} catch (IOException e) {
+				logger.debug("tftp decoder: cannot store " + session.getFileName(), e);
+			}
 			session.incSendNum();
 
 			if (remain < 512) {
 				/* last data packet */
-				Buffer b = session.getData();
-				BufferInputStream is = new BufferInputStream(b);
-				dispatchFile(is, session.getFileName());
+				dispatchFile(session.getData(), session.getFileName());
 
 				terminate(session);
 			}
@@ -150,9 +255,31 @@ public class TftpDecoder implements UdpProcessor {
 		}
 	}
 
-	private void dispatchFile(InputStream is, String fileName) {
+	private void dispatchFile(ExtractedFile file, String fileName) {
+		if (file.isTruncated())
+			logger.debug("tftp decoder: {} truncated, {}", fileName, file);
+
 		for (TftpProcessor processor : callbacks) {
-			processor.onExtractFile(is, fileName);
+			try {
+				processor.onExtractFile(file, fileName);
+			} catch (IOException e) {
+				logger.debug("tftp decoder: cannot extract " + fileName, e);
+			}
+		}
+	}
+
+	private class SessionEvictor implements SessionStateTable.EvictionListener<InetSocketAddress, TftpSession>,
+			SessionStateTable.Weigher<TftpSession> {
+		@Override
+		public void onEvict(InetSocketAddress key, TftpSession session, EvictCause cause) {
+			logger.debug("tftp decoder: evict transfer {}, {}", session, cause);
+			unregisterTftp(session.getSrcAddress());
+			session.dispose();
+		}
+
+		@Override
+		public long getBufferedBytes(TftpSession session) {
+			return session.getData().getStoredSize();
 		}
 	}
 }
\ No newline at end of file
@@ -1,9 +1,30 @@
 package org.krakenapps.pcap.decoder.tftp;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import org.krakenapps.pcap.util.ExtractedFile;
+
 public interface TftpProcessor {
 	void onCommand(String command);
 
 	void onExtractFile(InputStream is, String fileName);
+
+	/**
+	 * Called when a transfer completes, with its size and digests. The file
+	 * is disposed after the call. The default implementation passes the
+	 * stored bytes to {@link #onExtractFile(InputStream, String)} unless the
+	 * file is truncated.
+	 */
+	default void onExtractFile(ExtractedFile file, String fileName) throws IOException {
+		if (file.isTruncated())
+			return;
+
+		InputStream is = file.getInputStream();
+		try {
+			onExtractFile(is, fileName);
+		} finally {
+			is.close();
+		}
+	}
 }
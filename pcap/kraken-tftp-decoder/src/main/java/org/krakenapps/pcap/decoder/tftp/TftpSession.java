@@ -1,10 +1,10 @@
 package org.krakenapps.pcap.decoder.tftp;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
-import org.krakenapps.pcap.util.Buffer;
-import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ExtractedFile;
 
 public class TftpSession {
 	private InetSocketAddress srcAddr;
@@ -17,9 +17,14 @@ public class TftpSession {
 	private int sendNum = 0;
 	private int ackNum = 0;
 
-	private Buffer data;
+	private ExtractedFile data;
 
 	public TftpSession(int opCode, InetSocketAddress srcAddr, InetAddress destIp, byte[] fileNameBytes, byte[] modeBytes) {
+		this(opCode, srcAddr, destIp, fileNameBytes, modeBytes, new ExtractedFile());
+	}
+
+	public TftpSession(int opCode, InetSocketAddress srcAddr, InetAddress destIp, byte[] fileNameBytes, byte[] modeBytes,
+			ExtractedFile file) {
 		if (opCode == 1)
 			method = TftpMethod.GET;
 		else
@@ -31,7 +36,7 @@ public class TftpSession {
 		fileName = new String(fileNameBytes);
 		setMode(modeBytes);
 
-		data = new ChainBuffer();
+		data = file;
 	}
 
 	public InetSocketAddress getSrcAddress() {
@@ -81,12 +86,16 @@ public class TftpSession {
 		ackNum++;
 	}
 
-	public Buffer getData() {
+	public ExtractedFile getData() {
 		return data;
 	}
 
-	public void putData(byte[] b) {
-		data.addLast(b);
+	public void putData(byte[] b) throws IOException {
+		data.write(b, 0, b.length);
+	}
+
+	public void dispose() {
+		data.dispose();
 	}
 
 	public boolean equals(InetSocketAddress sockAddr, InetAddress addr) {
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 NCHOVY
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.pcap.decoder.tftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.pcap.decoder.udp.UdpPacket;
+import org.krakenapps.pcap.decoder.udp.UdpPortProtocolMapper;
+import org.krakenapps.pcap.util.ChainBuffer;
+import org.krakenapps.pcap.util.ExtractionBudget;
+
+public class TftpDecoderTest {
+	private TftpDecoder decoder;
+	private ExtractionBudget budget;
+	private InetAddress client;
+	private InetAddress server;
+	private int files;
+
+	@Before
+	public void setUp() throws IOException {
+		decoder = new TftpDecoder(new UdpPortProtocolMapper());
+		budget = new ExtractionBudget(1024 * 1024);
+		decoder.setExtractionBudget(budget);
+		decoder.register(new TftpProcessor() {
+			@Override
+			public void onCommand(String command) {
+			}
+
+			@Override
+			public void onExtractFile(InputStream is, String fileName) {
+				files++;
+			}
+		});
+
+		client = InetAddress.getByName("10.0.0.1");
+		server = InetAddress.getByName("10.0.0.2");
+	}
+
+	@Test
+	public void testTransfer() throws IOException {
+		decoder.process(packet(client, 40000, server, 69, request()));
+		decoder.process(packet(server, 50000, client, 40000, data(1, 512)));
+		decoder.process(packet(server, 50000, client, 40000, data(2, 100)));
+
+		assertEquals(1, files);
+		assertEquals(0, decoder.getSessionTable().size());
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testLastBlockLost() throws IOException {
+		decoder.process(packet(client, 40000, server, 69, request()));
+		decoder.process(packet(server, 50000, client, 40000, data(1, 512)));
+		assertEquals(512, budget.getUsed());
+
+		/* the last block never arrives, another transfer starts later */
+		decoder.getSessionTable().advance(TftpDecoder.DEFAULT_IDLE_TIMEOUT + 1);
+		decoder.process(packet(client, 40001, server, 69, request()));
+
+		assertEquals(0, files);
+		assertEquals(1, decoder.getSessionTable().size());
+		assertEquals(1, decoder.getSessionTable().getIdleExpiredCount());
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testClose() throws IOException {
+		decoder.process(packet(client, 40000, server, 69, request()));
+		decoder.process(packet(server, 50000, client, 40000, data(1, 512)));
+
+		decoder.close();
+		assertEquals(0, files);
+		assertEquals(0, decoder.getSessionTable().size());
+		assertEquals(0, budget.getUsed());
+	}
+
+	private static UdpPacket packet(InetAddress src, int sport, InetAddress dst, int dport, byte[] data) {
+		UdpPacket p = new UdpPacket(src, sport, dst, dport);
+		p.setData(new ChainBuffer(data));
+		return p;
+	}
+
+	private static byte[] request() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(new byte[] { 0, 1 });
+		bos.write("file.bin".getBytes(StandardCharsets.US_ASCII));
+		bos.write(0);
+		bos.write("octet".getBytes(StandardCharsets.US_ASCII));
+		bos.write(0);
+		return bos.toByteArray();
+	}
+
+	private static byte[] data(int block, int length) {
+		byte[] b = new byte[4 + length];
+		b[1] = 3;
+		b[2] = (byte) (block >> 8);
+		b[3] = (byte) block;
+		return b;
+	}
+}